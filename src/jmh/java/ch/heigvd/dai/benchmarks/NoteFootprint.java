@@ -0,0 +1,90 @@
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.model.ContentArena;
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the heap used by the notes with their contents kept as strings or off-heap. Not a JMH
+ * benchmark: the storage is chosen once per JVM, run it once per storage:
+ *
+ * <pre>
+ * java -cp target/no-tion-benchmarks.jar ch.heigvd.dai.benchmarks.NoteFootprint OFF_HEAP 1000000 200
+ * </pre>
+ *
+ * <p>The arguments are the storage ({@code HEAP} or {@code OFF_HEAP}), the number of notes and the
+ * length of their contents in characters. Half of the contents hold an emoji, which makes their
+ * strings UTF-16.
+ */
+public class NoteFootprint {
+  private static final int NOTES_PER_USER = 1000;
+
+  public static void main(String[] args) {
+    boolean offHeap = args.length > 0 && args[0].equals("OFF_HEAP");
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+    int length = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    if (offHeap) {
+      Note.useArena(new ContentArena());
+    }
+
+    long before = usedHeap();
+    List<User> users = new ArrayList<>();
+    Random random = new Random(42);
+    for (int i = 0; i < count; i++) {
+      if (i % NOTES_PER_USER == 0) {
+        users.add(new User("user " + users.size()));
+      }
+      User user = users.get(users.size() - 1);
+      Note note = new Note("note " + i, "");
+      user.addNote(note);
+      user.updateContent(note, content(random, length, i % 2 == 0), User.ANY_VERSION);
+    }
+    long heap = usedHeap() - before;
+
+    System.out.printf(
+        Locale.ROOT,
+        "%s: %d notes of %d chars, heap %.1f MiB (%.0f B/note)",
+        offHeap ? "OFF_HEAP" : "HEAP",
+        count,
+        length,
+        heap / 1048576.0,
+        (double) heap / count);
+    if (offHeap) {
+      System.out.printf(
+          Locale.ROOT,
+          ", off-heap %.1f MiB used, %.1f MiB reserved",
+          Note.arena().usedBytes() / 1048576.0,
+          Note.arena().reservedBytes() / 1048576.0);
+    }
+    System.out.println();
+    // Keeps the notes reachable until the heap is measured
+    System.out.println(users.size() + " users");
+  }
+
+  private static String content(Random random, int length, boolean emoji) {
+    StringBuilder content = new StringBuilder(length);
+    while (content.length() < length) {
+      content.append((char) ('a' + random.nextInt(26)));
+      if (random.nextInt(6) == 0) {
+        content.append(' ');
+      }
+    }
+    content.setLength(length);
+    if (emoji) {
+      content.replace(length - 2, length, "😀");
+    }
+    return content.toString();
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+}
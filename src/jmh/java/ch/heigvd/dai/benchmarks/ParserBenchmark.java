@@ -0,0 +1,90 @@
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.commands.Client;
+import ch.heigvd.dai.utils.CommandParser;
+import ch.heigvd.dai.utils.FrameParser;
+import ch.heigvd.dai.utils.Frames;
+import ch.heigvd.dai.utils.MainUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of one request line, by the former string-based path and by {@link CommandParser}, and of
+ * the same request encoded as a frame by {@link FrameParser}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+  @Param({
+    "GET_NOTE 12",
+    "UPDATE_CONTENT 3 \"hello wonderful world of notes\"",
+    "CREATE_NOTE \"a title with spaces\"",
+    "UNKNOWN_COMMAND argument"
+  })
+  public String line;
+
+  private byte[] bytes;
+  private byte[] frame;
+  private final CommandParser parser = new CommandParser();
+  private final FrameParser frameParser = new FrameParser();
+
+  @Setup
+  public void setup() throws IOException {
+    bytes = line.getBytes(StandardCharsets.UTF_8);
+
+    // The same request as a frame, the numeric arguments as integers
+    parser.parse(bytes, 0, bytes.length);
+    Object[] arguments = new Object[parser.argumentCount()];
+    for (int i = 0; i < arguments.length; i++) {
+      int value = parser.intArgument(i, Integer.MIN_VALUE);
+      arguments[i] = value == Integer.MIN_VALUE ? parser.argument(i) : (Object) value;
+    }
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    Frames.writeRequest(new DataOutputStream(encoded), parser.command(), 1, arguments);
+    frame = encoded.toByteArray();
+  }
+
+  /** Trim, {@link MainUtils#parseInput(String)} then {@code Command.valueOf}, as before. */
+  @Benchmark
+  public void parseInput(Blackhole blackhole) {
+    String[] tokens = MainUtils.parseInput(line.trim());
+    Client.Command command = null;
+    try {
+      command = Client.Command.valueOf(tokens[0]);
+    } catch (IllegalArgumentException e) {
+      // unknown command
+    }
+    blackhole.consume(tokens);
+    blackhole.consume(command);
+  }
+
+  @Benchmark
+  public void commandParser(Blackhole blackhole) {
+    parser.parse(bytes, 0, bytes.length);
+    blackhole.consume(parser.command());
+    blackhole.consume(parser.argumentCount());
+  }
+
+  /** Parsing of the frame, whose length has been read by the engine. */
+  @Benchmark
+  public void frameParser(Blackhole blackhole) {
+    frameParser.parse(frame, 4, frame.length - 4);
+    blackhole.consume(frameParser.command());
+    blackhole.consume(frameParser.argumentCount());
+  }
+
+  /** Decoding of the line alone, the lower bound of any parser working on strings. */
+  @Benchmark
+  public String decodeOnly() {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
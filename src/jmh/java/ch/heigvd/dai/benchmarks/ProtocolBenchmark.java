@@ -0,0 +1,155 @@
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.commands.Server;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+import picocli.CommandLine;
+
+/**
+ * End-to-end requests over loopback to a {@link Server} started in the benchmark JVM. Each
+ * benchmark thread is a client with its own connection and user, sending one request drawn from
+ * the mix and waiting for its response. Run it with {@code -t <threads>} to add clients, and read
+ * the latency percentiles from the sample time mode.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+  /** The server, started once per trial. */
+  @State(Scope.Benchmark)
+  public static class ServerState {
+    @Param({"BLOCKING", "NIO", "VIRTUAL"})
+    public String engine;
+
+    /**
+     * Share of each request, as {@code COMMAND:weight} pairs. CREATE_DELETE creates then deletes a
+     * note, in two round trips.
+     */
+    @Param({"GET_NOTE:70,UPDATE_CONTENT:20,UPDATE_TITLE:5,LIST_NOTES:5"})
+    public String mix;
+
+    /** Number of notes of each user. */
+    @Param({"100"})
+    public int notes;
+
+    int port;
+    String[] draws;
+    final AtomicInteger clients = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+      try (ServerSocket probe = new ServerSocket(0)) {
+        port = probe.getLocalPort();
+      }
+      Thread server =
+          new Thread(
+              () ->
+                  new CommandLine(new Server())
+                      .setCaseInsensitiveEnumValuesAllowed(true)
+                      .execute("-p", String.valueOf(port), "-e", engine),
+              "benchmark-server");
+      server.setDaemon(true);
+      server.start();
+
+      // 100 draws in the proportions of the mix
+      List<String> table = new ArrayList<>();
+      for (String entry : mix.split(",")) {
+        String[] parts = entry.split(":");
+        for (int i = 0; i < Integer.parseInt(parts[1].trim()); i++) {
+          table.add(parts[0].trim());
+        }
+      }
+      draws = table.toArray(new String[0]);
+    }
+  }
+
+  /** A client connection with its notes. */
+  @State(Scope.Thread)
+  public static class ClientState {
+    Socket socket;
+    BufferedReader in;
+    BufferedWriter out;
+    int notes;
+    long counter;
+
+    @Setup(Level.Trial)
+    public void connect(ServerState server) throws Exception {
+      for (int attempt = 0; socket == null; attempt++) {
+        try {
+          socket = new Socket("localhost", server.port);
+        } catch (IOException e) {
+          if (attempt == 100) throw e;
+          Thread.sleep(50);
+        }
+      }
+      socket.setTcpNoDelay(true);
+      in =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      out =
+          new BufferedWriter(
+              new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+      notes = server.notes;
+      request("CONNECT bench-" + server.engine + "-" + server.clients.incrementAndGet());
+      for (int i = 0; i < notes; i++) {
+        request("CREATE_NOTE \"note " + i + "\"");
+        request("UPDATE_CONTENT " + (i + 1) + " \"content of the note number " + i + "\"");
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws IOException {
+      out.write("DISCONNECT\n");
+      out.flush();
+      socket.close();
+    }
+
+    String request(String line) throws IOException {
+      out.write(line);
+      out.write('\n');
+      out.flush();
+      return in.readLine();
+    }
+
+    String listNotes() throws IOException {
+      out.write("LIST_NOTES\n");
+      out.flush();
+      String line;
+      String last = null;
+      while ((line = in.readLine()) != null && !line.isEmpty()) {
+        last = line;
+      }
+      return last;
+    }
+  }
+
+  @Benchmark
+  public String request(ServerState server, ClientState client) throws IOException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int index = 1 + random.nextInt(client.notes);
+    long id = client.counter++;
+    return switch (server.draws[random.nextInt(server.draws.length)]) {
+      case "GET_NOTE" -> client.request("GET_NOTE " + index);
+      case "UPDATE_CONTENT" ->
+          client.request("UPDATE_CONTENT " + index + " \"updated content number " + id + "\"");
+      case "UPDATE_TITLE" -> client.request("UPDATE_TITLE " + index + " \"title " + id + "\"");
+      case "LIST_NOTES" -> client.listNotes();
+      case "CREATE_DELETE" -> {
+        client.request("CREATE_NOTE \"extra " + id + "\"");
+        yield client.request("DELETE_NOTE \"extra " + id + "\"");
+      }
+      default -> throw new IllegalArgumentException("Unknown command in the mix");
+    };
+  }
+}
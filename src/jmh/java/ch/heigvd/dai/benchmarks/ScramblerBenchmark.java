@@ -0,0 +1,82 @@
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.utils.Scrambler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Scrambling of a note content of a given length, by {@link Scrambler} and the former code. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScramblerBenchmark {
+  @Param({"100", "10000", "1000000"})
+  public int length;
+
+  /** Share of the words containing an emoji, in percent. */
+  @Param({"0", "5"})
+  public int emojiPercent;
+
+  private String content;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    StringBuilder text = new StringBuilder(length + 16);
+    while (text.length() < length) {
+      int letters = 1 + random.nextInt(10);
+      for (int i = 0; i < letters; i++) {
+        text.append((char) ('a' + random.nextInt(26)));
+      }
+      if (random.nextInt(100) < emojiPercent) {
+        text.append("😀");
+      }
+      text.append(' ');
+    }
+    content = text.toString().trim();
+  }
+
+  @Benchmark
+  public String scrambler() {
+    return Scrambler.scramble(content, false);
+  }
+
+  @Benchmark
+  public String scramblerParallel() {
+    return Scrambler.scramble(content, true);
+  }
+
+  /** The former ClientHandler.scrambleContent, kept as the baseline. */
+  @Benchmark
+  public String legacy() {
+    String[] words = content.split(" ");
+    StringBuilder scrambled = new StringBuilder();
+    for (int i = 0; i < words.length; i++) {
+      if (i > 0) scrambled.append(" ");
+      scrambled.append(legacyScrambleWord(words[i]));
+    }
+    return scrambled.toString();
+  }
+
+  private static String legacyScrambleWord(String word) {
+    if (word.length() <= 3) {
+      return word;
+    }
+    char[] chars = word.toCharArray();
+    List<Character> middle = new ArrayList<>();
+    for (int i = 1; i < chars.length - 1; i++) {
+      middle.add(chars[i]);
+    }
+    Collections.shuffle(middle);
+    for (int i = 1; i < chars.length - 1; i++) {
+      chars[i] = middle.get(i - 1);
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,50 @@
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Note lookups and changes of a {@link User} holding a given number of notes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UserBenchmark {
+  @Param({"10", "1000", "100000"})
+  public int notes;
+
+  private User user;
+  private String[] titles;
+
+  @Setup
+  public void setup() {
+    user = new User("bench");
+    titles = new String[notes];
+    for (int i = 0; i < notes; i++) {
+      titles[i] = "note " + i;
+      user.addNote(new Note(titles[i], "content of note " + i));
+    }
+  }
+
+  @Benchmark
+  public boolean hasNoteWithTitle() {
+    return user.hasNoteWithTitle(titles[ThreadLocalRandom.current().nextInt(notes)]);
+  }
+
+  @Benchmark
+  public Note getNote() {
+    return user.getNote(ThreadLocalRandom.current().nextInt(notes));
+  }
+
+  /** Deletes a random note and creates it again at the end, keeping the number of notes. */
+  @Benchmark
+  public boolean deleteNoteByTitle() {
+    String title = titles[ThreadLocalRandom.current().nextInt(notes)];
+    user.deleteNoteByTitle(title);
+    return user.addNote(new Note(title, ""));
+  }
+}
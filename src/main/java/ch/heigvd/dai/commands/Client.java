@@ -1,9 +1,20 @@
 package ch.heigvd.dai.commands;
 
+import ch.heigvd.dai.utils.DeflateCodec;
+import ch.heigvd.dai.utils.MainUtils;
+import ch.heigvd.dai.utils.ResponseInputStream;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import picocli.CommandLine;
 
 /**
@@ -23,13 +34,42 @@ public class Client implements Callable<Integer> {
     GET_NOTE,
     UPDATE_CONTENT,
     UPDATE_TITLE,
+    UPLOAD_CONTENT,
+    DOWNLOAD_CONTENT,
+    CHUNK,
+    STATS,
+    SEARCH,
+    CHANGES_SINCE,
+    DELETE_NOTE_ID,
+    APPEND_CONTENT,
+    PATCH_CONTENT,
+    WATCH,
+    UNWATCH,
+    GET_NOTES,
+    BATCH,
+    END,
     HELP,
     QUIT
   }
 
+  /** First word of the changes pushed to a session watching the notes. */
+  private static final String EVENT = "EVENT ";
+
+  /** Number of titles asked for by each page when the notes are listed again. */
+  private static final int PAGE_SIZE = 500;
+
   /** Tracks whether the client is connected to the server. */
   private boolean connected = false;
 
+  /**
+   * The titles of the notes of the connected user preceded by their {@code #<id>}, in order, as of
+   * {@link #titlesVersion}.
+   */
+  private final List<String> titles = new ArrayList<>();
+
+  /** The version of the notes the titles are those of, -1 until they are first listed. */
+  private long titlesVersion = -1;
+
   /** Hostname or IP address of the server. */
   @CommandLine.Option(
       names = {"-H", "--host"},
@@ -44,12 +84,42 @@ public class Client implements Callable<Integer> {
       defaultValue = "16447")
   private int port;
 
+  /** File of requests to send without waiting for each response. */
+  @CommandLine.Option(
+      names = {"-b", "--batch"},
+      description =
+          "Sends the requests of a file (one per line, - for the standard input) pipelined instead"
+              + " of showing the menu, and prints the responses.")
+  private String batch;
+
+  /** Whether the large notes and lists are sent compressed. */
+  @CommandLine.Option(
+      names = {"-z", "--compress"},
+      description =
+          "Asks the server to compress the large notes and lists, and compresses the uploaded"
+              + " files.")
+  private boolean compress;
+
+  /** The compression of the connection, null without {@link #compress}. */
+  private DeflateCodec codec;
+
   @Override
   public Integer call() {
+    if (compress) {
+      codec = new DeflateCodec();
+    }
+    try {
+      return batch != null ? runBatch() : runMenu();
+    } finally {
+      if (codec != null) {
+        codec.close();
+      }
+    }
+  }
+
+  private int runMenu() {
     try (Socket socket = new Socket(host, port);
-        BufferedReader in =
-            new BufferedReader(
-                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        ResponseInputStream in = new ResponseInputStream(socket.getInputStream());
         BufferedWriter out =
             new BufferedWriter(
                 new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
@@ -90,11 +160,13 @@ public class Client implements Callable<Integer> {
               System.out.println("Invalid username.\n");
               continue;
             }
-            sendCommand(out, "CONNECT " + username);
-            String response = in.readLine();
+            sendCommand(
+                out, "CONNECT " + username + (compress ? " " + DeflateCodec.CAPABILITY : ""));
+            String response = readResponse(in);
             handleServerResponse(response);
             if ("OK".equals(response)) {
               connected = true;
+              titlesVersion = -1;
               System.out.println("You are now connected as '" + username + "'.\n");
             } else {
               System.out.println();
@@ -112,7 +184,7 @@ public class Client implements Callable<Integer> {
               continue;
             }
             sendCommand(out, "CREATE_NOTE " + "\"" + title + "\"");
-            String response = in.readLine();
+            String response = readResponse(in);
             handleServerResponse(response);
             System.out.println();
           }
@@ -123,26 +195,24 @@ public class Client implements Callable<Integer> {
               continue;
             }
             sendCommand(out, "DELETE_NOTE " + title);
-            String response = in.readLine();
+            String response = readResponse(in);
             handleServerResponse(response);
             System.out.println();
           }
           case LIST_NOTES -> {
-            sendCommand(out, "LIST_NOTES");
-            String responseLine;
-            boolean notesFound = false;
-            while ((responseLine = in.readLine()) != null && !responseLine.isEmpty()) {
-              if (!notesFound) {
-                System.out.println("Your notes:");
-                notesFound = true;
-              }
-              System.out.println("  " + responseLine);
+            if (!refreshTitles(in, out)) {
+              System.out.println();
+              continue;
             }
-            if (!notesFound) {
+            if (titles.isEmpty()) {
               System.out.println("You have no notes.\n");
-            } else {
-              System.out.println();
+              continue;
             }
+            System.out.println("Your notes:");
+            for (int i = 0; i < titles.size(); i++) {
+              System.out.println("  " + (i + 1) + " " + titles.get(i));
+            }
+            System.out.println();
           }
           case GET_NOTE -> {
             String index = prompt(userInputReader, "Enter note index: ");
@@ -151,8 +221,10 @@ public class Client implements Callable<Integer> {
               continue;
             }
             sendCommand(out, "GET_NOTE " + index);
-            String response = in.readLine();
-            if (response != null && response.startsWith("NOTE ")) {
+            String response = readResponse(in);
+            if (response != null && response.startsWith("ZNOTE ")) {
+              System.out.println("Note content:\n" + in.readCompressed(response, codec) + "\n");
+            } else if (response != null && response.startsWith("NOTE ")) {
               String content = response.substring(5);
               System.out.println("Note content:\n" + content + "\n");
             } else {
@@ -166,13 +238,32 @@ public class Client implements Callable<Integer> {
               System.out.println("Invalid index.\n");
               continue;
             }
-            String newContent = prompt(userInputReader, "Enter new content: ");
+            String newContent =
+                prompt(userInputReader, "Enter new content (or @file to upload a file): ");
             if (newContent == null) {
               System.out.println("Invalid content.\n");
               continue;
             }
-            sendCommand(out, "UPDATE_CONTENT " + index + " \"" + newContent + "\"");
-            String response = in.readLine();
+            if (newContent.startsWith("@")) {
+              byte[] content;
+              try {
+                content = Files.readAllBytes(Path.of(newContent.substring(1).trim()));
+              } catch (IOException e) {
+                System.out.println("Cannot read the file: " + e.getMessage() + "\n");
+                continue;
+              }
+              if (compress) {
+                int length = codec.deflate(content, 0, content.length);
+                content = Arrays.copyOf(codec.output(), length);
+                sendCommand(out, "UPLOAD_CONTENT " + index + " " + DeflateCodec.CAPABILITY);
+              } else {
+                sendCommand(out, "UPLOAD_CONTENT " + index);
+              }
+              sendChunks(socket.getOutputStream(), content);
+            } else {
+              sendCommand(out, "UPDATE_CONTENT " + index + " \"" + newContent + "\"");
+            }
+            String response = readResponse(in);
             handleServerResponse(response);
             System.out.println();
           }
@@ -188,10 +279,53 @@ public class Client implements Callable<Integer> {
               continue;
             }
             sendCommand(out, "UPDATE_TITLE " + index + " \"" + newTitle + "\"");
-            String response = in.readLine();
+            String response = readResponse(in);
             handleServerResponse(response);
             System.out.println();
           }
+          case APPEND_CONTENT -> {
+            String index = prompt(userInputReader, "Enter note index to append to: ");
+            if (index == null || index.isBlank()) {
+              System.out.println("Invalid index.\n");
+              continue;
+            }
+            String text = prompt(userInputReader, "Enter text to append: ");
+            if (text == null) {
+              System.out.println("Invalid text.\n");
+              continue;
+            }
+            sendCommand(out, "APPEND_CONTENT " + index + " \"" + text + "\"");
+            String response = readResponse(in);
+            handleServerResponse(response);
+            System.out.println();
+          }
+          case SEARCH -> {
+            String query =
+                prompt(
+                    userInputReader,
+                    "Enter search terms (OR between alternatives, * for a prefix): ");
+            if (query == null || query.isBlank()) {
+              System.out.println("Invalid query.\n");
+              continue;
+            }
+            sendCommand(out, "SEARCH " + query);
+            String responseLine = readResponse(in);
+            if (responseLine != null && responseLine.startsWith("ERROR")) {
+              handleServerResponse(responseLine);
+              System.out.println();
+              continue;
+            }
+            boolean notesFound = false;
+            while (responseLine != null && !responseLine.isEmpty()) {
+              if (!notesFound) {
+                System.out.println("Matching notes, best first:");
+                notesFound = true;
+              }
+              System.out.println("  " + responseLine);
+              responseLine = in.readLine();
+            }
+            System.out.println(notesFound ? "" : "No note matches.\n");
+          }
           case HELP -> {
             printHelp();
             System.out.println();
@@ -217,6 +351,283 @@ public class Client implements Callable<Integer> {
     return 0;
   }
 
+  /**
+   * Sends the requests of the batch file while a second thread reads the responses, so that the
+   * requests are pipelined instead of waiting for a round trip each. Blank lines and lines starting
+   * with # are skipped.
+   */
+  private int runBatch() {
+    try (Socket socket = new Socket(host, port);
+        BufferedReader requests =
+            batch.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : new BufferedReader(
+                    new InputStreamReader(new FileInputStream(batch), StandardCharsets.UTF_8));
+        ResponseInputStream in = new ResponseInputStream(socket.getInputStream());
+        BufferedWriter out =
+            new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
+                1 << 16)) {
+      // The requests whose responses have not been read yet, in order, then an empty line once
+      // all the requests are sent
+      BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+      AtomicReference<IOException> failure = new AtomicReference<>();
+      long start = System.nanoTime();
+
+      Thread sender =
+          Thread.ofPlatform()
+              .name("batch-sender")
+              .start(
+                  () -> {
+                    try {
+                      String line;
+                      while ((line = requests.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) continue;
+                        if (compress && line.startsWith(Command.CONNECT + " ")) {
+                          line += " " + DeflateCodec.CAPABILITY;
+                        }
+                        sent.add(line);
+                        out.write(line + "\n");
+                        // Sends what is buffered when the next requests are not there yet
+                        if (!requests.ready()) out.flush();
+                        if (line.equals(Command.DISCONNECT.toString())) break;
+                      }
+                      out.flush();
+                    } catch (IOException e) {
+                      failure.set(e);
+                    } finally {
+                      sent.add("");
+                    }
+                  });
+
+      int count = 0;
+      int errors = 0;
+      boolean connected = false;
+      // The requests sent since BATCH, all answered at END, null outside of a batch
+      List<String> batched = null;
+      String request;
+      while (!(request = sent.take()).isEmpty()) {
+        String command = MainUtils.parseInput(request)[0];
+        if (command.equals(Command.DISCONNECT.toString())) {
+          break;
+        }
+        count++;
+        if (batched != null && !command.equals(Command.END.toString())) {
+          batched.add(request);
+          continue;
+        }
+        System.out.println("> " + request);
+        if (connected && command.equals(Command.BATCH.toString())) {
+          // Not answered, the server refuses it before CONNECT
+          batched = new ArrayList<>();
+          continue;
+        }
+        String response = readResponse(in);
+        if (response == null) {
+          System.err.println("[Client] Connection closed by the server");
+          return 1;
+        }
+        if (batched != null) {
+          errors += printBatch(in, batched, response);
+          batched = null;
+        } else {
+          errors += printResponse(in, command, response);
+        }
+        if (command.equals(Command.CONNECT.toString()) && response.equals("OK")) {
+          connected = true;
+        }
+      }
+      sender.join();
+      if (failure.get() != null) {
+        throw failure.get();
+      }
+
+      System.out.printf(
+          "%d request(s) in %d ms, %d error(s)%n",
+          count, (System.nanoTime() - start) / 1_000_000, errors);
+      return errors == 0 ? 0 : 1;
+    } catch (IOException e) {
+      System.err.println("[Client] Error: " + e.getMessage());
+      return 1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 1;
+    }
+  }
+
+  /**
+   * Prints a response of the batch mode, reading what follows its first line.
+   *
+   * @param command The command of the request.
+   * @param response The first line of the response.
+   * @return The number of errors in the response.
+   */
+  private int printResponse(ResponseInputStream in, String command, String response)
+      throws IOException {
+    if (response.startsWith(Server.Message.ERROR.toString())) {
+      System.out.println(response);
+      return 1;
+    }
+    if (response.startsWith("ZNOTE ")) {
+      System.out.println("NOTE " + in.readCompressed(response, codec));
+    } else if (response.startsWith("ZLIST ")) {
+      // The lines of the list, with the empty line ending it
+      System.out.print(in.readCompressed(response, codec));
+    } else if (command.equals(Command.GET_NOTES.toString())) {
+      // The number of notes, then each of them as the response to GET_NOTE
+      System.out.println(response);
+      int errors = 0;
+      int count = Integer.parseInt(response.substring("NOTES ".length()));
+      for (int i = 0; i < count; i++) {
+        errors += printResponse(in, Command.GET_NOTE.toString(), readLine(in));
+      }
+      return errors;
+    } else if (command.equals(Command.DOWNLOAD_CONTENT.toString())) {
+      // The chunks of the content, until the empty one
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      int size;
+      while ((size = chunkSize(response)) > 0) {
+        content.write(in.readBytes(size));
+        response = in.readLine();
+        if (response != null && response.startsWith(Server.Message.ERROR.toString())) {
+          // The note changed or was deleted before its last chunk
+          System.out.println(response);
+          return 1;
+        }
+      }
+      System.out.println(content.toString(StandardCharsets.UTF_8));
+    } else {
+      System.out.println(response);
+      if (command.equals(Command.LIST_NOTES.toString())
+          || command.equals(Command.STATS.toString())
+          || command.equals(Command.SEARCH.toString())
+          || command.equals(Command.CHANGES_SINCE.toString())) {
+        // The list ends with an empty line
+        while (!response.isEmpty() && (response = in.readLine()) != null) {
+          System.out.println(response);
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Prints the response to the {@code END} of a batch, each result after the request it is for.
+   *
+   * @param requests The requests sent between {@code BATCH} and {@code END}.
+   * @param response The first line of the response.
+   * @return The number of errors in the response.
+   */
+  private int printBatch(ResponseInputStream in, List<String> requests, String response)
+      throws IOException {
+    if (!response.startsWith(Command.BATCH + " ")) {
+      // The batch is refused as a whole
+      return printResponse(in, Command.END.toString(), response);
+    }
+    System.out.println(response);
+    int errors = 0;
+    int count = Integer.parseInt(response.substring(Command.BATCH.toString().length() + 1));
+    for (int i = 0; i < count; i++) {
+      if (i < requests.size()) {
+        System.out.println("  " + requests.get(i));
+      }
+      String result = readLine(in);
+      System.out.println(result);
+      if (result.startsWith(Server.Message.ERROR.toString())) {
+        errors++;
+      }
+    }
+    return errors;
+  }
+
+  /** Reads a line following the first one of a response, which must be there. */
+  private static String readLine(ResponseInputStream in) throws IOException {
+    String line = in.readLine();
+    if (line == null) {
+      throw new EOFException("Connection closed by the server");
+    }
+    return line;
+  }
+
+  /**
+   * @return The size announced by a {@code CHUNK <size>} line.
+   */
+  private static int chunkSize(String line) throws IOException {
+    if (line == null || !line.startsWith(Command.CHUNK + " ")) {
+      throw new IOException("Unexpected response during a download: " + line);
+    }
+    return Integer.parseInt(line.substring(Command.CHUNK.toString().length() + 1));
+  }
+
+  /**
+   * Brings the titles up to date with the changes made since they were listed, or lists all the
+   * notes page by page when the server does not keep these changes anymore.
+   *
+   * @return false if the server answered with an error, which has been shown.
+   */
+  private boolean refreshTitles(ResponseInputStream in, BufferedWriter out) throws IOException {
+    if (titlesVersion >= 0) {
+      sendCommand(out, "CHANGES_SINCE " + titlesVersion);
+      String response = readResponse(in);
+      if (response != null && response.startsWith("VERSION ")) {
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+          applyChange(line);
+        }
+        titlesVersion = Long.parseLong(response.substring("VERSION ".length()));
+        return true;
+      }
+      if (!(Server.Message.ERROR + " " + Server.Error.CHANGES_EXPIRED.getCode()).equals(response)) {
+        handleServerResponse(response);
+        return false;
+      }
+    }
+    while (true) {
+      titles.clear();
+      long version = -1;
+      boolean changed = false;
+      int total;
+      do {
+        sendCommand(out, "LIST_NOTES " + titles.size() + " " + PAGE_SIZE);
+        String header = readResponse(in);
+        if (header == null || !header.startsWith("VERSION ")) {
+          handleServerResponse(header);
+          return false;
+        }
+        String[] fields = header.split(" ");
+        long pageVersion = Long.parseLong(fields[1]);
+        total = Integer.parseInt(fields[2]);
+        changed = version >= 0 && pageVersion != version;
+        version = pageVersion;
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+          // The index, the identifier, the version and the title: the version is not shown
+          String[] note = line.split(" ", 4);
+          titles.add(note[1] + " " + (note.length > 3 ? note[3] : ""));
+        }
+      } while (!changed && titles.size() < total);
+      // The pages are read again if the notes changed between them
+      if (!changed) {
+        titlesVersion = version;
+        return true;
+      }
+    }
+  }
+
+  /** Applies a line of the response to CHANGES_SINCE: the kind, the index and the title. */
+  private void applyChange(String line) {
+    String[] fields = line.split(" ", 3);
+    int index = Integer.parseInt(fields[1]) - 1;
+    String title = fields.length > 2 ? fields[2] : "";
+    switch (fields[0]) {
+      case "CREATED" -> titles.add(title);
+      case "DELETED" -> titles.remove(index);
+      case "RENAMED" -> titles.set(index, title);
+      default -> throw new IllegalStateException("Unknown change " + line);
+    }
+  }
+
   /** Shows a menu of available commands and returns the chosen command. */
   private Command chooseCommand(BufferedReader userInputReader) throws IOException {
     System.out.println("========================================");
@@ -230,9 +641,11 @@ public class Client implements Callable<Integer> {
     System.out.println("6) GET_NOTE");
     System.out.println("7) UPDATE_CONTENT");
     System.out.println("8) UPDATE_TITLE");
-    System.out.println("9) HELP");
+    System.out.println("9) SEARCH");
+    System.out.println("10) APPEND_CONTENT");
+    System.out.println("11) HELP");
     System.out.println("0) QUIT");
-    System.out.print("Choose an action (0-9): ");
+    System.out.print("Choose an action (0-11): ");
 
     String line = userInputReader.readLine();
     if (line == null) {
@@ -249,7 +662,9 @@ public class Client implements Callable<Integer> {
       case "6" -> Command.GET_NOTE;
       case "7" -> Command.UPDATE_CONTENT;
       case "8" -> Command.UPDATE_TITLE;
-      case "9" -> Command.HELP;
+      case "9" -> Command.SEARCH;
+      case "10" -> Command.APPEND_CONTENT;
+      case "11" -> Command.HELP;
       default -> {
         System.out.println("Invalid choice. Please try again.\n");
         yield null;
@@ -257,11 +672,37 @@ public class Client implements Callable<Integer> {
     };
   }
 
+  /**
+   * Reads the first line of a response. The changes pushed to a session watching the notes come
+   * between the responses as {@code EVENT} lines, they are printed as they are read.
+   *
+   * @return The line, or null at the end of the stream.
+   */
+  private String readResponse(ResponseInputStream in) throws IOException {
+    String line;
+    while ((line = in.readLine()) != null && line.startsWith(EVENT)) {
+      System.out.println(line);
+    }
+    return line;
+  }
+
   private void sendCommand(BufferedWriter out, String command) throws IOException {
     out.write(command + "\n");
     out.flush();
   }
 
+  /** Sends a content as chunks of at most 64 KiB, followed by the empty chunk ending it. */
+  private void sendChunks(OutputStream out, byte[] content) throws IOException {
+    BufferedOutputStream chunks = new BufferedOutputStream(out, 1 << 16);
+    for (int offset = 0; offset < content.length; offset += 1 << 16) {
+      int length = Math.min(1 << 16, content.length - offset);
+      chunks.write(("CHUNK " + length + "\n").getBytes(StandardCharsets.UTF_8));
+      chunks.write(content, offset, length);
+    }
+    chunks.write("CHUNK 0\n".getBytes(StandardCharsets.UTF_8));
+    chunks.flush();
+  }
+
   /** Prompts the user for input with a given message. */
   private String prompt(BufferedReader reader, String message) throws IOException {
     System.out.print(message);
@@ -293,12 +734,22 @@ public class Client implements Callable<Integer> {
     System.out.println("DISCONNECT        Disconnect from the server.");
     System.out.println("CREATE_NOTE       Create a new note (will prompt for a title).");
     System.out.println("DELETE_NOTE       Delete a note (will prompt for a title).");
-    System.out.println("LIST_NOTES        List all existing notes.");
-    System.out.println("GET_NOTE          Show the content of a note (will prompt for index).");
     System.out.println(
-        "UPDATE_CONTENT    Update note content (will prompt for index and new content).");
+        "LIST_NOTES        List all existing notes (only the changes since the last listing are"
+            + " fetched).");
+    System.out.println(
+        "GET_NOTE          Show the content of a note (will prompt for index, or #id as listed).");
+    System.out.println(
+        "UPDATE_CONTENT    Update note content (will prompt for index or #id and new content,"
+            + " @file uploads the content of a file).");
+    System.out.println(
+        "UPDATE_TITLE      Update the note title (will prompt for index or #id and new title).");
+    System.out.println(
+        "SEARCH            Find the notes whose title or content hold words (will prompt for"
+            + " them, OR separates alternatives, a trailing * matches a prefix).");
     System.out.println(
-        "UPDATE_TITLE      Update the note title (will prompt for index and new title).");
+        "APPEND_CONTENT    Add text at the end of a note (will prompt for index or #id and the"
+            + " text).");
     System.out.println("HELP              Display this help message.");
     System.out.println("QUIT              Exit the client.");
     System.out.println("========================================");
@@ -0,0 +1,626 @@
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.utils.DeflateCodec;
+import ch.heigvd.dai.utils.Frames;
+import ch.heigvd.dai.utils.LatencyHistogram;
+import ch.heigvd.dai.utils.ResponseInputStream;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import picocli.CommandLine;
+
+/**
+ * Load generator: opens concurrent sessions against a server and sends them a weighted mix of
+ * requests, then reports the throughput and the latency percentiles of each request.
+ *
+ * <p>In closed loop, each session sends its next request as soon as it received the previous
+ * response. In open loop, the requests are sent on a fixed schedule at the target rate, and their
+ * latency is measured from the time they were scheduled at rather than from the time they were
+ * sent: a stalled server delays the following requests of the session, and counting that delay
+ * avoids the coordinated omission that makes closed loop percentiles look better than what clients
+ * see.
+ *
+ * <p>The bytes sent and received are counted, to compare the text protocol with the frames the
+ * sessions switch to with {@code --binary}, and with the compression they ask for with {@code
+ * --compress}. The contents sent are made of English words, which compress like prose.
+ */
+@CommandLine.Command(name = "loadgen", description = "Put load on a No-Tion server.")
+public class LoadGen implements Callable<Integer> {
+  /** The requests the sessions send. */
+  public enum Request {
+    /** Disconnects then connects again as the same user. */
+    CONNECT,
+    CREATE_NOTE,
+    UPDATE_CONTENT,
+    /** Appends the content to a note, which grows for as long as the load lasts. */
+    APPEND_CONTENT,
+    GET_NOTE,
+    /** Reads the contents of consecutive notes at once. */
+    GET_NOTES,
+    LIST_NOTES,
+    DELETE_NOTE
+  }
+
+  @CommandLine.Option(
+      names = {"-H", "--host"},
+      description = "Server address (default: ${DEFAULT-VALUE}).",
+      defaultValue = "localhost")
+  private String host;
+
+  @CommandLine.Option(
+      names = {"-p", "--port"},
+      description = "Server port (default: ${DEFAULT-VALUE}).",
+      defaultValue = "16447")
+  private int port;
+
+  @CommandLine.Option(
+      names = {"-c", "--sessions"},
+      description =
+          "Number of concurrent sessions, each with its own user (default: ${DEFAULT-VALUE}).",
+      defaultValue = "10")
+  private int sessions;
+
+  @CommandLine.Option(
+      names = {"-d", "--duration-s"},
+      description = "Duration of the measurement in seconds (default: ${DEFAULT-VALUE}).",
+      defaultValue = "10")
+  private int duration;
+
+  @CommandLine.Option(
+      names = {"--warmup-s"},
+      description =
+          "Duration of the load sent before measuring, in seconds (default: ${DEFAULT-VALUE}).",
+      defaultValue = "2")
+  private int warmup;
+
+  @CommandLine.Option(
+      names = {"-r", "--rate"},
+      description =
+          "Target number of requests per second of all the sessions together, 0 for a closed"
+              + " loop (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0")
+  private double rate;
+
+  @CommandLine.Option(
+      names = {"-m", "--mix"},
+      description =
+          "Weight of each request, as REQUEST:weight pairs among ${COMPLETION-CANDIDATES}"
+              + " (default: ${DEFAULT-VALUE}).",
+      split = ",",
+      defaultValue =
+          "GET_NOTE:50,UPDATE_CONTENT:25,LIST_NOTES:10,CREATE_NOTE:7,DELETE_NOTE:7,CONNECT:1")
+  private List<String> mix;
+
+  @CommandLine.Option(
+      names = {"--notes"},
+      description =
+          "Number of notes each session creates before starting (default: ${DEFAULT-VALUE}).",
+      defaultValue = "20")
+  private int notes;
+
+  @CommandLine.Option(
+      names = {"--content-size"},
+      description =
+          "Length of the contents sent by UPDATE_CONTENT and APPEND_CONTENT (default:"
+              + " ${DEFAULT-VALUE}).",
+      defaultValue = "200")
+  private int contentSize;
+
+  @CommandLine.Option(
+      names = {"--notes-per-get"},
+      description = "Number of notes read at once by GET_NOTES (default: ${DEFAULT-VALUE}).",
+      defaultValue = "20")
+  private int notesPerGet;
+
+  @CommandLine.Option(
+      names = {"--binary"},
+      description = "Switch the sessions to binary frames after their CONNECT.")
+  private boolean binary;
+
+  @CommandLine.Option(
+      names = {"-z", "--compress"},
+      description =
+          "Ask for compressed responses at CONNECT, and compress the contents of at least "
+              + COMPRESSED_CONTENT_BYTES
+              + " bytes.")
+  private boolean compress;
+
+  /** Size from which the sessions compress the contents they send. */
+  private static final int COMPRESSED_CONTENT_BYTES = 1024;
+
+  private static final String[] WORDS = {
+    "the",
+    "of",
+    "and",
+    "to",
+    "in",
+    "a",
+    "is",
+    "that",
+    "for",
+    "it",
+    "as",
+    "was",
+    "with",
+    "be",
+    "by",
+    "on",
+    "not",
+    "he",
+    "this",
+    "are",
+    "or",
+    "his",
+    "from",
+    "at",
+    "which",
+    "but",
+    "have",
+    "an",
+    "had",
+    "they",
+    "you",
+    "were",
+    "their",
+    "one",
+    "all",
+    "we",
+    "can",
+    "her",
+    "has",
+    "there",
+    "been",
+    "if",
+    "more",
+    "when",
+    "will",
+    "would",
+    "who",
+    "so",
+    "no",
+    "note",
+    "meeting",
+    "project",
+    "review",
+    "schedule",
+    "tomorrow",
+    "important",
+    "remember",
+    "question",
+    "answer"
+  };
+
+  private Request[] draws;
+  private final Map<Request, LatencyHistogram> latencies = new EnumMap<>(Request.class);
+  private final Map<Request, LatencyHistogram> serviceTimes = new EnumMap<>(Request.class);
+  private final Map<Request, LongAdder> errors = new EnumMap<>(Request.class);
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder bytesReceived = new LongAdder();
+
+  @Override
+  public Integer call() throws Exception {
+    List<Request> table = new ArrayList<>();
+    for (String entry : mix) {
+      String[] parts = entry.split(":");
+      Request request = Request.valueOf(parts[0].trim().toUpperCase());
+      int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+      for (int i = 0; i < weight; i++) {
+        table.add(request);
+      }
+    }
+    if (table.isEmpty()) {
+      System.err.println("[LoadGen] The mix is empty");
+      return 1;
+    }
+    draws = table.toArray(new Request[0]);
+    for (Request request : Request.values()) {
+      latencies.put(request, new LatencyHistogram());
+      serviceTimes.put(request, new LatencyHistogram());
+      errors.put(request, new LongAdder());
+    }
+
+    System.out.printf(
+        "[LoadGen] %d session(s) against %s:%d (%s%s), %s, %d s of warm-up then %d s%n",
+        sessions,
+        host,
+        port,
+        binary ? "binary frames" : "text",
+        compress ? ", compressed" : "",
+        rate > 0 ? String.format("open loop at %.0f requests/s", rate) : "closed loop",
+        warmup,
+        duration);
+
+    long start = System.nanoTime();
+    long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+    List<Future<?>> results = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < sessions; i++) {
+        Session session = new Session(i, measureFrom, end);
+        results.add(
+            executor.submit(
+                () -> {
+                  session.run(start);
+                  return null;
+                }));
+      }
+    }
+    int failed = 0;
+    for (Future<?> result : results) {
+      try {
+        result.get();
+      } catch (Exception e) {
+        failed++;
+        if (failed == 1) {
+          System.err.println("[LoadGen] Session failed: " + e.getCause());
+        }
+      }
+    }
+    report(end - measureFrom);
+    if (failed > 0) {
+      System.err.println("[LoadGen] " + failed + " session(s) failed");
+      return 1;
+    }
+    return 0;
+  }
+
+  private void report(long nanos) {
+    LatencyHistogram all = new LatencyHistogram();
+    LatencyHistogram allService = new LatencyHistogram();
+    long allErrors = 0;
+    System.out.println();
+    System.out.printf(
+        "%-15s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+        "request", "count", "errors", "req/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+    for (Request request : Request.values()) {
+      LatencyHistogram histogram = latencies.get(request);
+      if (histogram.count() == 0) continue;
+      printLine(request.toString(), histogram, errors.get(request).sum(), nanos);
+      all.add(histogram);
+      allService.add(serviceTimes.get(request));
+      allErrors += errors.get(request).sum();
+    }
+    printLine("all", all, allErrors, nanos);
+    if (rate > 0) {
+      // Without the time spent waiting behind late requests, to show the coordinated omission
+      printLine("all (service)", allService, allErrors, nanos);
+    }
+    // Counted from the start of the sessions, warm-up included
+    System.out.printf("%nbytes sent: %d, received: %d%n", bytesSent.sum(), bytesReceived.sum());
+  }
+
+  private static void printLine(String name, LatencyHistogram histogram, long errors, long nanos) {
+    System.out.printf(
+        "%-15s %10d %8d %10.0f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+        name,
+        histogram.count(),
+        errors,
+        histogram.count() * 1e9 / nanos,
+        histogram.percentile(50) / 1e3,
+        histogram.percentile(90) / 1e3,
+        histogram.percentile(99) / 1e3,
+        histogram.percentile(99.9) / 1e3,
+        histogram.max() / 1e3);
+  }
+
+  /** Random English words up to a length. */
+  private static String prose(int length) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    StringBuilder text = new StringBuilder(length + 16);
+    while (text.length() < length) {
+      text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+    }
+    return text.substring(0, length);
+  }
+
+  /** One connection sending requests, with the titles of the notes of its user in order. */
+  private class Session {
+    private final String user;
+    private final long measureFrom;
+    private final long end;
+    private final List<String> titles = new ArrayList<>();
+    private final String content;
+    private Socket socket;
+    private ResponseInputStream in;
+    private BufferedWriter out;
+    private OutputStream rawOut;
+    private DataInputStream frameIn;
+    private DataOutputStream frameOut;
+    private boolean framed;
+    private DeflateCodec codec;
+    private int nextRequestId;
+    private long created;
+
+    Session(int number, long measureFrom, long end) {
+      this.user = "loadgen-" + ProcessHandle.current().pid() + "-" + number;
+      this.measureFrom = measureFrom;
+      this.end = end;
+      this.content = prose(Math.max(contentSize, 1));
+    }
+
+    void run(long start) throws IOException {
+      try {
+        connect();
+        for (int i = 0; i < notes; i++) {
+          send(Request.CREATE_NOTE);
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = rate > 0 ? (long) (1e9 * sessions / rate) : 0;
+        // The schedules of the sessions are spread over one interval
+        long scheduled = start + (interval > 0 ? random.nextLong(interval) : 0);
+        while (true) {
+          long now = System.nanoTime();
+          if (interval > 0) {
+            if (scheduled >= end) break;
+            if (scheduled > now) {
+              LockSupport.parkNanos(scheduled - now);
+            }
+          } else {
+            if (now >= end) break;
+            scheduled = now;
+          }
+
+          Request request = draws[random.nextInt(draws.length)];
+          long sent = System.nanoTime();
+          boolean ok = send(request);
+          long received = System.nanoTime();
+          if (scheduled >= measureFrom) {
+            latencies.get(request).record(received - scheduled);
+            serviceTimes.get(request).record(received - sent);
+            if (!ok) {
+              errors.get(request).increment();
+            }
+          }
+          scheduled += interval;
+        }
+        disconnect();
+      } finally {
+        if (socket != null) {
+          socket.close();
+        }
+        if (codec != null) {
+          codec.close();
+        }
+      }
+    }
+
+    private void connect() throws IOException {
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      InputStream socketIn = new CountingInputStream(socket.getInputStream());
+      OutputStream socketOut = new CountingOutputStream(socket.getOutputStream());
+      in = new ResponseInputStream(socketIn);
+      out = new BufferedWriter(new OutputStreamWriter(socketOut, StandardCharsets.UTF_8));
+      rawOut = socketOut;
+      framed = false;
+      if (compress && codec == null) {
+        codec = new DeflateCodec();
+      }
+      String line =
+          "CONNECT "
+              + user
+              + (binary ? " " + Frames.CAPABILITY : "")
+              + (compress ? " " + DeflateCodec.CAPABILITY : "");
+      if (!"OK".equals(call(line))) {
+        throw new IOException("CONNECT refused");
+      }
+      if (binary) {
+        // Nothing follows the response of CONNECT, the frames are read from the same buffer
+        frameIn = new DataInputStream(in);
+        frameOut = new DataOutputStream(new BufferedOutputStream(socketOut));
+        framed = true;
+      }
+    }
+
+    private void disconnect() throws IOException {
+      if (framed) {
+        Frames.writeRequest(frameOut, Client.Command.DISCONNECT, nextRequestId++);
+        frameOut.flush();
+      } else {
+        out.write("DISCONNECT\n");
+        out.flush();
+      }
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @return false if the server answered with an error.
+     */
+    private boolean send(Request request) throws IOException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      // Requests needing a note create one when there is none
+      if (titles.isEmpty()
+          && (request == Request.GET_NOTE
+              || request == Request.GET_NOTES
+              || request == Request.UPDATE_CONTENT
+              || request == Request.APPEND_CONTENT
+              || request == Request.DELETE_NOTE)) {
+        request = Request.CREATE_NOTE;
+      }
+      int index = titles.isEmpty() ? 0 : random.nextInt(titles.size());
+      switch (request) {
+        case CONNECT -> {
+          disconnect();
+          socket.close();
+          connect();
+          return true;
+        }
+        case CREATE_NOTE -> {
+          String title = "note " + created++;
+          if (!exchange(Client.Command.CREATE_NOTE, title)) return false;
+          titles.add(title);
+          return true;
+        }
+        case UPDATE_CONTENT -> {
+          if (compress && content.length() >= COMPRESSED_CONTENT_BYTES) {
+            return updateCompressed(index + 1);
+          }
+          return exchange(Client.Command.UPDATE_CONTENT, index + 1, content);
+        }
+        case APPEND_CONTENT -> {
+          return exchange(Client.Command.APPEND_CONTENT, index + 1, content);
+        }
+        case GET_NOTE -> {
+          return exchange(Client.Command.GET_NOTE, index + 1);
+        }
+        case GET_NOTES -> {
+          int count = Math.min(notesPerGet, titles.size());
+          int first = random.nextInt(titles.size() - count + 1) + 1;
+          if (!framed) {
+            return exchange(Client.Command.GET_NOTES, first + "-" + (first + count - 1));
+          }
+          Object[] indices = new Object[count];
+          for (int i = 0; i < count; i++) {
+            indices[i] = first + i;
+          }
+          return exchange(Client.Command.GET_NOTES, indices);
+        }
+        case LIST_NOTES -> {
+          return exchange(Client.Command.LIST_NOTES);
+        }
+        case DELETE_NOTE -> {
+          if (!exchange(Client.Command.DELETE_NOTE, titles.get(index))) return false;
+          titles.remove(index);
+          return true;
+        }
+        default -> throw new IllegalStateException();
+      }
+    }
+
+    /**
+     * Sends a request in the encoding of the session and reads its whole response.
+     *
+     * @param arguments The arguments, strings being quoted in the text protocol.
+     * @return false if the server answered with an error.
+     */
+    private boolean exchange(Client.Command command, Object... arguments) throws IOException {
+      if (framed) {
+        int requestId = nextRequestId++;
+        Frames.writeRequest(frameOut, command, requestId, arguments);
+        frameOut.flush();
+        Frames.Response response = Frames.readResponse(frameIn);
+        if (response.requestId() != requestId) {
+          throw new IOException("Response to another request");
+        }
+        if (codec != null) {
+          response = response.decompress(codec);
+        }
+        return response.status() != Frames.ERROR;
+      }
+
+      StringBuilder line = new StringBuilder(command.toString());
+      for (Object argument : arguments) {
+        line.append(' ');
+        line.append(argument instanceof String ? "\"" + argument + "\"" : argument);
+      }
+      String response = call(line.toString());
+      if (response != null && (response.startsWith("ZNOTE ") || response.startsWith("ZLIST "))) {
+        in.readCompressed(response, codec);
+        return true;
+      }
+      if (command == Client.Command.GET_NOTES
+          && response != null
+          && response.startsWith("NOTES ")) {
+        // One line per note, or the header of its compressed content
+        int count = Integer.parseInt(response.substring("NOTES ".length()));
+        for (int i = 0; i < count && response != null; i++) {
+          response = in.readLine();
+          if (response != null && response.startsWith("ZNOTE ")) {
+            in.readCompressed(response, codec);
+          }
+        }
+        if (response != null) {
+          return true;
+        }
+      }
+      if (command == Client.Command.LIST_NOTES
+          && response != null
+          && !response.startsWith(Server.Message.ERROR.toString())) {
+        // The list ends with an empty line
+        while (response != null && !response.isEmpty()) {
+          response = in.readLine();
+        }
+      }
+      if (response == null) {
+        throw new IOException("Connection closed by the server");
+      }
+      return !response.startsWith(Server.Message.ERROR.toString());
+    }
+
+    /** Sends the content compressed, in a frame or as the chunks of an upload. */
+    private boolean updateCompressed(int index) throws IOException {
+      byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+      byte[] compressed = Arrays.copyOf(codec.output(), codec.deflate(bytes, 0, bytes.length));
+      if (framed) {
+        return exchange(Client.Command.UPDATE_CONTENT, index, compressed, DeflateCodec.CAPABILITY);
+      }
+      out.write("UPLOAD_CONTENT " + index + " " + DeflateCodec.CAPABILITY + "\n");
+      out.write("CHUNK " + compressed.length + "\n");
+      out.flush();
+      rawOut.write(compressed);
+      return !call("CHUNK 0").startsWith(Server.Message.ERROR.toString());
+    }
+
+    private String call(String line) throws IOException {
+      out.write(line);
+      out.write('\n');
+      out.flush();
+      return in.readLine();
+    }
+  }
+
+  /** Counts the bytes received by the sessions. */
+  private class CountingInputStream extends FilterInputStream {
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) bytesReceived.increment();
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) bytesReceived.add(read);
+      return read;
+    }
+  }
+
+  /** Counts the bytes sent by the sessions. */
+  private class CountingOutputStream extends FilterOutputStream {
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      bytesSent.increment();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      bytesSent.add(len);
+    }
+  }
+}
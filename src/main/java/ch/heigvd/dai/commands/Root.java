@@ -6,7 +6,7 @@ import picocli.CommandLine;
     name = "notion",
     description = "No-Tion application to manage notes via client/server.",
     version = "1.0.0",
-    subcommands = {Server.class, Client.class},
+    subcommands = {Server.class, Client.class, LoadGen.class},
     scope = CommandLine.ScopeType.INHERIT,
     mixinStandardHelpOptions = true)
 public class Root implements Runnable {
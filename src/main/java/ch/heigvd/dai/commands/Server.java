@@ -1,17 +1,27 @@
 package ch.heigvd.dai.commands;
 
-import static ch.heigvd.dai.utils.MainUtils.parseInput;
-
 import ch.heigvd.dai.model.*;
+import ch.heigvd.dai.server.ClientHandler;
+import ch.heigvd.dai.server.NioEngine;
+import ch.heigvd.dai.server.ServerContext;
+import ch.heigvd.dai.server.ServerMetrics;
+import ch.heigvd.dai.storage.HibernationDirectory;
+import ch.heigvd.dai.storage.Snapshot;
+import ch.heigvd.dai.storage.WriteAheadLog;
+import ch.heigvd.dai.utils.Log;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.util.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import picocli.CommandLine;
 
 @CommandLine.Command(name = "server", description = "Start the server No-Tion.")
@@ -24,7 +34,13 @@ public class Server implements Callable<Integer> {
   public enum Error {
     NOTE_NOT_FOUND(-1),
     NOTE_ALREADY_EXISTS(-2),
-    INVALID_COMMAND(-3);
+    INVALID_COMMAND(-3),
+    SERVER_BUSY(-4),
+    CONTENT_TOO_LARGE(-5),
+    CHANGES_EXPIRED(-6),
+    VERSION_CONFLICT(-7),
+    BATCH_ABORTED(-8),
+    MULTILINE_CONTENT(-9);
 
     private final int code;
 
@@ -37,7 +53,26 @@ public class Server implements Callable<Integer> {
     }
   }
 
-  private static final CopyOnWriteArrayList<User> users = new CopyOnWriteArrayList<>();
+  /** Enum representing the ways the server can serve its clients. */
+  public enum Engine {
+    /** One pooled thread per connection, blocked on the socket. */
+    BLOCKING,
+    /** A few event loops multiplexing non-blocking connections. */
+    NIO,
+    /** One virtual thread per connection, blocked on the socket. */
+    VIRTUAL
+  }
+
+  /** Enum representing where the contents of the notes are kept. */
+  public enum ContentStorage {
+    /** Strings on the heap. */
+    HEAP,
+    /** UTF-8 bytes in direct buffers, outside the heap. */
+    OFF_HEAP
+  }
+
+  private static final UserRegistry users = new UserRegistry();
+  private static final ServerMetrics metrics = new ServerMetrics();
   private static final int NUMBER_OF_THREADS = 20;
 
   @CommandLine.Option(
@@ -46,268 +81,438 @@ public class Server implements Callable<Integer> {
       defaultValue = "16447")
   private int port;
 
-  @Override
-  public Integer call() {
-    try (ServerSocket serverSocket = new ServerSocket(port);
-        ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS); ) {
-      System.out.println("[Server] starting");
-      System.out.println("[Server] listening on port " + port);
+  @CommandLine.Option(
+      names = {"-e", "--engine"},
+      description =
+          "Engine serving the clients: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+      defaultValue = "BLOCKING")
+  private Engine engine;
 
-      while (!serverSocket.isClosed()) {
-        Socket clientSocket = serverSocket.accept();
-        executor.submit(new ClientHandler(clientSocket));
-      }
-    } catch (IOException e) {
-      System.out.println("[SERVEUR] IOException: " + e);
-      return 1;
-    }
-    return 0;
-  }
+  @CommandLine.Option(
+      names = {"--event-loops"},
+      description = "Number of event loops of the NIO engine (default: number of processors).")
+  private int eventLoops = Runtime.getRuntime().availableProcessors();
 
-  static class ClientHandler implements Runnable {
-    private final Socket socket;
-    private User user;
-    private boolean connected = false;
+  @CommandLine.Option(
+      names = {"--max-sessions"},
+      description =
+          "Maximum number of concurrent sessions, further connections are rejected (default:"
+              + " ${DEFAULT-VALUE}). The blocking engine never exceeds its "
+              + NUMBER_OF_THREADS
+              + " threads.",
+      defaultValue = "10000")
+  private int maxSessions;
 
-    public ClientHandler(Socket socket) {
-      this.socket = socket;
-    }
+  @CommandLine.Option(
+      names = {"-d", "--data-dir"},
+      description =
+          "Directory the notes are persisted in (default: notes are kept in memory only).")
+  private Path dataDir;
 
-    @Override
-    public void run() {
-      try (socket;
-          BufferedReader in =
-              new BufferedReader(
-                  new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-          BufferedWriter out =
-              new BufferedWriter(
-                  new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-        String line;
-
-        System.out.println(
-            "[SERVEUR] New client connected from "
-                + socket.getInetAddress().getHostAddress()
-                + ":"
-                + socket.getPort());
-
-        while ((line = in.readLine()) != null) {
-          line = line.trim();
-          if (line.isEmpty()) continue;
-
-          String[] tokens = parseInput(line);
-          Client.Command command = null;
+  @CommandLine.Option(
+      names = {"--durability"},
+      description =
+          "When changes are acknowledged with a data directory: ${COMPLETION-CANDIDATES} (default:"
+              + " ${DEFAULT-VALUE}). ASYNC acknowledges before the log is forced to the disk, SYNC"
+              + " after.",
+      defaultValue = "ASYNC")
+  private WriteAheadLog.Durability durability;
 
-          try {
-            command = Client.Command.valueOf(tokens[0]);
-          } catch (Exception e) {
-            // unknown command
-          }
+  @CommandLine.Option(
+      names = {"--group-commit-ms"},
+      description =
+          "How long the log waits for other changes before forcing them to the disk together"
+              + " (default: ${DEFAULT-VALUE}).",
+      defaultValue = "2")
+  private long groupCommitMillis;
 
-          if (!connected && !tokens[0].equals(Client.Command.CONNECT.toString())) {
-            sendError(out, Error.INVALID_COMMAND.getCode());
-            continue;
-          }
+  @CommandLine.Option(
+      names = {"--snapshot-interval-s"},
+      description =
+          "Seconds between two snapshots of the notes, after which the older log segments are"
+              + " deleted, 0 to disable them (default: ${DEFAULT-VALUE}).",
+      defaultValue = "300")
+  private long snapshotIntervalSeconds;
 
-          switch (command) {
-            case CONNECT -> handleConnect(tokens, out);
-            case DISCONNECT -> {
-              socket.close();
-              return;
-            }
-            case CREATE_NOTE -> handleCreateNote(tokens, out);
-            case DELETE_NOTE -> handleDeleteNote(tokens, out);
-            case LIST_NOTES -> handleListNotes(out);
-            case GET_NOTE -> handleGetNote(tokens, out);
-            case UPDATE_CONTENT -> handleUpdateContent(tokens, out);
-            case UPDATE_TITLE -> handleUpdateTitle(tokens, out);
-            case null, default -> sendError(out, Error.INVALID_COMMAND.getCode());
-          }
-        }
-        out.flush();
-        System.out.println("[SERVEUR] Connexion avec le client terminée");
-      } catch (IOException e) {
-        System.out.println("[SERVEUR] IOException: " + e);
-      }
-    }
+  @CommandLine.Option(
+      names = {"--log-level"},
+      description =
+          "Least important messages written: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+      defaultValue = "INFO")
+  private Log.Level logLevel;
 
-    private void sendOK(BufferedWriter out) throws IOException {
-      out.write("OK\n");
-      out.flush();
-    }
+  @CommandLine.Option(
+      names = {"--stats-file"},
+      description =
+          "File the counters of the server (see the STATS command) are periodically written to.")
+  private Path statsFile;
 
-    private void sendError(BufferedWriter out, int code) throws IOException {
-      out.write("ERROR " + code + "\n");
-      out.flush();
-    }
+  @CommandLine.Option(
+      names = {"--stats-interval-s"},
+      description =
+          "Seconds between two writes of the statistics file (default: ${DEFAULT-VALUE}).",
+      defaultValue = "10")
+  private long statsIntervalSeconds;
 
-    private void handleConnect(String[] tokens, BufferedWriter out) throws IOException {
-      if (connected || tokens.length < 2) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
-      } else {
-        String name = tokens[1];
-        for (User u : users) {
-          if (u.getName().equals(name)) {
-            user = u;
-          }
-        }
-        if (user == null) {
-          user = new User(name);
-        }
-        users.add(user);
-        connected = true;
-        sendOK(out);
-      }
-    }
+  @CommandLine.Option(
+      names = {"--max-content-bytes"},
+      description =
+          "Largest content of a note accepted, in UTF-8 bytes (default: ${DEFAULT-VALUE}).",
+      defaultValue = "67108864")
+  private int maxContentBytes;
 
-    private void handleCreateNote(String[] tokens, BufferedWriter out) throws IOException {
-      if (tokens.length < 2) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
-        return;
-      }
-      String title = tokens[1];
-      if (user.hasNoteWithTitle(title)) {
-        sendError(out, Error.NOTE_ALREADY_EXISTS.getCode());
-      } else {
-        // Note initially empty, no scrambling needed since it's empty
-        user.addNote(new Note(title, ""));
-        sendOK(out);
-      }
-    }
+  @CommandLine.Option(
+      names = {"--compression-threshold"},
+      description =
+          "Size from which notes and lists are compressed for the clients that asked for it at"
+              + " CONNECT, in bytes (default: ${DEFAULT-VALUE}).",
+      defaultValue = "1024")
+  private int compressionThreshold;
 
-    private void handleDeleteNote(String[] tokens, BufferedWriter out) throws IOException {
-      if (tokens.length < 2) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
-        return;
-      }
-      String title = tokens[1];
-      if (user.deleteNoteByTitle(title)) {
-        sendOK(out);
-      } else {
-        sendError(out, Error.NOTE_NOT_FOUND.getCode());
-      }
-    }
+  @CommandLine.Option(
+      names = {"--compression-level"},
+      description =
+          "DEFLATE level of the compressed responses, from 1 (fastest) to 9 (smallest) (default:"
+              + " ${DEFAULT-VALUE}).",
+      defaultValue = "1")
+  private int compressionLevel;
 
-    private void handleListNotes(BufferedWriter out) throws IOException {
-      List<Note> notesList = user.getNotes();
-      int index = 1;
-      for (Note note : notesList) {
-        out.write(index + " " + note.getTitle() + "\n");
-        index++;
-      }
-      out.write("\n");
-      out.flush();
-    }
+  @CommandLine.Option(
+      names = {"--content-storage"},
+      description =
+          "Where the contents of the notes are kept: ${COMPLETION-CANDIDATES} (default:"
+              + " ${DEFAULT-VALUE}). OFF_HEAP keeps them as UTF-8 bytes outside the Java heap.",
+      defaultValue = "HEAP")
+  private ContentStorage contentStorage;
+
+  @CommandLine.Option(
+      names = {"--content-cache-bytes"},
+      description =
+          "Memory budget of the contents of the notes, in bytes, beyond which the least recently"
+              + " read ones are spilled to a file of the data directory (or a temporary file) and"
+              + " read back when asked for, 0 to keep them all in memory (default:"
+              + " ${DEFAULT-VALUE}). Meant for the blocking and virtual engines: the NIO engine"
+              + " reads the file on its event loops.",
+      defaultValue = "0")
+  private long contentCacheBytes;
+
+  @CommandLine.Option(
+      names = {"--idle-timeout-s"},
+      description =
+          "Seconds a client may stay without sending a request before its connection is closed,"
+              + " unless it watches the notes, 0 to wait for ever (default: ${DEFAULT-VALUE}).",
+      defaultValue = "300")
+  private long idleTimeoutSeconds;
+
+  @CommandLine.Option(
+      names = {"--read-timeout-s"},
+      description =
+          "Seconds the server waits for the rest of a request that started to arrive before"
+              + " closing the connection, 0 to wait for ever (default: ${DEFAULT-VALUE}).",
+      defaultValue = "30")
+  private long readTimeoutSeconds;
+
+  @CommandLine.Option(
+      names = {"--tcp-keepalive-s"},
+      description =
+          "Seconds of silence after which the system checks that a client is still there, closing"
+              + " its connection if it is gone, 0 to disable TCP keepalive (default:"
+              + " ${DEFAULT-VALUE}).",
+      defaultValue = "60")
+  private int keepAliveSeconds;
 
-    private void handleGetNote(String[] tokens, BufferedWriter out) throws IOException {
-      if (tokens.length < 2) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
-        return;
+  @CommandLine.Option(
+      names = {"--hibernate-after-s"},
+      description =
+          "Seconds after the last session of a user after which its notes are moved to a"
+              + " directory of the data directory (or a temporary one) until its next CONNECT, 0 to"
+              + " keep them all in memory (default: ${DEFAULT-VALUE}). Meant for the blocking and"
+              + " virtual engines: the NIO engine reads the notes back on its event loops.",
+      defaultValue = "0")
+  private long hibernateAfterSeconds;
+
+  private WriteAheadLog log;
+  private ServerContext context;
+
+  /** Number of log records contained in the last snapshot, touched by the snapshot thread only. */
+  private long snapshotRecords;
+
+  @Override
+  public Integer call() {
+    Log.setLevel(logLevel);
+    if (contentStorage == ContentStorage.OFF_HEAP) {
+      Note.useArena(new ContentArena());
+    }
+    if (contentCacheBytes > 0) {
+      try {
+        openCache();
+      } catch (IOException e) {
+        Log.error("[SERVEUR] Cannot open the spill file: " + e);
+        return 1;
       }
-      int index;
+    }
+    if (statsFile != null && statsIntervalSeconds > 0) {
+      ScheduledExecutorService stats = daemonScheduler("stats");
+      stats.scheduleWithFixedDelay(
+          this::writeStats, statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+    }
+    if (dataDir != null) {
       try {
-        index = Integer.parseInt(tokens[1]) - 1;
-      } catch (NumberFormatException e) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
-        return;
+        openLog();
+      } catch (IOException e) {
+        Log.error("[SERVEUR] Cannot open the data directory: " + e);
+        return 1;
       }
-      List<Note> notesList = user.getNotes();
-      if (index < 0 || index >= notesList.size()) {
-        sendError(out, Error.NOTE_NOT_FOUND.getCode());
-      } else {
-        Note note = notesList.get(index);
-        out.write("NOTE " + note.getContent() + "\n");
-        out.flush();
+    }
+    if (hibernateAfterSeconds > 0) {
+      try {
+        openHibernation();
+      } catch (IOException e) {
+        Log.error("[SERVEUR] Cannot open the hibernation directory: " + e);
+        return 1;
       }
     }
+    context =
+        new ServerContext(
+            users,
+            log,
+            metrics,
+            maxContentBytes,
+            compressionThreshold,
+            compressionLevel,
+            TimeUnit.SECONDS.toMillis(idleTimeoutSeconds),
+            TimeUnit.SECONDS.toMillis(readTimeoutSeconds),
+            keepAliveSeconds);
+
+    return switch (engine) {
+      case BLOCKING ->
+          runThreadPerConnection(
+              Executors.newFixedThreadPool(NUMBER_OF_THREADS),
+              Math.min(maxSessions, NUMBER_OF_THREADS));
+      case VIRTUAL ->
+          runThreadPerConnection(Executors.newVirtualThreadPerTaskExecutor(), maxSessions);
+      case NIO -> runNio();
+    };
+  }
 
-    /**
-     * Handle the update content command. Update the content of the note. Before storing the
-     * content, we scramble each word so that only the first and last letters remain in place, and
-     * the middle letters are randomized.
-     */
-    private void handleUpdateContent(String[] tokens, BufferedWriter out) throws IOException {
-      int index = getNoteIndex(tokens, out);
-      if (index == Error.NOTE_NOT_FOUND.getCode()) return;
-      List<Note> notesList = user.getNotes();
-      if (index < 0 || index >= notesList.size()) {
-        sendError(out, Error.NOTE_NOT_FOUND.getCode());
-        return;
-      }
-      // The content is at tokens[2]
-      String newContent = tokens[2];
+  /** Keeps the contents within their memory budget, spilling the others to a file. */
+  private void openCache() throws IOException {
+    Path file =
+        dataDir != null
+            ? dataDir.resolve("contents.spill")
+            : Files.createTempFile("no-tion-", ".spill");
+    ContentCache cache = ContentCache.open(file, contentCacheBytes);
+    Note.useCache(cache);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  try {
+                    cache.close();
+                  } catch (IOException e) {
+                    Log.warn("[SERVEUR] IOException: " + e);
+                  }
+                }));
+  }
 
-      // Scramble the content before storing
-      newContent = scrambleContent(newContent);
+  /**
+   * Periodically moves the notes of the users without session out of memory. A user hibernates
+   * between one and two periods after its last session ends.
+   */
+  private void openHibernation() throws IOException {
+    Path directory =
+        dataDir != null
+            ? dataDir.resolve("hibernation")
+            : Files.createTempDirectory("no-tion-hibernation-");
+    HibernationDirectory hibernation = HibernationDirectory.open(directory);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  try {
+                    hibernation.close();
+                  } catch (IOException e) {
+                    Log.warn("[SERVEUR] IOException: " + e);
+                  }
+                }));
+    long idleNanos = TimeUnit.SECONDS.toNanos(hibernateAfterSeconds);
+    ScheduledExecutorService hibernations = daemonScheduler("hibernation");
+    hibernations.scheduleWithFixedDelay(
+        () -> {
+          try {
+            int count = users.hibernateIdle(hibernation, idleNanos);
+            if (count > 0) {
+              Log.info("[Server] " + count + " idle user(s) hibernated");
+            }
+          } catch (IOException e) {
+            Log.error("[SERVEUR] Hibernation failed: " + e);
+          }
+        },
+        hibernateAfterSeconds,
+        hibernateAfterSeconds,
+        TimeUnit.SECONDS);
+  }
 
-      Note note = notesList.get(index);
-      note.setContent(newContent);
-      sendOK(out);
+  /**
+   * Restores the notes from the latest snapshot and the log of the data directory, then logs the
+   * next changes in it.
+   */
+  private void openLog() throws IOException {
+    long start = System.nanoTime();
+    log = WriteAheadLog.open(dataDir, durability, groupCommitMillis);
+    long segment = Snapshot.load(dataDir, users);
+    long snapshotMillis = (System.nanoTime() - start) / 1_000_000;
+    long records = log.replay(users, segment);
+    users.setListener(log);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  try {
+                    log.close();
+                  } catch (IOException e) {
+                    Log.warn("[SERVEUR] IOException: " + e);
+                  }
+                }));
+    Log.info(
+        "[Server] restored "
+            + users.size()
+            + " user(s) in "
+            + (System.nanoTime() - start) / 1_000_000
+            + " ms (snapshot: "
+            + snapshotMillis
+            + " ms, "
+            + records
+            + " logged change(s) replayed)");
+
+    if (snapshotIntervalSeconds > 0) {
+      ScheduledExecutorService snapshots = daemonScheduler("snapshot");
+      snapshots.scheduleWithFixedDelay(
+          this::takeSnapshot, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
     }
+  }
 
-    private void handleUpdateTitle(String[] tokens, BufferedWriter out) throws IOException {
-      int index = getNoteIndex(tokens, out);
-      List<Note> notesList = user.getNotes();
-      if (index < 0 || index >= notesList.size()) {
-        sendError(out, Error.NOTE_NOT_FOUND.getCode());
-        return;
-      }
-      String newTitle = tokens[2];
-      if (user.hasNoteWithTitle(newTitle)) {
-        sendError(out, Error.NOTE_ALREADY_EXISTS.getCode());
-      } else if (newTitle.isEmpty()) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
-      } else {
-        Note note = notesList.get(index);
-        note.setTitle(newTitle);
-        sendOK(out);
-      }
+  /**
+   * Writes a snapshot if the notes changed since the last one, then deletes the log segments it
+   * contains. The log switches to a new segment first: every change of the older segments is then
+   * already applied and captured by the snapshot.
+   */
+  private void takeSnapshot() {
+    long records = log.getAppendedRecords();
+    if (records == snapshotRecords) {
+      return;
+    }
+    try {
+      long start = System.nanoTime();
+      long segment = log.roll();
+      long notes = Snapshot.write(dataDir, segment, users);
+      log.deleteSegmentsBefore(segment);
+      snapshotRecords = records;
+      Log.info(
+          "[Server] snapshot of "
+              + notes
+              + " note(s) written in "
+              + (System.nanoTime() - start) / 1_000_000
+              + " ms");
+    } catch (IOException e) {
+      Log.error("[SERVEUR] Snapshot failed: " + e);
     }
+  }
 
-    private int getNoteIndex(String[] tokens, BufferedWriter out) throws IOException {
-      if (tokens.length < 3) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
-        return Error.NOTE_NOT_FOUND.getCode();
-      }
-      int index;
-      try {
-        index = Integer.parseInt(tokens[1]) - 1;
-        return index;
-      } catch (NumberFormatException e) {
-        sendError(out, Error.INVALID_COMMAND.getCode());
+  /** Replaces the statistics file by the current counters. */
+  private void writeStats() {
+    Path temporary = statsFile.resolveSibling(statsFile.getFileName() + ".tmp");
+    try {
+      try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+        metrics.writeTo(out, users);
       }
-      return Error.NOTE_NOT_FOUND.getCode();
+      Files.move(
+          temporary,
+          statsFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Log.warn("[Server] Cannot write the statistics file: " + e);
     }
+  }
+
+  private static ScheduledExecutorService daemonScheduler(String name) {
+    return Executors.newSingleThreadScheduledExecutor(
+        task -> {
+          Thread thread = new Thread(task, name);
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
 
-    /**
-     * Scramble the content of a note. For each word, the first and last letter remain the same, but
-     * the middle letters are shuffled.
-     */
-    private String scrambleContent(String content) {
-      String[] words = content.split(" ");
-      StringBuilder scrambled = new StringBuilder();
-      for (int i = 0; i < words.length; i++) {
-        if (i > 0) scrambled.append(" ");
-        scrambled.append(scrambleWord(words[i]));
+  /**
+   * Accepts the connections and runs each of them on a thread of the given executor. A connection
+   * arriving while {@code limit} sessions are running is rejected instead of waiting for a thread.
+   */
+  private int runThreadPerConnection(ExecutorService executor, int limit) {
+    Semaphore sessions = new Semaphore(limit);
+    try (ServerSocket serverSocket = new ServerSocket(port);
+        executor) {
+      Log.info("[Server] starting (" + engine + " engine)");
+      Log.info("[Server] listening on port " + port);
+
+      while (!serverSocket.isClosed()) {
+        Socket clientSocket = serverSocket.accept();
+        if (!sessions.tryAcquire()) {
+          metrics.connectionRejected();
+          reject(clientSocket);
+          continue;
+        }
+        ClientHandler handler = new ClientHandler(clientSocket, context);
+        executor.submit(
+            () -> {
+              try {
+                handler.run();
+              } finally {
+                sessions.release();
+              }
+            });
       }
-      return scrambled.toString();
+    } catch (IOException e) {
+      Log.warn("[SERVEUR] IOException: " + e);
+      return 1;
     }
+    return 0;
+  }
 
-    /** Scramble a single word by shuffling the letters between the first and last character. */
-    private String scrambleWord(String word) {
-      if (word.length() <= 3) {
-        return word; // Too short to shuffle or not worth changing
-      }
-      char[] chars = word.toCharArray();
-      List<Character> middle = new ArrayList<>();
-      for (int i = 1; i < chars.length - 1; i++) {
-        middle.add(chars[i]);
+  private int runNio() {
+    try {
+      Log.info("[Server] starting (NIO engine)");
+      if (contentCacheBytes > 0) {
+        Log.warn(
+            "[Server] --content-cache-bytes reads the spilled contents on the event loops, the"
+                + " other clients of a loop waiting for the disk");
       }
-      // Shuffle the middle characters
-      Collections.shuffle(middle);
-      for (int i = 1; i < chars.length - 1; i++) {
-        chars[i] = middle.get(i - 1);
+      if (hibernateAfterSeconds > 0) {
+        Log.warn(
+            "[Server] --hibernate-after-s reads the notes of a waking user on the event loops, the"
+                + " other clients of a loop waiting for the disk");
       }
-      return new String(chars);
+      Log.info("[Server] listening on port " + port);
+      new NioEngine(port, Math.max(1, eventLoops), new Semaphore(maxSessions), context).run();
+    } catch (IOException e) {
+      Log.warn("[SERVEUR] IOException: " + e);
+      return 1;
+    }
+    return 0;
+  }
+
+  /** Tells a client that the server is full and closes its connection. */
+  private static void reject(Socket socket) {
+    Log.warn("[SERVEUR] Too many sessions, rejecting " + socket.getInetAddress());
+    try (socket) {
+      OutputStream out = socket.getOutputStream();
+      out.write(
+          (Message.ERROR + " " + Error.SERVER_BUSY.getCode() + "\n")
+              .getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    } catch (IOException e) {
+      Log.warn("[SERVEUR] IOException: " + e);
     }
   }
 }
@@ -0,0 +1,382 @@
+package ch.heigvd.dai.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes to the notes of a user applied together by {@link User#apply}: all of them, or none if
+ * one of them cannot be. Each operation sees the notes as the operations before it left them, so
+ * that a note created by the batch can be changed by its index or its identifier in the same batch.
+ *
+ * <p>The operations are first checked against drafts of the notes they touch, the notes themselves
+ * being left alone, then applied one by one once they are all known to succeed. A failing batch has
+ * nothing to undo.
+ *
+ * <p>The contents are given as the UTF-8 bytes they are stored as. This class is not thread-safe.
+ */
+public class Batch {
+  private enum Kind {
+    CREATE,
+    DELETE,
+    RENAME,
+    UPDATE_CONTENT,
+    PATCH_CONTENT
+  }
+
+  /**
+   * An operation of the batch.
+   *
+   * @param index The 1-based index of the note, 0 if it is designated otherwise.
+   * @param id The identifier of the note, 0 if it is designated otherwise.
+   * @param title The title of the note created or deleted, or the new title of a rename.
+   */
+  private record Operation(
+      Kind kind,
+      int index,
+      long id,
+      String title,
+      byte[] bytes,
+      int offset,
+      int removed,
+      long expectedVersion) {}
+
+  /** A note as the operations checked so far left it. */
+  private static final class Draft {
+    /** The note, null for a note created by the batch. */
+    final Note note;
+
+    final long id;
+
+    String title;
+    long version;
+
+    /** The UTF-8 bytes of the content, null until an operation needs them. */
+    byte[] content;
+
+    Draft(Note note, long id, String title, long version) {
+      this.note = note;
+      this.id = id;
+      this.title = title;
+      this.version = version;
+    }
+  }
+
+  private final List<Operation> operations = new ArrayList<>();
+  private long bytes;
+
+  public void createNote(String title) {
+    add(new Operation(Kind.CREATE, 0, 0, title, null, 0, 0, User.ANY_VERSION));
+  }
+
+  public void deleteNote(String title) {
+    add(new Operation(Kind.DELETE, 0, 0, title, null, 0, 0, User.ANY_VERSION));
+  }
+
+  /**
+   * @param index The 1-based index of the note, 0 to designate it by its identifier.
+   * @param id The identifier of the note, ignored if the index is given.
+   */
+  public void deleteNote(int index, long id) {
+    add(new Operation(Kind.DELETE, index, id, null, null, 0, 0, User.ANY_VERSION));
+  }
+
+  /**
+   * @param index The 1-based index of the note, 0 to designate it by its identifier.
+   * @param id The identifier of the note, ignored if the index is given.
+   */
+  public void renameNote(int index, long id, String title, long expectedVersion) {
+    add(new Operation(Kind.RENAME, index, id, title, null, 0, 0, expectedVersion));
+  }
+
+  /**
+   * @param index The 1-based index of the note, 0 to designate it by its identifier.
+   * @param id The identifier of the note, ignored if the index is given.
+   * @param content The UTF-8 bytes of the new content, kept by the batch.
+   */
+  public void updateContent(int index, long id, byte[] content, long expectedVersion) {
+    add(new Operation(Kind.UPDATE_CONTENT, index, id, null, content, 0, 0, expectedVersion));
+  }
+
+  /**
+   * Replaces a range of the content, see {@link User#patchContent}.
+   *
+   * @param index The 1-based index of the note, 0 to designate it by its identifier.
+   * @param id The identifier of the note, ignored if the index is given.
+   * @param offset The position of the range in bytes, {@link User#END} to append the bytes.
+   * @param bytes The UTF-8 bytes replacing the range, kept by the batch.
+   */
+  public void patchContent(
+      int index, long id, int offset, int removed, byte[] bytes, long expectedVersion) {
+    add(
+        new Operation(
+            Kind.PATCH_CONTENT, index, id, null, bytes, offset, removed, expectedVersion));
+  }
+
+  /**
+   * @return The number of operations.
+   */
+  public int size() {
+    return operations.size();
+  }
+
+  /**
+   * @return The number of bytes of the contents and the titles held by the operations.
+   */
+  public long bytes() {
+    return bytes;
+  }
+
+  private void add(Operation operation) {
+    operations.add(operation);
+    if (operation.title() != null) {
+      bytes += operation.title().length();
+    }
+    if (operation.bytes() != null) {
+      bytes += operation.bytes().length;
+    }
+  }
+
+  /**
+   * Checks the operations in order without changing the notes, under the write lock of their user.
+   *
+   * @param notes The notes of the user.
+   * @param version The version of the user.
+   * @param lastId The last identifier given to a note, followed by those of the notes created.
+   * @param maxBytes The largest number of bytes of a content.
+   * @return For each operation the version it will make, or if one of them fails its result as
+   *     returned by the methods of {@link User} and {@link User#ABORTED} for all the others.
+   */
+  long[] check(NoteStore notes, long version, long lastId, int maxBytes) {
+    long[] results = new long[operations.size()];
+    Map<Note, Draft> drafts = new IdentityHashMap<>();
+    // The titles taken or freed by the operations, null once freed
+    Map<String, Draft> titles = new HashMap<>();
+    // The positions of the notes deleted so far, in ascending order, and the notes created
+    List<Integer> deleted = new ArrayList<>();
+    List<Draft> created = new ArrayList<>();
+
+    for (int i = 0; i < operations.size(); i++) {
+      Operation operation = operations.get(i);
+      Draft draft = null;
+      if (!byTitle(operation)) {
+        draft = find(notes, drafts, deleted, created, operation);
+      } else if (operation.kind() == Kind.DELETE) {
+        draft = findByTitle(notes, drafts, titles, operation.title());
+      }
+
+      long result = version + 1;
+      switch (operation.kind()) {
+        case CREATE -> {
+          if (findByTitle(notes, drafts, titles, operation.title()) != null) {
+            result = User.TITLE_TAKEN;
+          } else {
+            Draft note = new Draft(null, ++lastId, operation.title(), result);
+            note.content = new byte[0];
+            titles.put(note.title, note);
+            created.add(note);
+          }
+        }
+        case DELETE -> {
+          if (draft == null) {
+            result = User.DELETED;
+          } else {
+            titles.put(draft.title, null);
+            if (draft.note == null) {
+              created.remove(draft);
+            } else {
+              int position = notes.indexOf(draft.note);
+              int at = 0;
+              while (at < deleted.size() && deleted.get(at) < position) at++;
+              deleted.add(at, position);
+            }
+          }
+        }
+        case RENAME -> {
+          result = checkVersion(draft, operation, result);
+          if (result > 0) {
+            if (findByTitle(notes, drafts, titles, operation.title()) != null) {
+              result = User.TITLE_TAKEN;
+            } else {
+              titles.put(draft.title, null);
+              titles.put(operation.title(), draft);
+              draft.title = operation.title();
+            }
+          }
+        }
+        case UPDATE_CONTENT -> {
+          result = checkVersion(draft, operation, result);
+          if (result > 0) {
+            draft.content = operation.bytes();
+          }
+        }
+        case PATCH_CONTENT -> {
+          result = checkVersion(draft, operation, result);
+          if (result > 0) {
+            result = patch(draft, operation, maxBytes, result);
+          }
+        }
+      }
+
+      if (result < 0) {
+        Arrays.fill(results, User.ABORTED);
+        results[i] = result;
+        return results;
+      }
+      if (draft != null) {
+        draft.version = result;
+      }
+      version = result;
+      results[i] = result;
+    }
+    return results;
+  }
+
+  /**
+   * Applies the operations once {@link #check} found that they all succeed, under the write lock of
+   * their user.
+   *
+   * @return For each operation the version it made.
+   */
+  long[] apply(User user, int maxBytes) {
+    long[] results = new long[operations.size()];
+    for (int i = 0; i < operations.size(); i++) {
+      Operation operation = operations.get(i);
+      Note note =
+          byTitle(operation)
+              ? user.getNoteByTitle(operation.title())
+              : operation.index() > 0
+                  ? user.getNote(operation.index() - 1)
+                  : user.getNoteById(operation.id());
+      results[i] =
+          switch (operation.kind()) {
+            case CREATE -> {
+              user.addNote(new Note(operation.title(), ""));
+              yield user.getVersion();
+            }
+            case DELETE -> {
+              user.deleteNoteById(note.getId());
+              yield user.getVersion();
+            }
+            case RENAME -> user.renameNote(note, operation.title(), operation.expectedVersion());
+            case UPDATE_CONTENT ->
+                user.updateContent(
+                    note, operation.bytes(), operation.bytes().length, operation.expectedVersion());
+            case PATCH_CONTENT ->
+                user.patchContent(
+                    note,
+                    operation.offset(),
+                    operation.removed(),
+                    operation.bytes(),
+                    operation.bytes().length,
+                    maxBytes,
+                    operation.expectedVersion());
+          };
+    }
+    return results;
+  }
+
+  /**
+   * @return Whether the operation designates its note by its title rather than by its index or
+   *     identifier.
+   */
+  private static boolean byTitle(Operation operation) {
+    return operation.kind() == Kind.CREATE
+        || (operation.kind() == Kind.DELETE && operation.title() != null);
+  }
+
+  /** Finds the draft of the note designated by its index or identifier, null if there is none. */
+  private static Draft find(
+      NoteStore notes,
+      Map<Note, Draft> drafts,
+      List<Integer> deleted,
+      List<Draft> created,
+      Operation operation) {
+    if (operation.index() == 0) {
+      Note note = notes.getById(operation.id());
+      if (note != null) {
+        return deleted.contains(notes.indexOf(note)) ? null : draft(drafts, note);
+      }
+      for (Draft draft : created) {
+        if (draft.id == operation.id()) {
+          return draft;
+        }
+      }
+      return null;
+    }
+    int index = operation.index() - 1;
+    int kept = notes.size() - deleted.size();
+    if (index < 0 || index >= kept + created.size()) {
+      return null;
+    }
+    if (index >= kept) {
+      return created.get(index - kept);
+    }
+    // The position of the note among all of them, skipping the deleted ones before it
+    int position = index;
+    for (int gap : deleted) {
+      if (gap > position) break;
+      position++;
+    }
+    return draft(drafts, notes.get(position));
+  }
+
+  private static Draft findByTitle(
+      NoteStore notes, Map<Note, Draft> drafts, Map<String, Draft> titles, String title) {
+    if (titles.containsKey(title)) {
+      return titles.get(title);
+    }
+    Note note = notes.getByTitle(title);
+    return note == null ? null : draft(drafts, note);
+  }
+
+  private static Draft draft(Map<Note, Draft> drafts, Note note) {
+    return drafts.computeIfAbsent(note, n -> new Draft(n, n.id, n.getTitle(), n.version));
+  }
+
+  private static long checkVersion(Draft draft, Operation operation, long result) {
+    if (draft == null) {
+      return User.DELETED;
+    }
+    if (operation.expectedVersion() != User.ANY_VERSION
+        && draft.version != operation.expectedVersion()) {
+      return User.CONFLICT;
+    }
+    return result;
+  }
+
+  /** Checks a patch against the draft of the content as {@link User#patchContent} does. */
+  private static long patch(Draft draft, Operation operation, int maxBytes, long result) {
+    if (draft.content == null) {
+      draft.content = draft.note.encodedContent();
+    }
+    byte[] content = draft.content;
+    int start = operation.offset() == User.END ? content.length : operation.offset();
+    int removed = operation.removed();
+    if (start < 0
+        || removed < 0
+        || removed > content.length - start
+        || !isCharBoundary(content, start)
+        || !isCharBoundary(content, start + removed)) {
+      return User.INVALID_RANGE;
+    }
+    byte[] bytes = operation.bytes();
+    if ((long) content.length - removed + bytes.length > maxBytes) {
+      return User.TOO_LARGE;
+    }
+    byte[] patched = new byte[content.length - removed + bytes.length];
+    System.arraycopy(content, 0, patched, 0, start);
+    System.arraycopy(bytes, 0, patched, start, bytes.length);
+    System.arraycopy(
+        content, start + removed, patched, start + bytes.length, content.length - start - removed);
+    draft.content = patched;
+    return result;
+  }
+
+  private static boolean isCharBoundary(byte[] content, int position) {
+    return position == content.length || (content[position] & 0xC0) != 0x80;
+  }
+}
@@ -0,0 +1,256 @@
+package ch.heigvd.dai.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Off-heap storage of the contents of the notes as UTF-8 bytes, so that the heap and the garbage
+ * collector only see the notes and their titles.
+ *
+ * <p>The bytes are kept in slabs of direct buffers, each one cut into blocks of a single size
+ * class. A block holds the length of a content followed by its bytes, and is designated by a handle
+ * combining the number of its slab and the offset of the block. A freed block goes to the free list
+ * of its class and is reused before a new one is cut. A content too large for the classes gets a
+ * buffer of its own, released to the garbage collector when it is freed.
+ *
+ * <p>Allocating and freeing take a lock. Reading does not: the blocks never move, and the lock of
+ * the {@link User} owning a note guarantees that its block is not freed while it is being read.
+ */
+public class ContentArena {
+  /** Size of the slabs the blocks are cut from. */
+  private static final int SLAB_BYTES = 1 << 20;
+
+  /** Bytes of a block holding the length of its content. */
+  private static final int HEADER_BYTES = Integer.BYTES;
+
+  /** Block sizes: multiples of 16 up to 256 bytes, then four classes per power of two. */
+  private static final int[] CLASS_SIZES = classSizes(64 * 1024);
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** The slabs, indexed by their number. Replaced when it grows, so readers never see it change. */
+  private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+
+  private int slabCount;
+
+  /** Numbers of the slabs of large contents that have been freed, reused by the next ones. */
+  private int[] freeSlabs = new int[16];
+
+  private int freeSlabCount;
+
+  /** Handles of the freed blocks of each class, used as stacks. */
+  private final long[][] freeBlocks = new long[CLASS_SIZES.length][];
+
+  private final int[] freeBlockCounts = new int[CLASS_SIZES.length];
+
+  /** Slab being cut into blocks of each class, -1 if none, and offset of its next block. */
+  private final int[] currentSlabs = new int[CLASS_SIZES.length];
+
+  private final int[] nextOffsets = new int[CLASS_SIZES.length];
+
+  /** Bytes of the blocks in use and of the direct buffers allocated, guarded by the lock. */
+  private long usedBytes;
+
+  private long reservedBytes;
+
+  public ContentArena() {
+    Arrays.fill(currentSlabs, -1);
+    for (int i = 0; i < CLASS_SIZES.length; i++) {
+      freeBlocks[i] = new long[16];
+    }
+  }
+
+  /**
+   * Copies a content into a block.
+   *
+   * @param bytes The buffer holding the content in UTF-8.
+   * @param offset The offset of the content in the buffer.
+   * @param length The number of bytes of the content.
+   * @return The handle of the block, never 0.
+   */
+  public long allocate(byte[] bytes, int offset, int length) {
+    int size = HEADER_BYTES + length;
+    int sizeClass = sizeClass(size);
+    long handle;
+    lock.lock();
+    try {
+      handle = sizeClass < 0 ? allocateLarge(size) : allocateBlock(sizeClass);
+      usedBytes += sizeClass < 0 ? size : CLASS_SIZES[sizeClass];
+    } finally {
+      lock.unlock();
+    }
+    // The block belongs to the caller alone until it publishes the handle
+    ByteBuffer slab = slabs[slab(handle)];
+    int position = position(handle);
+    slab.putInt(position, length);
+    slab.put(position + HEADER_BYTES, bytes, offset, length);
+    return handle;
+  }
+
+  /**
+   * Frees a block, its handle must not be used anymore.
+   *
+   * @param handle The handle returned by {@link #allocate}.
+   */
+  public void free(long handle) {
+    int slab = slab(handle);
+    int size = HEADER_BYTES + length(handle);
+    int sizeClass = sizeClass(size);
+    lock.lock();
+    try {
+      if (sizeClass < 0) {
+        slabs[slab] = null;
+        reservedBytes -= size;
+        usedBytes -= size;
+        if (freeSlabCount == freeSlabs.length) {
+          freeSlabs = Arrays.copyOf(freeSlabs, freeSlabCount * 2);
+        }
+        freeSlabs[freeSlabCount++] = slab;
+        return;
+      }
+      usedBytes -= CLASS_SIZES[sizeClass];
+      long[] stack = freeBlocks[sizeClass];
+      if (freeBlockCounts[sizeClass] == stack.length) {
+        stack = freeBlocks[sizeClass] = Arrays.copyOf(stack, stack.length * 2);
+      }
+      stack[freeBlockCounts[sizeClass]++] = handle;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of bytes of the content of a block.
+   */
+  public int length(long handle) {
+    return slabs[slab(handle)].getInt(position(handle));
+  }
+
+  /**
+   * Copies the content of a block into an array.
+   *
+   * @param handle The handle of the block.
+   * @param destination The array, with room for {@link #length(long)} bytes after the offset.
+   * @param offset The offset the content is copied at.
+   */
+  public void read(long handle, byte[] destination, int offset) {
+    ByteBuffer slab = slabs[slab(handle)];
+    int position = position(handle);
+    slab.get(position + HEADER_BYTES, destination, offset, slab.getInt(position));
+  }
+
+  /**
+   * Copies a range of the content of a block into an array.
+   *
+   * @param handle The handle of the block.
+   * @param from The position of the range in the content.
+   * @param destination The array, with room for the range after the offset.
+   * @param offset The offset the range is copied at.
+   * @param length The number of bytes of the range.
+   */
+  public void read(long handle, int from, byte[] destination, int offset, int length) {
+    slabs[slab(handle)].get(position(handle) + HEADER_BYTES + from, destination, offset, length);
+  }
+
+  /**
+   * @return The content of a block, decoded.
+   */
+  public String decode(long handle) {
+    byte[] bytes = new byte[length(handle)];
+    read(handle, bytes, 0);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return The number of bytes of the blocks in use, rounded up to their size class.
+   */
+  public long usedBytes() {
+    lock.lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of bytes of the direct buffers allocated so far and not released.
+   */
+  public long reservedBytes() {
+    lock.lock();
+    try {
+      return reservedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long allocateBlock(int sizeClass) {
+    if (freeBlockCounts[sizeClass] > 0) {
+      return freeBlocks[sizeClass][--freeBlockCounts[sizeClass]];
+    }
+    int blockSize = CLASS_SIZES[sizeClass];
+    if (currentSlabs[sizeClass] < 0 || nextOffsets[sizeClass] + blockSize > SLAB_BYTES) {
+      currentSlabs[sizeClass] = addSlab(ByteBuffer.allocateDirect(SLAB_BYTES));
+      nextOffsets[sizeClass] = 0;
+    }
+    int offset = nextOffsets[sizeClass];
+    nextOffsets[sizeClass] += blockSize;
+    return handle(currentSlabs[sizeClass], offset);
+  }
+
+  private long allocateLarge(int size) {
+    return handle(addSlab(ByteBuffer.allocateDirect(size)), 0);
+  }
+
+  private int addSlab(ByteBuffer buffer) {
+    reservedBytes += buffer.capacity();
+    int number = freeSlabCount > 0 ? freeSlabs[--freeSlabCount] : slabCount++;
+    // Written through a copy: the readers may be reading the array without the lock
+    ByteBuffer[] updated =
+        number < slabs.length ? slabs.clone() : Arrays.copyOf(slabs, slabs.length * 2);
+    updated[number] = buffer;
+    slabs = updated;
+    return number;
+  }
+
+  /**
+   * @return The smallest class holding a block of the given size, -1 if it is too large.
+   */
+  private static int sizeClass(int size) {
+    int index = Arrays.binarySearch(CLASS_SIZES, size);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return index < CLASS_SIZES.length ? index : -1;
+  }
+
+  private static int[] classSizes(int largest) {
+    int[] sizes = new int[64];
+    int count = 0;
+    for (int size = 16; size <= 256; size += 16) {
+      sizes[count++] = size;
+    }
+    for (int power = 256; power < largest; power *= 2) {
+      for (int step = 1; step <= 4; step++) {
+        sizes[count++] = power + step * power / 4;
+      }
+    }
+    return Arrays.copyOf(sizes, count);
+  }
+
+  /** The slab number is offset by one so that no handle is 0. */
+  private static long handle(int slab, int offset) {
+    return ((long) (slab + 1) << 32) | offset;
+  }
+
+  private static int slab(long handle) {
+    return (int) (handle >>> 32) - 1;
+  }
+
+  private static int position(long handle) {
+    return (int) handle;
+  }
+}
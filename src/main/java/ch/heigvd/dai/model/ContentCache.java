@@ -0,0 +1,586 @@
+package ch.heigvd.dai.model;
+
+import ch.heigvd.dai.utils.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory budget of the contents of the notes. Once the contents kept in memory exceed it, the least
+ * recently read ones are spilled to a file and read back the next time they are asked for, the
+ * titles always staying in memory.
+ *
+ * <p>The contents in memory are ordered by a segmented LRU: a content enters the probationary
+ * segment and moves to the protected one if it is read again before reaching the end of it, the
+ * protected segment holding at most {@link #PROTECTED_SHARE} of the budget. A content read once, by
+ * a scan for instance, never pushes out the ones read often. Reading a content only sets a flag
+ * that the evictor thread looks at when the content reaches the end of its segment, so the readers
+ * never take the lock of the cache.
+ *
+ * <p>The evictor spills a content under the write lock of its user, which it only tries to take:
+ * the contents of a user busy with another session are left for later. The file is cut into regions
+ * of a few size classes, reused once freed as the blocks of a {@link ContentArena}. A content read
+ * back keeps its region until it changes, so that spilling it again writes nothing. The file only
+ * holds copies, the notes being persisted by the log and the snapshots: it is emptied when opened.
+ */
+public class ContentCache implements Closeable {
+  /** Largest share of the budget taken by the contents read more than once. */
+  static final double PROTECTED_SHARE = 0.8;
+
+  /** Smallest region of the file. */
+  private static final int MIN_REGION_BYTES = 256;
+
+  /** Locks serializing the loads of the same content, picked by the hash of the entry. */
+  private static final int LOAD_STRIPES = 64;
+
+  /** How long the evictor waits once it found every content busy. */
+  private static final long BUSY_WAIT_MILLIS = 10;
+
+  private static final byte NONE = 0;
+  private static final byte PROBATION = 1;
+  private static final byte PROTECTED = 2;
+
+  /** The content of a note, in memory or spilled. */
+  static final class Entry {
+    final Note note;
+
+    /** Neighbours in the segment, guarded by the lock of the cache. */
+    Entry previous;
+
+    Entry next;
+
+    /** The segment holding the entry, {@link #NONE} if it is spilled or empty. */
+    byte segment = NONE;
+
+    /** Bytes the content takes in memory, guarded by the lock of the cache. */
+    int charge;
+
+    /** Set when the content is read, cleared once the evictor saw it. */
+    volatile boolean referenced;
+
+    /**
+     * Set once the content has been moved to the file, cleared once it is back in memory. The
+     * content of the note must only be read once it has been seen cleared.
+     */
+    volatile boolean spilled;
+
+    /** Position of the copy of the content in the file, -1 if it has none. */
+    long region = -1;
+
+    int regionBytes;
+
+    /** Number of bytes of the copy. */
+    int length;
+
+    Entry(Note note) {
+      this.note = note;
+    }
+  }
+
+  /** A segment of the LRU, most recently used first. */
+  private static final class Segment {
+    final Entry head = new Entry(null);
+    long bytes;
+
+    Segment() {
+      head.previous = head;
+      head.next = head;
+    }
+
+    void addFirst(Entry entry, byte segment) {
+      entry.previous = head;
+      entry.next = head.next;
+      head.next.previous = entry;
+      head.next = entry;
+      entry.segment = segment;
+      bytes += entry.charge;
+    }
+
+    void remove(Entry entry) {
+      entry.previous.next = entry.next;
+      entry.next.previous = entry.previous;
+      entry.previous = null;
+      entry.next = null;
+      entry.segment = NONE;
+      bytes -= entry.charge;
+    }
+
+    /**
+     * @return The least recently used entry, null if there is none.
+     */
+    Entry last() {
+      return head.previous == head ? null : head.previous;
+    }
+  }
+
+  private final Path path;
+  private final FileChannel channel;
+  private final long budget;
+
+  /** Guards the segments, the regions and the charges. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition overBudget = lock.newCondition();
+  private final ReentrantLock[] loads = new ReentrantLock[LOAD_STRIPES];
+  private final Segment probation = new Segment();
+  private final Segment protectedSegment = new Segment();
+
+  /** Freed regions of the file, by size. */
+  private final Map<Integer, ArrayDeque<Long>> freeRegions = new HashMap<>();
+
+  private long fileBytes;
+  private long spilledBytes;
+  private int entries;
+  private boolean closed;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private final Thread evictor;
+
+  private ContentCache(Path path, FileChannel channel, long budget) {
+    this.path = path;
+    this.channel = channel;
+    this.budget = budget;
+    for (int i = 0; i < loads.length; i++) {
+      loads[i] = new ReentrantLock();
+    }
+    this.evictor = new Thread(this::evictLoop, "content-evictor");
+    this.evictor.setDaemon(true);
+  }
+
+  /**
+   * Creates a cache spilling to a file, which is emptied, and starts its evictor.
+   *
+   * @param path The file the contents are spilled to.
+   * @param budget The number of bytes of the contents kept in memory, a content kept as a string
+   *     counting its number of chars.
+   */
+  public static ContentCache open(Path path, long budget) throws IOException {
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    ContentCache cache = new ContentCache(path, channel, budget);
+    cache.evictor.start();
+    return cache;
+  }
+
+  /**
+   * @return The number of bytes of the contents kept in memory above which they are spilled.
+   */
+  public long budget() {
+    return budget;
+  }
+
+  /**
+   * @return The number of reads of a content by a session that found it in memory.
+   */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return The number of reads of a content by a session that read it back from the file.
+   */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return The number of contents spilled to the file.
+   */
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return The number of bytes of the contents in memory.
+   */
+  public long residentBytes() {
+    lock.lock();
+    try {
+      return probation.bytes + protectedSegment.bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of bytes of the regions of the file in use.
+   */
+  public long spilledBytes() {
+    lock.lock();
+    try {
+      return spilledBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The size of the file.
+   */
+  public long fileBytes() {
+    lock.lock();
+    try {
+      return fileBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Starts counting the content of a note added to a user, under the write lock of the user.
+   *
+   * @param charge The number of bytes of the content in memory.
+   */
+  Entry add(Note note, int charge) {
+    Entry entry = new Entry(note);
+    lock.lock();
+    try {
+      entries++;
+      entry.charge = charge;
+      link(entry);
+    } finally {
+      lock.unlock();
+    }
+    return entry;
+  }
+
+  /** Stops counting the content of a deleted note, under the write lock of its user. */
+  void remove(Entry entry) {
+    lock.lock();
+    try {
+      entries--;
+      unlink(entry);
+      freeRegion(entry);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Counts the new content of a note, in memory, under the write lock of its user. The copy in the
+   * file, if any, is outdated.
+   *
+   * @param charge The number of bytes of the content in memory.
+   */
+  void changed(Entry entry, int charge) {
+    lock.lock();
+    try {
+      freeRegion(entry);
+      entry.spilled = false;
+      if (entry.segment == NONE) {
+        entry.charge = charge;
+        link(entry);
+      } else {
+        Segment segment = entry.segment == PROBATION ? probation : protectedSegment;
+        segment.bytes += charge - entry.charge;
+        entry.charge = charge;
+        signalIfOverBudget();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads back the content of a note if it was spilled, under the lock of its user. Several readers
+   * may ask for it at once, only one of them reads it.
+   *
+   * @param counted Whether the access is a read of the content by a session, counted as a hit or a
+   *     miss.
+   */
+  void access(Entry entry, boolean counted) {
+    if (!entry.referenced) {
+      entry.referenced = true;
+    }
+    if (!entry.spilled) {
+      if (counted) {
+        hits.increment();
+      }
+      return;
+    }
+    ReentrantLock load = loads[(System.identityHashCode(entry) & 0x7fffffff) % LOAD_STRIPES];
+    load.lock();
+    try {
+      if (!entry.spilled) {
+        if (counted) {
+          hits.increment();
+        }
+        return;
+      }
+      entry.note.fill(read(entry));
+      if (counted) {
+        misses.increment();
+      }
+      lock.lock();
+      try {
+        entry.charge = entry.note.residentBytes();
+        link(entry);
+      } finally {
+        lock.unlock();
+      }
+      entry.spilled = false;
+    } finally {
+      load.unlock();
+    }
+  }
+
+  /**
+   * Reads the copy of a spilled content without bringing it back in memory, under the lock of its
+   * user.
+   *
+   * @return The content, or null if it is in memory.
+   */
+  String peek(Entry entry) {
+    if (!entry.spilled) {
+      return null;
+    }
+    return new String(read(entry), StandardCharsets.UTF_8);
+  }
+
+  /** Stops the evictor and deletes the file. */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      overBudget.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    channel.close();
+    Files.deleteIfExists(path);
+  }
+
+  private byte[] read(Entry entry) {
+    byte[] bytes = new byte[entry.length];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, entry.region + buffer.position()) < 0) {
+          throw new IOException("Spilled content truncated");
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes;
+  }
+
+  /** Spills the least recently read contents while the budget is exceeded. */
+  private void evictLoop() {
+    int busy = 0;
+    while (true) {
+      Entry victim;
+      lock.lock();
+      try {
+        while (!closed && probation.bytes + protectedSegment.bytes <= budget) {
+          overBudget.awaitUninterruptibly();
+          busy = 0;
+        }
+        if (closed) {
+          return;
+        }
+        if (busy > entries) {
+          // Every content in memory belongs to a user busy with another session
+          overBudget.await(BUSY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+          busy = 0;
+          continue;
+        }
+        victim = victim();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+      busy = spill(victim) ? 0 : busy + 1;
+    }
+  }
+
+  /**
+   * Finds the content to spill, under the lock: the end of the probationary segment, a content read
+   * since it entered it moving to the protected one instead.
+   */
+  private Entry victim() {
+    while (true) {
+      Entry entry = probation.last();
+      Segment segment = probation;
+      if (entry == null) {
+        entry = protectedSegment.last();
+        segment = protectedSegment;
+      }
+      if (!entry.referenced) {
+        return entry;
+      }
+      entry.referenced = false;
+      segment.remove(entry);
+      protectedSegment.addFirst(entry, PROTECTED);
+      // The protected contents read the least recently get another chance in the probationary one
+      Entry demoted;
+      while (protectedSegment.bytes > budget * PROTECTED_SHARE
+          && (demoted = protectedSegment.last()) != entry) {
+        protectedSegment.remove(demoted);
+        probation.addFirst(demoted, PROBATION);
+      }
+    }
+  }
+
+  /**
+   * Moves a content to the file if the write lock of its user is free.
+   *
+   * @return false if the user was busy.
+   */
+  private boolean spill(Entry entry) {
+    Lock write = entry.note.owner.lock().writeLock();
+    if (!write.tryLock()) {
+      requeue(entry);
+      return false;
+    }
+    try {
+      lock.lock();
+      try {
+        // Deleted, or read since it was chosen
+        if (entry.segment == NONE) {
+          return true;
+        }
+        if (entry.referenced) {
+          requeue(entry);
+          return true;
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (entry.region < 0) {
+        write(entry, entry.note.storedContent());
+      }
+      entry.note.spill();
+      entry.spilled = true;
+      evictions.increment();
+      lock.lock();
+      try {
+        unlink(entry);
+      } finally {
+        lock.unlock();
+      }
+      return true;
+    } catch (IOException e) {
+      Log.warn("[Cache] Cannot spill a content: " + e);
+      return false;
+    } finally {
+      write.unlock();
+    }
+  }
+
+  /** Writes the copy of a content to a free region, under the write lock of its user. */
+  private void write(Entry entry, byte[] bytes) throws IOException {
+    int size = regionBytes(bytes.length);
+    long region;
+    lock.lock();
+    try {
+      ArrayDeque<Long> free = freeRegions.get(size);
+      if (free != null && !free.isEmpty()) {
+        region = free.pop();
+      } else {
+        region = fileBytes;
+        fileBytes += size;
+      }
+      spilledBytes += size;
+    } finally {
+      lock.unlock();
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, region + buffer.position());
+      }
+    } catch (IOException e) {
+      lock.lock();
+      try {
+        freeRegions.computeIfAbsent(size, s -> new ArrayDeque<>()).push(region);
+        spilledBytes -= size;
+      } finally {
+        lock.unlock();
+      }
+      throw e;
+    }
+    entry.region = region;
+    entry.regionBytes = size;
+    entry.length = bytes.length;
+  }
+
+  /** Frees the copy of a content in the file, under the lock. */
+  private void freeRegion(Entry entry) {
+    if (entry.region < 0) {
+      return;
+    }
+    freeRegions.computeIfAbsent(entry.regionBytes, s -> new ArrayDeque<>()).push(entry.region);
+    spilledBytes -= entry.regionBytes;
+    entry.region = -1;
+  }
+
+  /** Puts an entry back at the start of the probationary segment, under the lock. */
+  private void requeue(Entry entry) {
+    lock.lock();
+    try {
+      if (entry.segment != NONE) {
+        unlink(entry);
+        link(entry);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Adds a content in memory to the probationary segment, under the lock. */
+  private void link(Entry entry) {
+    if (entry.charge > 0) {
+      probation.addFirst(entry, PROBATION);
+      signalIfOverBudget();
+    }
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.segment == PROBATION) {
+      probation.remove(entry);
+    } else if (entry.segment == PROTECTED) {
+      protectedSegment.remove(entry);
+    }
+  }
+
+  private void signalIfOverBudget() {
+    if (probation.bytes + protectedSegment.bytes > budget) {
+      overBudget.signal();
+    }
+  }
+
+  /** Sizes of the regions: at least {@link #MIN_REGION_BYTES}, four per power of two above. */
+  private static int regionBytes(int length) {
+    if (length <= MIN_REGION_BYTES) {
+      return MIN_REGION_BYTES;
+    }
+    int step = Integer.highestOneBit(length - 1) / 4;
+    return (int) (((long) length + step - 1) / step * step);
+  }
+}
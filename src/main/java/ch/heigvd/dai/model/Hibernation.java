@@ -0,0 +1,21 @@
+package ch.heigvd.dai.model;
+
+import java.io.IOException;
+
+/**
+ * Keeps the notes of the users without session out of memory, see {@link
+ * UserRegistry#hibernateIdle}. The methods are called under the lock of the user, a state is only
+ * ever saved, loaded and deleted by its own user.
+ */
+public interface Hibernation {
+  /** Saves the notes of a user, replacing those saved before. */
+  void save(User.State state) throws IOException;
+
+  /**
+   * @return The notes saved for a user.
+   */
+  User.State load(String name) throws IOException;
+
+  /** Forgets the notes saved for a user, once they are back in memory. */
+  void delete(String name) throws IOException;
+}
@@ -1,12 +1,127 @@
 package ch.heigvd.dai.model;
 
-public class Note {
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A note of a user. Its content is kept as a string, or as a handle to UTF-8 bytes once the notes
+ * use a {@link ContentArena}, and moves to a {@link Rope} the first time a range of it is edited in
+ * place. The content of a note kept in the arena or in a rope must be read under the lock of its
+ * {@link User}, which frees the bytes when the content is replaced or the note deleted.
+ *
+ * <p>With a {@link ContentCache}, the content of a note added to a user may be spilled to a file,
+ * and is read back by the first accessor reading it.
+ */
+public final class Note {
+  /** Position of the first part of a content, see {@link #readContent(long, ByteBuffer)}. */
+  public static final long CONTENT_START = 0;
+
+  /** Position returned once the last part of a content has been read. */
+  public static final long CONTENT_END = -1;
+
+  /** The arena the contents are kept in, null to keep them as strings. */
+  private static volatile ContentArena arena;
+
+  /** The cache the contents are spilled by, null to keep them all in memory. */
+  private static volatile ContentCache cache;
+
+  /** Identifier given by the user when the note is added, 0 until then. */
+  long id;
+
+  /** Version of its user when the note was last created, renamed or changed, 0 until added. */
+  long version;
+
   private String title;
+
+  /** The content when kept as a string, null when kept in the arena. */
   private String content;
 
+  /** The handle of the content in the arena, 0 if it is kept as a string or empty. */
+  private long contentHandle;
+
+  /** The content once edited in place, null until then. */
+  private Rope rope;
+
+  /** The user the note was added to, null until then. */
+  User owner;
+
+  /** The content as counted by the cache, null without a cache or until the note is added. */
+  private ContentCache.Entry entry;
+
+  /** Slot of the note in the {@link NoteStore} of its user. */
+  int slot;
+
+  /** Number of the note in the {@link SearchIndex} of its user. */
+  int document;
+
   public Note(String title, String content) {
     this.title = title;
-    this.content = content;
+    setContent(content);
+  }
+
+  /**
+   * Creates a note keeping the identifier and the version it had, when it is restored.
+   *
+   * @param id The identifier given to the note when it was first added.
+   * @param version The version of the note, 0 if it is not known.
+   */
+  public Note(long id, long version, String title, String content) {
+    this(title, content);
+    this.id = id;
+    this.version = version;
+  }
+
+  /**
+   * Keeps the contents of the notes created from now on in an arena rather than as strings. Called
+   * once at startup, before any note is created.
+   *
+   * @param contents The arena, null to keep the contents as strings.
+   */
+  public static void useArena(ContentArena contents) {
+    arena = contents;
+  }
+
+  /**
+   * @return The arena the contents are kept in, null if they are kept as strings.
+   */
+  public static ContentArena arena() {
+    return arena;
+  }
+
+  /**
+   * Spills the contents of the notes beyond a memory budget. Called once at startup, before any
+   * note is added to a user.
+   *
+   * @param contents The cache, null to keep all the contents in memory.
+   */
+  public static void useCache(ContentCache contents) {
+    cache = contents;
+  }
+
+  /**
+   * @return The cache the contents are spilled by, null if they are all kept in memory.
+   */
+  public static ContentCache cache() {
+    return cache;
+  }
+
+  /**
+   * @return The identifier of the note, which never changes and is never given to another note of
+   *     the same user.
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return The version of the user the note was last created, renamed or changed at. The updates
+   *     given an expected version only apply if it is still this one.
+   */
+  public long getVersion() {
+    return version;
   }
 
   public String getTitle() {
@@ -17,11 +132,317 @@ public class Note {
     this.title = title;
   }
 
+  /**
+   * @return The content, decoded if it is kept in the arena.
+   */
   public String getContent() {
-    return content;
+    access(false);
+    return storedString();
+  }
+
+  private String storedString() {
+    if (content != null) {
+      return content;
+    }
+    if (rope != null) {
+      return rope.decode(0, rope.length());
+    }
+    return contentHandle == 0 ? "" : arena.decode(contentHandle);
   }
 
   public void setContent(String content) {
-    this.content = content;
+    if (arena == null) {
+      release();
+      this.content = content;
+      changed();
+      return;
+    }
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    setContent(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Replaces the content by UTF-8 bytes, copied into the arena without being decoded if there is
+   * one.
+   */
+  public void setContent(byte[] bytes, int offset, int length) {
+    ContentArena contents = arena;
+    if (contents == null) {
+      release();
+      this.content = new String(bytes, offset, length, StandardCharsets.UTF_8);
+      changed();
+      return;
+    }
+    long handle = length == 0 ? 0 : contents.allocate(bytes, offset, length);
+    release();
+    contentHandle = handle;
+    content = null;
+    changed();
+  }
+
+  /**
+   * @return The number of UTF-8 bytes of the content kept in the arena or in a rope, -1 if it is
+   *     kept as a string.
+   */
+  public int contentBytes() {
+    access(false);
+    if (content != null) {
+      return -1;
+    }
+    if (rope != null) {
+      return rope.length();
+    }
+    return contentHandle == 0 ? 0 : arena.length(contentHandle);
+  }
+
+  /**
+   * Copies the UTF-8 bytes of the content kept in the arena or in a rope.
+   *
+   * @param destination The array, with room for {@link #contentBytes()} bytes after the offset.
+   * @param offset The offset the content is copied at.
+   */
+  public void copyContent(byte[] destination, int offset) {
+    access(false);
+    if (rope != null) {
+      rope.copy(0, rope.length(), destination, offset);
+    } else if (contentHandle != 0) {
+      arena.read(contentHandle, destination, offset);
+    }
+  }
+
+  /**
+   * Copies the next part of the UTF-8 bytes of the content, under the lock of the user. Only this
+   * part is read: the bytes kept in the arena or in a rope are copied as they are, and a content
+   * kept as a string is only encoded from where the previous part ended.
+   *
+   * @param position The position returned for the previous part, {@link #CONTENT_START} for the
+   *     first one. It holds the number of bytes already read and, while the content stays a
+   *     string, the matching number of chars.
+   * @param chunk Receives the bytes up to the last complete character it has room for.
+   * @return The position of the next part, or {@link #CONTENT_END} if this part ended the content.
+   */
+  public long readContent(long position, ByteBuffer chunk) {
+    access(false);
+    int bytes = (int) (position >>> 32);
+    int chars = (int) position;
+    int start = chunk.position();
+    if (content != null) {
+      if (chars < 0) {
+        // The content was kept otherwise when the previous part was read
+        chars = charsBefore(content, bytes);
+      }
+      CharBuffer source = CharBuffer.wrap(content, chars, content.length());
+      CharsetEncoder encoder =
+          StandardCharsets.UTF_8
+              .newEncoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      encoder.encode(source, chunk, true);
+      if (!source.hasRemaining()) {
+        return CONTENT_END;
+      }
+      return contentPosition(bytes + chunk.position() - start, source.position());
+    }
+
+    int length = contentBytes();
+    int count = Math.min(length - bytes, chunk.remaining());
+    int offset = chunk.arrayOffset() + start;
+    if (rope != null) {
+      rope.copy(bytes, bytes + count, chunk.array(), offset);
+    } else if (count > 0) {
+      arena.read(contentHandle, bytes, chunk.array(), offset, count);
+    }
+    if (bytes + count < length) {
+      // Ends the part on a character, the content may be read back as a string for the next one
+      count = characterEnd(chunk.array(), offset, count);
+    }
+    chunk.position(start + count);
+    return bytes + count == length ? CONTENT_END : contentPosition(bytes + count, -1);
+  }
+
+  /**
+   * @return The number of the given UTF-8 bytes up to the end of their last complete character.
+   */
+  private static int characterEnd(byte[] bytes, int offset, int count) {
+    for (int i = count - 1; i >= 0 && i >= count - 3; i--) {
+      int b = bytes[offset + i] & 0xFF;
+      if ((b & 0xC0) != 0x80) {
+        int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+        return i + length > count ? i : count;
+      }
+    }
+    return count;
+  }
+
+  private static long contentPosition(int bytes, int chars) {
+    return (long) bytes << 32 | chars & 0xFFFFFFFFL;
+  }
+
+  /**
+   * @return The number of chars of a string encoded by the given number of UTF-8 bytes.
+   */
+  private static int charsBefore(String string, int bytes) {
+    int chars = 0;
+    while (bytes > 0) {
+      char c = string.charAt(chars);
+      if (Character.isHighSurrogate(c)
+          && chars + 1 < string.length()
+          && Character.isLowSurrogate(string.charAt(chars + 1))) {
+        bytes -= 4;
+        chars += 2;
+      } else {
+        bytes -= c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 1 : 3;
+        chars++;
+      }
+    }
+    return chars;
+  }
+
+  /**
+   * @return A copy of the UTF-8 bytes of the content, however it is kept.
+   */
+  byte[] encodedContent() {
+    access(false);
+    return storedContent();
+  }
+
+  /**
+   * @return A copy of the UTF-8 bytes of the content in memory, without reading it back if spilled.
+   */
+  byte[] storedContent() {
+    if (content != null) {
+      return content.getBytes(StandardCharsets.UTF_8);
+    }
+    if (rope != null) {
+      byte[] bytes = new byte[rope.length()];
+      rope.copy(0, bytes.length, bytes, 0);
+      return bytes;
+    }
+    byte[] bytes = new byte[contentHandle == 0 ? 0 : arena.length(contentHandle)];
+    if (contentHandle != 0) {
+      arena.read(contentHandle, bytes, 0);
+    }
+    return bytes;
+  }
+
+  /**
+   * @return The content as a rope, which it is moved to the first time it is asked for.
+   */
+  Rope rope() {
+    access(false);
+    if (rope == null) {
+      byte[] bytes = storedContent();
+      release();
+      content = null;
+      rope = new Rope(arena, bytes, 0, bytes.length);
+    }
+    return rope;
+  }
+
+  /**
+   * @return A copy of the note keeping its content as a string, which stays valid once the note is
+   *     changed.
+   */
+  Note detachedCopy() {
+    Note copy = new Note(id, version, title, "");
+    // Read without counting nor keeping it in memory, the snapshots reading every note
+    String spilled = entry == null ? null : cache.peek(entry);
+    copy.content = spilled != null ? spilled : storedString();
+    return copy;
+  }
+
+  /**
+   * Makes the note belong to a user once added to it, under its write lock. The content is counted
+   * by the cache from then on.
+   */
+  void attach(User user) {
+    owner = user;
+    ContentCache contents = cache;
+    if (contents != null && entry == null) {
+      entry = contents.add(this, residentBytes());
+    }
+  }
+
+  /** Frees the content once the note is deleted from its user, under its write lock. */
+  void detach() {
+    if (entry != null) {
+      cache.remove(entry);
+      entry = null;
+    }
+    release();
+  }
+
+  /** Counts the content edited in place, under the write lock of the user. */
+  void contentEdited() {
+    changed();
+  }
+
+  /**
+   * @return The number of bytes of the content in memory, a content kept as a string counting its
+   *     number of chars.
+   */
+  int residentBytes() {
+    if (content != null) {
+      return content.length();
+    }
+    if (rope != null) {
+      return rope.length();
+    }
+    return contentHandle == 0 ? 0 : arena.length(contentHandle);
+  }
+
+  /** Frees the content once the cache copied it to its file, under the write lock of the user. */
+  void spill() {
+    release();
+    content = null;
+  }
+
+  /** Puts back a content read from the file of the cache, in the form it is kept in. */
+  void fill(byte[] bytes) {
+    ContentArena contents = arena;
+    if (contents == null) {
+      content = new String(bytes, StandardCharsets.UTF_8);
+    } else if (bytes.length > 0) {
+      contentHandle = contents.allocate(bytes, 0, bytes.length);
+    }
+  }
+
+  /** Reads the content back if it was spilled, counting a read of the content by a session. */
+  void read() {
+    access(true);
+  }
+
+  /**
+   * Reads the content back if it was spilled.
+   *
+   * @param counted Whether the access counts as a hit or a miss of the cache.
+   */
+  private void access(boolean counted) {
+    ContentCache.Entry current = entry;
+    if (current != null) {
+      cache.access(current, counted);
+    }
+  }
+
+  /** Tells the cache that the content in memory changed. */
+  private void changed() {
+    if (entry != null) {
+      cache.changed(entry, residentBytes());
+    }
+  }
+
+  /**
+   * Frees the content kept in the arena or in a rope, once the note is deleted or its content
+   * replaced.
+   */
+  void release() {
+    if (contentHandle != 0) {
+      arena.free(contentHandle);
+      contentHandle = 0;
+    }
+    if (rope != null) {
+      rope.release();
+      rope = null;
+    }
   }
 }
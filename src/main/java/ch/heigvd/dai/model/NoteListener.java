@@ -0,0 +1,37 @@
+package ch.heigvd.dai.model;
+
+/**
+ * Receives the changes made to the notes of a user. The methods are called while the user's write
+ * lock is held, so the changes of a user are seen in the order they were applied.
+ */
+public interface NoteListener {
+  /** A listener ignoring every change. */
+  NoteListener NONE = new NoteListener() {};
+
+  default void noteCreated(User user, Note note) {}
+
+  default void noteDeleted(User user, Note note) {}
+
+  default void titleChanged(User user, Note note, String oldTitle) {}
+
+  default void contentChanged(User user, Note note) {}
+
+  /** The changes notified until {@link #batchEnded} are those of a {@link Batch}, all applied. */
+  default void batchStarted(User user) {}
+
+  default void batchEnded(User user) {}
+
+  /**
+   * A range of the content has been replaced, handled as a change of the whole content unless
+   * overridden.
+   *
+   * @param offset The position of the range in bytes.
+   * @param removed The number of bytes of the range.
+   * @param bytes The buffer holding the bytes replacing the range, at its start.
+   * @param length The number of these bytes.
+   */
+  default void contentPatched(
+      User user, Note note, int offset, int removed, byte[] bytes, int length) {
+    contentChanged(user, note);
+  }
+}
@@ -0,0 +1,210 @@
+package ch.heigvd.dai.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Notes of a user, indexed by title, by identifier and by position.
+ *
+ * <p>The notes are kept in creation order in an array of slots. A deleted note leaves a gap in its
+ * slot instead of shifting the following notes, and a Fenwick tree counting the occupied slots
+ * turns a position into a slot (and back) in O(log n). The gaps are squeezed out once they
+ * outnumber the notes, which keeps every operation O(log n) amortized.
+ *
+ * <p>This class is not thread-safe, {@link User} guards it with its lock.
+ */
+class NoteStore {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Map<String, Note> byTitle = new HashMap<>();
+  private final Map<Long, Note> byId = new HashMap<>();
+  private Note[] slots = new Note[INITIAL_CAPACITY];
+
+  /** Fenwick tree over the slots, tree[i] counts the notes of the slots (i - lowbit(i), i]. */
+  private int[] tree = new int[INITIAL_CAPACITY + 1];
+
+  /** Number of slots used so far, gaps included. */
+  private int used;
+
+  /** Number of notes. */
+  private int size;
+
+  int size() {
+    return size;
+  }
+
+  Note get(int index) {
+    if (index < 0 || index >= size) {
+      return null;
+    }
+    return slots[findSlot(index + 1)];
+  }
+
+  Note getByTitle(String title) {
+    return byTitle.get(title);
+  }
+
+  Note getById(long id) {
+    return byId.get(id);
+  }
+
+  /**
+   * @return The position of the note, or -1 if it is not in the store.
+   */
+  int indexOf(Note note) {
+    if (byTitle.get(note.getTitle()) != note) {
+      return -1;
+    }
+    return prefixCount(note.slot) - 1;
+  }
+
+  /**
+   * Adds a note after all the others.
+   *
+   * @return false if a note with the same title already exists.
+   */
+  boolean add(Note note) {
+    if (byTitle.putIfAbsent(note.getTitle(), note) != null) {
+      return false;
+    }
+    byId.put(note.id, note);
+    if (used == slots.length) {
+      if (size <= used / 2) {
+        compact();
+      } else {
+        grow();
+      }
+    }
+    note.slot = used;
+    slots[used] = note;
+    used++;
+    size++;
+    increment(note.slot, 1);
+    return true;
+  }
+
+  Note removeByTitle(String title) {
+    Note note = byTitle.remove(title);
+    if (note == null) {
+      return null;
+    }
+    byId.remove(note.id);
+    slots[note.slot] = null;
+    size--;
+    increment(note.slot, -1);
+    if (used > INITIAL_CAPACITY && size < used / 2) {
+      compact();
+    }
+    return note;
+  }
+
+  /**
+   * Changes the title of a note and its entry in the title index, which is claimed before the old
+   * one is released.
+   *
+   * @return false if a note, this one included, already has the new title.
+   */
+  boolean rename(Note note, String title) {
+    if (byTitle.putIfAbsent(title, note) != null) {
+      return false;
+    }
+    byTitle.remove(note.getTitle(), note);
+    note.setTitle(title);
+    return true;
+  }
+
+  List<Note> list() {
+    List<Note> notes = new ArrayList<>(size);
+    for (int i = 0; i < used; i++) {
+      if (slots[i] != null) {
+        notes.add(slots[i]);
+      }
+    }
+    return notes;
+  }
+
+  /**
+   * Lists the notes from a position, finding the slot of the first one in O(log n).
+   *
+   * @param offset The number of notes skipped.
+   * @param limit The largest number of notes listed.
+   */
+  List<Note> list(int offset, int limit) {
+    List<Note> notes = new ArrayList<>(Math.max(0, Math.min(limit, size - offset)));
+    if (offset >= size) {
+      return notes;
+    }
+    for (int i = findSlot(offset + 1); i < used && notes.size() < limit; i++) {
+      if (slots[i] != null) {
+        notes.add(slots[i]);
+      }
+    }
+    return notes;
+  }
+
+  private void grow() {
+    Note[] bigger = new Note[slots.length * 2];
+    System.arraycopy(slots, 0, bigger, 0, used);
+    slots = bigger;
+    rebuildTree();
+  }
+
+  /** Moves the notes to the first slots, removing the gaps. */
+  private void compact() {
+    int next = 0;
+    for (int i = 0; i < used; i++) {
+      Note note = slots[i];
+      if (note != null) {
+        slots[i] = null;
+        slots[next] = note;
+        note.slot = next++;
+      }
+    }
+    used = next;
+    rebuildTree();
+  }
+
+  /** Rebuilds the Fenwick tree from the slots in O(n). */
+  private void rebuildTree() {
+    tree = new int[slots.length + 1];
+    for (int i = 1; i <= slots.length; i++) {
+      if (slots[i - 1] != null) {
+        tree[i]++;
+      }
+      int parent = i + (i & -i);
+      if (parent <= slots.length) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+
+  private void increment(int slot, int delta) {
+    for (int i = slot + 1; i < tree.length; i += i & -i) {
+      tree[i] += delta;
+    }
+  }
+
+  /** Counts the notes in the slots up to and including the given one. */
+  private int prefixCount(int slot) {
+    int count = 0;
+    for (int i = slot + 1; i > 0; i -= i & -i) {
+      count += tree[i];
+    }
+    return count;
+  }
+
+  /** Finds the slot of the k-th note (1-based) by descending the Fenwick tree. */
+  private int findSlot(int k) {
+    int position = 0;
+    for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+      int next = position + step;
+      if (next < tree.length && tree[next] < k) {
+        position = next;
+        k -= tree[next];
+      }
+    }
+    return position;
+  }
+}
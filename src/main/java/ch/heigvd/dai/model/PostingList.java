@@ -0,0 +1,129 @@
+package ch.heigvd.dai.model;
+
+import java.util.Arrays;
+
+/**
+ * Document numbers of the notes holding a term (see {@link SearchIndex}), with the number of times
+ * they hold it, compressed as varints: each entry is the difference with the previous number
+ * followed by the frequency. Adding a number larger than the others appends to the bytes, the other
+ * changes rewrite them.
+ *
+ * <p>This class is not thread-safe, {@link User} guards it with its lock.
+ */
+class PostingList {
+  /** Receives the entries of a list, in increasing document order. */
+  interface Visitor {
+    void visit(int document, int frequency);
+  }
+
+  private byte[] bytes = new byte[8];
+  private int length;
+  private int count;
+  private int lastDocument;
+
+  int count() {
+    return count;
+  }
+
+  /**
+   * Sets the frequency of a document, adding it if it is not in the list.
+   *
+   * @param frequency The frequency, at least 1.
+   */
+  void put(int document, int frequency) {
+    if (count == 0 || document > lastDocument) {
+      writeVarint(count == 0 ? document : document - lastDocument);
+      writeVarint(frequency);
+      lastDocument = document;
+      count++;
+      return;
+    }
+    rewrite(document, frequency);
+  }
+
+  /**
+   * @return The frequency of a document, 0 if it is not in the list.
+   */
+  int frequency(int document) {
+    if (count == 0 || document > lastDocument) {
+      return 0;
+    }
+    int[] found = {0};
+    forEach(
+        (entry, frequency) -> {
+          if (entry == document) {
+            found[0] = frequency;
+          }
+        });
+    return found[0];
+  }
+
+  void remove(int document) {
+    if (count > 0 && document <= lastDocument) {
+      rewrite(document, 0);
+    }
+  }
+
+  void forEach(Visitor visitor) {
+    int position = 0;
+    int document = 0;
+    for (int i = 0; i < count; i++) {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[position++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      int frequency = 0;
+      shift = 0;
+      do {
+        b = bytes[position++];
+        frequency |= (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      document += delta;
+      visitor.visit(document, frequency);
+    }
+  }
+
+  /** Decodes the entries, changes the one of an document (0 removing it) and encodes them again. */
+  private void rewrite(int document, int frequency) {
+    int[] documents = new int[count + 1];
+    int[] frequencies = new int[count + 1];
+    int[] size = {0};
+    forEach(
+        (entry, entryFrequency) -> {
+          if (entry > document
+              && (size[0] == 0 || documents[size[0] - 1] < document)
+              && frequency > 0) {
+            documents[size[0]] = document;
+            frequencies[size[0]++] = frequency;
+          }
+          if (entry != document) {
+            documents[size[0]] = entry;
+            frequencies[size[0]++] = entryFrequency;
+          } else if (frequency > 0) {
+            documents[size[0]] = document;
+            frequencies[size[0]++] = frequency;
+          }
+        });
+    length = 0;
+    count = 0;
+    for (int i = 0; i < size[0]; i++) {
+      put(documents[i], frequencies[i]);
+    }
+  }
+
+  private void writeVarint(int value) {
+    if (bytes.length - length < 5) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+    }
+    while ((value & ~0x7F) != 0) {
+      bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[length++] = (byte) value;
+  }
+}
@@ -0,0 +1,348 @@
+package ch.heigvd.dai.model;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Content of a note edited in place, as UTF-8 bytes cut into pieces of at most {@link #LEAF_BYTES}
+ * bytes. The pieces are the leaves of a binary tree kept balanced by height, each node knowing the
+ * number of bytes below it, so that replacing a range costs the size of the range and of the new
+ * bytes plus the height of the tree, whatever the size of the content.
+ *
+ * <p>The pieces are kept on the heap, or in the {@link ContentArena} if there is one. A piece that
+ * leaves the tree is freed at once: the tree is only ever read under the lock of the {@link User}
+ * owning the note, never shared.
+ *
+ * <p>This class is not thread-safe, {@link User} guards it with its lock.
+ */
+class Rope {
+  /** Largest number of bytes of a piece, which fills a block of the arena with its length. */
+  static final int LEAF_BYTES = 4096 - Integer.BYTES;
+
+  /** A piece, or a branch joining two subtrees. */
+  private static final class Node {
+    Node left;
+    Node right;
+    int length;
+    int height;
+
+    /** The bytes of a piece kept on the heap, null for a branch or a piece kept in the arena. */
+    byte[] bytes;
+
+    /** The handle of a piece kept in the arena, 0 otherwise. */
+    long handle;
+
+    boolean isLeaf() {
+      return left == null;
+    }
+  }
+
+  /** The arena the pieces are kept in, null to keep them on the heap. */
+  private final ContentArena arena;
+
+  /** The root of the tree, null if the content is empty. */
+  private Node root;
+
+  Rope(ContentArena arena, byte[] bytes, int offset, int length) {
+    this.arena = arena;
+    this.root = build(bytes, offset, length);
+  }
+
+  /**
+   * @return The number of bytes of the content.
+   */
+  int length() {
+    return length(root);
+  }
+
+  /**
+   * @return Whether a position is the start of a UTF-8 sequence or the end of the content, so that
+   *     cutting the content there does not split a character.
+   */
+  boolean isCharBoundary(int position) {
+    if (position == length()) {
+      return true;
+    }
+    byte[] b = new byte[1];
+    copy(position, position + 1, b, 0);
+    return (b[0] & 0xC0) != 0x80;
+  }
+
+  /**
+   * Finds the start of the word holding the byte before a position, words being separated by spaces
+   * as scrambled.
+   */
+  int wordStart(int position) {
+    byte[] b = new byte[1];
+    while (position > 0) {
+      copy(position - 1, position, b, 0);
+      if (b[0] == ' ') {
+        break;
+      }
+      position--;
+    }
+    return position;
+  }
+
+  /** Finds the end of the word holding the byte at a position. */
+  int wordEnd(int position) {
+    int length = length();
+    byte[] b = new byte[1];
+    while (position < length) {
+      copy(position, position + 1, b, 0);
+      if (b[0] == ' ') {
+        break;
+      }
+      position++;
+    }
+    return position;
+  }
+
+  /**
+   * Replaces a range of the content.
+   *
+   * @param offset The position of the range, at a character boundary.
+   * @param removed The number of bytes of the range, ending at a character boundary.
+   * @param bytes The buffer holding the bytes replacing the range.
+   * @param from The offset of these bytes in the buffer.
+   * @param length The number of these bytes.
+   */
+  void replace(int offset, int removed, byte[] bytes, int from, int length) {
+    Node[] parts = split(root, offset);
+    Node before = parts[0];
+    parts = split(parts[1], removed);
+    Node after = parts[1];
+    free(parts[0]);
+
+    // The pieces around the range are merged with the new bytes when they fit in one, so that
+    // small edits in a row do not cut the content into tiny pieces
+    Node last = last(before);
+    int head = last != null && last.length + length <= LEAF_BYTES ? last.length : 0;
+    Node first = first(after);
+    int tail = first != null && head + length + first.length <= LEAF_BYTES ? first.length : 0;
+    if (head > 0 || tail > 0) {
+      byte[] merged = new byte[head + length + tail];
+      if (head > 0) {
+        parts = split(before, length(before) - head);
+        before = parts[0];
+        read(parts[1], merged, 0);
+        free(parts[1]);
+      }
+      System.arraycopy(bytes, from, merged, head, length);
+      if (tail > 0) {
+        parts = split(after, tail);
+        after = parts[1];
+        read(parts[0], merged, head + length);
+        free(parts[0]);
+      }
+      bytes = merged;
+      from = 0;
+      length = merged.length;
+    }
+    root = join(join(before, build(bytes, from, length)), after);
+  }
+
+  /**
+   * Copies a range of the content.
+   *
+   * @param start The position of the first byte copied.
+   * @param end The position after the last byte copied.
+   * @param destination The array, with room for the range after the offset.
+   * @param offset The offset the range is copied at.
+   */
+  void copy(int start, int end, byte[] destination, int offset) {
+    copy(root, start, end, destination, offset);
+  }
+
+  /**
+   * @return A range of the content, decoded.
+   */
+  String decode(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    copy(start, end, bytes, 0);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Frees the pieces, once the content is replaced or the note deleted. */
+  void release() {
+    free(root);
+    root = null;
+  }
+
+  /** Builds a balanced tree of pieces holding a copy of the bytes. */
+  private Node build(byte[] bytes, int offset, int length) {
+    if (length == 0) {
+      return null;
+    }
+    if (length <= LEAF_BYTES) {
+      Node leaf = new Node();
+      leaf.length = length;
+      leaf.height = 1;
+      if (arena != null) {
+        leaf.handle = arena.allocate(bytes, offset, length);
+      } else {
+        leaf.bytes = new byte[length];
+        System.arraycopy(bytes, offset, leaf.bytes, 0, length);
+      }
+      return leaf;
+    }
+    // Halves cut at a multiple of the piece size, so that only the last piece is not full
+    int leaves = (length + LEAF_BYTES - 1) / LEAF_BYTES;
+    int half = leaves / 2 * LEAF_BYTES;
+    return branch(build(bytes, offset, half), build(bytes, offset + half, length - half));
+  }
+
+  /** Cuts a tree in two at a position, the pieces holding it being replaced by two new ones. */
+  private Node[] split(Node node, int position) {
+    if (node == null || position == 0) {
+      return new Node[] {null, node};
+    }
+    if (position == node.length) {
+      return new Node[] {node, null};
+    }
+    if (node.isLeaf()) {
+      byte[] bytes = new byte[node.length];
+      read(node, bytes, 0);
+      free(node);
+      return new Node[] {
+        build(bytes, 0, position), build(bytes, position, bytes.length - position)
+      };
+    }
+    Node left = node.left;
+    Node right = node.right;
+    if (position <= left.length) {
+      Node[] parts = split(left, position);
+      return new Node[] {parts[0], join(parts[1], right)};
+    }
+    Node[] parts = split(right, position - left.length);
+    return new Node[] {join(left, parts[0]), parts[1]};
+  }
+
+  /** Concatenates two trees, descending the taller one to keep the result balanced. */
+  private static Node join(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.height > right.height + 1) {
+      left.right = join(left.right, right);
+      return balance(left);
+    }
+    if (right.height > left.height + 1) {
+      right.left = join(left, right.left);
+      return balance(right);
+    }
+    return branch(left, right);
+  }
+
+  private static Node branch(Node left, Node right) {
+    Node node = new Node();
+    node.left = left;
+    node.right = right;
+    update(node);
+    return node;
+  }
+
+  /** Rotates a branch whose subtrees differ in height by two, then updates it. */
+  private static Node balance(Node node) {
+    int difference = node.left.height - node.right.height;
+    if (difference > 1) {
+      if (node.left.left.height < node.left.right.height) {
+        node.left = rotateLeft(node.left);
+      }
+      return rotateRight(node);
+    }
+    if (difference < -1) {
+      if (node.right.right.height < node.right.left.height) {
+        node.right = rotateRight(node.right);
+      }
+      return rotateLeft(node);
+    }
+    update(node);
+    return node;
+  }
+
+  private static Node rotateLeft(Node node) {
+    Node right = node.right;
+    node.right = right.left;
+    update(node);
+    right.left = node;
+    update(right);
+    return right;
+  }
+
+  private static Node rotateRight(Node node) {
+    Node left = node.left;
+    node.left = left.right;
+    update(node);
+    left.right = node;
+    update(left);
+    return left;
+  }
+
+  private static void update(Node node) {
+    node.length = node.left.length + node.right.length;
+    node.height = Math.max(node.left.height, node.right.height) + 1;
+  }
+
+  private static int length(Node node) {
+    return node == null ? 0 : node.length;
+  }
+
+  private static Node first(Node node) {
+    while (node != null && !node.isLeaf()) {
+      node = node.left;
+    }
+    return node;
+  }
+
+  private static Node last(Node node) {
+    while (node != null && !node.isLeaf()) {
+      node = node.right;
+    }
+    return node;
+  }
+
+  /** Copies the bytes of a whole tree. */
+  private void read(Node node, byte[] destination, int offset) {
+    copy(node, 0, length(node), destination, offset);
+  }
+
+  private void copy(Node node, int start, int end, byte[] destination, int offset) {
+    while (node != null && start < end) {
+      if (node.isLeaf()) {
+        if (node.bytes != null) {
+          System.arraycopy(node.bytes, start, destination, offset, end - start);
+        } else {
+          arena.read(node.handle, start, destination, offset, end - start);
+        }
+        return;
+      }
+      int middle = node.left.length;
+      if (start < middle) {
+        copy(node.left, start, Math.min(end, middle), destination, offset);
+        offset += Math.min(end, middle) - start;
+      }
+      // The rest of the range is in the right subtree, followed without recursing
+      start = Math.max(start, middle) - middle;
+      end -= middle;
+      node = node.right;
+    }
+  }
+
+  private void free(Node node) {
+    if (node == null) {
+      return;
+    }
+    if (node.isLeaf()) {
+      if (node.handle != 0) {
+        arena.free(node.handle);
+        node.handle = 0;
+      }
+      return;
+    }
+    free(node.left);
+    free(node.right);
+  }
+}
@@ -0,0 +1,456 @@
+package ch.heigvd.dai.model;
+
+import java.util.*;
+
+/**
+ * Inverted index of the titles and contents of the notes of a user, updated with every change made
+ * to them. The terms are mapped to {@link PostingList}s of document numbers given to the notes.
+ *
+ * <p>The titles are indexed as they are, as lowercase words of letters and digits. The contents are
+ * stored scrambled (see {@link ch.heigvd.dai.utils.Scrambler}), which keeps the first and last
+ * letters of each word in place and moves the others. A word of a content is therefore indexed by a
+ * key that scrambling does not change: its first letter followed by its other letters and digits in
+ * sorted order, or {@code *} followed by all of them if it starts with another character. The last
+ * letter is left out of the key since a prefix does not tell it. The terms of a query are turned
+ * into the same keys, which finds the words as they were before being scrambled, along with their
+ * anagrams starting with the same letter.
+ *
+ * <p>A prefix is not kept by scrambling either: a prefix query matches the words of the contents
+ * starting with the same letter and holding the other letters of the prefix, a superset of the
+ * words that had the prefix. The notes matching a term in their title are ranked first.
+ *
+ * <p>This class is not thread-safe, {@link User} guards it with its lock.
+ */
+class SearchIndex {
+  /** Weight of a term found in a title rather than in a content. */
+  private static final double TITLE_WEIGHT = 4;
+
+  /** First character of the keys of the words starting with a character other than a letter. */
+  private static final char NO_FIRST_LETTER = '*';
+
+  private final TreeMap<String, PostingList> titleTerms = new TreeMap<>();
+  private final TreeMap<String, PostingList> contentTerms = new TreeMap<>();
+
+  /**
+   * The notes by document number, the numbers of the deleted notes being reused so that the arrays
+   * of scores are only as long as the most notes the user had.
+   */
+  private Note[] documents = new Note[16];
+
+  private int documentCount;
+  private int[] freeDocuments = new int[16];
+  private int freeDocumentCount;
+  private int size;
+
+  void add(Note note) {
+    if (freeDocumentCount > 0) {
+      note.document = freeDocuments[--freeDocumentCount];
+    } else {
+      if (documentCount == documents.length) {
+        documents = Arrays.copyOf(documents, documentCount * 2);
+      }
+      note.document = documentCount++;
+    }
+    documents[note.document] = note;
+    size++;
+    update(titleTerms, note.document, Map.of(), titleTerms(note.getTitle()));
+    update(contentTerms, note.document, Map.of(), contentKeys(note.getContent()));
+  }
+
+  /** Removes a note, before its content is released. */
+  void remove(Note note) {
+    update(titleTerms, note.document, titleTerms(note.getTitle()), Map.of());
+    update(contentTerms, note.document, contentKeys(note.getContent()), Map.of());
+    documents[note.document] = null;
+    size--;
+    if (freeDocumentCount == freeDocuments.length) {
+      freeDocuments = Arrays.copyOf(freeDocuments, freeDocumentCount * 2);
+    }
+    freeDocuments[freeDocumentCount++] = note.document;
+  }
+
+  void titleChanged(Note note, String oldTitle) {
+    update(titleTerms, note.document, titleTerms(oldTitle), titleTerms(note.getTitle()));
+  }
+
+  void contentChanged(Note note, String oldContent, String newContent) {
+    update(contentTerms, note.document, contentKeys(oldContent), contentKeys(newContent));
+  }
+
+  /**
+   * Updates the keys of a content edited in place from the words around the edit, the other words
+   * being the same.
+   *
+   * @param oldWords The words the edit touched, as they were.
+   * @param newWords The same words once edited.
+   */
+  void contentPatched(Note note, String oldWords, String newWords) {
+    Map<String, Integer> oldKeys = contentKeys(oldWords);
+    Map<String, Integer> newKeys = contentKeys(newWords);
+    for (Map.Entry<String, Integer> entry : oldKeys.entrySet()) {
+      int delta = newKeys.getOrDefault(entry.getKey(), 0) - entry.getValue();
+      if (delta != 0) {
+        adjust(contentTerms, note.document, entry.getKey(), delta);
+      }
+    }
+    for (Map.Entry<String, Integer> entry : newKeys.entrySet()) {
+      if (!oldKeys.containsKey(entry.getKey())) {
+        adjust(contentTerms, note.document, entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Finds the notes matching a query, made of terms separated by spaces. The terms must all match,
+   * unless groups of them are separated by {@code OR}. A term ending with {@code *} is a prefix.
+   *
+   * @param limit The maximum number of notes returned.
+   * @return The matching notes, the best ranked first.
+   */
+  List<Note> search(String query, int limit) {
+    // Scores by document number, 0 for the notes that do not match
+    double[] matches = new double[documentCount];
+    double[] group = null;
+    for (String token : query.split(" +")) {
+      if (token.equals("OR")) {
+        add(matches, group);
+        group = null;
+        continue;
+      }
+      if (token.isEmpty() || token.equals("AND")) {
+        continue;
+      }
+      boolean prefix = token.endsWith("*");
+      String term = normalize(prefix ? token.substring(0, token.length() - 1) : token);
+      if (term.isEmpty()) {
+        continue;
+      }
+      double[] scores = match(term, prefix);
+      if (group == null) {
+        group = scores;
+      } else {
+        for (int i = 0; i < group.length; i++) {
+          group[i] = group[i] > 0 && scores[i] > 0 ? group[i] + scores[i] : 0;
+        }
+      }
+    }
+    add(matches, group);
+
+    // Ranked by score, then by document number: the keys hold the bits of the score, which order
+    // like the positive floats, above the complement of the number. Only the best keys are kept,
+    // in a min-heap.
+    long[] best = new long[Math.min(limit, matches.length)];
+    int count = 0;
+    for (int i = 0; i < matches.length; i++) {
+      if (matches[i] > 0) {
+        long key = (long) Float.floatToIntBits((float) matches[i]) << 32 | ~i & 0xFFFFFFFFL;
+        if (count < best.length) {
+          siftUp(best, count++, key);
+        } else if (count > 0 && key > best[0]) {
+          siftDown(best, count, key);
+        }
+      }
+    }
+    Arrays.sort(best, 0, count);
+    List<Note> found = new ArrayList<>(count);
+    for (int i = count - 1; i >= 0; i--) {
+      found.add(documents[~(int) best[i]]);
+    }
+    return found;
+  }
+
+  private static void siftUp(long[] heap, int position, long key) {
+    while (position > 0 && heap[(position - 1) / 2] > key) {
+      heap[position] = heap[(position - 1) / 2];
+      position = (position - 1) / 2;
+    }
+    heap[position] = key;
+  }
+
+  /** Replaces the smallest key of a heap. */
+  private static void siftDown(long[] heap, int size, long key) {
+    int position = 0;
+    while (2 * position + 1 < size) {
+      int child = 2 * position + 1;
+      if (child + 1 < size && heap[child + 1] < heap[child]) {
+        child++;
+      }
+      if (heap[child] >= key) {
+        break;
+      }
+      heap[position] = heap[child];
+      position = child;
+    }
+    heap[position] = key;
+  }
+
+  /** Scores the notes holding a term, weighting each occurrence by the rarity of the term. */
+  private double[] match(String term, boolean prefix) {
+    double[] scores = new double[documentCount];
+    if (prefix) {
+      for (PostingList list : titleTerms.subMap(term, term + Character.MAX_VALUE).values()) {
+        score(scores, list, TITLE_WEIGHT);
+      }
+      String letters = sorted(term.substring(1));
+      for (Map.Entry<String, PostingList> entry :
+          contentTerms
+              .subMap(term.substring(0, 1), term.charAt(0) + String.valueOf(Character.MAX_VALUE))
+              .entrySet()) {
+        if (contains(entry.getKey(), 1, letters)) {
+          score(scores, entry.getValue(), 1);
+        }
+      }
+      String all = sorted(term);
+      for (Map.Entry<String, PostingList> entry :
+          contentTerms
+              .subMap(
+                  String.valueOf(NO_FIRST_LETTER),
+                  NO_FIRST_LETTER + String.valueOf(Character.MAX_VALUE))
+              .entrySet()) {
+        if (contains(entry.getKey(), 1, all)) {
+          score(scores, entry.getValue(), 1);
+        }
+      }
+    } else {
+      score(scores, titleTerms.get(term), TITLE_WEIGHT);
+      score(scores, contentTerms.get(term.charAt(0) + sorted(term.substring(1))), 1);
+      score(scores, contentTerms.get(NO_FIRST_LETTER + sorted(term)), 1);
+    }
+    return scores;
+  }
+
+  private void score(double[] scores, PostingList list, double weight) {
+    if (list == null) {
+      return;
+    }
+    double rarity = Math.log(1 + (double) size / list.count());
+    list.forEach((document, frequency) -> scores[document] += weight * frequency * rarity);
+  }
+
+  private static void add(double[] matches, double[] group) {
+    if (group != null) {
+      for (int i = 0; i < group.length; i++) {
+        matches[i] += group[i];
+      }
+    }
+  }
+
+  /** Applies the change of the terms of a note to the posting lists. */
+  private static void update(
+      TreeMap<String, PostingList> index,
+      int document,
+      Map<String, Integer> oldTerms,
+      Map<String, Integer> newTerms) {
+    for (Map.Entry<String, Integer> entry : oldTerms.entrySet()) {
+      if (!newTerms.containsKey(entry.getKey())) {
+        PostingList list = index.get(entry.getKey());
+        list.remove(document);
+        if (list.count() == 0) {
+          index.remove(entry.getKey());
+        }
+      }
+    }
+    for (Map.Entry<String, Integer> entry : newTerms.entrySet()) {
+      if (!entry.getValue().equals(oldTerms.get(entry.getKey()))) {
+        index
+            .computeIfAbsent(entry.getKey(), term -> new PostingList())
+            .put(document, entry.getValue());
+      }
+    }
+  }
+
+  /** Adds to the frequency of a term in a note, which can become 0. */
+  private static void adjust(
+      TreeMap<String, PostingList> index, int document, String term, int delta) {
+    PostingList list = index.computeIfAbsent(term, key -> new PostingList());
+    int frequency = list.frequency(document) + delta;
+    if (frequency > 0) {
+      list.put(document, frequency);
+      return;
+    }
+    list.remove(document);
+    if (list.count() == 0) {
+      index.remove(term);
+    }
+  }
+
+  /** Counts the lowercase words of letters and digits of a title. */
+  private static Map<String, Integer> titleTerms(String title) {
+    Map<String, Integer> terms = new HashMap<>();
+    int start = -1;
+    for (int i = 0; i <= title.length(); i++) {
+      if (i < title.length() && Character.isLetterOrDigit(title.charAt(i))) {
+        if (start < 0) {
+          start = i;
+        }
+      } else if (start >= 0) {
+        terms.merge(title.substring(start, i).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        start = -1;
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Counts the keys of the words of a content, words being separated by spaces as scrambled. A key
+   * is built in a single buffer: its first character, then the other letters sorted in place.
+   */
+  private static Map<String, Integer> contentKeys(String content) {
+    KeyCounter keys = new KeyCounter();
+    char[] key = new char[32];
+    int length = 0;
+    for (int i = 0; i <= content.length(); i++) {
+      char c = i < content.length() ? content.charAt(i) : ' ';
+      if (c == ' ') {
+        // A word without letters has no key
+        if (length > 1 || (length == 1 && key[0] != NO_FIRST_LETTER)) {
+          sortLetters(key, 1, length);
+          keys.add(key, length);
+        }
+        length = 0;
+        continue;
+      }
+      boolean letter;
+      if (c < 0x80) {
+        c = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        letter = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+      } else {
+        c = Character.toLowerCase(c);
+        letter = Character.isLetterOrDigit(c);
+      }
+      if (length == 0) {
+        // The first character of a word stays in place, and is the only one kept in order
+        key[length++] = letter ? c : NO_FIRST_LETTER;
+      } else if (letter) {
+        if (length == key.length) {
+          key = Arrays.copyOf(key, length * 2);
+        }
+        key[length++] = c;
+      }
+    }
+    return keys.toMap();
+  }
+
+  /** Sorts the letters of a word in place, by insertion as the words are short. */
+  private static void sortLetters(char[] letters, int from, int to) {
+    for (int i = from + 1; i < to; i++) {
+      char letter = letters[i];
+      int j = i - 1;
+      while (j >= from && letters[j] > letter) {
+        letters[j + 1] = letters[j];
+        j--;
+      }
+      letters[j + 1] = letter;
+    }
+  }
+
+  /** Keeps the letters and digits of a word, lowercased. */
+  private static String normalize(String word) {
+    StringBuilder letters = new StringBuilder(word.length());
+    for (int i = 0; i < word.length(); i++) {
+      char c = Character.toLowerCase(word.charAt(i));
+      if (Character.isLetterOrDigit(c)) {
+        letters.append(c);
+      }
+    }
+    return letters.toString();
+  }
+
+  private static String sorted(String letters) {
+    char[] chars = letters.toCharArray();
+    Arrays.sort(chars);
+    return new String(chars);
+  }
+
+  /** Checks that sorted letters are all in a key from a position, as many times. */
+  private static boolean contains(String key, int from, String letters) {
+    int position = from;
+    for (int i = 0; i < letters.length(); i++) {
+      char letter = letters.charAt(i);
+      while (position < key.length() && key.charAt(position) < letter) {
+        position++;
+      }
+      if (position == key.length() || key.charAt(position) != letter) {
+        return false;
+      }
+      position++;
+    }
+    return true;
+  }
+
+  /**
+   * Counts keys built in a char buffer, only turning the distinct ones into strings: the words of a
+   * content repeat a lot.
+   */
+  private static final class KeyCounter {
+    private String[] keys = new String[64];
+    private int[] hashes = new int[64];
+    private int[] counts = new int[64];
+    private int size;
+
+    void add(char[] chars, int length) {
+      int hash = 0;
+      for (int i = 0; i < length; i++) {
+        hash = 31 * hash + chars[i];
+      }
+      int mask = keys.length - 1;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      while (keys[slot] != null) {
+        if (hashes[slot] == hash && matches(keys[slot], chars, length)) {
+          counts[slot]++;
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = new String(chars, 0, length);
+      hashes[slot] = hash;
+      counts[slot] = 1;
+      if (++size * 2 > keys.length) {
+        grow();
+      }
+    }
+
+    Map<String, Integer> toMap() {
+      Map<String, Integer> map = HashMap.newHashMap(size);
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != null) {
+          map.put(keys[i], counts[i]);
+        }
+      }
+      return map;
+    }
+
+    private static boolean matches(String key, char[] chars, int length) {
+      if (key.length() != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (key.charAt(i) != chars[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void grow() {
+      String[] oldKeys = keys;
+      int[] oldHashes = hashes;
+      int[] oldCounts = counts;
+      keys = new String[oldKeys.length * 2];
+      hashes = new int[keys.length];
+      counts = new int[keys.length];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+          while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          keys[slot] = oldKeys[i];
+          hashes[slot] = oldHashes[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
+  }
+}
@@ -1,24 +1,457 @@
 package ch.heigvd.dai.model;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 public class User {
   private final String name;
-  private final CopyOnWriteArrayList<Note> notes;
+  private NoteStore notes;
+  private SearchIndex index;
+
+  /**
+   * Guards the notes. An explicit lock rather than a monitor so that virtual threads waiting for it
+   * release their carrier thread.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private volatile NoteListener listener = NoteListener.NONE;
+
+  /** The listeners of the sessions watching the notes, notified after {@link #listener}. */
+  private final List<NoteListener> watchers = new CopyOnWriteArrayList<>();
+
+  /** Expected version of the updates that apply whatever the version of the note. */
+  public static final long ANY_VERSION = -1;
+
+  /** Returned by the updates when the note has been deleted in the meantime. */
+  public static final long DELETED = -1;
+
+  /** Returned by the updates when the note is no longer at the expected version. */
+  public static final long CONFLICT = -2;
+
+  /** Returned by {@link #renameNote} when another note already has the title. */
+  public static final long TITLE_TAKEN = -3;
+
+  /** Returned by {@link #patchContent} when the range is not in the content or cuts a character. */
+  public static final long INVALID_RANGE = -4;
+
+  /** Returned by {@link #patchContent} when the content would become too large. */
+  public static final long TOO_LARGE = -5;
+
+  /** Returned by {@link #apply} for the operations not applied because another one failed. */
+  public static final long ABORTED = -6;
+
+  /** Offset given to {@link #patchContent} to add the bytes at the end of the content. */
+  public static final int END = -1;
+
+  /** Largest number of changes kept for {@link #changesSince}. */
+  private static final int MAX_CHANGES = 1024;
+
+  /**
+   * Last identifier given to a note. The identifiers are drawn before the lock is taken, those of
+   * the notes that could not be added are never used.
+   */
+  private final AtomicLong lastId = new AtomicLong();
+
+  /** Number of changes made to the notes so far, guarded by the lock. */
+  private long version;
+
+  /** The last notes created, deleted or renamed, oldest first, guarded by the lock. */
+  private final ArrayDeque<Change> changes = new ArrayDeque<>();
+
+  /** The oldest version from which all the changes are kept, guarded by the lock. */
+  private long changesFrom;
+
+  /** Number of sessions using the user, counted by the {@link UserRegistry}. */
+  private final AtomicInteger sessions = new AtomicInteger();
+
+  /** When the last session ended, or the user was created, in {@link System#nanoTime()}. */
+  private volatile long idleSince = System.nanoTime();
+
+  /**
+   * Where the notes are kept while the user hibernates, null while they are in memory. Guarded by
+   * the lock.
+   */
+  private Hibernation hibernation;
+
+  /**
+   * Copy of the notes of a user at a given version.
+   *
+   * @param name The name of the user.
+   * @param version The number of changes made to the notes when the copy was taken.
+   * @param lastId The last identifier given to a note, which may have been deleted since.
+   * @param notes Copies of the notes with their identifiers, in creation order.
+   */
+  public record State(String name, long version, long lastId, List<Note> notes) {}
+
+  /**
+   * A note found by {@link #search}.
+   *
+   * @param index The 1-based position of the note.
+   * @param id The identifier of the note.
+   * @param title The title of the note.
+   */
+  public record Hit(int index, long id, String title) {}
+
+  /**
+   * Part of the notes, read at a given version.
+   *
+   * @param version The number of changes made to the notes when they were read.
+   * @param total The number of notes.
+   * @param offset The number of notes before the first one of the page.
+   * @param notes The notes of the page, in creation order.
+   */
+  public record Page(long version, int total, int offset, List<Note> notes) {}
+
+  /** The kinds of changes returned by {@link #changesSince}. */
+  public enum ChangeKind {
+    CREATED,
+    DELETED,
+    RENAMED
+  }
+
+  /**
+   * A note created, deleted or renamed. Replaying the changes in order on a list of the titles
+   * gives the list at the version of the last one: a created note goes at the end, a deleted note
+   * leaves its position and a renamed note keeps it.
+   *
+   * @param version The version the change made.
+   * @param kind What happened to the note.
+   * @param index The 1-based position of the note when it happened.
+   * @param id The identifier of the note.
+   * @param title The title of the note, the new one for a rename.
+   */
+  public record Change(long version, ChangeKind kind, int index, long id, String title) {}
+
+  /**
+   * The changes made since a version.
+   *
+   * @param version The current version, which the changes lead to.
+   * @param changes The notes created, deleted or renamed, oldest first. The changes of the contents
+   *     count in the version but are not listed.
+   */
+  public record Changes(long version, List<Change> changes) {}
 
   public User(String name) {
     this.name = name;
-    this.notes = new CopyOnWriteArrayList<>();
+    this.notes = new NoteStore();
+    this.index = new SearchIndex();
+  }
+
+  /**
+   * Sets the listener notified of every change made to the notes.
+   *
+   * @param listener The listener, {@link NoteListener#NONE} to stop notifying.
+   */
+  public void setListener(NoteListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Notifies a listener of the changes made to the notes from now on, along with the one set by
+   * {@link #setListener}. It is called under the write lock, it must not wait.
+   *
+   * @return The version of the notes, the listener being notified of every change made after it.
+   */
+  public long watch(NoteListener watcher) {
+    lock.writeLock().lock();
+    try {
+      watchers.add(watcher);
+      return version;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Stops notifying a listener given to {@link #watch}. */
+  public void unwatch(NoteListener watcher) {
+    watchers.remove(watcher);
+  }
+
+  /**
+   * @return The lock guarding the notes, which the {@link ContentCache} takes to spill a content.
+   */
+  ReadWriteLock lock() {
+    return lock;
   }
 
   public String getName() {
     return name;
   }
 
+  /**
+   * Returns the number of changes made to the notes so far. It is read under the write lock by the
+   * listeners, where it identifies the change being notified.
+   *
+   * @return The version of the notes.
+   */
+  public long getVersion() {
+    lock.readLock().lock();
+    try {
+      return version;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Copies the notes and their version at once. The lock is only held to copy the titles and
+   * contents, the writers are not blocked while the copy is being used. The notes of a hibernating
+   * user are read from where they were saved.
+   *
+   * @return The state of the notes.
+   */
+  public State capture() throws IOException {
+    lock.readLock().lock();
+    try {
+      return hibernation != null ? hibernation.load(name) : copy();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Copies the notes in memory, under the lock. */
+  private State copy() {
+    List<Note> copies = new ArrayList<>(notes.size());
+    for (Note note : notes.list()) {
+      copies.add(note.detachedCopy());
+    }
+    return new State(name, version, lastId.get(), copies);
+  }
+
+  /**
+   * Replaces the notes by a persisted state, without notifying the listener.
+   *
+   * @param state The state to restore, as returned by {@link #capture()}.
+   */
+  public void restore(State state) {
+    lock.writeLock().lock();
+    try {
+      for (Note note : notes.list()) {
+        note.detach();
+      }
+      load(state);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Saves the notes and frees them, if no session used them for a given time. They are read back by
+   * {@link #wake()} before the next session uses them.
+   *
+   * @param store Where the notes are saved.
+   * @param idleNanos How long the user must have been without session.
+   * @return true if the notes were saved and freed.
+   */
+  boolean hibernate(Hibernation store, long idleNanos) throws IOException {
+    lock.writeLock().lock();
+    try {
+      // A session counted before the lock was taken wakes the user once it is released
+      if (hibernation != null
+          || sessions.get() > 0
+          || System.nanoTime() - idleSince < idleNanos) {
+        return false;
+      }
+      store.save(copy());
+      for (Note note : notes.list()) {
+        note.detach();
+      }
+      notes = null;
+      index = null;
+      changes.clear();
+      changesFrom = version;
+      hibernation = store;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Reads the notes back if the user hibernates.
+   *
+   * @return true if the notes were read back.
+   */
+  boolean wake() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (hibernation == null) {
+        return false;
+      }
+      load(hibernation.load(name));
+      hibernation.delete(name);
+      hibernation = null;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Counts a session using the user, which must then be woken. */
+  void sessionOpened() {
+    sessions.incrementAndGet();
+  }
+
+  /** Counts the end of a session. */
+  void sessionClosed() {
+    // Set first, so that the hibernation never sees the user without session and an older time
+    idleSince = System.nanoTime();
+    sessions.decrementAndGet();
+  }
+
+  /** Replaces the notes, which have been freed, by a state, under the write lock. */
+  private void load(State state) {
+    notes = new NoteStore();
+    index = new SearchIndex();
+    long last = state.lastId();
+    for (Note note : state.notes()) {
+      last = Math.max(last, note.id);
+    }
+    for (Note note : state.notes()) {
+      // Saved before the notes had identifiers and versions. The version of the user is never
+      // older than the actual one, so it cannot match a version read before.
+      if (note.id == 0) {
+        note.id = ++last;
+      }
+      if (note.version == 0) {
+        note.version = state.version();
+      }
+      if (notes.add(note)) {
+        index.add(note);
+        note.attach(this);
+      }
+    }
+    lastId.set(last);
+    version = state.version();
+    // The changes leading to a restored state are not known
+    changes.clear();
+    changesFrom = version;
+  }
+
+  /**
+   * Returns a snapshot of the notes.
+   *
+   * @return A copy of the list of notes, in creation order.
+   */
   public List<Note> getNotes() {
-    return notes;
+    lock.readLock().lock();
+    try {
+      return notes.list();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads part of the notes and their version at once.
+   *
+   * @param offset The number of notes skipped.
+   * @param limit The largest number of notes returned.
+   * @return The notes from the offset, fewer than the limit at the end of the list.
+   */
+  public Page getPage(int offset, int limit) {
+    lock.readLock().lock();
+    try {
+      return new Page(version, notes.size(), offset, notes.list(offset, limit));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the notes created, deleted or renamed since a version, so that a client holding the
+   * titles at that version can update them rather than listing them all again. Only the last
+   * changes are kept.
+   *
+   * @param since The version the client knows.
+   * @return The changes, or null if some of them are not kept anymore or the version is unknown.
+   */
+  public Changes changesSince(long since) {
+    lock.readLock().lock();
+    try {
+      if (since < changesFrom || since > version) {
+        return null;
+      }
+      List<Change> found = new ArrayList<>();
+      // The recent changes are at the end, where the search starts
+      var iterator = changes.descendingIterator();
+      while (iterator.hasNext()) {
+        Change change = iterator.next();
+        if (change.version() <= since) {
+          break;
+        }
+        found.add(change);
+      }
+      return new Changes(version, found.reversed());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets a note by its position.
+   *
+   * @param index The zero-based position of the note.
+   * @return The note, or null if there is no note at this position.
+   */
+  public Note getNote(int index) {
+    lock.readLock().lock();
+    try {
+      return notes.get(index);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return The number of notes.
+   */
+  public int getNoteCount() {
+    lock.readLock().lock();
+    try {
+      return notes.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets a note by its identifier, which unlike its position does not change when other notes are
+   * deleted.
+   *
+   * @param id The identifier of the note.
+   * @return The note, or null if no note has this identifier.
+   */
+  public Note getNoteById(long id) {
+    lock.readLock().lock();
+    try {
+      return notes.getById(id);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets a note by its title.
+   *
+   * @param title The title of the note.
+   * @return The note, or null if no note has this title.
+   */
+  public Note getNoteByTitle(String title) {
+    lock.readLock().lock();
+    try {
+      return notes.getByTitle(title);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -28,16 +461,45 @@ public class User {
    * @return true if a note with the given title exists, false otherwise.
    */
   public boolean hasNoteWithTitle(String title) {
-    for (Note note : notes) {
-      if (note.getTitle().equals(title)) {
-        return true;
-      }
+    lock.readLock().lock();
+    try {
+      return notes.getByTitle(title) != null;
+    } finally {
+      lock.readLock().unlock();
     }
-    return false;
   }
 
-  public void addNote(Note note) {
-    notes.add(note);
+  /**
+   * Adds a note after all the others, unless its title is already used. The note gets the next
+   * identifier, unless it is restored with the one it had.
+   *
+   * @param note The note to add.
+   * @return true if the note was added, false if a note with the same title already exists.
+   */
+  public boolean addNote(Note note) {
+    if (note.id == 0) {
+      note.id = lastId.incrementAndGet();
+    } else {
+      lastId.accumulateAndGet(note.id, Math::max);
+    }
+    lock.writeLock().lock();
+    try {
+      if (!notes.add(note)) {
+        return false;
+      }
+      index.add(note);
+      note.attach(this);
+      version++;
+      note.version = version;
+      recordChange(ChangeKind.CREATED, notes.size(), note);
+      listener.noteCreated(this, note);
+      for (NoteListener watcher : watchers) {
+        watcher.noteCreated(this, note);
+      }
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -47,14 +509,339 @@ public class User {
    * @return true if the note was deleted, false otherwise.
    */
   public boolean deleteNoteByTitle(String title) {
-    Iterator<Note> iterator = notes.iterator();
-    while (iterator.hasNext()) {
-      Note note = iterator.next();
-      if (note.getTitle().equals(title)) {
-        iterator.remove();
-        return true;
+    lock.writeLock().lock();
+    try {
+      Note note = notes.getByTitle(title);
+      if (note == null) {
+        return false;
+      }
+      delete(note);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Deletes a note by its identifier.
+   *
+   * @param id The identifier of the note.
+   * @return true if the note was deleted, false otherwise.
+   */
+  public boolean deleteNoteById(long id) {
+    lock.writeLock().lock();
+    try {
+      Note note = notes.getById(id);
+      if (note == null) {
+        return false;
       }
+      delete(note);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Deletes a note of the store, under the write lock. */
+  private void delete(Note note) {
+    int position = notes.indexOf(note) + 1;
+    notes.removeByTitle(note.getTitle());
+    version++;
+    recordChange(ChangeKind.DELETED, position, note);
+    listener.noteDeleted(this, note);
+    for (NoteListener watcher : watchers) {
+      watcher.noteDeleted(this, note);
+    }
+    index.remove(note);
+    note.detach();
+  }
+
+  /**
+   * Changes the title of a note if it is still at the expected version, checking that no other note
+   * has the title in the same step.
+   *
+   * @param note The note to rename.
+   * @param title The new title.
+   * @param expectedVersion The version the note must be at, {@link #ANY_VERSION} to rename it
+   *     anyway.
+   * @return The new version of the note, or {@link #DELETED}, {@link #CONFLICT} or {@link
+   *     #TITLE_TAKEN} if it was not renamed.
+   */
+  public long renameNote(Note note, String title, long expectedVersion) {
+    lock.writeLock().lock();
+    try {
+      int position = notes.indexOf(note) + 1;
+      if (position == 0) {
+        return DELETED;
+      }
+      if (expectedVersion != ANY_VERSION && note.version != expectedVersion) {
+        return CONFLICT;
+      }
+      String oldTitle = note.getTitle();
+      if (!notes.rename(note, title)) {
+        return TITLE_TAKEN;
+      }
+      index.titleChanged(note, oldTitle);
+      version++;
+      note.version = version;
+      recordChange(ChangeKind.RENAMED, position, note);
+      listener.titleChanged(this, note, oldTitle);
+      for (NoteListener watcher : watchers) {
+        watcher.titleChanged(this, note, oldTitle);
+      }
+      return version;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Finds the notes whose title or content match a query (see {@link SearchIndex#search}). The
+   * terms are looked up in an index kept up to date with the notes.
+   *
+   * @param query Terms separated by spaces, all required unless groups of them are separated by
+   *     {@code OR}, a term ending with {@code *} being a prefix.
+   * @param limit The maximum number of notes returned.
+   * @return The matching notes, the best ranked first.
+   */
+  public List<Hit> search(String query, int limit) {
+    lock.readLock().lock();
+    try {
+      List<Note> found = index.search(query, limit);
+      List<Hit> hits = new ArrayList<>(found.size());
+      for (Note note : found) {
+        hits.add(new Hit(notes.indexOf(note) + 1, note.id, note.getTitle()));
+      }
+      return hits;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads the content of a note under the read lock, which keeps it from being freed or replaced
+   * while it is being read. Needed for the contents kept in a {@link ContentArena}.
+   *
+   * @param note The note to read.
+   * @param reader Called with the note if it has not been deleted.
+   * @return true if the note was read, false if it has been deleted in the meantime.
+   */
+  public boolean readContent(Note note, Consumer<Note> reader) {
+    lock.readLock().lock();
+    try {
+      if (notes.indexOf(note) < 0) {
+        return false;
+      }
+      note.read();
+      reader.accept(note);
+      return true;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads the contents of several notes under a single read lock, so that they are read at the same
+   * version.
+   *
+   * @param notes The notes to read, null for those not found.
+   * @param reader Called with the notes, those deleted in the meantime being replaced by null.
+   */
+  public void readContents(List<Note> notes, Consumer<List<Note>> reader) {
+    lock.readLock().lock();
+    try {
+      List<Note> found = new ArrayList<>(notes.size());
+      for (Note note : notes) {
+        if (note != null && this.notes.indexOf(note) >= 0) {
+          note.read();
+          found.add(note);
+        } else {
+          found.add(null);
+        }
+      }
+      reader.accept(found);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the content of a note if it is still at the expected version.
+   *
+   * @param note The note to update.
+   * @param content The new content.
+   * @param expectedVersion The version the note must be at, {@link #ANY_VERSION} to update it
+   *     anyway.
+   * @return The new version of the note, or {@link #DELETED} or {@link #CONFLICT} if it was not
+   *     updated.
+   */
+  public long updateContent(Note note, String content, long expectedVersion) {
+    lock.writeLock().lock();
+    try {
+      long check = checkVersion(note, expectedVersion);
+      if (check < 0) {
+        return check;
+      }
+      String oldContent = note.getContent();
+      note.setContent(content);
+      index.contentChanged(note, oldContent, content);
+      return contentChanged(note);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the content of a note by UTF-8 bytes, which are not decoded when the content is kept
+   * in a {@link ContentArena}.
+   *
+   * @param note The note to update.
+   * @param bytes The buffer holding the new content.
+   * @param length The number of bytes of the new content, at the start of the buffer.
+   * @param expectedVersion The version the note must be at, {@link #ANY_VERSION} to update it
+   *     anyway.
+   * @return The new version of the note, or {@link #DELETED} or {@link #CONFLICT} if it was not
+   *     updated.
+   */
+  public long updateContent(Note note, byte[] bytes, int length, long expectedVersion) {
+    lock.writeLock().lock();
+    try {
+      long check = checkVersion(note, expectedVersion);
+      if (check < 0) {
+        return check;
+      }
+      String oldContent = note.getContent();
+      note.setContent(bytes, 0, length);
+      index.contentChanged(note, oldContent, note.getContent());
+      return contentChanged(note);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces a range of the content of a note by UTF-8 bytes if it is still at the expected
+   * version. The content moves to a {@link Rope} the first time, then an edit only costs the size
+   * of the range and of the bytes: only the words around it are indexed again, and only the edit is
+   * logged.
+   *
+   * @param note The note to update.
+   * @param offset The position of the range in bytes, {@link #END} to append the bytes.
+   * @param removed The number of bytes of the range.
+   * @param bytes The buffer holding the new bytes, at its start.
+   * @param length The number of new bytes.
+   * @param maxBytes The largest number of bytes of the content once edited.
+   * @param expectedVersion The version the note must be at, {@link #ANY_VERSION} to update it
+   *     anyway.
+   * @return The new version of the note, or {@link #DELETED}, {@link #CONFLICT}, {@link
+   *     #INVALID_RANGE} or {@link #TOO_LARGE} if it was not updated.
+   */
+  public long patchContent(
+      Note note,
+      int offset,
+      int removed,
+      byte[] bytes,
+      int length,
+      int maxBytes,
+      long expectedVersion) {
+    lock.writeLock().lock();
+    try {
+      long check = checkVersion(note, expectedVersion);
+      if (check < 0) {
+        return check;
+      }
+      Rope rope = note.rope();
+      int size = rope.length();
+      int start = offset == END ? size : offset;
+      if (start < 0
+          || removed < 0
+          || removed > size - start
+          || !rope.isCharBoundary(start)
+          || !rope.isCharBoundary(start + removed)) {
+        return INVALID_RANGE;
+      }
+      if ((long) size - removed + length > maxBytes) {
+        return TOO_LARGE;
+      }
+      // The words touching the range are the only ones whose keys can change
+      int wordsStart = rope.wordStart(start);
+      int wordsEnd = rope.wordEnd(start + removed);
+      String oldWords = rope.decode(wordsStart, wordsEnd);
+      rope.replace(start, removed, bytes, 0, length);
+      note.contentEdited();
+      index.contentPatched(note, oldWords, rope.decode(wordsStart, wordsEnd - removed + length));
+      version++;
+      note.version = version;
+      listener.contentPatched(this, note, start, removed, bytes, length);
+      for (NoteListener watcher : watchers) {
+        watcher.contentPatched(this, note, start, removed, bytes, length);
+      }
+      return version;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Applies the operations of a batch in a single step, all of them or none: other sessions see the
+   * notes before or after the batch, never in between.
+   *
+   * @param batch The operations, in order.
+   * @param maxBytes The largest number of bytes of a content.
+   * @return For each operation the version it made. If one of them could not be applied, none was:
+   *     its result is the one the method applying it alone returns ({@link #DELETED}, {@link
+   *     #CONFLICT}, {@link #TITLE_TAKEN}, {@link #INVALID_RANGE} or {@link #TOO_LARGE}) and the
+   *     others are {@link #ABORTED}.
+   */
+  public long[] apply(Batch batch, int maxBytes) {
+    lock.writeLock().lock();
+    try {
+      long[] results = batch.check(notes, version, lastId.get(), maxBytes);
+      if (batch.size() == 0 || results[batch.size() - 1] < 0) {
+        return results;
+      }
+      listener.batchStarted(this);
+      try {
+        return batch.apply(this, maxBytes);
+      } finally {
+        listener.batchEnded(this);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Checks that a note can be updated, under the write lock.
+   *
+   * @return The version of the note, or {@link #DELETED} or {@link #CONFLICT}.
+   */
+  private long checkVersion(Note note, long expectedVersion) {
+    if (notes.indexOf(note) < 0) {
+      return DELETED;
+    }
+    if (expectedVersion != ANY_VERSION && note.version != expectedVersion) {
+      return CONFLICT;
+    }
+    return note.version;
+  }
+
+  /** Counts the change of the content of a note, under the write lock. */
+  private long contentChanged(Note note) {
+    version++;
+    note.version = version;
+    listener.contentChanged(this, note);
+    for (NoteListener watcher : watchers) {
+      watcher.contentChanged(this, note);
+    }
+    return version;
+  }
+
+  /** Keeps a change made at the current version, forgetting the oldest one beyond the limit. */
+  private void recordChange(ChangeKind kind, int position, Note note) {
+    changes.addLast(new Change(version, kind, position, note.id, note.getTitle()));
+    if (changes.size() > MAX_CHANGES) {
+      changesFrom = changes.removeFirst().version();
     }
-    return false;
   }
 }
@@ -0,0 +1,153 @@
+package ch.heigvd.dai.model;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the users known by the server, indexed by their name. It counts the sessions of each
+ * user between {@link #connect} and {@link #disconnect}, so that the notes of the users left
+ * without session can be moved out of memory by {@link #hibernateIdle} until their next session.
+ */
+public class UserRegistry {
+  private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+  private volatile NoteListener listener = NoteListener.NONE;
+
+  private final AtomicInteger hibernating = new AtomicInteger();
+  private final LongAdder hibernations = new LongAdder();
+  private final LongAdder wakeups = new LongAdder();
+
+  /**
+   * Sets the listener notified of the changes made to the notes of every user, existing or created
+   * later.
+   *
+   * @param listener The listener, {@link NoteListener#NONE} to stop notifying.
+   */
+  public void setListener(NoteListener listener) {
+    this.listener = listener;
+    for (User user : users.values()) {
+      user.setListener(listener);
+    }
+  }
+
+  /**
+   * Gets a user by its name.
+   *
+   * @param name The name of the user.
+   * @return The user, or null if no user has this name.
+   */
+  public User get(String name) {
+    return users.get(name);
+  }
+
+  /**
+   * Gets a user by its name, creating it if it does not exist yet. Concurrent calls with the same
+   * name always return the same user.
+   *
+   * @param name The name of the user.
+   * @return The existing or newly created user.
+   */
+  public User getOrCreate(String name) {
+    // Plain read first: once a user exists, looking it up never takes a lock
+    User user = users.get(name);
+    if (user != null) {
+      return user;
+    }
+    return users.computeIfAbsent(
+        name,
+        key -> {
+          User created = new User(key);
+          created.setListener(listener);
+          return created;
+        });
+  }
+
+  /**
+   * Gets a user for a session starting, creating it if it does not exist yet and reading its notes
+   * back if it hibernates. The user is counted as used until {@link #disconnect} is called.
+   *
+   * @param name The name of the user.
+   * @return The user, with its notes in memory.
+   * @throws IOException If the notes of the hibernating user could not be read back, the session
+   *     is then not counted.
+   */
+  public User connect(String name) throws IOException {
+    User user = getOrCreate(name);
+    user.sessionOpened();
+    try {
+      if (user.wake()) {
+        hibernating.decrementAndGet();
+        wakeups.increment();
+      }
+    } catch (IOException e) {
+      user.sessionClosed();
+      throw e;
+    }
+    return user;
+  }
+
+  /** Counts the end of a session started by {@link #connect}. */
+  public void disconnect(User user) {
+    user.sessionClosed();
+  }
+
+  /**
+   * Saves and frees the notes of the users without session for a given time. A user with a
+   * session, or connecting meanwhile, keeps its notes.
+   *
+   * @param store Where the notes are saved.
+   * @param idleNanos How long a user must have been without session.
+   * @return The number of users whose notes were freed.
+   * @throws IOException If the notes of a user could not be saved, the users left are then kept in
+   *     memory until the next call.
+   */
+  public int hibernateIdle(Hibernation store, long idleNanos) throws IOException {
+    int count = 0;
+    for (User user : users.values()) {
+      if (user.hibernate(store, idleNanos)) {
+        hibernating.incrementAndGet();
+        hibernations.increment();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return The number of users whose notes are out of memory.
+   */
+  public int hibernating() {
+    return hibernating.get();
+  }
+
+  /**
+   * @return The number of times the notes of a user were moved out of memory.
+   */
+  public long hibernations() {
+    return hibernations.sum();
+  }
+
+  /**
+   * @return The number of times the notes of a user were read back.
+   */
+  public long wakeups() {
+    return wakeups.sum();
+  }
+
+  /**
+   * @return The number of users.
+   */
+  public int size() {
+    return users.size();
+  }
+
+  /**
+   * @return A read-only view of the users, weakly consistent with concurrent creations.
+   */
+  public Collection<User> users() {
+    return Collections.unmodifiableCollection(users.values());
+  }
+}
@@ -0,0 +1,1171 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Client;
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.model.*;
+import ch.heigvd.dai.utils.CommandParser;
+import ch.heigvd.dai.utils.DeflateCodec;
+import ch.heigvd.dai.utils.FrameParser;
+import ch.heigvd.dai.utils.Frames;
+import ch.heigvd.dai.utils.Log;
+import ch.heigvd.dai.utils.Request;
+import ch.heigvd.dai.utils.Scrambler;
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+
+/**
+ * Handles the protocol of one client session. The blocking engine runs it on its own thread with
+ * {@link #run()}, other engines feed it the received requests with {@link #handle(Request,
+ * ResponseSink)} once they have parsed them, and the bytes of the uploaded chunks with {@link
+ * #handlePayload(byte[], int, int)}.
+ *
+ * <p>The requests are text lines until the client asks for frames in its {@code CONNECT}, {@link
+ * #framed()} telling the engines how to parse the next ones. The commands are implemented once,
+ * writing their responses through the {@link ResponseEncoder} of the connection.
+ *
+ * <p>A session watching the notes has the changes pushed to it between the responses: the blocking
+ * engine writes them from a virtual thread of its own, other engines are told when they wait with
+ * {@link #onEvents(Runnable)} and write them with {@link #writeEvents(ResponseSink)}.
+ *
+ * <p>The session counts as one of its user from {@code CONNECT} until {@link #close()}, the notes
+ * of a user being read back at {@code CONNECT} if it hibernated.
+ */
+public class ClientHandler implements Runnable {
+  /** Longest request line accepted by the blocking engine. */
+  private static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+
+  /** Size of the pending responses above which the blocking engine sends them. */
+  private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+  /** Room left in a frame for the fields other than a content of the maximum size. */
+  private static final int FRAME_OVERHEAD = 64 * 1024;
+
+  /** Largest number of notes returned by a search. */
+  private static final int SEARCH_LIMIT = 100;
+
+  /** Largest number of notes read by {@code GET_NOTES} and of operations of a batch. */
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  /** Returned by the parser for an index that is not a number, 1-based indices are positive. */
+  private static final int INVALID_INDEX = Integer.MIN_VALUE;
+
+  /** Returned by {@link #noteId} for an argument that is not an identifier, which are positive. */
+  private static final long INVALID_ID = -1;
+
+  /** Returned by {@link #expectedVersion} for an argument that is not a version. */
+  private static final long INVALID_VERSION = -2;
+
+  private final Socket socket;
+  private final ServerContext context;
+  private final UserRegistry users;
+  private final ServerMetrics metrics;
+  private User user;
+  private boolean connected = false;
+  private ResponseEncoder encoder = TextResponseEncoder.INSTANCE;
+  private boolean framed;
+
+  /** The compression negotiated at CONNECT, null if none. */
+  private DeflateCodec codec;
+
+  /** Whether responses acknowledging changes not yet durable have been written. */
+  private boolean uncommitted;
+
+  /** The content being received in chunks, null if none. */
+  private Upload upload;
+
+  /** The content being sent in chunks, null if none. */
+  private Download download;
+
+  /** The operations received since {@code BATCH}, null outside of a batch. */
+  private Batch batch;
+
+  /** The error of each operation of the batch, null for those added to it. */
+  private List<Error> batchErrors;
+
+  /** Set once the batch holds too many operations or bytes, which are then dropped. */
+  private Error batchOverflow;
+
+  /** The changes waiting to be pushed, null until the session first watches the notes. */
+  private WatchQueue watch;
+
+  private boolean watching;
+
+  /** Called when changes are waiting to be pushed, null if the engine does not write them. */
+  private Runnable eventNotifier;
+
+  /** Keeps the blocking engine from writing the changes in the middle of the responses. */
+  private final ReentrantLock output = new ReentrantLock();
+
+  public ClientHandler(Socket socket, ServerContext context) {
+    this.socket = socket;
+    this.context = context;
+    this.users = context.users();
+    this.metrics = context.metrics();
+  }
+
+  /**
+   * Creates a handler that is not bound to a blocking socket. The caller is responsible for reading
+   * the lines and writing the responses to the client.
+   */
+  public ClientHandler(ServerContext context) {
+    this(null, context);
+  }
+
+  @Override
+  public void run() {
+    metrics.connectionOpened();
+    try (socket) {
+      context.configure(socket);
+      // Wakes the reads up regularly to check how long the client has been silent
+      socket.setSoTimeout((int) context.timeoutTickMillis());
+      LineReader in = new LineReader(socket.getInputStream(), MAX_LINE_BYTES);
+      OutputStream socketOut = socket.getOutputStream();
+      ResponseSink out = new ResponseSink(FLUSH_THRESHOLD);
+      CommandParser lines = new CommandParser();
+      FrameParser frames = new FrameParser();
+
+      Log.info(
+          "[SERVEUR] New client connected from "
+              + socket.getInetAddress().getHostAddress()
+              + ":"
+              + socket.getPort());
+
+      while (true) {
+        boolean disconnect = false;
+        try {
+          if (payloadExpected() > 0) {
+            if (!in.readBytes(payloadExpected())) break;
+            handlePayload(in.buffer(), in.lineStart(), in.lineLength());
+            metrics.bytesReceived(in.lineLength());
+          } else if (framed) {
+            if (!in.readFrame(maxFrameBytes())) break;
+            disconnect =
+                frames.parse(in.buffer(), in.lineStart(), in.lineLength()) && !handle(frames, out);
+            metrics.bytesReceived(in.lineLength() + 4);
+          } else {
+            if (!in.readLine()) break;
+            disconnect =
+                lines.parse(in.buffer(), in.lineStart(), in.lineLength()) && !handle(lines, out);
+            metrics.bytesReceived(in.lineLength() + 1);
+          }
+        } catch (SocketTimeoutException e) {
+          boolean midRequest = in.hasBufferedInput() || payloadExpected() > 0;
+          if (context.timedOut(in.silentNanos(), midRequest, watching)) {
+            Log.info("[SERVEUR] Client silent for too long, closing connection");
+            metrics.connectionTimedOut();
+            return;
+          }
+          continue;
+        }
+        // A download is sent chunk by chunk before the next requests are handled
+        if (hasPendingDownload()) {
+          output.lock();
+          try {
+            while (hasPendingDownload()) {
+              continueDownload(out);
+              send(out, socketOut);
+            }
+          } finally {
+            output.unlock();
+          }
+        }
+        // Pipelined requests already received are handled before the responses are sent
+        if (disconnect || !in.hasBufferedInput() || out.size() >= FLUSH_THRESHOLD) {
+          send(out, socketOut);
+        }
+        if (disconnect) {
+          return;
+        }
+      }
+      Log.info("[SERVEUR] Connexion avec le client terminée");
+    } catch (IOException e) {
+      Log.warn("[SERVEUR] IOException: " + e);
+    } finally {
+      close();
+      metrics.connectionClosed();
+    }
+  }
+
+  private void send(ResponseSink out, OutputStream socketOut) throws IOException {
+    awaitCommitted();
+    output.lock();
+    try {
+      socketOut.write(out.buffer(), 0, out.size());
+    } finally {
+      output.unlock();
+    }
+    metrics.bytesSent(out.size());
+    out.reset();
+  }
+
+  /**
+   * Pushes the changes to the client of the blocking engine as they come, until the session ends.
+   */
+  private void pushEvents(WatchQueue queue) {
+    ResponseSink events = new ResponseSink(FLUSH_THRESHOLD);
+    try {
+      OutputStream socketOut = socket.getOutputStream();
+      while (queue.await()) {
+        output.lock();
+        try {
+          writeEvents(events);
+          socketOut.write(events.buffer(), 0, events.size());
+        } finally {
+          output.unlock();
+        }
+        metrics.bytesSent(events.size());
+        events.reset();
+      }
+    } catch (IOException e) {
+      // The connection is closed, the thread reading the requests ends the session
+      Log.info("[SERVEUR] Events not sent: " + e);
+    }
+  }
+
+  /**
+   * Executes one parsed request and writes its response. The response is not flushed, the engine
+   * sends the responses of all the requests it has received at once, after calling {@link
+   * #awaitCommitted()}.
+   *
+   * @param request The parser holding the request received from the client.
+   * @param out The sink the response is written to.
+   * @return false if the client asked to disconnect, true otherwise.
+   */
+  public boolean handle(Request request, ResponseSink out) throws IOException {
+    Client.Command command = request.command();
+    long start = System.nanoTime();
+    encoder.begin(request.requestId());
+
+    if (upload != null && command != Client.Command.CHUNK) {
+      // The chunks of an upload can only be followed by other chunks
+      upload = null;
+      sendError(out, Error.INVALID_COMMAND);
+    }
+
+    if (!connected && command != Client.Command.CONNECT && command != Client.Command.STATS) {
+      sendError(out, Error.INVALID_COMMAND);
+      metrics.requestHandled(command, System.nanoTime() - start);
+      return true;
+    }
+
+    if (batch != null && command != Client.Command.END && command != Client.Command.DISCONNECT) {
+      // The operations of a batch are only answered at its end
+      addToBatch(request);
+      metrics.requestHandled(command, System.nanoTime() - start);
+      return true;
+    }
+
+    switch (command) {
+      case CONNECT -> handleConnect(request, out);
+      case DISCONNECT -> {
+        return false;
+      }
+      case CREATE_NOTE -> handleCreateNote(request, out);
+      case DELETE_NOTE -> handleDeleteNote(request, out);
+      case DELETE_NOTE_ID -> handleDeleteNoteById(request, out);
+      case LIST_NOTES -> handleListNotes(request, out);
+      case CHANGES_SINCE -> handleChangesSince(request, out);
+      case GET_NOTE -> handleGetNote(request, out);
+      case UPDATE_CONTENT -> handleUpdateContent(request, out);
+      case UPDATE_TITLE -> handleUpdateTitle(request, out);
+      case APPEND_CONTENT -> handleAppendContent(request, out);
+      case PATCH_CONTENT -> handlePatchContent(request, out);
+      case UPLOAD_CONTENT -> {
+        // A frame holds a content of any size, the chunks are only needed by text lines
+        if (framed) sendError(out, Error.INVALID_COMMAND);
+        else handleUploadContent(request, out);
+      }
+      case CHUNK -> {
+        if (framed) sendError(out, Error.INVALID_COMMAND);
+        else handleChunk(request, out);
+      }
+      case DOWNLOAD_CONTENT -> handleDownloadContent(request, out);
+      case STATS -> handleStats(out);
+      case SEARCH -> handleSearch(request, out);
+      case GET_NOTES -> handleGetNotes(request, out);
+      case BATCH -> startBatch();
+      case END -> handleEnd(out);
+      case WATCH -> handleWatch(out);
+      case UNWATCH -> handleUnwatch(out);
+      case null, default -> sendError(out, Error.INVALID_COMMAND);
+    }
+    metrics.requestHandled(command, System.nanoTime() - start);
+    return true;
+  }
+
+  /**
+   * @return true if the next requests are frames rather than text lines.
+   */
+  public boolean framed() {
+    return framed;
+  }
+
+  /**
+   * @return The longest frame accepted, which holds a content of the maximum size.
+   */
+  public int maxFrameBytes() {
+    return context.maxContentBytes() + FRAME_OVERHEAD;
+  }
+
+  /**
+   * @return The number of bytes of an uploaded chunk still expected, 0 if the next bytes are a
+   *     request line.
+   */
+  public int payloadExpected() {
+    return upload == null ? 0 : upload.chunkRemaining();
+  }
+
+  /**
+   * Receives bytes of an uploaded chunk, at most {@link #payloadExpected()}.
+   *
+   * @param bytes The buffer holding the bytes.
+   * @param offset The offset of the bytes in the buffer.
+   * @param length The number of bytes.
+   */
+  public void handlePayload(byte[] bytes, int offset, int length) {
+    upload.append(bytes, offset, length);
+  }
+
+  /**
+   * @return true if the session waits for the changes of the notes, the idle timeout not applying
+   *     to it.
+   */
+  public boolean watching() {
+    return watching;
+  }
+
+  /**
+   * @return true if the chunks of a content remain to be sent before the next response.
+   */
+  public boolean hasPendingDownload() {
+    return download != null;
+  }
+
+  /** Writes the next chunk of the content being sent. */
+  public void continueDownload(ResponseSink out) {
+    if (!download.writeNextChunk(encoder, out)) {
+      download = null;
+    }
+  }
+
+  /**
+   * Sets what is called when changes are waiting to be pushed, from the thread that made them and
+   * while it holds the lock of the user: it must not write them, only have {@link #writeEvents}
+   * called soon. Called once before the first request.
+   */
+  public void onEvents(Runnable notifier) {
+    this.eventNotifier = notifier;
+  }
+
+  /** Writes the changes waiting to be pushed, if any, between two responses. */
+  public void writeEvents(ResponseSink out) {
+    if (watch == null) {
+      return;
+    }
+    List<WatchQueue.Event> events = watch.drain();
+    for (WatchQueue.Event event : events) {
+      encoder.event(out, event);
+    }
+    metrics.eventsSent(events.size());
+  }
+
+  /** Releases the resources of the session once its connection is closed. */
+  public void close() {
+    if (codec != null) {
+      codec.close();
+    }
+    if (watch != null) {
+      if (watching) {
+        user.unwatch(watch);
+        metrics.watchStopped();
+      }
+      watch.close();
+    }
+    if (connected) {
+      connected = false;
+      users.disconnect(user);
+    }
+  }
+
+  /**
+   * Waits until the changes acknowledged by the responses written so far are as durable as
+   * configured. The blocking engine calls it before sending the responses to the client.
+   */
+  public void awaitCommitted() throws IOException {
+    if (uncommitted) {
+      uncommitted = false;
+      context.log().awaitDurable();
+    }
+  }
+
+  /**
+   * Tells the engines that must not wait for the log what the responses written so far wait for,
+   * instead of {@link #awaitCommitted()}. They are sent once {@link
+   * ch.heigvd.dai.storage.WriteAheadLog#isDurable(long)} is true for the returned target.
+   *
+   * @return The target to check, 0 if the responses can be sent now.
+   */
+  public long commitTarget() {
+    if (!uncommitted) {
+      return 0;
+    }
+    uncommitted = false;
+    return context.log().durableTarget();
+  }
+
+  private void sendOK(ResponseSink out) {
+    encoder.ok(out);
+  }
+
+  /**
+   * Acknowledges a change. The acknowledgement is only sent once the log made it durable, a single
+   * wait covers all the changes of a pipelined batch.
+   */
+  private void sendCommitted(ResponseSink out) {
+    markUncommitted();
+    sendOK(out);
+  }
+
+  /** Delays the responses written from now on until the change being acknowledged is durable. */
+  private void markUncommitted() {
+    if (context.log() != null) {
+      uncommitted = true;
+    }
+  }
+
+  private void sendError(ResponseSink out, Error error) {
+    metrics.errorSent(error);
+    encoder.error(out, error);
+  }
+
+  /**
+   * Connects the user, switching to frames after the response if the second argument is {@link
+   * Frames#CAPABILITY}.
+   */
+  private void handleConnect(Request request, ResponseSink out) {
+    if (connected || request.argumentCount() < 1) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    boolean binary = false;
+    boolean deflate = false;
+    for (int i = 1; i < request.argumentCount(); i++) {
+      String capability = request.argument(i);
+      if (capability.equals(Frames.CAPABILITY)) {
+        binary = true;
+      } else if (capability.equals(DeflateCodec.CAPABILITY)) {
+        deflate = true;
+      } else {
+        sendError(out, Error.INVALID_COMMAND);
+        return;
+      }
+    }
+    try {
+      user = users.connect(request.argument(0));
+    } catch (IOException e) {
+      Log.error("[SERVEUR] Cannot read back the notes of " + request.argument(0) + ": " + e);
+      sendError(out, Error.SERVER_BUSY);
+      return;
+    }
+    connected = true;
+    sendOK(out);
+
+    ResponseCompressor compressor = null;
+    if (deflate) {
+      codec = new DeflateCodec(context.compressionLevel());
+      compressor = new ResponseCompressor(codec, context.compressionThreshold(), metrics);
+      encoder = new TextResponseEncoder(compressor);
+    }
+    if (binary) {
+      framed = true;
+      encoder = new FrameResponseEncoder(compressor);
+    }
+  }
+
+  private void handleCreateNote(Request request, ResponseSink out) {
+    if (request.argumentCount() < 1 || !validTitle(request.argument(0))) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    String title = request.argument(0);
+    // Note initially empty, no scrambling needed since it's empty
+    if (user.addNote(new Note(title, ""))) {
+      sendCommitted(out);
+    } else {
+      sendError(out, Error.NOTE_ALREADY_EXISTS);
+    }
+  }
+
+  private void handleDeleteNote(Request request, ResponseSink out) {
+    if (request.argumentCount() < 1) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    String title = request.argument(0);
+    if (user.deleteNoteByTitle(title)) {
+      sendCommitted(out);
+    } else {
+      sendError(out, Error.NOTE_NOT_FOUND);
+    }
+  }
+
+  private void handleDeleteNoteById(Request request, ResponseSink out) {
+    long id = request.argumentCount() < 1 ? INVALID_ID : noteId(request, 0);
+    if (id == INVALID_ID) {
+      sendError(out, Error.INVALID_COMMAND);
+    } else if (user.deleteNoteById(id)) {
+      sendCommitted(out);
+    } else {
+      sendError(out, Error.NOTE_NOT_FOUND);
+    }
+  }
+
+  /** Lists all the notes, or a page of them if an offset and a limit are given. */
+  private void handleListNotes(Request request, ResponseSink out) {
+    if (request.argumentCount() == 0) {
+      encoder.list(out, user.getNotes());
+      return;
+    }
+    int offset = request.argumentCount() < 2 ? -1 : request.intArgument(0, -1);
+    int limit = request.argumentCount() < 2 ? -1 : request.intArgument(1, -1);
+    if (offset < 0 || limit < 1) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    encoder.page(out, user.getPage(offset, limit));
+  }
+
+  /**
+   * Sends the notes created, deleted or renamed since a version, or an error if the client must
+   * list them again.
+   */
+  private void handleChangesSince(Request request, ResponseSink out) {
+    long since = request.argumentCount() < 1 ? -1 : request.longArgument(0, -1);
+    if (since < 0) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    User.Changes changes = user.changesSince(since);
+    if (changes == null) {
+      sendError(out, Error.CHANGES_EXPIRED);
+    } else {
+      encoder.changes(out, changes);
+    }
+  }
+
+  /** Finds the notes matching the query made of the arguments, see {@link User#search}. */
+  private void handleSearch(Request request, ResponseSink out) {
+    if (request.argumentCount() < 1) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    StringBuilder query = new StringBuilder(request.argument(0));
+    for (int i = 1; i < request.argumentCount(); i++) {
+      query.append(' ').append(request.argument(i));
+    }
+    encoder.results(out, user.search(query.toString(), SEARCH_LIMIT));
+  }
+
+  /**
+   * Reads several notes at once, designated in a text line by a list of indices, ranges of indices
+   * and identifiers ({@code 1,4-6,#12}) and in a frame by one field each.
+   */
+  private void handleGetNotes(Request request, ResponseSink out) {
+    List<Note> found = new ArrayList<>();
+    if (request.argumentCount() < 1
+        || !(framed ? findNotes(request, found) : findNotes(request.argument(0), found))) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    user.readContents(found, read -> encoder.notes(out, read));
+  }
+
+  /**
+   * Finds the notes designated by the fields of a frame, a note not found being added as null.
+   *
+   * @return false if a field does not designate a note or there are too many of them.
+   */
+  private boolean findNotes(Request request, List<Note> found) {
+    if (request.argumentCount() > MAX_BATCH_SIZE) {
+      return false;
+    }
+    for (int i = 0; i < request.argumentCount(); i++) {
+      int index = request.intArgument(i, INVALID_INDEX);
+      long id = index == INVALID_INDEX ? noteId(request, i) : INVALID_ID;
+      if (index == INVALID_INDEX && id == INVALID_ID) {
+        return false;
+      }
+      found.add(index != INVALID_INDEX ? user.getNote(index - 1) : user.getNoteById(id));
+    }
+    return true;
+  }
+
+  /**
+   * Finds the notes designated by a comma-separated list, a note not found being added as null.
+   *
+   * @return false if the list is invalid or designates too many notes.
+   */
+  private boolean findNotes(String list, List<Note> found) {
+    String[] items = list.split(",", -1);
+    int count = 0;
+    for (String item : items) {
+      if (item.startsWith("#")) {
+        long id = parseId(item);
+        if (id == INVALID_ID || ++count > MAX_BATCH_SIZE) {
+          return false;
+        }
+        found.add(user.getNoteById(id));
+        continue;
+      }
+      int dash = item.indexOf('-');
+      int first;
+      int last;
+      try {
+        first = Integer.parseInt(dash < 0 ? item : item.substring(0, dash));
+        last = dash < 0 ? first : Integer.parseInt(item.substring(dash + 1));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      if (first < 1 || last < first || last - first >= MAX_BATCH_SIZE - count) {
+        return false;
+      }
+      count += last - first + 1;
+      for (int index = first; index <= last; index++) {
+        found.add(user.getNote(index - 1));
+      }
+    }
+    return true;
+  }
+
+  /** Starts a batch, whose operations are received until {@code END}. */
+  private void startBatch() {
+    batch = new Batch();
+    batchErrors = new ArrayList<>();
+  }
+
+  /**
+   * Adds an operation to the batch. Once the batch holds too many operations or bytes, they are
+   * dropped and the batch only answers the error at its end.
+   */
+  private void addToBatch(Request request) {
+    if (batchOverflow != null) {
+      return;
+    }
+    if (batchErrors.size() == MAX_BATCH_SIZE) {
+      batchOverflow = Error.INVALID_COMMAND;
+    } else {
+      batchErrors.add(batchOperation(request));
+      if (batch.bytes() > context.maxContentBytes()) {
+        batchOverflow = Error.CONTENT_TOO_LARGE;
+      }
+    }
+    if (batchOverflow != null) {
+      batch = new Batch();
+      batchErrors.clear();
+    }
+  }
+
+  /**
+   * Adds a change of the notes to the batch, scrambling the contents as they are stored.
+   *
+   * @return The error of the operation if it is invalid, null if it has been added.
+   */
+  private Error batchOperation(Request request) {
+    Client.Command command = request.command();
+    int count = request.argumentCount();
+    if (command == Client.Command.CREATE_NOTE || command == Client.Command.DELETE_NOTE) {
+      if (count < 1) {
+        return Error.INVALID_COMMAND;
+      }
+      if (command == Client.Command.DELETE_NOTE) {
+        batch.deleteNote(request.argument(0));
+      } else if (validTitle(request.argument(0))) {
+        batch.createNote(request.argument(0));
+      } else {
+        return Error.INVALID_COMMAND;
+      }
+      return null;
+    }
+    if (command == Client.Command.DELETE_NOTE_ID) {
+      long id = count < 1 ? INVALID_ID : noteId(request, 0);
+      if (id == INVALID_ID) {
+        return Error.INVALID_COMMAND;
+      }
+      batch.deleteNote(0, id);
+      return null;
+    }
+
+    // The other operations designate their note by its index or its identifier
+    int arguments =
+        switch (command) {
+          case UPDATE_CONTENT, UPDATE_TITLE, APPEND_CONTENT -> 2;
+          case PATCH_CONTENT -> 3;
+          case null, default -> -1;
+        };
+    if (arguments < 0 || count < arguments) {
+      return Error.INVALID_COMMAND;
+    }
+    int index = request.intArgument(0, INVALID_INDEX);
+    long id = 0;
+    if (index == INVALID_INDEX) {
+      index = 0;
+      id = noteId(request, 0);
+      if (id == INVALID_ID) {
+        return Error.INVALID_COMMAND;
+      }
+    } else if (index < 1) {
+      return Error.NOTE_NOT_FOUND;
+    }
+    // The expected version follows the arguments, the text of a patch being optional
+    int versionArgument = command == Client.Command.PATCH_CONTENT ? 4 : 2;
+    long expected =
+        count > versionArgument ? expectedVersion(request, versionArgument) : User.ANY_VERSION;
+    if (expected == INVALID_VERSION) {
+      return Error.INVALID_COMMAND;
+    }
+
+    switch (command) {
+      case UPDATE_CONTENT -> {
+        if (request.argumentLength(1) > context.maxContentBytes()) {
+          return Error.CONTENT_TOO_LARGE;
+        }
+        String content = Scrambler.scramble(request.argument(1));
+        batch.updateContent(index, id, content.getBytes(StandardCharsets.UTF_8), expected);
+      }
+      case UPDATE_TITLE -> {
+        if (!validTitle(request.argument(1))) {
+          return Error.INVALID_COMMAND;
+        }
+        batch.renameNote(index, id, request.argument(1), expected);
+      }
+      case APPEND_CONTENT ->
+          batch.patchContent(index, id, User.END, 0, scrambled(request, 1), expected);
+      default -> {
+        int offset = request.intArgument(1, -1);
+        int removed = request.intArgument(2, -1);
+        if (offset < 0 || removed < 0) {
+          return Error.INVALID_COMMAND;
+        }
+        byte[] bytes = count > 3 ? scrambled(request, 3) : new byte[0];
+        batch.patchContent(index, id, offset, removed, bytes, expected);
+      }
+    }
+    return null;
+  }
+
+  /** Reads a text argument as UTF-8 bytes whose words are scrambled. */
+  private static byte[] scrambled(Request request, int argument) {
+    byte[] bytes = request.argument(argument).getBytes(StandardCharsets.UTF_8);
+    Scrambler.scrambleUtf8(bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * Applies the batch, all of its operations or none, and answers the result of each one. The
+   * operations of an invalid batch are not applied, those that are valid being answered {@link
+   * Error#BATCH_ABORTED}.
+   */
+  private void handleEnd(ResponseSink out) {
+    Batch complete = batch;
+    List<Error> errors = batchErrors;
+    Error overflow = batchOverflow;
+    batch = null;
+    batchErrors = null;
+    batchOverflow = null;
+    if (complete == null || overflow != null) {
+      sendError(out, complete == null ? Error.INVALID_COMMAND : overflow);
+      return;
+    }
+
+    long[] results = new long[errors.size()];
+    if (errors.stream().anyMatch(Objects::nonNull)) {
+      for (int i = 0; i < results.length; i++) {
+        Error error = errors.get(i);
+        results[i] = (error != null ? error : Error.BATCH_ABORTED).getCode();
+      }
+    } else {
+      results = user.apply(complete, context.maxContentBytes());
+      for (int i = 0; i < results.length; i++) {
+        Error error = updateError(results[i]);
+        if (error != null) {
+          results[i] = error.getCode();
+        }
+      }
+      if (results.length > 0 && results[0] > 0) {
+        markUncommitted();
+      }
+    }
+    encoder.batch(out, results);
+  }
+
+  /**
+   * Pushes the changes made to the notes from now on, answering the version they follow. A client
+   * that is too slow to receive them gets a single {@code RESYNC} instead, see {@link WatchQueue}.
+   */
+  private void handleWatch(ResponseSink out) {
+    if (watching) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    if (watch == null) {
+      watch = new WatchQueue(metrics, eventNotifier);
+      if (socket != null) {
+        WatchQueue queue = watch;
+        Thread.ofVirtual().name("watch-" + socket.getPort()).start(() -> pushEvents(queue));
+      }
+    }
+    watching = true;
+    metrics.watchStarted();
+    encoder.updated(out, user.watch(watch));
+  }
+
+  /** Stops pushing the changes, dropping those not sent yet. */
+  private void handleUnwatch(ResponseSink out) {
+    if (!watching) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    user.unwatch(watch);
+    watch.drain();
+    watching = false;
+    metrics.watchStopped();
+    sendOK(out);
+  }
+
+  private void handleStats(ResponseSink out) throws IOException {
+    StringWriter stats = new StringWriter();
+    metrics.writeTo(stats, users);
+    encoder.stats(out, stats.toString());
+  }
+
+  private void handleGetNote(Request request, ResponseSink out) {
+    Note note = getNote(request, 1, out);
+    if (note != null && !user.readContent(note, read -> encoder.note(out, read))) {
+      sendError(out, Error.NOTE_NOT_FOUND);
+    }
+  }
+
+  /**
+   * Handle the update content command. Update the content of the note. Before storing the content,
+   * we scramble each word so that only the first and last letters remain in place, and the middle
+   * letters are randomized.
+   */
+  private void handleUpdateContent(Request request, ResponseSink out) {
+    Note note = getNote(request, 2, out);
+    if (note == null) return;
+    // Optional arguments: the expected version, and in a frame the flag of a compressed content
+    long expected = User.ANY_VERSION;
+    int flag = -1;
+    for (int i = 2; i < request.argumentCount(); i++) {
+      if (framed && request.argumentLength(i) != 8 && flag < 0) {
+        flag = i;
+        continue;
+      }
+      // A second version would silently replace the first one
+      expected = expected == User.ANY_VERSION ? expectedVersion(request, i) : INVALID_VERSION;
+      if (expected == INVALID_VERSION) {
+        sendError(out, Error.INVALID_COMMAND);
+        return;
+      }
+    }
+    if (flag >= 0) {
+      updateCompressedContent(request, flag, note, expected, out);
+      return;
+    }
+    if (request.argumentLength(1) > context.maxContentBytes()) {
+      sendError(out, Error.CONTENT_TOO_LARGE);
+      return;
+    }
+    // The content is the second argument
+    String newContent = request.argument(1);
+
+    // Scramble the content before storing
+    newContent = Scrambler.scramble(newContent);
+
+    sendUpdated(out, user.updateContent(note, newContent, expected), expected);
+  }
+
+  /**
+   * Updates the content of a note from a frame whose content field is compressed, which is flagged
+   * by another field. Text lines cannot hold compressed bytes, they upload them in chunks.
+   */
+  private void updateCompressedContent(
+      Request request, int flag, Note note, long expected, ResponseSink out) {
+    if (!(request instanceof FrameParser frame)
+        || codec == null
+        || !request.argument(flag).equals(DeflateCodec.CAPABILITY)) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    long start = System.nanoTime();
+    int length;
+    try {
+      length =
+          codec.inflate(
+              frame.buffer(),
+              frame.argumentStart(1),
+              frame.argumentLength(1),
+              context.maxContentBytes());
+    } catch (DataFormatException e) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    if (length < 0) {
+      sendError(out, Error.CONTENT_TOO_LARGE);
+      return;
+    }
+    metrics.compressed(length, frame.argumentLength(1), System.nanoTime() - start);
+    updateContent(note, codec.output(), length, expected, out);
+  }
+
+  /** Scrambles a content received as UTF-8 bytes in place, then stores it. */
+  private void updateContent(Note note, byte[] bytes, int length, long expected, ResponseSink out) {
+    Scrambler.scrambleUtf8(bytes, 0, length);
+    sendUpdated(out, user.updateContent(note, bytes, length, expected), expected);
+  }
+
+  private void handleAppendContent(Request request, ResponseSink out) {
+    Note note = getNote(request, 2, out);
+    if (note == null) return;
+    long expected = request.argumentCount() > 2 ? expectedVersion(request, 2) : User.ANY_VERSION;
+    if (expected == INVALID_VERSION) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    patchContent(note, User.END, 0, request.argument(1), expected, out);
+  }
+
+  /**
+   * Replaces a range of the content of a note. The text lines ignore empty arguments, a range is
+   * deleted by leaving the text out.
+   */
+  private void handlePatchContent(Request request, ResponseSink out) {
+    Note note = getNote(request, 3, out);
+    if (note == null) return;
+    int offset = request.intArgument(1, -1);
+    int removed = request.intArgument(2, -1);
+    String text = request.argumentCount() > 3 ? request.argument(3) : "";
+    long expected = request.argumentCount() > 4 ? expectedVersion(request, 4) : User.ANY_VERSION;
+    if (offset < 0 || removed < 0 || expected == INVALID_VERSION) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    patchContent(note, offset, removed, text, expected, out);
+  }
+
+  /**
+   * Replaces a range of the content of a note by a text, of which only the words are scrambled: the
+   * rest of the content already is.
+   */
+  private void patchContent(
+      Note note, int offset, int removed, String text, long expected, ResponseSink out) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    Scrambler.scrambleUtf8(bytes, 0, bytes.length);
+    long result =
+        user.patchContent(
+            note, offset, removed, bytes, bytes.length, context.maxContentBytes(), expected);
+    sendUpdated(out, result, expected);
+  }
+
+  private void handleUpdateTitle(Request request, ResponseSink out) {
+    if (request.argumentCount() >= 2 && !validTitle(request.argument(1))) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    Note note = getNote(request, 2, out);
+    if (note == null) return;
+    long expected = request.argumentCount() > 2 ? expectedVersion(request, 2) : User.ANY_VERSION;
+    if (expected == INVALID_VERSION) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    sendUpdated(out, user.renameNote(note, request.argument(1), expected), expected);
+  }
+
+  /**
+   * Tells whether a title can be given to a note. A frame can carry any title, but a title that is
+   * empty or holds a line break could not be listed to the text sessions of the same user, nor
+   * designated by them.
+   */
+  private static boolean validTitle(String title) {
+    return !title.isEmpty() && title.indexOf('\n') < 0;
+  }
+
+  /**
+   * Reads the version a note must be at for an update to apply, a decimal argument in a text line
+   * or an 8-byte field in a frame.
+   *
+   * @return The version, or {@link #INVALID_VERSION} if the argument is not one.
+   */
+  private long expectedVersion(Request request, int argument) {
+    long version = request.longArgument(argument, INVALID_VERSION);
+    return version > 0 ? version : INVALID_VERSION;
+  }
+
+  /**
+   * Answers an update with the result of {@link User#updateContent}, {@link User#patchContent} or
+   * {@link User#renameNote}. The new version of the note is only sent back if the client gave the
+   * one it expected.
+   */
+  private void sendUpdated(ResponseSink out, long result, long expected) {
+    Error error = updateError(result);
+    if (error != null) {
+      sendError(out, error);
+    } else if (expected == User.ANY_VERSION) {
+      sendCommitted(out);
+    } else {
+      markUncommitted();
+      encoder.updated(out, result);
+    }
+  }
+
+  /**
+   * @return The error answering the result of an update of {@link User}, null if it was applied.
+   */
+  private static Error updateError(long result) {
+    if (result == User.DELETED) {
+      return Error.NOTE_NOT_FOUND;
+    } else if (result == User.CONFLICT) {
+      return Error.VERSION_CONFLICT;
+    } else if (result == User.TITLE_TAKEN) {
+      return Error.NOTE_ALREADY_EXISTS;
+    } else if (result == User.INVALID_RANGE) {
+      return Error.INVALID_COMMAND;
+    } else if (result == User.TOO_LARGE) {
+      return Error.CONTENT_TOO_LARGE;
+    } else if (result == User.ABORTED) {
+      return Error.BATCH_ABORTED;
+    }
+    return null;
+  }
+
+  /**
+   * Starts receiving the content of a note in chunks, compressed if the second argument is {@link
+   * DeflateCodec#CAPABILITY}. The response is only sent after the last chunk, even when the note
+   * does not exist, so that the chunks are never taken for requests.
+   */
+  private void handleUploadContent(Request request, ResponseSink out) {
+    if (request.argumentCount() < 1) {
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    int index = request.intArgument(0, INVALID_INDEX);
+    long id = index == INVALID_INDEX ? noteId(request, 0) : INVALID_ID;
+    Note note =
+        index != INVALID_INDEX
+            ? user.getNote(index - 1)
+            : id != INVALID_ID ? user.getNoteById(id) : null;
+    boolean compressed = request.argumentCount() > 1;
+    Error error =
+        (index == INVALID_INDEX && id == INVALID_ID)
+                || (compressed
+                    && (codec == null || !request.argument(1).equals(DeflateCodec.CAPABILITY)))
+            ? Error.INVALID_COMMAND
+            : note == null ? Error.NOTE_NOT_FOUND : null;
+    upload =
+        new Upload(
+            note,
+            error,
+            context.maxContentBytes(),
+            compressed && error == null ? codec.inflater() : null);
+  }
+
+  /** Starts receiving a chunk of the upload, or completes it with the empty chunk. */
+  private void handleChunk(Request request, ResponseSink out) {
+    int size = request.argumentCount() < 1 ? -1 : request.intArgument(0, -1);
+    if (upload == null || size < 0) {
+      upload = null;
+      sendError(out, Error.INVALID_COMMAND);
+      return;
+    }
+    if (size > 0) {
+      upload.startChunk(size);
+      return;
+    }
+
+    Upload complete = upload;
+    upload = null;
+    if (complete.error() != null) {
+      sendError(out, complete.error());
+      return;
+    }
+    if (complete.compressed()) {
+      metrics.compressed(complete.length(), complete.received(), complete.inflateNanos());
+    }
+    updateContent(complete.note(), complete.bytes(), complete.length(), User.ANY_VERSION, out);
+  }
+
+  /** Starts sending the content of a note in chunks, the engine then writes them one by one. */
+  private void handleDownloadContent(Request request, ResponseSink out) {
+    Note note = getNote(request, 1, out);
+    if (note != null) {
+      download = new Download(user, note);
+    }
+  }
+
+  /**
+   * Resolves the note designated by the first argument of a request, its 1-based index or its
+   * identifier (see {@link #noteId}), sending the error response if there is none. An identifier
+   * keeps designating the same note when other sessions delete notes before it.
+   *
+   * @param arguments The number of arguments the request needs.
+   * @return The note, or null if an error has been sent.
+   */
+  private Note getNote(Request request, int arguments, ResponseSink out) {
+    if (request.argumentCount() < arguments) {
+      sendError(out, Error.INVALID_COMMAND);
+      return null;
+    }
+    int index = request.intArgument(0, INVALID_INDEX);
+    Note note;
+    if (index != INVALID_INDEX) {
+      note = user.getNote(index - 1);
+    } else {
+      long id = noteId(request, 0);
+      if (id == INVALID_ID) {
+        sendError(out, Error.INVALID_COMMAND);
+        return null;
+      }
+      note = user.getNoteById(id);
+    }
+    if (note == null) {
+      sendError(out, Error.NOTE_NOT_FOUND);
+    }
+    return note;
+  }
+
+  /**
+   * Reads the identifier of a note, given as {@code #<id>} in a text line or as an 8-byte field in
+   * a frame.
+   *
+   * @return The identifier, or {@link #INVALID_ID} if the argument is not one.
+   */
+  private long noteId(Request request, int argument) {
+    if (framed) {
+      return request.argumentLength(argument) == 8
+          ? request.longArgument(argument, INVALID_ID)
+          : INVALID_ID;
+    }
+    return parseId(request.argument(argument));
+  }
+
+  /**
+   * @return The identifier written {@code #<id>}, or {@link #INVALID_ID} if the value is not one.
+   */
+  private static long parseId(String value) {
+    if (value.length() < 2 || value.charAt(0) != '#') {
+      return INVALID_ID;
+    }
+    try {
+      long id = Long.parseLong(value, 1, value.length(), 10);
+      return id > 0 ? id : INVALID_ID;
+    } catch (NumberFormatException e) {
+      return INVALID_ID;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import java.nio.ByteBuffer;
+
+/**
+ * Content of a note being sent in chunks. Each chunk is copied from the UTF-8 bytes the content is
+ * stored as, under the read lock of the user, so that only a chunk is buffered whatever the size of
+ * the content. A note changed or deleted before its last chunk ends the download with an error
+ * instead of the next chunk, the chunks already sent mixing the old and the new content otherwise.
+ */
+class Download {
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final User user;
+  private final Note note;
+
+  /** The version of the note when its first chunk was read. */
+  private long version;
+
+  private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+  private long position = Note.CONTENT_START;
+  private boolean changed;
+
+  Download(User user, Note note) {
+    this.user = user;
+    this.note = note;
+  }
+
+  /**
+   * Writes the next chunk, followed by the empty chunk ending the content if it was the last one.
+   *
+   * @return true if chunks remain to be written.
+   */
+  boolean writeNextChunk(ResponseEncoder responses, ResponseSink out) {
+    chunk.clear();
+    boolean found = user.readContent(note, this::readChunk);
+    if (!found || changed) {
+      responses.error(out, found ? Error.VERSION_CONFLICT : Error.NOTE_NOT_FOUND);
+      return false;
+    }
+    responses.chunk(out, chunk.array(), 0, chunk.position());
+    if (position == Note.CONTENT_END && chunk.position() > 0) {
+      // The content is complete, the empty chunk follows
+      responses.chunk(out, chunk.array(), 0, 0);
+    }
+    return position != Note.CONTENT_END;
+  }
+
+  /** Copies the next chunk, under the read lock of the user. */
+  private void readChunk(Note read) {
+    if (position == Note.CONTENT_START) {
+      version = read.getVersion();
+    } else if (read.getVersion() != version) {
+      changed = true;
+      return;
+    }
+    position = read.readContent(position, chunk);
+  }
+}
@@ -0,0 +1,206 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import ch.heigvd.dai.utils.Frames;
+import java.util.List;
+
+/**
+ * Encodes the responses as frames (see {@link Frames}). The strings are encoded straight into the
+ * sink, their length being written once they are. With compression, a large note or list is sent as
+ * {@link Frames#ZNOTE}, {@link Frames#ZLIST} or {@link Frames#ZNOTES}, whose field holds the
+ * compressed bytes of the content or of the fields of the list.
+ */
+class FrameResponseEncoder implements ResponseEncoder {
+  private final ResponseCompressor compressor;
+  private int requestId;
+
+  /**
+   * @param compressor The compressor of the connection, null without compression.
+   */
+  FrameResponseEncoder(ResponseCompressor compressor) {
+    this.compressor = compressor;
+  }
+
+  @Override
+  public void begin(int requestId) {
+    this.requestId = requestId;
+  }
+
+  @Override
+  public void ok(ResponseSink out) {
+    end(out, start(out, Frames.OK));
+  }
+
+  @Override
+  public void updated(ResponseSink out, long version) {
+    int start = start(out, Frames.OK);
+    longField(out, version);
+    end(out, start);
+  }
+
+  @Override
+  public void error(ResponseSink out, Error error) {
+    int start = start(out, Frames.ERROR);
+    out.writeInt(4);
+    out.writeInt(error.getCode());
+    end(out, start);
+  }
+
+  @Override
+  public void note(ResponseSink out, Note note) {
+    int start = start(out, Frames.NOTE);
+    int field = out.size();
+    out.writeInt(0);
+    out.printContent(note);
+    out.setInt(field, out.size() - field - 4);
+    compress(out, start, field + 4, Frames.ZNOTE);
+    longField(out, note.getVersion());
+    end(out, start);
+  }
+
+  @Override
+  public void notes(ResponseSink out, List<Note> notes) {
+    int start = start(out, Frames.NOTES);
+    for (Note note : notes) {
+      int field = out.size();
+      out.writeInt(0);
+      if (note != null) {
+        out.printContent(note);
+      }
+      out.setInt(field, out.size() - field - 4);
+      longField(out, note != null ? note.getVersion() : Error.NOTE_NOT_FOUND.getCode());
+    }
+    compress(out, start, start + Frames.HEADER_BYTES, Frames.ZNOTES);
+    end(out, start);
+  }
+
+  @Override
+  public void batch(ResponseSink out, long[] results) {
+    int start = start(out, Frames.BATCH);
+    for (long result : results) {
+      longField(out, result);
+    }
+    end(out, start);
+  }
+
+  @Override
+  public void list(ResponseSink out, List<Note> notes) {
+    int start = start(out, Frames.LIST);
+    for (Note note : notes) {
+      stringField(out, note.getTitle());
+    }
+    compress(out, start, start + Frames.HEADER_BYTES, Frames.ZLIST);
+    end(out, start);
+  }
+
+  @Override
+  public void page(ResponseSink out, User.Page page) {
+    int start = start(out, Frames.PAGE);
+    longField(out, page.version());
+    out.writeInt(4);
+    out.writeInt(page.total());
+    for (Note note : page.notes()) {
+      longField(out, note.getId());
+      longField(out, note.getVersion());
+      stringField(out, note.getTitle());
+    }
+    end(out, start);
+  }
+
+  @Override
+  public void changes(ResponseSink out, User.Changes changes) {
+    int start = start(out, Frames.CHANGES);
+    longField(out, changes.version());
+    for (User.Change change : changes.changes()) {
+      stringField(out, change.kind().toString());
+      out.writeInt(4);
+      out.writeInt(change.index());
+      longField(out, change.id());
+      stringField(out, change.title());
+    }
+    end(out, start);
+  }
+
+  @Override
+  public void results(ResponseSink out, List<User.Hit> hits) {
+    int start = start(out, Frames.RESULTS);
+    for (User.Hit hit : hits) {
+      out.writeInt(4);
+      out.writeInt(hit.index());
+      longField(out, hit.id());
+      stringField(out, hit.title());
+    }
+    end(out, start);
+  }
+
+  /**
+   * Replaces the bytes of a frame written since a position by a field holding them compressed, if
+   * they are large enough.
+   */
+  private void compress(ResponseSink out, int start, int from, int status) {
+    if (compressor == null || !compressor.compress(out, from)) {
+      return;
+    }
+    out.setByte(start + 4, status);
+    out.truncate(start + Frames.HEADER_BYTES);
+    out.writeInt(compressor.compressedLength());
+    out.write(compressor.compressed(), 0, compressor.compressedLength());
+  }
+
+  @Override
+  public void stats(ResponseSink out, String stats) {
+    int start = start(out, Frames.STATS);
+    stringField(out, stats);
+    end(out, start);
+  }
+
+  @Override
+  public void event(ResponseSink out, WatchQueue.Event event) {
+    // Not the id of the request being handled, the events answer none
+    int start = start(out, Frames.EVENT, 0);
+    stringField(out, event.kind().toString());
+    longField(out, event.id());
+    longField(out, event.version());
+    stringField(out, event.title());
+    end(out, start);
+  }
+
+  @Override
+  public void chunk(ResponseSink out, byte[] bytes, int offset, int length) {
+    int start = start(out, Frames.CHUNK);
+    out.writeInt(length);
+    out.write(bytes, offset, length);
+    end(out, start);
+  }
+
+  /** Writes the header of a frame, its length being set by {@link #end}. */
+  private int start(ResponseSink out, int status) {
+    return start(out, status, requestId);
+  }
+
+  private int start(ResponseSink out, int status, int requestId) {
+    int start = out.size();
+    out.writeInt(0);
+    out.write(status);
+    out.writeInt(requestId);
+    return start;
+  }
+
+  private void end(ResponseSink out, int start) {
+    out.setInt(start, out.size() - start - 4);
+  }
+
+  private void longField(ResponseSink out, long value) {
+    out.writeInt(8);
+    out.writeLong(value);
+  }
+
+  private void stringField(ResponseSink out, String value) {
+    int start = out.size();
+    out.writeInt(0);
+    out.print(value);
+    out.setInt(start, out.size() - start - 4);
+  }
+}
@@ -0,0 +1,193 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.utils.FrameParser;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the lines of a stream as slices of a reusable byte buffer, leaving the decoding to the
+ * {@link ch.heigvd.dai.utils.CommandParser}. The buffer only grows to hold the longest line, or the
+ * longest frame once the client switched to them.
+ *
+ * <p>A read interrupted by the timeout of the socket leaves the bytes already received in the
+ * buffer, the same call can be made again to wait for the rest.
+ */
+class LineReader {
+  private final InputStream in;
+  private final int maxLineBytes;
+  private byte[] buffer = new byte[8 * 1024];
+
+  /** Bytes received but not returned yet are in [position, limit). */
+  private int position;
+
+  private int limit;
+  private int lineStart;
+  private int lineLength;
+
+  /** When bytes were last received, in {@link System#nanoTime()}. */
+  private long lastReceived = System.nanoTime();
+
+  /**
+   * @param maxLineBytes The longest accepted line, a longer one is reported as an error.
+   */
+  LineReader(InputStream in, int maxLineBytes) {
+    this.in = in;
+    this.maxLineBytes = maxLineBytes;
+  }
+
+  /**
+   * Reads the next line, blocking until it is complete. The terminator is not part of the line.
+   *
+   * @return false at the end of the stream.
+   */
+  boolean readLine() throws IOException {
+    // Bytes already scanned, counted from position since fill() may move them
+    int scanned = 0;
+    while (true) {
+      for (int i = position + scanned; i < limit; i++) {
+        if (buffer[i] == '\n') {
+          lineStart = position;
+          lineLength = i - position;
+          position = i + 1;
+          return true;
+        }
+      }
+      scanned = limit - position;
+      if (!fill()) {
+        // The last line counts even without its terminator, as with BufferedReader
+        if (position == limit) {
+          return false;
+        }
+        lineStart = position;
+        lineLength = limit - position;
+        position = limit;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Reads raw bytes following a line, blocking only if none have been received yet. They are
+   * returned as a slice like a line.
+   *
+   * @param max The maximum number of bytes to return.
+   * @return false at the end of the stream.
+   */
+  boolean readBytes(int max) throws IOException {
+    if (position == limit) {
+      position = 0;
+      limit = 0;
+      if (!fill()) {
+        return false;
+      }
+    }
+    lineStart = position;
+    lineLength = Math.min(max, limit - position);
+    position += lineLength;
+    return true;
+  }
+
+  /**
+   * Reads the next frame, blocking until it is complete. The slice is the frame without its length.
+   *
+   * @param maxFrameBytes The longest accepted frame, a longer one is reported as an error.
+   * @return false at the end of the stream.
+   */
+  boolean readFrame(int maxFrameBytes) throws IOException {
+    if (!ensure(4)) {
+      if (position == limit) {
+        return false;
+      }
+      throw new EOFException("Truncated frame");
+    }
+    int length = FrameParser.readInt(buffer, position);
+    if (length < 0 || length > maxFrameBytes) {
+      throw new IOException("Frame too long");
+    }
+    if (!ensure(4 + length)) {
+      throw new EOFException("Truncated frame");
+    }
+    lineStart = position + 4;
+    lineLength = length;
+    position += 4 + length;
+    return true;
+  }
+
+  byte[] buffer() {
+    return buffer;
+  }
+
+  int lineStart() {
+    return lineStart;
+  }
+
+  int lineLength() {
+    return lineLength;
+  }
+
+  /**
+   * @return How long no byte was received, in nanoseconds.
+   */
+  long silentNanos() {
+    return System.nanoTime() - lastReceived;
+  }
+
+  /**
+   * @return true if bytes of a next line have already been received.
+   */
+  boolean hasBufferedInput() {
+    return position < limit;
+  }
+
+  /**
+   * Reads until a number of bytes are received, making room for them first.
+   *
+   * @return false if the stream ended before.
+   */
+  private boolean ensure(int count) throws IOException {
+    while (limit - position < count) {
+      if (buffer.length - position < count) {
+        int pending = limit - position;
+        byte[] target = buffer.length < count ? new byte[count] : buffer;
+        System.arraycopy(buffer, position, target, 0, pending);
+        buffer = target;
+        position = 0;
+        limit = pending;
+      }
+      int read = in.read(buffer, limit, buffer.length - limit);
+      if (read < 0) {
+        return false;
+      }
+      limit += read;
+      lastReceived = System.nanoTime();
+    }
+    return true;
+  }
+
+  /** Reads more bytes, making room first by moving or growing the buffer. */
+  private boolean fill() throws IOException {
+    if (limit == buffer.length) {
+      int pending = limit - position;
+      if (pending >= maxLineBytes) {
+        throw new IOException("Line too long");
+      }
+      if (position > 0) {
+        System.arraycopy(buffer, position, buffer, 0, pending);
+      } else {
+        byte[] bigger = new byte[Math.min(buffer.length * 2, maxLineBytes)];
+        System.arraycopy(buffer, 0, bigger, 0, pending);
+        buffer = bigger;
+      }
+      position = 0;
+      limit = pending;
+    }
+    int read = in.read(buffer, limit, buffer.length - limit);
+    if (read < 0) {
+      return false;
+    }
+    limit += read;
+    lastReceived = System.nanoTime();
+    return true;
+  }
+}
@@ -0,0 +1,596 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.commands.Server.Message;
+import ch.heigvd.dai.storage.WriteAheadLog;
+import ch.heigvd.dai.utils.CommandParser;
+import ch.heigvd.dai.utils.FrameParser;
+import ch.heigvd.dai.utils.Log;
+import ch.heigvd.dai.utils.Request;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Non-blocking server engine. The calling thread accepts the connections and hands them over in
+ * turn to a small number of event loops, each of them multiplexing its connections with a {@link
+ * Selector}. A connection only costs a few objects while it is idle: the bytes of a partially
+ * received line and the responses that could not be written yet are the only per-connection
+ * buffers.
+ *
+ * <p>A content downloaded in chunks is only encoded as fast as the client receives it: while the
+ * socket is full, the connection stops reading and keeps the requests it has already received until
+ * the last chunk is sent. A client pipelining requests without reading the responses is stopped the
+ * same way once {@link #MAX_PENDING_OUTPUT} bytes of responses wait for it.
+ *
+ * <p>With a log in {@link ch.heigvd.dai.storage.WriteAheadLog.Durability#SYNC} mode, the responses
+ * acknowledging changes are held by their connection until the log has forced the changes to the
+ * disk, the committer waking the loop up once it has: the loop never waits for the disk, and the
+ * sessions of all the loops share the same group commits.
+ *
+ * <p>The changes pushed to a session watching the notes are made by the threads of other sessions,
+ * which only hand the connection over to its event loop: the loop writes them once the responses
+ * already queued are sent, so that a client that does not read never holds up the others.
+ *
+ * <p>Each loop wakes up at least once per timeout period to close the connections whose client
+ * stayed silent for too long, those still sending responses to the client being left alone.
+ */
+public class NioEngine {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+  private static final int ACCEPT_BACKLOG = 1024;
+
+  /** Size of the pending responses above which they are sent before reading the next lines. */
+  private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+  /** Size of the responses waiting for the socket above which the connection stops reading. */
+  private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+  private final int port;
+  private final int eventLoops;
+  private final Semaphore sessions;
+  private final ServerContext context;
+  private final ServerMetrics metrics;
+
+  /**
+   * @param sessions The permits of the concurrent sessions, a connection arriving when none is left
+   *     is rejected.
+   */
+  public NioEngine(int port, int eventLoops, Semaphore sessions, ServerContext context) {
+    this.port = port;
+    this.eventLoops = eventLoops;
+    this.sessions = sessions;
+    this.context = context;
+    this.metrics = context.metrics();
+  }
+
+  /** Accepts connections until the server channel is closed. */
+  public void run() throws IOException {
+    EventLoop[] loops = new EventLoop[eventLoops];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+      Thread thread = new Thread(loops[i], "nio-event-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+      Log.info("[Server] " + eventLoops + " event loop(s) started");
+
+      int next = 0;
+      while (serverChannel.isOpen()) {
+        SocketChannel channel = serverChannel.accept();
+        if (!sessions.tryAcquire()) {
+          metrics.connectionRejected();
+          reject(channel);
+          continue;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        context.configure(channel.socket());
+        loops[next].register(channel);
+        next = (next + 1) % loops.length;
+      }
+    }
+  }
+
+  /** Tells a client that the server is full and closes its still blocking channel. */
+  private static void reject(SocketChannel channel) {
+    Log.warn("[SERVEUR] Too many sessions, rejecting " + channel.socket().getInetAddress());
+    try (channel) {
+      channel.write(
+          ByteBuffer.wrap(
+              (Message.ERROR + " " + Error.SERVER_BUSY.getCode() + "\n")
+                  .getBytes(StandardCharsets.UTF_8)));
+    } catch (IOException e) {
+      Log.warn("[SERVEUR] IOException: " + e);
+    }
+  }
+
+  /** State of one connection, only ever touched by the event loop owning it. */
+  private class Connection {
+    private final SocketChannel channel;
+    private final ClientHandler handler = new ClientHandler(context);
+
+    /**
+     * Bytes of a line whose terminator has not been received yet, or the bytes received while the
+     * connection is paused.
+     */
+    private byte[] partial;
+
+    private int partialLength;
+
+    /** Responses waiting for the socket to become writable again, in order. */
+    private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+
+    /** Responses waiting for the log to make the changes they acknowledge durable, in order. */
+    private final ArrayDeque<ByteBuffer> uncommittedOutput = new ArrayDeque<>();
+
+    /** The target of {@link WriteAheadLog#isDurable(long)} the uncommitted responses wait for. */
+    private long commitTarget;
+
+    /** Number of bytes left in {@link #pendingOutput} and {@link #uncommittedOutput}. */
+    private long pendingBytes;
+
+    /**
+     * Whether reading is suspended until the responses waiting for the socket, and the download in
+     * progress if any, have been sent.
+     */
+    private boolean paused;
+
+    private boolean closing;
+    private boolean closed;
+
+    /** When bytes were last received, in {@link System#nanoTime()}. */
+    private long lastReceived = System.nanoTime();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void appendPartial(byte[] src, int offset, int length) {
+      if (partial == null) {
+        partial = new byte[Math.max(length, 256)];
+      } else if (partialLength + length > partial.length) {
+        byte[] bigger = new byte[Math.max(partialLength + length, partial.length * 2)];
+        System.arraycopy(partial, 0, bigger, 0, partialLength);
+        partial = bigger;
+      }
+      System.arraycopy(src, offset, partial, partialLength, length);
+      partialLength += length;
+    }
+
+    void clearPartial() {
+      partial = null;
+      partialLength = 0;
+    }
+
+    boolean hasPendingOutput() {
+      return !pendingOutput.isEmpty() || !uncommittedOutput.isEmpty();
+    }
+  }
+
+  /** An event loop thread with its selector and the buffers shared by all its connections. */
+  private class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+
+    /** The connections with changes waiting to be pushed. */
+    private final Queue<Connection> pushes = new ConcurrentLinkedQueue<>();
+
+    /** The connections holding uncommitted responses, touched by the loop only. */
+    private final ArrayDeque<Connection> uncommitted = new ArrayDeque<>();
+
+    /** Set while connections hold uncommitted responses, for the committer to wake the loop up. */
+    private volatile boolean awaitingCommit;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final CommandParser parser = new CommandParser();
+    private final FrameParser frames = new FrameParser();
+    private final ResponseSink sink = new ResponseSink(READ_BUFFER_SIZE);
+    private final long timeoutTickMillis = context.timeoutTickMillis();
+
+    /** When the connections were last checked for timeouts, in {@link System#nanoTime()}. */
+    private long lastTimeoutCheck = System.nanoTime();
+
+    EventLoop() throws IOException {
+      this.selector = Selector.open();
+      if (context.log() != null) {
+        context
+            .log()
+            .onCommit(
+                () -> {
+                  if (awaitingCommit) selector.wakeup();
+                });
+      }
+    }
+
+    void register(SocketChannel channel) {
+      registrations.add(channel);
+      selector.wakeup();
+    }
+
+    /** Has the changes waiting for a connection written, from the thread that made them. */
+    void push(Connection connection) {
+      pushes.add(connection);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (selector.isOpen()) {
+        try {
+          selector.select(timeoutTickMillis);
+          acceptRegistrations();
+          closeTimedOut();
+          Connection pushed;
+          while ((pushed = pushes.poll()) != null) {
+            try {
+              writeEvents(pushed);
+            } catch (IOException e) {
+              Log.warn("[SERVEUR] IOException: " + e);
+              close(pushed.channel.keyFor(selector));
+            } catch (RuntimeException e) {
+              // A failing session must not stop the loop serving the others
+              Log.error("[SERVEUR] Session failed: " + e);
+              close(pushed.channel.keyFor(selector));
+            }
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isWritable()) {
+                writePending(key, connection);
+              }
+              if (key.isValid() && key.isReadable()) {
+                read(key, connection);
+              }
+            } catch (IOException e) {
+              Log.warn("[SERVEUR] IOException: " + e);
+              close(key);
+            } catch (RuntimeException e) {
+              Log.error("[SERVEUR] Session failed: " + e);
+              close(key);
+            }
+          }
+          releaseCommitted();
+        } catch (IOException e) {
+          Log.warn("[SERVEUR] IOException: " + e);
+        }
+      }
+    }
+
+    private void acceptRegistrations() throws IOException {
+      SocketChannel channel;
+      while ((channel = registrations.poll()) != null) {
+        Connection connection = new Connection(channel);
+        connection.handler.onEvents(() -> push(connection));
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        metrics.connectionOpened();
+        Log.info("[SERVEUR] New client connected from " + channel.getRemoteAddress());
+      }
+    }
+
+    /** Closes the connections whose client stayed silent for too long, once per period. */
+    private void closeTimedOut() {
+      long now = System.nanoTime();
+      if (timeoutTickMillis == 0 || now - lastTimeoutCheck < timeoutTickMillis * 1_000_000) {
+        return;
+      }
+      lastTimeoutCheck = now;
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+        if (!key.isValid() || connection.paused || connection.hasPendingOutput()) {
+          continue;
+        }
+        ClientHandler handler = connection.handler;
+        boolean midRequest = connection.partialLength > 0 || handler.payloadExpected() > 0;
+        if (context.timedOut(now - connection.lastReceived, midRequest, handler.watching())) {
+          Log.info("[SERVEUR] Client silent for too long, closing connection");
+          metrics.connectionTimedOut();
+          close(key);
+        }
+      }
+    }
+
+    private void read(SelectionKey key, Connection connection) throws IOException {
+      readBuffer.clear();
+      int read = connection.channel.read(readBuffer);
+      if (read < 0) {
+        Log.info("[SERVEUR] Connexion avec le client terminée");
+        close(key);
+        return;
+      }
+      connection.lastReceived = System.nanoTime();
+      metrics.bytesReceived(read);
+      consume(key, connection, readBuffer.array(), 0, readBuffer.position());
+    }
+
+    /**
+     * Handles the received bytes: the request lines and the chunks they announce. If a download
+     * fills the socket, the remaining bytes are kept until it is sent.
+     */
+    private void consume(SelectionKey key, Connection connection, byte[] bytes, int start, int end)
+        throws IOException {
+      ClientHandler handler = connection.handler;
+      int position = start;
+      while (position < end && !connection.closing) {
+        int expected = handler.payloadExpected();
+        if (expected > 0) {
+          int count = Math.min(expected, end - position);
+          handler.handlePayload(bytes, position, count);
+          position += count;
+          continue;
+        }
+
+        Request request;
+        boolean parsed;
+        if (handler.framed()) {
+          // The frame is parsed where it is if it was received at once, else from the partial
+          int length = frameLength(connection, bytes, position, end);
+          if (length > handler.maxFrameBytes()) {
+            Log.warn("[SERVEUR] Frame too long, closing connection");
+            connection.closing = true;
+            break;
+          }
+          if (connection.partial == null && length >= 0 && end - position >= 4 + length) {
+            parsed = frames.parse(bytes, position + 4, length);
+            position += 4 + length;
+          } else {
+            int wanted = length < 0 ? 4 : 4 + length;
+            int count = Math.min(wanted - connection.partialLength, end - position);
+            connection.appendPartial(bytes, position, count);
+            position += count;
+            if (connection.partialLength < wanted || length < 0) continue;
+            parsed = frames.parse(connection.partial, 4, length);
+            connection.clearPartial();
+          }
+          request = frames;
+        } else {
+          int newline = position;
+          while (newline < end && bytes[newline] != '\n') newline++;
+          if (newline == end) break;
+
+          if (connection.partial == null) {
+            parsed = parser.parse(bytes, position, newline - position);
+          } else {
+            connection.appendPartial(bytes, position, newline - position);
+            parsed = parser.parse(connection.partial, 0, connection.partialLength);
+            connection.clearPartial();
+          }
+          position = newline + 1;
+          request = parser;
+        }
+
+        if (parsed && !handler.handle(request, sink)) {
+          connection.closing = true;
+        }
+        if (handler.hasPendingDownload() && !sendDownload(key, connection)) {
+          pause(key, connection, bytes, position, end);
+          return;
+        }
+        if (sink.size() >= FLUSH_THRESHOLD) {
+          queueOutput(key, connection);
+        }
+        if (connection.pendingBytes >= MAX_PENDING_OUTPUT) {
+          // The client does not read its responses, the next requests wait until it does
+          if (sink.size() > 0) {
+            queueOutput(key, connection);
+          }
+          pause(key, connection, bytes, position, end);
+          return;
+        }
+      }
+
+      if (!connection.closing && position < end) {
+        if (!handler.framed() && connection.partialLength + end - position > MAX_LINE_BYTES) {
+          Log.warn("[SERVEUR] Line too long, closing connection");
+          connection.closing = true;
+        } else {
+          connection.appendPartial(bytes, position, end - position);
+        }
+      }
+
+      // Every complete line received has been handled, the responses are sent at once
+      if (sink.size() > 0) {
+        queueOutput(key, connection);
+      }
+      if (connection.closing && !connection.hasPendingOutput()) {
+        close(key);
+      }
+    }
+
+    /**
+     * Stops reading until the responses waiting for the socket are sent, keeping the bytes received
+     * but not handled yet.
+     */
+    private void pause(
+        SelectionKey key, Connection connection, byte[] bytes, int position, int end) {
+      connection.appendPartial(bytes, position, end - position);
+      connection.paused = true;
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return The length of the next frame, {@link Integer#MAX_VALUE} if it is invalid, or -1 if
+     *     its length has not been fully received yet.
+     */
+    private int frameLength(Connection connection, byte[] bytes, int position, int end) {
+      int length;
+      if (connection.partial == null) {
+        length = end - position >= 4 ? FrameParser.readInt(bytes, position) : -1;
+      } else {
+        length = connection.partialLength >= 4 ? FrameParser.readInt(connection.partial, 0) : -1;
+      }
+      return length < -1 ? Integer.MAX_VALUE : length;
+    }
+
+    /**
+     * Sends the chunks of the download in progress until the socket is full.
+     *
+     * @return true if the last chunk has been queued.
+     */
+    private boolean sendDownload(SelectionKey key, Connection connection) throws IOException {
+      ClientHandler handler = connection.handler;
+      while (handler.hasPendingDownload()) {
+        handler.continueDownload(sink);
+        queueOutput(key, connection);
+        if (connection.hasPendingOutput() && handler.hasPendingDownload()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Moves the responses of the sink to the connection, writing as much as possible now. The
+     * responses that do not fit in the socket, or wait for the log, are copied once behind those
+     * already waiting.
+     */
+    private void queueOutput(SelectionKey key, Connection connection) throws IOException {
+      metrics.bytesSent(sink.size());
+      long target = connection.handler.commitTarget();
+      if (target > 0 || !connection.uncommittedOutput.isEmpty()) {
+        if (connection.uncommittedOutput.isEmpty()) {
+          uncommitted.add(connection);
+        }
+        connection.commitTarget = Math.max(connection.commitTarget, target);
+        connection.pendingBytes += sink.size();
+        connection.uncommittedOutput.add(
+            ByteBuffer.allocate(sink.size()).put(sink.buffer(), 0, sink.size()).flip());
+        sink.reset();
+        return;
+      }
+      ByteBuffer direct = ByteBuffer.wrap(sink.buffer(), 0, sink.size());
+      if (!connection.hasPendingOutput()) {
+        connection.channel.write(direct);
+      }
+      if (direct.hasRemaining()) {
+        if (!connection.hasPendingOutput()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        connection.pendingBytes += direct.remaining();
+        connection.pendingOutput.add(ByteBuffer.allocate(direct.remaining()).put(direct).flip());
+      }
+      sink.reset();
+    }
+
+    private void writePending(SelectionKey key, Connection connection) throws IOException {
+      ByteBuffer head;
+      while ((head = connection.pendingOutput.peek()) != null) {
+        int written = connection.channel.write(head);
+        connection.pendingBytes -= written;
+        if (head.hasRemaining()) {
+          return;
+        }
+        connection.pendingOutput.poll();
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      if (!connection.uncommittedOutput.isEmpty()) {
+        // Sent by releaseCommitted() once the log has made them durable
+        return;
+      }
+      if (connection.paused) {
+        resume(key, connection);
+      } else if (connection.closing) {
+        close(key);
+      } else {
+        writeEvents(connection);
+      }
+    }
+
+    /**
+     * Sends the responses held by the connections whose changes the log has made durable. The
+     * committer wakes the loop up while {@link #awaitingCommit} is set, which is set before the log
+     * is checked so that a commit made meanwhile is never missed.
+     */
+    private void releaseCommitted() {
+      if (uncommitted.isEmpty()) {
+        return;
+      }
+      awaitingCommit = true;
+      // The connections held again while sending are checked at the next round
+      for (int count = uncommitted.size(); count > 0; count--) {
+        Connection connection = uncommitted.poll();
+        if (connection.closed) {
+          continue;
+        }
+        SelectionKey key = connection.channel.keyFor(selector);
+        try {
+          if (!context.log().isDurable(connection.commitTarget)) {
+            uncommitted.add(connection);
+            continue;
+          }
+          connection.pendingOutput.addAll(connection.uncommittedOutput);
+          connection.uncommittedOutput.clear();
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          writePending(key, connection);
+        } catch (IOException e) {
+          Log.warn("[SERVEUR] IOException: " + e);
+          close(key);
+        }
+      }
+      awaitingCommit = !uncommitted.isEmpty();
+    }
+
+    /**
+     * Writes the changes waiting to be pushed to a connection, unless responses are still waiting
+     * for the socket: they are written once these are sent, the waiting changes being coalesced or
+     * dropped meanwhile.
+     */
+    private void writeEvents(Connection connection) throws IOException {
+      if (connection.closing
+          || connection.closed
+          || connection.paused
+          || connection.hasPendingOutput()) {
+        return;
+      }
+      connection.handler.writeEvents(sink);
+      if (sink.size() > 0) {
+        queueOutput(connection.channel.keyFor(selector), connection);
+      }
+    }
+
+    /** Continues the paused download if any, then handles the bytes received meanwhile. */
+    private void resume(SelectionKey key, Connection connection) throws IOException {
+      if (!sendDownload(key, connection)) {
+        return;
+      }
+      connection.paused = false;
+      key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      byte[] received = connection.partial;
+      int length = connection.partialLength;
+      connection.clearPartial();
+      consume(key, connection, received, 0, length);
+    }
+
+    private void close(SelectionKey key) {
+      // No key once the channel is closed
+      if (key == null) return;
+      Connection connection = (Connection) key.attachment();
+      if (connection.closed) return;
+      connection.closed = true;
+      connection.handler.close();
+      sessions.release();
+      metrics.connectionClosed();
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        Log.warn("[SERVEUR] IOException: " + e);
+      }
+    }
+  }
+}
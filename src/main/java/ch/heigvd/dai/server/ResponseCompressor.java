@@ -0,0 +1,48 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.utils.DeflateCodec;
+
+/**
+ * Compresses the large responses of a connection that negotiated {@link DeflateCodec#CAPABILITY}.
+ * The encoders write a response uncompressed first, then replace it with its compressed form if it
+ * reached the threshold.
+ */
+class ResponseCompressor {
+  private final DeflateCodec codec;
+  private final int threshold;
+  private final ServerMetrics metrics;
+  private int compressedLength;
+
+  ResponseCompressor(DeflateCodec codec, int threshold, ServerMetrics metrics) {
+    this.codec = codec;
+    this.threshold = threshold;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Compresses the bytes written to a sink since a position, if there are at least as many as the
+   * threshold. They are then removed from the sink, and their compressed form is left in {@link
+   * #compressed()} for the encoder to write after its header.
+   *
+   * @return true if the bytes have been compressed.
+   */
+  boolean compress(ResponseSink out, int start) {
+    int length = out.size() - start;
+    if (length < threshold) {
+      return false;
+    }
+    long begin = System.nanoTime();
+    compressedLength = codec.deflate(out.buffer(), start, length);
+    metrics.compressed(length, compressedLength, System.nanoTime() - begin);
+    out.truncate(start);
+    return true;
+  }
+
+  byte[] compressed() {
+    return codec.output();
+  }
+
+  int compressedLength() {
+    return compressedLength;
+  }
+}
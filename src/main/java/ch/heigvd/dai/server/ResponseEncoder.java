@@ -0,0 +1,61 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import java.util.List;
+
+/**
+ * Writes the responses of the {@link ClientHandler} in the encoding negotiated by the client, so
+ * that the commands are implemented once for every encoding.
+ */
+interface ResponseEncoder {
+  /** Starts the response of a request, before any of the methods writing it. */
+  void begin(int requestId);
+
+  void ok(ResponseSink out);
+
+  void error(ResponseSink out, Error error);
+
+  /** Acknowledges an update made at an expected version, with the new version of the note. */
+  void updated(ResponseSink out, long version);
+
+  /** Writes the content of a note, under the lock of its user. */
+  void note(ResponseSink out, Note note);
+
+  /**
+   * Writes the contents of notes, in order, null for those not found, under the lock of their user.
+   */
+  void notes(ResponseSink out, List<Note> notes);
+
+  /**
+   * Writes the results of the operations of a batch.
+   *
+   * @param results For each operation the version it made, or the negative code of its error.
+   */
+  void batch(ResponseSink out, long[] results);
+
+  /** Writes the titles of notes, in order. */
+  void list(ResponseSink out, List<Note> notes);
+
+  /** Writes the version, the number of notes and the titles of a page of them. */
+  void page(ResponseSink out, User.Page page);
+
+  /** Writes the current version and the changes made since the one asked for. */
+  void changes(ResponseSink out, User.Changes changes);
+
+  /** Writes the notes found by a search, in order. */
+  void results(ResponseSink out, List<User.Hit> hits);
+
+  /** Writes the counters of the server, as {@code name value} lines. */
+  void stats(ResponseSink out, String stats);
+
+  /**
+   * Writes a change pushed to a session watching the notes, outside of any response. It may be
+   * called from another thread than the requests, between their responses.
+   */
+  void event(ResponseSink out, WatchQueue.Event event);
+
+  /** Writes part of a content sent in chunks, an empty chunk ending it. */
+  void chunk(ResponseSink out, byte[] bytes, int offset, int length);
+}
@@ -0,0 +1,86 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.model.Note;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * In-memory sink the responses are written to until the engine sends them, giving access to its
+ * internal buffer to avoid copying them.
+ */
+public class ResponseSink extends ByteArrayOutputStream {
+  ResponseSink(int size) {
+    super(size);
+  }
+
+  byte[] buffer() {
+    return buf;
+  }
+
+  /** Writes a big-endian integer. */
+  void writeInt(int value) {
+    if (buf.length - count < 4) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + 4));
+    }
+    setInt(count, value);
+    count += 4;
+  }
+
+  /** Writes a big-endian long integer. */
+  void writeLong(long value) {
+    writeInt((int) (value >>> 32));
+    writeInt((int) value);
+  }
+
+  /** Overwrites an integer written earlier, such as a length known once what follows is written. */
+  void setInt(int position, int value) {
+    buf[position] = (byte) (value >>> 24);
+    buf[position + 1] = (byte) (value >>> 16);
+    buf[position + 2] = (byte) (value >>> 8);
+    buf[position + 3] = (byte) value;
+  }
+
+  /** Overwrites a byte written earlier. */
+  void setByte(int position, int value) {
+    buf[position] = (byte) value;
+  }
+
+  /** Drops the bytes written after a position. */
+  void truncate(int size) {
+    count = size;
+  }
+
+  /** Writes a string in UTF-8, without an intermediate array for its ASCII prefix. */
+  public void print(String text) {
+    int length = text.length();
+    if (buf.length - count < length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+    }
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        writeBytes(text.substring(i).getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      buf[count++] = (byte) c;
+    }
+  }
+
+  /**
+   * Writes the content of a note in UTF-8. A content kept off-heap is copied as is, without being
+   * decoded. The caller holds the lock of the user of the note.
+   */
+  void printContent(Note note) {
+    int length = note.contentBytes();
+    if (length < 0) {
+      print(note.getContent());
+      return;
+    }
+    if (buf.length - count < length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+    }
+    note.copyContent(buf, count);
+    count += length;
+  }
+}
@@ -0,0 +1,85 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.model.UserRegistry;
+import ch.heigvd.dai.storage.WriteAheadLog;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketOption;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * What the sessions of a server share.
+ *
+ * @param users The users and their notes.
+ * @param log The log the changes are made durable with, or null if they are kept in memory only.
+ * @param metrics The counters of the server.
+ * @param maxContentBytes The longest note content accepted, in UTF-8 bytes.
+ * @param compressionThreshold The size from which the responses are compressed for the clients that
+ *     asked for it, in bytes.
+ * @param idleTimeoutMillis How long a session not watching the notes may stay without sending a
+ *     request before its connection is closed, 0 for ever.
+ * @param readTimeoutMillis How long the rest of a request that started to arrive may keep the
+ *     connection waiting, 0 for ever.
+ * @param keepAliveSeconds How long a connection may stay silent before the system checks that the
+ *     client is still there, 0 to never check.
+ */
+public record ServerContext(
+    UserRegistry users,
+    WriteAheadLog log,
+    ServerMetrics metrics,
+    int maxContentBytes,
+    int compressionThreshold,
+    int compressionLevel,
+    long idleTimeoutMillis,
+    long readTimeoutMillis,
+    int keepAliveSeconds) {
+
+  /** Number of unanswered probes after which the system considers the client gone. */
+  private static final int KEEPALIVE_PROBES = 4;
+
+  /**
+   * @return The period at which the silent connections are checked against the timeouts, 0 if
+   *     there is no timeout.
+   */
+  long timeoutTickMillis() {
+    if (idleTimeoutMillis == 0 || readTimeoutMillis == 0) {
+      return Math.max(idleTimeoutMillis, readTimeoutMillis);
+    }
+    return Math.min(idleTimeoutMillis, readTimeoutMillis);
+  }
+
+  /**
+   * Tells whether a silent connection has timed out.
+   *
+   * @param silentNanos How long nothing was received from the client.
+   * @param midRequest Whether a part of a request was received.
+   * @param watching Whether the session waits for the changes of the notes, the idle timeout not
+   *     applying to it.
+   */
+  boolean timedOut(long silentNanos, boolean midRequest, boolean watching) {
+    long timeout = midRequest ? readTimeoutMillis : watching ? 0 : idleTimeoutMillis;
+    return timeout > 0 && silentNanos >= timeout * 1_000_000;
+  }
+
+  /**
+   * Enables the TCP keepalive of an accepted connection, with the system probing the client after
+   * {@link #keepAliveSeconds} of silence where it lets it be configured.
+   */
+  public void configure(Socket socket) throws IOException {
+    if (keepAliveSeconds <= 0) {
+      return;
+    }
+    socket.setKeepAlive(true);
+    set(socket, ExtendedSocketOptions.TCP_KEEPIDLE, keepAliveSeconds);
+    set(socket, ExtendedSocketOptions.TCP_KEEPINTERVAL, Math.max(1, keepAliveSeconds / 4));
+    set(socket, ExtendedSocketOptions.TCP_KEEPCOUNT, KEEPALIVE_PROBES);
+  }
+
+  private static void set(Socket socket, SocketOption<Integer> option, int value)
+      throws IOException {
+    // The system defaults are kept where the option is not supported
+    if (socket.supportedOptions().contains(option)) {
+      socket.setOption(option, value);
+    }
+  }
+}
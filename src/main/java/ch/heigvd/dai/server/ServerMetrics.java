@@ -0,0 +1,191 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Client;
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.model.ContentArena;
+import ch.heigvd.dai.model.ContentCache;
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.UserRegistry;
+import ch.heigvd.dai.utils.LatencyHistogram;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the server, updated by the engines and the client handlers without locking and read
+ * by the STATS command and the periodic statistics file.
+ */
+public class ServerMetrics {
+  private static final Client.Command[] COMMANDS = Client.Command.values();
+  private static final Error[] ERRORS = Error.values();
+
+  private final long startedAt = System.nanoTime();
+
+  /** Requests and their latency by command, the last slot counting the unknown commands. */
+  private final LongAdder[] requests = new LongAdder[COMMANDS.length + 1];
+
+  private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length + 1];
+  private final LongAdder[] errors = new LongAdder[ERRORS.length];
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+  private final LongAdder connectionsRejected = new LongAdder();
+  private final LongAdder connectionsTimedOut = new LongAdder();
+  private final LongAdder compressionRaw = new LongAdder();
+  private final LongAdder compressionDeflated = new LongAdder();
+  private final LongAdder compressionNanos = new LongAdder();
+  private final LongAdder watchersStarted = new LongAdder();
+  private final LongAdder watchersStopped = new LongAdder();
+  private final LongAdder eventsSent = new LongAdder();
+  private final LongAdder eventsCoalesced = new LongAdder();
+  private final LongAdder eventsDropped = new LongAdder();
+
+  public ServerMetrics() {
+    for (int i = 0; i < requests.length; i++) {
+      requests[i] = new LongAdder();
+      latencies[i] = new LatencyHistogram();
+    }
+    for (int i = 0; i < errors.length; i++) {
+      errors[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Counts a handled request.
+   *
+   * @param command The command of the request, null if it was unknown.
+   * @param nanos The time taken to handle it.
+   */
+  public void requestHandled(Client.Command command, long nanos) {
+    int slot = command == null ? COMMANDS.length : command.ordinal();
+    requests[slot].increment();
+    latencies[slot].record(nanos);
+  }
+
+  public void errorSent(Error error) {
+    errors[error.ordinal()].increment();
+  }
+
+  public void bytesReceived(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void bytesSent(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  public void connectionOpened() {
+    connectionsOpened.increment();
+  }
+
+  public void connectionClosed() {
+    connectionsClosed.increment();
+  }
+
+  public void connectionRejected() {
+    connectionsRejected.increment();
+  }
+
+  /** Counts a connection closed because the client stayed silent for too long. */
+  public void connectionTimedOut() {
+    connectionsTimedOut.increment();
+  }
+
+  /**
+   * Counts data compressed or decompressed for a connection that negotiated compression.
+   *
+   * @param raw The length of the data uncompressed.
+   * @param deflated The length of the data compressed.
+   * @param nanos The time taken to compress or decompress it.
+   */
+  public void compressed(long raw, long deflated, long nanos) {
+    compressionRaw.add(raw);
+    compressionDeflated.add(deflated);
+    compressionNanos.add(nanos);
+  }
+
+  public void watchStarted() {
+    watchersStarted.increment();
+  }
+
+  public void watchStopped() {
+    watchersStopped.increment();
+  }
+
+  public void eventsSent(long count) {
+    eventsSent.add(count);
+  }
+
+  /** Counts the events replaced by a later change of the same note before being sent. */
+  public void eventsCoalesced(long count) {
+    eventsCoalesced.add(count);
+  }
+
+  /** Counts the events dropped because a watching session did not keep up. */
+  public void eventsDropped(long count) {
+    eventsDropped.add(count);
+  }
+
+  /**
+   * Writes the counters as {@code <name> <value>} lines. The latencies are in microseconds.
+   *
+   * @param users The users known to the server.
+   */
+  public void writeTo(Writer out, UserRegistry users) throws IOException {
+    long opened = connectionsOpened.sum();
+    out.write("uptime_s " + (System.nanoTime() - startedAt) / 1_000_000_000 + "\n");
+    out.write("connections.active " + (opened - connectionsClosed.sum()) + "\n");
+    out.write("connections.total " + opened + "\n");
+    out.write("connections.rejected " + connectionsRejected.sum() + "\n");
+    out.write("connections.timed_out " + connectionsTimedOut.sum() + "\n");
+    out.write("users " + users.size() + "\n");
+    out.write("users.hibernating " + users.hibernating() + "\n");
+    out.write("users.hibernations " + users.hibernations() + "\n");
+    out.write("users.wakeups " + users.wakeups() + "\n");
+    out.write("bytes.in " + bytesIn.sum() + "\n");
+    out.write("bytes.out " + bytesOut.sum() + "\n");
+    out.write("compression.raw_bytes " + compressionRaw.sum() + "\n");
+    out.write("compression.deflated_bytes " + compressionDeflated.sum() + "\n");
+    out.write("compression.cpu_us " + micros(compressionNanos.sum()) + "\n");
+    out.write("watchers.active " + (watchersStarted.sum() - watchersStopped.sum()) + "\n");
+    out.write("events.sent " + eventsSent.sum() + "\n");
+    out.write("events.coalesced " + eventsCoalesced.sum() + "\n");
+    out.write("events.dropped " + eventsDropped.sum() + "\n");
+    ContentArena arena = Note.arena();
+    if (arena != null) {
+      out.write("contents.offheap_used_bytes " + arena.usedBytes() + "\n");
+      out.write("contents.offheap_reserved_bytes " + arena.reservedBytes() + "\n");
+    }
+    ContentCache cache = Note.cache();
+    if (cache != null) {
+      out.write("cache.budget_bytes " + cache.budget() + "\n");
+      out.write("cache.resident_bytes " + cache.residentBytes() + "\n");
+      out.write("cache.spilled_bytes " + cache.spilledBytes() + "\n");
+      out.write("cache.file_bytes " + cache.fileBytes() + "\n");
+      out.write("cache.hits " + cache.hits() + "\n");
+      out.write("cache.misses " + cache.misses() + "\n");
+      out.write("cache.evictions " + cache.evictions() + "\n");
+    }
+    for (int i = 0; i < requests.length; i++) {
+      long count = requests[i].sum();
+      if (count == 0) continue;
+      String name = "requests." + (i < COMMANDS.length ? COMMANDS[i] : "UNKNOWN");
+      LatencyHistogram latency = latencies[i];
+      out.write(name + ".count " + count + "\n");
+      out.write(name + ".mean_us " + micros((long) latency.mean()) + "\n");
+      out.write(name + ".p50_us " + micros(latency.percentile(50)) + "\n");
+      out.write(name + ".p99_us " + micros(latency.percentile(99)) + "\n");
+      out.write(name + ".p999_us " + micros(latency.percentile(99.9)) + "\n");
+      out.write(name + ".max_us " + micros(latency.max()) + "\n");
+    }
+    for (Error error : ERRORS) {
+      out.write("errors." + error + " " + errors[error.ordinal()].sum() + "\n");
+    }
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+  }
+}
@@ -0,0 +1,173 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import java.util.List;
+
+/**
+ * Encodes the responses as the lines of the text protocol. With compression, a large note or list
+ * is sent as {@code ZNOTE <length>} or {@code ZLIST <length>} followed by the compressed bytes of
+ * the exact content or of the lines of the list.
+ */
+class TextResponseEncoder implements ResponseEncoder {
+  static final TextResponseEncoder INSTANCE = new TextResponseEncoder(null);
+
+  private final ResponseCompressor compressor;
+
+  /**
+   * @param compressor The compressor of the connection, null without compression.
+   */
+  TextResponseEncoder(ResponseCompressor compressor) {
+    this.compressor = compressor;
+  }
+
+  @Override
+  public void begin(int requestId) {
+    // The responses of the text protocol are matched to the requests by their order
+  }
+
+  @Override
+  public void ok(ResponseSink out) {
+    out.print("OK\n");
+  }
+
+  @Override
+  public void updated(ResponseSink out, long version) {
+    out.print("OK " + version + "\n");
+  }
+
+  @Override
+  public void error(ResponseSink out, Error error) {
+    out.print("ERROR " + error.getCode() + "\n");
+  }
+
+  @Override
+  public void note(ResponseSink out, Note note) {
+    if (compressor != null) {
+      int start = out.size();
+      out.printContent(note);
+      if (compressor.compress(out, start)) {
+        writeCompressed(out, "ZNOTE ");
+        return;
+      }
+      out.truncate(start);
+    }
+    int start = out.size();
+    out.print("NOTE ");
+    out.printContent(note);
+    // A content uploaded in chunks may hold line breaks, they would end the response early. The
+    // client is told to download it rather than given a content it could not tell from the exact
+    // one. No other UTF-8 sequence holds their byte.
+    byte[] bytes = out.buffer();
+    for (int i = start; i < out.size(); i++) {
+      if (bytes[i] == '\n') {
+        out.truncate(start);
+        error(out, Error.MULTILINE_CONTENT);
+        return;
+      }
+    }
+    out.print("\n");
+  }
+
+  @Override
+  public void notes(ResponseSink out, List<Note> notes) {
+    out.print("NOTES " + notes.size() + "\n");
+    for (Note note : notes) {
+      if (note == null) {
+        error(out, Error.NOTE_NOT_FOUND);
+      } else {
+        note(out, note);
+      }
+    }
+  }
+
+  @Override
+  public void batch(ResponseSink out, long[] results) {
+    out.print("BATCH " + results.length + "\n");
+    for (long result : results) {
+      out.print(result > 0 ? "OK " + result + "\n" : "ERROR " + result + "\n");
+    }
+  }
+
+  @Override
+  public void list(ResponseSink out, List<Note> notes) {
+    int start = out.size();
+    int index = 1;
+    for (Note note : notes) {
+      out.print(index + " " + note.getTitle() + "\n");
+      index++;
+    }
+    out.print("\n");
+    if (compressor != null && compressor.compress(out, start)) {
+      writeCompressed(out, "ZLIST ");
+    }
+  }
+
+  @Override
+  public void page(ResponseSink out, User.Page page) {
+    out.print("VERSION " + page.version() + " " + page.total() + "\n");
+    int index = page.offset() + 1;
+    for (Note note : page.notes()) {
+      out.print(
+          index + " #" + note.getId() + " " + note.getVersion() + " " + note.getTitle() + "\n");
+      index++;
+    }
+    out.print("\n");
+  }
+
+  @Override
+  public void changes(ResponseSink out, User.Changes changes) {
+    out.print("VERSION " + changes.version() + "\n");
+    for (User.Change change : changes.changes()) {
+      out.print(
+          change.kind() + " " + change.index() + " #" + change.id() + " " + change.title() + "\n");
+    }
+    out.print("\n");
+  }
+
+  @Override
+  public void results(ResponseSink out, List<User.Hit> hits) {
+    // The lines of a page, with the positions of the notes found
+    for (User.Hit hit : hits) {
+      out.print(hit.index() + " #" + hit.id() + " " + hit.title() + "\n");
+    }
+    out.print("\n");
+  }
+
+  @Override
+  public void stats(ResponseSink out, String stats) {
+    // Followed by an empty line like the list of notes
+    out.print(stats);
+    out.print("\n");
+  }
+
+  @Override
+  public void event(ResponseSink out, WatchQueue.Event event) {
+    if (event.kind() == WatchQueue.Kind.RESYNC) {
+      out.print("EVENT RESYNC " + event.version() + "\n");
+    } else {
+      out.print(
+          "EVENT "
+              + event.kind()
+              + " #"
+              + event.id()
+              + " "
+              + event.version()
+              + " "
+              + event.title()
+              + "\n");
+    }
+  }
+
+  private void writeCompressed(ResponseSink out, String header) {
+    out.print(header + compressor.compressedLength() + "\n");
+    out.write(compressor.compressed(), 0, compressor.compressedLength());
+  }
+
+  @Override
+  public void chunk(ResponseSink out, byte[] bytes, int offset, int length) {
+    out.print("CHUNK " + length + "\n");
+    out.write(bytes, offset, length);
+  }
+}
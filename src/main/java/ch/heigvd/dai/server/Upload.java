@@ -0,0 +1,142 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.model.Note;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Content of a note being received in chunks. It is kept as UTF-8 bytes until the last chunk, and
+ * the bytes beyond the maximum content size are dropped as they arrive. A compressed content is
+ * decompressed as its chunks arrive, the maximum size applying to the decompressed bytes.
+ */
+class Upload {
+  private final Note note;
+  private final int maxBytes;
+  private final Inflater inflater;
+  private Error error;
+  private byte[] bytes = new byte[0];
+  private int length;
+
+  /** Bytes of the current chunk that have not been received yet. */
+  private int chunkRemaining;
+
+  /** Bytes received in the chunks, compressed or not. */
+  private long received;
+
+  private long inflateNanos;
+
+  /**
+   * @param note The note to update, null if the request designates none.
+   * @param error The error to answer once all the chunks are received, null if none yet.
+   * @param inflater The inflater decompressing the chunks, reset, or null if they are not
+   *     compressed.
+   */
+  Upload(Note note, Error error, int maxBytes, Inflater inflater) {
+    this.note = note;
+    this.error = error;
+    this.maxBytes = maxBytes;
+    this.inflater = inflater;
+  }
+
+  Note note() {
+    return note;
+  }
+
+  /**
+   * @return The error to answer, checking that a compressed content is complete.
+   */
+  Error error() {
+    if (error == null && inflater != null && !inflater.finished()) {
+      error = Error.INVALID_COMMAND;
+    }
+    return error;
+  }
+
+  byte[] bytes() {
+    return bytes;
+  }
+
+  int length() {
+    return length;
+  }
+
+  int chunkRemaining() {
+    return chunkRemaining;
+  }
+
+  boolean compressed() {
+    return inflater != null;
+  }
+
+  long received() {
+    return received;
+  }
+
+  long inflateNanos() {
+    return inflateNanos;
+  }
+
+  void startChunk(int size) {
+    chunkRemaining = size;
+  }
+
+  void append(byte[] src, int offset, int count) {
+    chunkRemaining -= count;
+    received += count;
+    if (error != null) {
+      return;
+    }
+    if (inflater != null) {
+      inflate(src, offset, count);
+      return;
+    }
+    if (length + count > maxBytes) {
+      tooLarge();
+      return;
+    }
+    if (length + count > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.min(Math.max(bytes.length * 2, length + count), maxBytes));
+    }
+    System.arraycopy(src, offset, bytes, length, count);
+    length += count;
+  }
+
+  private void inflate(byte[] src, int offset, int count) {
+    long start = System.nanoTime();
+    inflater.setInput(src, offset, count);
+    try {
+      while (!inflater.finished() && !inflater.needsInput()) {
+        if (length == bytes.length) {
+          if (length > maxBytes) {
+            tooLarge();
+            return;
+          }
+          // One byte of room beyond the maximum tells a content ending there from a longer one
+          bytes =
+              Arrays.copyOf(
+                  bytes, (int) Math.min(Math.max(bytes.length * 2L, 8192), maxBytes + 1L));
+        }
+        int inflated = inflater.inflate(bytes, length, bytes.length - length);
+        if (inflated == 0 && inflater.needsDictionary()) {
+          throw new DataFormatException("Preset dictionaries are not supported");
+        }
+        length += inflated;
+      }
+      if (length > maxBytes) {
+        tooLarge();
+      }
+    } catch (DataFormatException e) {
+      error = Error.INVALID_COMMAND;
+      bytes = null;
+    } finally {
+      inflateNanos += System.nanoTime() - start;
+    }
+  }
+
+  private void tooLarge() {
+    error = Error.CONTENT_TOO_LARGE;
+    bytes = null;
+  }
+}
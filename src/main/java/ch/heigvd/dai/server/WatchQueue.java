@@ -0,0 +1,178 @@
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.NoteListener;
+import ch.heigvd.dai.model.User;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Events of the notes of a user waiting to be pushed to a session that watches them. The sessions
+ * changing the notes fill it while they hold the write lock of the user, so adding an event never
+ * waits for the watching session: the queue is bounded, a rename or a change of the content of a
+ * note replaces the one still waiting for it, and once the queue is full its events are all dropped
+ * for a single {@link Kind#RESYNC} telling the client to catch up with {@code CHANGES_SINCE}.
+ */
+class WatchQueue implements NoteListener {
+  /** Largest number of events waiting to be sent. */
+  static final int CAPACITY = 256;
+
+  enum Kind {
+    CREATED,
+    DELETED,
+    RENAMED,
+    /** The content of the note changed. */
+    CHANGED,
+    /** Events were dropped, only the version is set. */
+    RESYNC
+  }
+
+  /**
+   * A change of a note.
+   *
+   * @param kind What happened to the note.
+   * @param id The identifier of the note.
+   * @param version The version of the user once changed.
+   * @param title The title of the note, the new one for a rename.
+   */
+  record Event(Kind kind, long id, long version, String title) {}
+
+  private final ServerMetrics metrics;
+
+  /** Called when an event is added to the empty queue, from the thread of the change. */
+  private final Runnable notifier;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition queued = lock.newCondition();
+  private final ArrayDeque<Event> events = new ArrayDeque<>();
+
+  /** The last event waiting for each note, which a change of the same kind replaces. */
+  private final Map<Long, Event> waiting = new HashMap<>();
+
+  /** The version of the last dropped event, -1 if none was dropped since the queue was drained. */
+  private long resync = -1;
+
+  private boolean closed;
+
+  /**
+   * @param notifier Called when an event is added to the empty queue, from the thread changing the
+   *     notes, null if the events are only awaited with {@link #await}.
+   */
+  WatchQueue(ServerMetrics metrics, Runnable notifier) {
+    this.metrics = metrics;
+    this.notifier = notifier;
+  }
+
+  @Override
+  public void noteCreated(User user, Note note) {
+    add(Kind.CREATED, user, note);
+  }
+
+  @Override
+  public void noteDeleted(User user, Note note) {
+    add(Kind.DELETED, user, note);
+  }
+
+  @Override
+  public void titleChanged(User user, Note note, String oldTitle) {
+    add(Kind.RENAMED, user, note);
+  }
+
+  @Override
+  public void contentChanged(User user, Note note) {
+    add(Kind.CHANGED, user, note);
+  }
+
+  /**
+   * Takes the waiting events, oldest first.
+   *
+   * @return The events, or a single {@link Kind#RESYNC} if some were dropped.
+   */
+  List<Event> drain() {
+    lock.lock();
+    try {
+      List<Event> drained;
+      if (resync >= 0) {
+        drained = List.of(new Event(Kind.RESYNC, 0, resync, ""));
+        resync = -1;
+      } else {
+        drained = new ArrayList<>(events);
+      }
+      events.clear();
+      waiting.clear();
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until events are waiting or the queue is closed.
+   *
+   * @return false if the queue has been closed.
+   */
+  boolean await() {
+    lock.lock();
+    try {
+      while (events.isEmpty() && resync < 0 && !closed) {
+        queued.awaitUninterruptibly();
+      }
+      return !closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Stops {@link #await}, once the session ends. */
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      queued.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void add(Kind kind, User user, Note note) {
+    Event event = new Event(kind, note.getId(), user.getVersion(), note.getTitle());
+    boolean first;
+    lock.lock();
+    try {
+      if (resync >= 0) {
+        resync = event.version();
+        metrics.eventsDropped(1);
+        return;
+      }
+      Event last = waiting.get(event.id());
+      if (last != null
+          && last.kind() == kind
+          && (kind == Kind.CHANGED || kind == Kind.RENAMED)
+          && events.removeLastOccurrence(last)) {
+        // Only the last state of the note is sent, moved to the end so the versions stay ordered
+        metrics.eventsCoalesced(1);
+      } else if (events.size() == CAPACITY) {
+        metrics.eventsDropped(events.size() + 1);
+        events.clear();
+        waiting.clear();
+        resync = event.version();
+        queued.signal();
+        return;
+      }
+      first = events.isEmpty();
+      events.addLast(event);
+      waiting.put(event.id(), event);
+      queued.signal();
+    } finally {
+      lock.unlock();
+    }
+    if (first && notifier != null) {
+      notifier.run();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package ch.heigvd.dai.storage;
+
+import ch.heigvd.dai.model.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The notes of the hibernating users, one file per user in a directory. A file holds the user as a
+ * {@link Snapshot} does, followed by the crc32 of its bytes. Its name is a number rather than the
+ * name of the user, which may not be a valid file name.
+ *
+ * <p>The files only hold copies, the notes being persisted by the log and the snapshots: they are
+ * deleted when the directory is opened and when it is closed.
+ */
+public class HibernationDirectory implements Hibernation, Closeable {
+  private static final String SUFFIX = ".user";
+
+  private final Path directory;
+
+  /** The file of each user that hibernated since the directory was opened. */
+  private final ConcurrentHashMap<String, Path> files = new ConcurrentHashMap<>();
+
+  private final AtomicLong lastFile = new AtomicLong();
+
+  private HibernationDirectory(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Opens a directory, creating it if needed and deleting the files left by a previous run.
+   *
+   * @param directory The directory.
+   */
+  public static HibernationDirectory open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    deleteFiles(directory);
+    return new HibernationDirectory(directory);
+  }
+
+  @Override
+  public void save(User.State state) throws IOException {
+    Path file =
+        files.computeIfAbsent(
+            state.name(),
+            name ->
+                directory.resolve(String.format("%016d%s", lastFile.incrementAndGet(), SUFFIX)));
+    try (CheckedOutputStream checked =
+            new CheckedOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), 1 << 16), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked)) {
+      Snapshot.writeState(out, state);
+      out.writeInt((int) checked.getChecksum().getValue());
+    }
+  }
+
+  @Override
+  public User.State load(String name) throws IOException {
+    Path file = files.get(name);
+    if (file == null) {
+      throw new FileNotFoundException("No notes saved for the user " + name);
+    }
+    try (CheckedInputStream checked =
+            new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked)) {
+      String saved = readString(in);
+      long version = in.readLong();
+      long lastId = in.readLong();
+      int count = in.readInt();
+      List<Note> notes = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        long id = in.readLong();
+        long noteVersion = in.readLong();
+        notes.add(new Note(id, noteVersion, readString(in), readString(in)));
+      }
+      int checksum = (int) checked.getChecksum().getValue();
+      if (!saved.equals(name) || in.readInt() != checksum) {
+        throw new IOException("Corrupted notes of the hibernating user " + name + ": " + file);
+      }
+      return new User.State(name, version, lastId, notes);
+    }
+  }
+
+  @Override
+  public void delete(String name) throws IOException {
+    Path file = files.remove(name);
+    if (file != null) {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /** Deletes the files and the directory, once no user can wake anymore. */
+  @Override
+  public void close() throws IOException {
+    files.clear();
+    deleteFiles(directory);
+    Files.deleteIfExists(directory);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void deleteFiles(Path directory) throws IOException {
+    try (Stream<Path> list = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) list::iterator) {
+        if (file.getFileName().toString().endsWith(SUFFIX)) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package ch.heigvd.dai.storage;
+
+import ch.heigvd.dai.model.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary copy of the notes of every user, written next to the {@link WriteAheadLog} so that a
+ * restart only replays the log segments written after it.
+ *
+ * <p>A snapshot is named after the first log segment that is not contained in it. It is written
+ * user by user from {@link User#capture()}, so the writers of the other users never wait for it.
+ * The changes made to a user after its capture are in the log segments kept with the snapshot.
+ *
+ * <p>Layout: {@code [magic][version][segment]}, then for each user {@code [1][name][version][last
+ * id][note count]} followed by the {@code [id][version][title][content]} of its notes, then {@code
+ * [0][crc32]}. Strings are length-prefixed UTF-8. The snapshots of version 1, written before the
+ * notes had identifiers, and of version 2, written before they had versions, are still read.
+ */
+public class Snapshot {
+  private static final Pattern FILE_NAME = Pattern.compile("snapshot-(\\d{16})\\.snap");
+  private static final byte[] MAGIC = {'N', 'T', 'S', 'N'};
+  private static final byte VERSION = 3;
+
+  /** Version of the snapshots without the identifiers of the notes. */
+  private static final byte VERSION_WITHOUT_IDS = 1;
+
+  /** Version of the snapshots without the versions of the notes. */
+  private static final byte VERSION_WITHOUT_NOTE_VERSIONS = 2;
+
+  /** Size of the parts of the file mapped at once when loading. */
+  private static final int MAPPING_WINDOW = 1 << 30;
+
+  private Snapshot() {}
+
+  /**
+   * Writes a snapshot of all the users, replacing the older snapshots once it is on the disk.
+   *
+   * @param directory The data directory.
+   * @param segment The first log segment whose changes may not be contained in the snapshot.
+   * @param users The users to save.
+   * @return The number of saved notes.
+   */
+  public static long write(Path directory, long segment, UserRegistry users) throws IOException {
+    Path temporary = directory.resolve(String.format("snapshot-%016d.tmp", segment));
+    long notes = 0;
+    try (FileChannel channel =
+            FileChannel.open(
+                temporary,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        CheckedOutputStream checked =
+            new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked)) {
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      out.writeLong(segment);
+      for (User user : users.users()) {
+        User.State state = user.capture();
+        out.writeByte(1);
+        writeState(out, state);
+        notes += state.notes().size();
+      }
+      out.writeByte(0);
+      out.writeInt((int) checked.getChecksum().getValue());
+      out.flush();
+      channel.force(true);
+    }
+
+    Path file = directory.resolve(String.format("snapshot-%016d.snap", segment));
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    forceDirectory(directory);
+    for (long older : snapshots(directory)) {
+      if (older < segment) {
+        Files.deleteIfExists(directory.resolve(String.format("snapshot-%016d.snap", older)));
+      }
+    }
+    return notes;
+  }
+
+  /**
+   * Restores the users from the latest snapshot of a directory, if any. The file is memory-mapped
+   * instead of being read through a buffer.
+   *
+   * @param directory The data directory.
+   * @param users The registry the users are restored in.
+   * @return The first log segment to replay after the snapshot, 0 if there is no snapshot.
+   */
+  public static long load(Path directory, UserRegistry users) throws IOException {
+    List<Long> snapshots = snapshots(directory);
+    if (snapshots.isEmpty()) {
+      return 0;
+    }
+    long segment = snapshots.get(snapshots.size() - 1);
+    Path file = directory.resolve(String.format("snapshot-%016d.snap", segment));
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedInput in = new MappedInput(channel);
+      in.verifyChecksum();
+
+      for (byte b : MAGIC) {
+        if (in.readByte() != b) {
+          throw new IOException("Not a No-Tion snapshot: " + file);
+        }
+      }
+      byte version = in.readByte();
+      if (version != VERSION
+          && version != VERSION_WITHOUT_IDS
+          && version != VERSION_WITHOUT_NOTE_VERSIONS) {
+        throw new IOException("Unsupported snapshot version: " + file);
+      }
+      boolean ids = version != VERSION_WITHOUT_IDS;
+      boolean noteVersions = version == VERSION;
+      if (in.readLong() != segment) {
+        throw new IOException("Snapshot does not match its name: " + file);
+      }
+      while (in.readByte() == 1) {
+        String name = in.readString();
+        long userVersion = in.readLong();
+        // Without identifiers, the notes get new ones when they are restored
+        long lastId = ids ? in.readLong() : 0;
+        int count = in.readInt();
+        List<Note> notes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          long id = ids ? in.readLong() : 0;
+          long noteVersion = noteVersions ? in.readLong() : 0;
+          notes.add(new Note(id, noteVersion, in.readString(), in.readString()));
+        }
+        users.getOrCreate(name).restore(new User.State(name, userVersion, lastId, notes));
+      }
+    }
+    return segment;
+  }
+
+  /**
+   * Writes the {@code [name][version][last id][note count]} of a user followed by the {@code
+   * [id][version][title][content]} of its notes.
+   */
+  static void writeState(DataOutputStream out, User.State state) throws IOException {
+    writeString(out, state.name());
+    out.writeLong(state.version());
+    out.writeLong(state.lastId());
+    out.writeInt(state.notes().size());
+    for (Note note : state.notes()) {
+      out.writeLong(note.getId());
+      out.writeLong(note.getVersion());
+      writeString(out, note.getTitle());
+      writeString(out, note.getContent());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static List<Long> snapshots(Path directory) throws IOException {
+    List<Long> numbers = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          numbers.add(Long.parseLong(matcher.group(1)));
+        }
+      }
+    }
+    numbers.sort(null);
+    return numbers;
+  }
+
+  /** Makes the rename of the snapshot durable. */
+  private static void forceDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Not supported by every platform, the rename is then as durable as the system makes it
+    }
+  }
+
+  /** Reads a file through memory-mapped windows, remapping when a value crosses their end. */
+  private static class MappedInput {
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedInput(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      map(0, 0);
+    }
+
+    /** Checks the trailing checksum against the rest of the file. */
+    void verifyChecksum() throws IOException {
+      if (size < Integer.BYTES) {
+        throw new IOException("Truncated snapshot");
+      }
+      long end = size - Integer.BYTES;
+      CRC32 crc = new CRC32();
+      for (long position = 0; position < end; position += MAPPING_WINDOW) {
+        int length = (int) Math.min(MAPPING_WINDOW, end - position);
+        crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+      }
+      ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES);
+      channel.read(trailer, end);
+      if (trailer.flip().getInt() != (int) crc.getValue()) {
+        throw new IOException("Corrupted snapshot");
+      }
+    }
+
+    byte readByte() throws IOException {
+      ensure(1);
+      return window.get();
+    }
+
+    int readInt() throws IOException {
+      ensure(Integer.BYTES);
+      return window.getInt();
+    }
+
+    long readLong() throws IOException {
+      ensure(Long.BYTES);
+      return window.getLong();
+    }
+
+    String readString() throws IOException {
+      int length = readInt();
+      ensure(length);
+      byte[] bytes = new byte[length];
+      window.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int length) throws IOException {
+      if (window.remaining() < length) {
+        map(windowStart + window.position(), length);
+      }
+    }
+
+    private void map(long position, int minimum) throws IOException {
+      long length = Math.min(Math.max(MAPPING_WINDOW, minimum), size - position);
+      if (length < minimum) {
+        throw new IOException("Truncated snapshot");
+      }
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+      windowStart = position;
+    }
+  }
+}
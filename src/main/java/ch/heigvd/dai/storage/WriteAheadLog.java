@@ -0,0 +1,643 @@
+package ch.heigvd.dai.storage;
+
+import ch.heigvd.dai.model.*;
+import ch.heigvd.dai.utils.Log;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the changes made to the notes, replayed when the server starts.
+ *
+ * <p>The records are appended to an in-memory batch while the user's write lock is held, so the log
+ * order matches the order the changes were applied in. A committer thread writes the batch to the
+ * log file and forces it to the disk, at most once per group commit window: the changes of all the
+ * sessions received during a window share a single fsync.
+ *
+ * <p>The log is split in numbered segment files so that the part covered by a {@link Snapshot} can
+ * be deleted. Each record is framed as {@code [length][crc32][type][user version][fields...]},
+ * every field being a length-prefixed UTF-8 string. A creation ends with the identifier given to
+ * the note, in decimal, absent from the segments of version 2. A content edited in place logs the
+ * edit rather than the whole content: the offset and the number of bytes replaced, in decimal, then
+ * the new bytes. The changes of a {@link Batch} are logged as a single record holding theirs, each
+ * as a field, so that a crash never leaves part of them in the log. The user version identifies the
+ * change among the changes of its user, which lets the replay skip the changes already contained in
+ * a snapshot. A record that is truncated or does not match its checksum marks the end of a segment,
+ * it is the trace of a write interrupted by a crash.
+ */
+public class WriteAheadLog implements NoteListener, Closeable {
+  /** When the server acknowledges a change. */
+  public enum Durability {
+    /** Once the change is in the log batch. A crash loses at most one group commit window. */
+    ASYNC,
+    /** Once the change has been forced to the disk. */
+    SYNC
+  }
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d{16})\\.log");
+  private static final byte[] MAGIC = {'N', 'T', 'W', 'L'};
+  private static final byte VERSION = 4;
+
+  /** Version of the segments without batch records, which are read the same way. */
+  private static final byte VERSION_WITHOUT_BATCHES = 3;
+
+  /** Version of the segments whose creations do not hold the identifier of the note. */
+  private static final byte VERSION_WITHOUT_IDS = 2;
+
+  private static final int HEADER_SIZE = MAGIC.length + 1;
+  private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+  private static final byte CREATE_NOTE = 1;
+  private static final byte DELETE_NOTE = 2;
+  private static final byte UPDATE_CONTENT = 3;
+  private static final byte UPDATE_TITLE = 4;
+  private static final byte PATCH_CONTENT = 5;
+  private static final byte BATCH = 6;
+
+  private final Path directory;
+  private final Durability durability;
+  private final long windowNanos;
+
+  /** Guards the batch and the counters. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition appended = lock.newCondition();
+  private final Condition committed = lock.newCondition();
+
+  /** Serializes the writes to the segments, taken before {@link #lock} when both are needed. */
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /** Records waiting for the committer. */
+  private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+  /** The records of the batches being applied, by user, logged once they are complete. */
+  private final Map<User, ByteArrayOutputStream> batches = new HashMap<>();
+
+  private final CRC32 crc = new CRC32();
+  private long appendedRecords;
+  private long durableRecords;
+  private boolean closed;
+  private IOException failure;
+
+  /** Segment the batches are written to, guarded by the write lock. */
+  private FileChannel channel;
+
+  private long segment;
+
+  private final Thread committer;
+
+  /** Called by the committer after each batch, see {@link #onCommit(Runnable)}. */
+  private final List<Runnable> commitListeners = new CopyOnWriteArrayList<>();
+
+  private WriteAheadLog(Path directory, Durability durability, long windowMillis) {
+    this.directory = directory;
+    this.durability = durability;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.committer = new Thread(this::commitLoop, "wal-committer");
+    this.committer.setDaemon(true);
+  }
+
+  /**
+   * Prepares the log of a data directory, creating the directory if needed. Nothing is logged
+   * before {@link #replay(UserRegistry, long)} is called.
+   *
+   * @param directory The data directory.
+   * @param durability When the changes are acknowledged.
+   * @param windowMillis How long the committer waits for other changes before forcing a batch.
+   */
+  public static WriteAheadLog open(Path directory, Durability durability, long windowMillis)
+      throws IOException {
+    Files.createDirectories(directory);
+    return new WriteAheadLog(directory, durability, windowMillis);
+  }
+
+  /**
+   * Applies the logged changes to the users, then starts logging new changes in a new segment. The
+   * listener of the registry must not be this log yet, the replayed changes would be logged again.
+   *
+   * @param users The registry the changes are applied to.
+   * @param fromSegment The first segment to replay, the older ones are covered by a snapshot.
+   * @return The number of replayed records.
+   */
+  public long replay(UserRegistry users, long fromSegment) throws IOException {
+    long records = 0;
+    long last = fromSegment - 1;
+    for (long number : segments()) {
+      last = Math.max(last, number);
+      if (number >= fromSegment) {
+        records += replaySegment(users, number);
+      }
+    }
+
+    writeLock.lock();
+    try {
+      segment = last + 1;
+      channel = createSegment(segment);
+    } finally {
+      writeLock.unlock();
+    }
+    committer.start();
+    return records;
+  }
+
+  /**
+   * Switches to a new segment. Every change logged before the call is in the previous segments,
+   * which are forced to the disk.
+   *
+   * @return The number of the new segment.
+   */
+  public long roll() throws IOException {
+    writeLock.lock();
+    try {
+      commitBatch();
+      channel.close();
+      segment++;
+      channel = createSegment(segment);
+      return segment;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Deletes the segments older than the given one, once a snapshot contains their changes.
+   *
+   * @param number The number of the oldest segment to keep.
+   */
+  public void deleteSegmentsBefore(long number) throws IOException {
+    for (long old : segments()) {
+      if (old < number) {
+        Files.deleteIfExists(segmentPath(old));
+      }
+    }
+  }
+
+  /**
+   * @return The number of records appended since the log was opened.
+   */
+  public long getAppendedRecords() {
+    lock.lock();
+    try {
+      return appendedRecords;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until every record appended so far is on the disk. Returns immediately in {@link
+   * Durability#ASYNC} mode.
+   */
+  public void awaitDurable() throws IOException {
+    if (durability == Durability.ASYNC) {
+      return;
+    }
+    lock.lock();
+    try {
+      long target = appendedRecords;
+      while (durableRecords < target && failure == null && !closed) {
+        committed.awaitUninterruptibly();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Tells what {@link #isDurable(long)} must be asked for the records appended so far, for the
+   * callers that must not wait for them.
+   *
+   * @return The number of records that must be on the disk, 0 in {@link Durability#ASYNC} mode.
+   */
+  public long durableTarget() {
+    if (durability == Durability.ASYNC) {
+      return 0;
+    }
+    lock.lock();
+    try {
+      return appendedRecords;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param target The value returned by {@link #durableTarget()}.
+   * @return true if the records are on the disk, or will never be as the log is closed.
+   * @throws IOException If the log could not be written.
+   */
+  public boolean isDurable(long target) throws IOException {
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+      return durableRecords >= target || closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Has a callback run by the committer thread each time it has forced a batch or failed to, for
+   * the callers of {@link #isDurable(long)} to check again. It must only hand the check over to
+   * their own thread.
+   */
+  public void onCommit(Runnable listener) {
+    commitListeners.add(listener);
+  }
+
+  @Override
+  public void noteCreated(User user, Note note) {
+    append(
+        user,
+        CREATE_NOTE,
+        user.getVersion(),
+        user.getName(),
+        note.getTitle(),
+        Long.toString(note.getId()));
+  }
+
+  @Override
+  public void noteDeleted(User user, Note note) {
+    append(user, DELETE_NOTE, user.getVersion(), user.getName(), note.getTitle());
+  }
+
+  @Override
+  public void titleChanged(User user, Note note, String oldTitle) {
+    append(user, UPDATE_TITLE, user.getVersion(), user.getName(), oldTitle, note.getTitle());
+  }
+
+  @Override
+  public void contentChanged(User user, Note note) {
+    append(
+        user,
+        UPDATE_CONTENT,
+        user.getVersion(),
+        user.getName(),
+        note.getTitle(),
+        note.getContent());
+  }
+
+  @Override
+  public void contentPatched(
+      User user, Note note, int offset, int removed, byte[] bytes, int length) {
+    append(
+        user,
+        PATCH_CONTENT,
+        user.getVersion(),
+        user.getName(),
+        note.getTitle(),
+        Integer.toString(offset),
+        Integer.toString(removed),
+        new String(bytes, 0, length, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void batchStarted(User user) {
+    lock.lock();
+    try {
+      batches.put(user, new ByteArrayOutputStream());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void batchEnded(User user) {
+    lock.lock();
+    try {
+      ByteArrayOutputStream records = batches.remove(user);
+      byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+      int length = 1 + Long.BYTES + Integer.BYTES + name.length + records.size();
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+      record.putInt(length).putInt(0).put(BATCH).putLong(user.getVersion());
+      record.putInt(name.length).put(name).put(records.toByteArray());
+      appendRecord(record.array());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Forces the pending records to the disk and closes the log. */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      appended.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      committer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writeLock.lock();
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void append(User user, byte type, long userVersion, String... fields) {
+    byte[][] encoded = new byte[fields.length][];
+    int length = 1 + Long.BYTES;
+    for (int i = 0; i < fields.length; i++) {
+      encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+      length += Integer.BYTES + encoded[i].length;
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+    record.putInt(length).putInt(0).put(type).putLong(userVersion);
+    for (byte[] field : encoded) {
+      record.putInt(field.length).put(field);
+    }
+
+    lock.lock();
+    try {
+      ByteArrayOutputStream records = batches.isEmpty() ? null : batches.get(user);
+      if (records != null) {
+        // A field of the batch record, without a checksum of its own
+        records.write(record.array(), 0, Integer.BYTES);
+        records.write(record.array(), RECORD_HEADER_SIZE, length);
+      } else {
+        appendRecord(record.array());
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a record to the batch of the committer, under {@link #lock}.
+   *
+   * @param record The record, its checksum left to be set.
+   */
+  private void appendRecord(byte[] record) {
+    int length = record.length - RECORD_HEADER_SIZE;
+    ByteBuffer.wrap(record).putInt(Integer.BYTES, checksum(record, RECORD_HEADER_SIZE, length));
+    batch.write(record, 0, record.length);
+    appendedRecords++;
+    appended.signal();
+  }
+
+  /** Writes and forces the batches, waiting for the group commit window between two of them. */
+  private void commitLoop() {
+    while (true) {
+      lock.lock();
+      try {
+        while (batch.size() == 0 && !closed) {
+          appended.awaitUninterruptibly();
+        }
+        if (batch.size() == 0) {
+          return;
+        }
+        if (!closed && windowNanos > 0) {
+          // Let the other sessions join the batch
+          long remaining = windowNanos;
+          while (remaining > 0 && !closed) {
+            try {
+              remaining = appended.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+              break;
+            }
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      writeLock.lock();
+      try {
+        commitBatch();
+      } catch (IOException e) {
+        // Already reported to the sessions waiting for the batch
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  /** Writes the current batch to the current segment and forces it, under the write lock. */
+  private void commitBatch() throws IOException {
+    ByteArrayOutputStream toWrite;
+    long records;
+    lock.lock();
+    try {
+      toWrite = batch;
+      records = appendedRecords;
+      batch = new ByteArrayOutputStream(Math.max(32, toWrite.size()));
+    } finally {
+      lock.unlock();
+    }
+
+    IOException error = null;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(toWrite.toByteArray());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      Log.error("[WAL] IOException: " + e);
+      error = e;
+    }
+
+    lock.lock();
+    try {
+      if (error == null) {
+        durableRecords = records;
+      } else {
+        failure = error;
+      }
+      committed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (Runnable listener : commitListeners) {
+      listener.run();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private long replaySegment(UserRegistry users, long number) throws IOException {
+    try (FileChannel segmentChannel =
+        FileChannel.open(segmentPath(number), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      segmentChannel.read(header, 0);
+      header.flip();
+      for (byte b : MAGIC) {
+        if (header.remaining() == 0 || header.get() != b) {
+          throw new IOException("Not a No-Tion log segment: " + segmentPath(number));
+        }
+      }
+      byte version = header.get();
+      if (version != VERSION
+          && version != VERSION_WITHOUT_BATCHES
+          && version != VERSION_WITHOUT_IDS) {
+        throw new IOException("Unsupported log version: " + segmentPath(number));
+      }
+
+      long records = 0;
+      long position = HEADER_SIZE;
+      long size = segmentChannel.size();
+      DataInputStream in =
+          new DataInputStream(
+              new BufferedInputStream(
+                  Channels.newInputStream(segmentChannel.position(position)), 1 << 16));
+      while (true) {
+        int length;
+        int checksum;
+        byte[] payload;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          if (length <= 0 || length > size - position - RECORD_HEADER_SIZE) {
+            break;
+          }
+          payload = in.readNBytes(length);
+        } catch (EOFException e) {
+          break;
+        }
+        if (payload.length < length || checksum(payload, 0, payload.length) != checksum) {
+          break;
+        }
+        apply(users, payload);
+        position += RECORD_HEADER_SIZE + length;
+        records++;
+      }
+
+      // Drop a torn record left by a crash
+      segmentChannel.truncate(position);
+      return records;
+    }
+  }
+
+  private FileChannel createSegment(long number) throws IOException {
+    FileChannel created =
+        FileChannel.open(
+            segmentPath(number),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    created.write(ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put(VERSION).flip());
+    created.force(true);
+    return created;
+  }
+
+  private Path segmentPath(long number) {
+    return directory.resolve(String.format("wal-%016d.log", number));
+  }
+
+  /** Lists the numbers of the segments of the directory, in ascending order. */
+  private List<Long> segments() throws IOException {
+    List<Long> numbers = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          numbers.add(Long.parseLong(matcher.group(1)));
+        }
+      }
+    }
+    numbers.sort(null);
+    return numbers;
+  }
+
+  private int checksum(byte[] bytes, int offset, int length) {
+    crc.reset();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+
+  /** Applies a record unless its user already contains it. */
+  private static void apply(UserRegistry users, byte[] payload) throws IOException {
+    apply(users, ByteBuffer.wrap(payload));
+  }
+
+  private static void apply(UserRegistry users, ByteBuffer record) throws IOException {
+    byte type = record.get();
+    long userVersion = record.getLong();
+    User user = users.getOrCreate(readField(record));
+    if (type == BATCH) {
+      // The records of the changes of the batch, each one skipped if the user already contains it
+      while (record.hasRemaining()) {
+        int length = record.getInt();
+        apply(users, record.slice(record.position(), length));
+        record.position(record.position() + length);
+      }
+      return;
+    }
+    if (userVersion <= user.getVersion()) {
+      return;
+    }
+    switch (type) {
+      case CREATE_NOTE -> {
+        String title = readField(record);
+        // The note gets the next identifier in the segments without them
+        long id = record.hasRemaining() ? Long.parseLong(readField(record)) : 0;
+        user.addNote(new Note(id, 0, title, ""));
+      }
+      case DELETE_NOTE -> user.deleteNoteByTitle(readField(record));
+      case UPDATE_CONTENT -> {
+        Note note = user.getNoteByTitle(readField(record));
+        if (note != null) {
+          user.updateContent(note, readField(record), User.ANY_VERSION);
+        }
+      }
+      case UPDATE_TITLE -> {
+        Note note = user.getNoteByTitle(readField(record));
+        if (note != null) {
+          user.renameNote(note, readField(record), User.ANY_VERSION);
+        }
+      }
+      case PATCH_CONTENT -> {
+        Note note = user.getNoteByTitle(readField(record));
+        if (note != null) {
+          int offset = Integer.parseInt(readField(record));
+          int removed = Integer.parseInt(readField(record));
+          byte[] bytes = readField(record).getBytes(StandardCharsets.UTF_8);
+          user.patchContent(
+              note, offset, removed, bytes, bytes.length, Integer.MAX_VALUE, User.ANY_VERSION);
+        }
+      }
+      default -> throw new IOException("Unknown log record type " + type);
+    }
+  }
+
+  private static String readField(ByteBuffer record) {
+    int length = record.getInt();
+    String field =
+        new String(
+            record.array(),
+            record.arrayOffset() + record.position(),
+            length,
+            StandardCharsets.UTF_8);
+    record.position(record.position() + length);
+    return field;
+  }
+}
@@ -0,0 +1,286 @@
+package ch.heigvd.dai.utils;
+
+import ch.heigvd.dai.commands.Client;
+import java.util.Arrays;
+
+/**
+ * Parses request lines without allocating: the line is decoded into a reusable char buffer, split
+ * into tokens in place and the command is recognised by comparing its characters. The arguments are
+ * slices of the buffer, only turned into strings by the handlers that need to keep them.
+ *
+ * <p>The tokens follow the rules of {@link MainUtils#parseInput(String)}: the line is trimmed,
+ * spaces outside double quotes separate the tokens, the quotes themselves are removed and empty
+ * tokens are ignored.
+ *
+ * <p>An instance is reused for every line of a connection, the slices of a line are only valid
+ * until the next one is parsed.
+ */
+public class CommandParser implements Request {
+  private static final Client.Command[] COMMANDS = Client.Command.values();
+  private static final char[][] COMMAND_NAMES = new char[COMMANDS.length][];
+
+  static {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      COMMAND_NAMES[i] = COMMANDS[i].name().toCharArray();
+    }
+  }
+
+  private char[] chars = new char[256];
+
+  /** Start and end offsets of the tokens in the buffer, the command being token 0. */
+  private int[] starts = new int[8];
+
+  private int[] ends = new int[8];
+  private int tokens;
+  private Client.Command command;
+
+  /**
+   * Parses a line encoded in UTF-8. Malformed sequences are decoded as U+FFFD.
+   *
+   * @param bytes The buffer holding the line.
+   * @param offset The offset of the line in the buffer.
+   * @param length The length of the line, without its terminator.
+   * @return false if the line is blank.
+   */
+  public boolean parse(byte[] bytes, int offset, int length) {
+    return tokenize(decode(bytes, offset, length));
+  }
+
+  /**
+   * @return The recognised command, or null if the first token is not a command name.
+   */
+  @Override
+  public Client.Command command() {
+    return command;
+  }
+
+  @Override
+  public int requestId() {
+    return 0;
+  }
+
+  /**
+   * @return The number of tokens following the command.
+   */
+  @Override
+  public int argumentCount() {
+    return tokens - 1;
+  }
+
+  /**
+   * @return The buffer the arguments are slices of.
+   */
+  public char[] buffer() {
+    return chars;
+  }
+
+  /**
+   * @return The offset of an argument in the {@link #buffer()}.
+   */
+  public int argumentStart(int index) {
+    return starts[index + 1];
+  }
+
+  /**
+   * @return The length of an argument.
+   */
+  @Override
+  public int argumentLength(int index) {
+    return ends[index + 1] - starts[index + 1];
+  }
+
+  /**
+   * Copies an argument into a string, for the handlers that keep it.
+   *
+   * @param index The zero-based index of the argument.
+   */
+  @Override
+  public String argument(int index) {
+    return new String(chars, starts[index + 1], ends[index + 1] - starts[index + 1]);
+  }
+
+  /**
+   * Parses an argument as a decimal integer, with the rules of {@link Integer#parseInt(String)}.
+   *
+   * @param index The zero-based index of the argument.
+   * @param invalid The value returned if the argument is not a valid integer.
+   * @return The value of the argument.
+   */
+  @Override
+  public int intArgument(int index, int invalid) {
+    int position = starts[index + 1];
+    int end = ends[index + 1];
+    boolean negative = false;
+    if (chars[position] == '-' || chars[position] == '+') {
+      negative = chars[position] == '-';
+      position++;
+      if (position == end) {
+        return invalid;
+      }
+    }
+    // Accumulate negatively so that Integer.MIN_VALUE is representable
+    long value = 0;
+    for (; position < end; position++) {
+      int digit = Character.digit(chars[position], 10);
+      if (digit < 0) {
+        return invalid;
+      }
+      value = value * 10 - digit;
+      if (value < Integer.MIN_VALUE) {
+        return invalid;
+      }
+    }
+    if (!negative && value == Integer.MIN_VALUE) {
+      return invalid;
+    }
+    return (int) (negative ? value : -value);
+  }
+
+  /**
+   * Parses an argument as a non-negative decimal long integer.
+   *
+   * @param index The zero-based index of the argument.
+   * @param invalid The value returned if the argument is not made of at most 18 digits.
+   * @return The value of the argument.
+   */
+  @Override
+  public long longArgument(int index, long invalid) {
+    int position = starts[index + 1];
+    int end = ends[index + 1];
+    // 18 digits never overflow
+    if (position == end || end - position > 18) {
+      return invalid;
+    }
+    long value = 0;
+    for (; position < end; position++) {
+      int digit = Character.digit(chars[position], 10);
+      if (digit < 0) {
+        return invalid;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /** Decodes UTF-8 into the char buffer, returns the number of chars. */
+  private int decode(byte[] bytes, int offset, int length) {
+    if (chars.length < length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    int count = 0;
+    int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      int b = bytes[i];
+      if (b >= 0) {
+        chars[count++] = (char) b;
+        i++;
+        continue;
+      }
+      int needed;
+      int codePoint;
+      if ((b & 0xE0) == 0xC0) {
+        needed = 1;
+        codePoint = b & 0x1F;
+      } else if ((b & 0xF0) == 0xE0) {
+        needed = 2;
+        codePoint = b & 0x0F;
+      } else if ((b & 0xF8) == 0xF0) {
+        needed = 3;
+        codePoint = b & 0x07;
+      } else {
+        chars[count++] = '\uFFFD';
+        i++;
+        continue;
+      }
+      int j = 1;
+      while (j <= needed && i + j < end && (bytes[i + j] & 0xC0) == 0x80) {
+        codePoint = (codePoint << 6) | (bytes[i + j] & 0x3F);
+        j++;
+      }
+      boolean overlong =
+          (needed == 1 && codePoint < 0x80)
+              || (needed == 2 && codePoint < 0x800)
+              || (needed == 3 && codePoint < 0x10000);
+      if (j <= needed
+          || overlong
+          || codePoint > Character.MAX_CODE_POINT
+          || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+        chars[count++] = '\uFFFD';
+        i += j;
+        continue;
+      }
+      // A code point takes at most as many chars as it has bytes
+      count += Character.toChars(codePoint, chars, count);
+      i += j;
+    }
+    return count;
+  }
+
+  /** Splits the decoded chars into tokens, removing the quotes in place. */
+  private boolean tokenize(int length) {
+    tokens = 0;
+    command = null;
+    int start = 0;
+    int end = length;
+    while (start < end && chars[start] <= ' ') start++;
+    while (end > start && chars[end - 1] <= ' ') end--;
+    if (start == end) {
+      return false;
+    }
+
+    boolean inQuotes = false;
+    int write = start;
+    int tokenStart = start;
+    for (int read = start; read < end; read++) {
+      char c = chars[read];
+      if (c == '"') {
+        inQuotes = !inQuotes;
+      } else if (c == ' ' && !inQuotes) {
+        if (write > tokenStart) {
+          addToken(tokenStart, write);
+        }
+        tokenStart = write;
+      } else {
+        chars[write++] = c;
+      }
+    }
+    if (write > tokenStart) {
+      addToken(tokenStart, write);
+    }
+    if (tokens == 0) {
+      return false;
+    }
+
+    for (int i = 0; i < COMMAND_NAMES.length; i++) {
+      if (tokenEquals(0, COMMAND_NAMES[i])) {
+        command = COMMANDS[i];
+        break;
+      }
+    }
+    return true;
+  }
+
+  private void addToken(int start, int end) {
+    if (tokens == starts.length) {
+      starts = Arrays.copyOf(starts, tokens * 2);
+      ends = Arrays.copyOf(ends, tokens * 2);
+    }
+    starts[tokens] = start;
+    ends[tokens] = end;
+    tokens++;
+  }
+
+  private boolean tokenEquals(int token, char[] expected) {
+    int start = starts[token];
+    if (ends[token] - start != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (chars[start + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,107 @@
+package ch.heigvd.dai.utils;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DEFLATE compression of one connection, with the {@link Deflater} and {@link Inflater} kept from
+ * one message to the next instead of allocating their native state each time. The result of each
+ * call is left in an output buffer reused as well.
+ *
+ * <p>Not thread-safe, and {@link #close()} must be called to free the native memory once the
+ * connection ends.
+ */
+public class DeflateCodec implements AutoCloseable {
+  /** The flag of {@code CONNECT} enabling compression. */
+  public static final String CAPABILITY = "DEFLATE";
+
+  private final Deflater deflater;
+  private final Inflater inflater = new Inflater();
+  private byte[] output = new byte[8 * 1024];
+  private int outputLength;
+
+  /** Creates a codec favouring speed over the compression ratio. */
+  public DeflateCodec() {
+    this(Deflater.BEST_SPEED);
+  }
+
+  /**
+   * @param level The compression level, from {@link Deflater#BEST_SPEED} to {@link
+   *     Deflater#BEST_COMPRESSION}.
+   */
+  public DeflateCodec(int level) {
+    deflater = new Deflater(level);
+  }
+
+  /**
+   * Compresses bytes into the {@link #output()}.
+   *
+   * @return The length of the compressed bytes.
+   */
+  public int deflate(byte[] bytes, int offset, int length) {
+    deflater.reset();
+    deflater.setInput(bytes, offset, length);
+    deflater.finish();
+    outputLength = 0;
+    while (!deflater.finished()) {
+      if (outputLength == output.length) {
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+      outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+    }
+    return outputLength;
+  }
+
+  /**
+   * Decompresses bytes into the {@link #output()}.
+   *
+   * @param maxBytes The largest decompressed length accepted.
+   * @return The length of the decompressed bytes, or -1 if they would be longer than {@code
+   *     maxBytes}.
+   * @throws DataFormatException If the bytes are not a complete compressed stream.
+   */
+  public int inflate(byte[] bytes, int offset, int length, int maxBytes)
+      throws DataFormatException {
+    Inflater inflater = inflater();
+    inflater.setInput(bytes, offset, length);
+    outputLength = 0;
+    while (!inflater.finished()) {
+      if (outputLength == output.length) {
+        if (output.length > maxBytes) {
+          return -1;
+        }
+        // One byte of room beyond the maximum tells a stream ending there from a longer one
+        output = Arrays.copyOf(output, (int) Math.min(output.length * 2L, maxBytes + 1L));
+      }
+      int inflated = inflater.inflate(output, outputLength, output.length - outputLength);
+      if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+        throw new DataFormatException("Truncated compressed data");
+      }
+      outputLength += inflated;
+    }
+    return outputLength > maxBytes ? -1 : outputLength;
+  }
+
+  /**
+   * @return The buffer holding the result of the last call, valid until the next one.
+   */
+  public byte[] output() {
+    return output;
+  }
+
+  /**
+   * @return The inflater of the connection, reset, for data received in several parts.
+   */
+  public Inflater inflater() {
+    inflater.reset();
+    return inflater;
+  }
+
+  @Override
+  public void close() {
+    deflater.end();
+    inflater.end();
+  }
+}
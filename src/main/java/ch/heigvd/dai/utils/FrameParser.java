@@ -0,0 +1,128 @@
+package ch.heigvd.dai.utils;
+
+import ch.heigvd.dai.commands.Client;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses request frames (see {@link Frames}) without copying them: the fields are slices of the
+ * buffer the frame was received in. Unlike a text line, nothing needs to be decoded, unquoted or
+ * split before the command is known.
+ *
+ * <p>An instance is reused for every frame of a connection, the slices of a frame are only valid
+ * until the next one is parsed.
+ */
+public class FrameParser implements Request {
+  private byte[] bytes;
+  private int[] starts = new int[8];
+  private int[] lengths = new int[8];
+  private int fields;
+  private int requestId;
+  private Client.Command command;
+
+  /**
+   * Parses the body of a frame, following its length.
+   *
+   * @param bytes The buffer holding the frame.
+   * @param offset The offset of the opcode in the buffer.
+   * @param length The length of the frame, without the length itself.
+   * @return false if the frame is too short to carry a request id. A frame whose fields are
+   *     malformed has no {@link #command()}.
+   */
+  public boolean parse(byte[] bytes, int offset, int length) {
+    this.bytes = bytes;
+    fields = 0;
+    command = null;
+    if (length < Frames.HEADER_BYTES - 4) {
+      return false;
+    }
+    requestId = readInt(bytes, offset + 1);
+    int end = offset + length;
+    int position = offset + Frames.HEADER_BYTES - 4;
+    while (position < end) {
+      if (end - position < 4) {
+        return true;
+      }
+      int fieldLength = readInt(bytes, position);
+      position += 4;
+      if (fieldLength < 0 || fieldLength > end - position) {
+        return true;
+      }
+      if (fields == starts.length) {
+        starts = Arrays.copyOf(starts, fields * 2);
+        lengths = Arrays.copyOf(lengths, fields * 2);
+      }
+      starts[fields] = position;
+      lengths[fields] = fieldLength;
+      fields++;
+      position += fieldLength;
+    }
+    command = Frames.command(bytes[offset] & 0xFF);
+    return true;
+  }
+
+  @Override
+  public Client.Command command() {
+    return command;
+  }
+
+  @Override
+  public int requestId() {
+    return requestId;
+  }
+
+  @Override
+  public int argumentCount() {
+    return fields;
+  }
+
+  @Override
+  public int argumentLength(int index) {
+    return lengths[index];
+  }
+
+  @Override
+  public String argument(int index) {
+    return new String(bytes, starts[index], lengths[index], StandardCharsets.UTF_8);
+  }
+
+  /** Reads an integer field, which is 4 bytes long. */
+  @Override
+  public int intArgument(int index, int invalid) {
+    return lengths[index] == 4 ? readInt(bytes, starts[index]) : invalid;
+  }
+
+  /** Reads a long integer field, which is 8 bytes long. */
+  @Override
+  public long longArgument(int index, long invalid) {
+    if (lengths[index] != 8) {
+      return invalid;
+    }
+    long value =
+        (long) readInt(bytes, starts[index]) << 32
+            | readInt(bytes, starts[index] + 4) & 0xFFFFFFFFL;
+    return value < 0 ? invalid : value;
+  }
+
+  /**
+   * @return The offset of a field in the buffer the frame was parsed from.
+   */
+  public int argumentStart(int index) {
+    return starts[index];
+  }
+
+  /**
+   * @return The buffer the fields are slices of.
+   */
+  public byte[] buffer() {
+    return bytes;
+  }
+
+  /** Reads a big-endian integer. */
+  public static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) << 24
+        | (bytes[offset + 1] & 0xFF) << 16
+        | (bytes[offset + 2] & 0xFF) << 8
+        | (bytes[offset + 3] & 0xFF);
+  }
+}
@@ -0,0 +1,246 @@
+package ch.heigvd.dai.utils;
+
+import ch.heigvd.dai.commands.Client;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Constants of the binary protocol a client opts into by adding {@link #CAPABILITY} to its {@code
+ * CONNECT}, and the encoding used by the clients.
+ *
+ * <p>A frame is {@code [length][opcode or status][request id][fields]}, the length counting the
+ * bytes following it. A field is {@code [length][bytes]}: strings are UTF-8 and integers are 4
+ * bytes, except the versions and the identifiers of the notes which are 8 bytes long. A note is
+ * designated by a 4-byte index or an 8-byte identifier. Every integer is big-endian. A response
+ * carries the id of its request, so that responses sent out of order can be matched.
+ */
+public final class Frames {
+  /** The flag of {@code CONNECT} switching the connection to frames after its response. */
+  public static final String CAPABILITY = "BINARY";
+
+  /** Bytes of the length, opcode and request id. */
+  public static final int HEADER_BYTES = 4 + 1 + 4;
+
+  /** The commands by opcode, the opcodes are part of the protocol and must never change. */
+  private static final Client.Command[] OPCODES = {
+    null,
+    Client.Command.CONNECT,
+    Client.Command.DISCONNECT,
+    Client.Command.CREATE_NOTE,
+    Client.Command.DELETE_NOTE,
+    Client.Command.LIST_NOTES,
+    Client.Command.GET_NOTE,
+    Client.Command.UPDATE_CONTENT,
+    Client.Command.UPDATE_TITLE,
+    Client.Command.UPLOAD_CONTENT,
+    Client.Command.DOWNLOAD_CONTENT,
+    Client.Command.CHUNK,
+    Client.Command.STATS,
+    Client.Command.SEARCH,
+    Client.Command.CHANGES_SINCE,
+    Client.Command.DELETE_NOTE_ID,
+    Client.Command.APPEND_CONTENT,
+    Client.Command.PATCH_CONTENT,
+    Client.Command.WATCH,
+    Client.Command.UNWATCH,
+    Client.Command.GET_NOTES,
+    Client.Command.BATCH,
+    Client.Command.END
+  };
+
+  /** Statuses of the responses. */
+  public static final int OK = 0;
+
+  /** Error, with the code as an integer field. */
+  public static final int ERROR = 1;
+
+  /**
+   * Content of a note, as a string field then a long field with its version. An {@link #OK} answers
+   * an update given an expected version with a long field holding the new one.
+   */
+  public static final int NOTE = 2;
+
+  /** Titles of the notes, one string field per note in order. */
+  public static final int LIST = 3;
+
+  /** Counters of the server, as a string field of {@code name value} lines. */
+  public static final int STATS = 4;
+
+  /** Part of a content as a field, an empty field ending it. */
+  public static final int CHUNK = 5;
+
+  /**
+   * Content of a note compressed, as a field then a long field with its version, when compression
+   * has been negotiated.
+   */
+  public static final int ZNOTE = 6;
+
+  /** The fields of a {@link #LIST} compressed, as a field, when compression has been negotiated. */
+  public static final int ZLIST = 7;
+
+  /**
+   * Notes found by a search, best first, as an integer field with the index, a long field with the
+   * identifier then a string field with the title.
+   */
+  public static final int RESULTS = 8;
+
+  /**
+   * Page of the notes, as a long field with the version and an integer field with the number of
+   * notes, then a long field with the identifier, a long field with the version and a string field
+   * with the title of each note.
+   */
+  public static final int PAGE = 9;
+
+  /**
+   * Changes since a version, as a long field with the current version then four fields per change:
+   * its kind as a string, the index as an integer, the identifier as a long and the title as a
+   * string.
+   */
+  public static final int CHANGES = 10;
+
+  /**
+   * Change pushed to a session watching the notes, with request id 0, as four fields: its kind as a
+   * string, the identifier of the note and the version as longs, then the title as a string.
+   */
+  public static final int EVENT = 11;
+
+  /**
+   * Contents of several notes, as two fields per note in the order asked for: its content, then a
+   * long field with its version, or with the negative code of the error if it was not found.
+   */
+  public static final int NOTES = 12;
+
+  /**
+   * The fields of a {@link #NOTES} compressed, as a field, when compression has been negotiated.
+   */
+  public static final int ZNOTES = 13;
+
+  /**
+   * Results of the operations of a batch, as a long field per operation: the version it made, or
+   * the negative code of its error if the batch was not applied.
+   */
+  public static final int BATCH = 14;
+
+  private Frames() {}
+
+  /**
+   * @return The command of an opcode, or null if there is none.
+   */
+  public static Client.Command command(int opcode) {
+    return opcode > 0 && opcode < OPCODES.length ? OPCODES[opcode] : null;
+  }
+
+  /**
+   * @return The opcode of a command, or 0 if it has none.
+   */
+  public static int opcode(Client.Command command) {
+    for (int i = 1; i < OPCODES.length; i++) {
+      if (OPCODES[i] == command) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Encodes a request.
+   *
+   * @param arguments The arguments: {@link Integer}, {@link Long}, {@link String} or {@code
+   *     byte[]}.
+   */
+  public static void writeRequest(
+      DataOutputStream out, Client.Command command, int requestId, Object... arguments)
+      throws IOException {
+    byte[][] fields = new byte[arguments.length][];
+    int length = 1 + 4;
+    for (int i = 0; i < arguments.length; i++) {
+      fields[i] =
+          switch (arguments[i]) {
+            case Integer value ->
+                new byte[] {
+                  (byte) (value >>> 24),
+                  (byte) (value >>> 16),
+                  (byte) (value >>> 8),
+                  (byte) (int) value
+                };
+            case Long value -> ByteBuffer.allocate(8).putLong(value).array();
+            case String value -> value.getBytes(StandardCharsets.UTF_8);
+            case byte[] value -> value;
+            default -> throw new IllegalArgumentException("Unsupported argument " + arguments[i]);
+          };
+      length += 4 + fields[i].length;
+    }
+    out.writeInt(length);
+    out.writeByte(opcode(command));
+    out.writeInt(requestId);
+    for (byte[] field : fields) {
+      out.writeInt(field.length);
+      out.write(field);
+    }
+  }
+
+  /**
+   * A decoded response.
+   *
+   * @param status The status, {@link #OK} to {@link #BATCH}.
+   * @param requestId The id of the request it answers.
+   * @param fields The fields, in order.
+   */
+  public record Response(int status, int requestId, List<byte[]> fields) {
+    public String string(int index) {
+      return new String(fields.get(index), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Expands a compressed response: a {@link #ZNOTE} into a {@link #NOTE}, a {@link #ZLIST} into a
+     * {@link #LIST} and a {@link #ZNOTES} into a {@link #NOTES}. Other responses are returned as
+     * they are.
+     */
+    public Response decompress(DeflateCodec codec) throws IOException {
+      if (status != ZNOTE && status != ZLIST && status != ZNOTES) {
+        return this;
+      }
+      byte[] compressed = fields.get(0);
+      int length;
+      try {
+        length = codec.inflate(compressed, 0, compressed.length, Integer.MAX_VALUE - 8);
+      } catch (DataFormatException e) {
+        throw new IOException("Invalid compressed response", e);
+      }
+      byte[] bytes = Arrays.copyOf(codec.output(), length);
+      if (status == ZNOTE) {
+        List<byte[]> expanded = new ArrayList<>(fields);
+        expanded.set(0, bytes);
+        return new Response(NOTE, requestId, expanded);
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      List<byte[]> expanded = new ArrayList<>();
+      while (in.available() > 0) {
+        byte[] field = new byte[in.readInt()];
+        in.readFully(field);
+        expanded.add(field);
+      }
+      return new Response(status == ZLIST ? LIST : NOTES, requestId, expanded);
+    }
+  }
+
+  /** Reads a response, blocking until it is complete. */
+  public static Response readResponse(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    int status = in.readUnsignedByte();
+    int requestId = in.readInt();
+    List<byte[]> fields = new ArrayList<>();
+    for (int read = 1 + 4; read < length; ) {
+      byte[] field = new byte[in.readInt()];
+      in.readFully(field);
+      fields.add(field);
+      read += 4 + field.length;
+    }
+    return new Response(status, requestId, fields);
+  }
+}
@@ -0,0 +1,140 @@
+package ch.heigvd.dai.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with buckets in the style of HdrHistogram: exact below 128
+ * ns, then 64 linear buckets per power of two, so any recorded value is known within 1.6%. Values
+ * are recorded concurrently without locking and durations above about 18 minutes are counted as the
+ * longest one.
+ *
+ * <p>The counts are striped: a thread records in the stripe picked by its id, so that threads
+ * recording the same durations do not contend on the same counters. The stripes are summed when
+ * reading.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+  /** Longest duration told apart from the longer ones. */
+  private static final long HIGHEST_VALUE = (1L << 40) - 1;
+
+  private static final int BUCKETS = indexOf(HIGHEST_VALUE) + 1;
+  private static final int STRIPES =
+      Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2, 16);
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+  }
+
+  /**
+   * Counts one duration.
+   *
+   * @param nanos The duration in nanoseconds, negative values being counted as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), HIGHEST_VALUE);
+    int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+    stripes[stripe].incrementAndGet(indexOf(value));
+    total.increment();
+    sum.add(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /** Adds the durations counted by another histogram to this one. */
+  public void add(LatencyHistogram other) {
+    long[] counts = other.counts();
+    for (int i = 0; i < BUCKETS; i++) {
+      if (counts[i] > 0) {
+        stripes[0].addAndGet(i, counts[i]);
+      }
+    }
+    total.add(other.total.sum());
+    sum.add(other.sum.sum());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  public long count() {
+    return total.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long count = total.sum();
+    return count == 0 ? 0 : (double) sum.sum() / count;
+  }
+
+  /**
+   * Returns the duration below which a given share of the durations are.
+   *
+   * @param percentile The share, from 0 to 100.
+   * @return The highest duration of the bucket reaching the share, 0 if nothing was recorded.
+   */
+  public long percentile(double percentile) {
+    long count = total.sum();
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+    long[] counts = counts();
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** Sums the stripes. */
+  private long[] counts() {
+    long[] counts = new long[BUCKETS];
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] += stripe.get(i);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Values below 128 have their own bucket, the others are grouped by their 7 highest bits: 64
+   * buckets for each power of two.
+   */
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+    return SUB_BUCKETS
+        + (shift - 1) * HALF_SUB_BUCKETS
+        + (int) (value >>> shift)
+        - HALF_SUB_BUCKETS;
+  }
+
+  private static long highestValueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+    long top = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+}
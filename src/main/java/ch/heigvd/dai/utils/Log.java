@@ -0,0 +1,107 @@
+package ch.heigvd.dai.utils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logger of the server writing on the standard output from a background thread. A message is only
+ * queued by the thread logging it, which never waits for the console: when the queue is full the
+ * message is dropped and counted instead.
+ */
+public final class Log {
+  /** Levels from the most to the least important. */
+  public enum Level {
+    ERROR,
+    WARN,
+    INFO,
+    DEBUG
+  }
+
+  private static final int QUEUE_CAPACITY = 16 * 1024;
+
+  private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private static final LongAdder dropped = new LongAdder();
+  private static final PrintStream out = System.out;
+  private static volatile Level level = Level.INFO;
+
+  static {
+    Thread writer = new Thread(Log::write, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    // The messages still queued when the server stops
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+  }
+
+  private Log() {}
+
+  /** Sets the least important level written. */
+  public static void setLevel(Level level) {
+    Log.level = level;
+  }
+
+  /**
+   * Checks whether messages of a level are written, to avoid building the ones that are not.
+   *
+   * @param level The level of the message.
+   */
+  public static boolean isEnabled(Level level) {
+    return level.compareTo(Log.level) <= 0;
+  }
+
+  public static void error(String message) {
+    log(Level.ERROR, message);
+  }
+
+  public static void warn(String message) {
+    log(Level.WARN, message);
+  }
+
+  public static void info(String message) {
+    log(Level.INFO, message);
+  }
+
+  public static void debug(String message) {
+    log(Level.DEBUG, message);
+  }
+
+  private static void log(Level level, String message) {
+    if (isEnabled(level) && !queue.offer(message)) {
+      dropped.increment();
+    }
+  }
+
+  private static void write() {
+    List<String> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch);
+      print(batch);
+      batch.clear();
+    }
+  }
+
+  private static void drain() {
+    List<String> batch = new ArrayList<>();
+    queue.drainTo(batch);
+    print(batch);
+  }
+
+  private static synchronized void print(List<String> batch) {
+    long lost = dropped.sumThenReset();
+    if (lost > 0) {
+      out.println("[Log] " + lost + " message(s) dropped, the console is too slow");
+    }
+    for (String message : batch) {
+      out.println(message);
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,54 @@
+package ch.heigvd.dai.utils;
+
+import ch.heigvd.dai.commands.Client;
+
+/**
+ * A request received from a client, whatever the encoding it was received in. The arguments are
+ * only valid until the next request is parsed.
+ */
+public interface Request {
+  /**
+   * @return The recognised command, or null if the request does not name one.
+   */
+  Client.Command command();
+
+  /**
+   * @return The identifier the response must carry, 0 for the text protocol which has none.
+   */
+  int requestId();
+
+  /**
+   * @return The number of arguments following the command.
+   */
+  int argumentCount();
+
+  /**
+   * @return The length of an argument, in chars for the text protocol and in bytes for frames.
+   */
+  int argumentLength(int index);
+
+  /**
+   * Copies an argument into a string, for the handlers that keep it.
+   *
+   * @param index The zero-based index of the argument.
+   */
+  String argument(int index);
+
+  /**
+   * Reads an argument as an integer.
+   *
+   * @param index The zero-based index of the argument.
+   * @param invalid The value returned if the argument is not a valid integer.
+   * @return The value of the argument.
+   */
+  int intArgument(int index, int invalid);
+
+  /**
+   * Reads an argument as a non-negative long integer, such as a version.
+   *
+   * @param index The zero-based index of the argument.
+   * @param invalid The value returned if the argument is not a valid long integer.
+   * @return The value of the argument.
+   */
+  long longArgument(int index, long invalid);
+}
@@ -0,0 +1,76 @@
+package ch.heigvd.dai.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+/**
+ * Buffered stream of the responses of the text protocol, for the clients. The responses are lines,
+ * except for the raw bytes following the headers of the chunks and of the compressed responses,
+ * which a {@link BufferedReader} cannot read since it decodes ahead.
+ */
+public class ResponseInputStream extends BufferedInputStream {
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+  public ResponseInputStream(InputStream in) {
+    super(in, 1 << 16);
+  }
+
+  /**
+   * Reads a line decoded from UTF-8, without its terminator.
+   *
+   * @return The line, or null at the end of the stream.
+   */
+  public String readLine() throws IOException {
+    line.reset();
+    while (true) {
+      if (pos >= count) {
+        // Refills the buffer
+        int b = read();
+        if (b < 0) {
+          if (line.size() == 0) return null;
+          break;
+        }
+        pos--;
+      }
+      // Scans the buffer directly, a read() per byte would take the lock of the stream each time
+      int start = pos;
+      while (pos < count && buf[pos] != '\n') pos++;
+      line.write(buf, start, pos - start);
+      if (pos < count) {
+        pos++;
+        break;
+      }
+    }
+    int length = line.size();
+    byte[] bytes = line.toByteArray();
+    if (length > 0 && bytes[length - 1] == '\r') length--;
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /** Reads a number of raw bytes, blocking until they are all received. */
+  public byte[] readBytes(int count) throws IOException {
+    byte[] bytes = readNBytes(count);
+    if (bytes.length < count) {
+      throw new EOFException("Connection closed by the server");
+    }
+    return bytes;
+  }
+
+  /**
+   * Reads the bytes following a {@code ZNOTE <length>} or {@code ZLIST <length>} header and
+   * decompresses them.
+   *
+   * @param header The header line.
+   * @return The decompressed text: the content of the note, or the lines of the list.
+   */
+  public String readCompressed(String header, DeflateCodec codec) throws IOException {
+    byte[] compressed = readBytes(Integer.parseInt(header.substring(header.indexOf(' ') + 1)));
+    try {
+      int length = codec.inflate(compressed, 0, compressed.length, Integer.MAX_VALUE - 8);
+      return new String(codec.output(), 0, length, StandardCharsets.UTF_8);
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed response", e);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package ch.heigvd.dai.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Scrambles the words of a text: the first and last letters of each word stay in place, the letters
+ * between them are shuffled. Words are separated by spaces, and words of at most three letters are
+ * left unchanged.
+ *
+ * <p>The text is scanned once, each word being shuffled in place in a single char array with a
+ * Fisher–Yates shuffle driven by {@link ThreadLocalRandom}. A letter is a code point, so the
+ * surrogate pairs of emoji and other supplementary characters are moved as a whole. Texts of at
+ * least {@link #PARALLEL_THRESHOLD} chars are cut at spaces into chunks scrambled in parallel. The
+ * same is done in place over UTF-8 bytes for contents that are received as bytes.
+ */
+public final class Scrambler {
+  /** Length from which a text is scrambled in parallel. */
+  public static final int PARALLEL_THRESHOLD = 1 << 20;
+
+  /** Length of the chunks a text is cut into when scrambled in parallel. */
+  private static final int CHUNK_SIZE = 1 << 18;
+
+  private Scrambler() {}
+
+  /**
+   * Scrambles a text, in parallel if it is long enough.
+   *
+   * @param content The text to scramble.
+   * @return The scrambled text, of the same length.
+   */
+  public static String scramble(String content) {
+    return scramble(content, content.length() >= PARALLEL_THRESHOLD);
+  }
+
+  /**
+   * Scrambles a text.
+   *
+   * @param content The text to scramble.
+   * @param parallel Whether to scramble chunks of the text on the common fork-join pool.
+   * @return The scrambled text, of the same length.
+   */
+  public static String scramble(String content, boolean parallel) {
+    char[] chars = content.toCharArray();
+    if (parallel && chars.length > CHUNK_SIZE) {
+      int[] bounds = chunkBounds(chars.length, i -> chars[i] == ' ');
+      IntStream.range(0, bounds.length - 1)
+          .parallel()
+          .forEach(i -> scrambleWords(chars, bounds[i], bounds[i + 1]));
+    } else {
+      scrambleWords(chars, 0, chars.length);
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Scrambles a UTF-8 encoded text in place, in parallel if it is long enough. The bytes of the
+   * code points are moved as a whole, and words containing malformed sequences are left unchanged.
+   *
+   * @param bytes The buffer holding the text.
+   * @param offset The offset of the text in the buffer.
+   * @param length The length of the text in bytes.
+   */
+  public static void scrambleUtf8(byte[] bytes, int offset, int length) {
+    if (length >= PARALLEL_THRESHOLD) {
+      int[] bounds = chunkBounds(length, i -> bytes[offset + i] == ' ');
+      IntStream.range(0, bounds.length - 1)
+          .parallel()
+          .forEach(i -> scrambleUtf8Words(bytes, offset + bounds[i], offset + bounds[i + 1]));
+    } else {
+      scrambleUtf8Words(bytes, offset, offset + length);
+    }
+  }
+
+  /** Cuts a text after the first space following every multiple of the chunk size. */
+  private static int[] chunkBounds(int length, IntPredicate space) {
+    int[] bounds = new int[length / CHUNK_SIZE + 2];
+    int count = 1;
+    int position = CHUNK_SIZE;
+    while (position < length) {
+      while (position < length && !space.test(position)) position++;
+      bounds[count++] = position;
+      position += CHUNK_SIZE;
+    }
+    if (bounds[count - 1] != length) {
+      bounds[count++] = length;
+    }
+    return Arrays.copyOf(bounds, count);
+  }
+
+  /** Scrambles the words of a range starting and ending at word boundaries. */
+  private static void scrambleWords(char[] chars, int from, int to) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int[] codePoints = null;
+    int start = from;
+    while (start < to) {
+      if (chars[start] == ' ') {
+        start++;
+        continue;
+      }
+      int end = start + 1;
+      boolean surrogates = Character.isSurrogate(chars[start]);
+      while (end < to && chars[end] != ' ') {
+        surrogates |= Character.isSurrogate(chars[end]);
+        end++;
+      }
+
+      if (!surrogates) {
+        // Fisher-Yates over the middle chars, a word of up to 3 letters has nothing to shuffle
+        for (int i = end - 2; i > start + 1; i--) {
+          int j = start + 1 + random.nextInt(i - start);
+          char c = chars[i];
+          chars[i] = chars[j];
+          chars[j] = c;
+        }
+      } else {
+        if (codePoints == null || codePoints.length < end - start) {
+          codePoints = new int[Math.max(end - start, 64)];
+        }
+        shuffleCodePoints(chars, start, end, codePoints, random);
+      }
+      start = end;
+    }
+  }
+
+  /** Scrambles the UTF-8 words of a range starting and ending at word boundaries. */
+  private static void scrambleUtf8Words(byte[] bytes, int from, int to) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int[] codePoints = null;
+    int start = from;
+    while (start < to) {
+      if (bytes[start] == ' ') {
+        start++;
+        continue;
+      }
+      int end = start + 1;
+      boolean ascii = bytes[start] >= 0;
+      while (end < to && bytes[end] != ' ') {
+        ascii &= bytes[end] >= 0;
+        end++;
+      }
+
+      if (ascii) {
+        for (int i = end - 2; i > start + 1; i--) {
+          int j = start + 1 + random.nextInt(i - start);
+          byte b = bytes[i];
+          bytes[i] = bytes[j];
+          bytes[j] = b;
+        }
+      } else {
+        if (codePoints == null || codePoints.length < end - start) {
+          codePoints = new int[Math.max(end - start, 64)];
+        }
+        shuffleUtf8CodePoints(bytes, start, end, codePoints, random);
+      }
+      start = end;
+    }
+  }
+
+  /** Shuffles the middle code points of a word containing multi-byte sequences. */
+  private static void shuffleUtf8CodePoints(
+      byte[] bytes, int start, int end, int[] codePoints, ThreadLocalRandom random) {
+    int count = 0;
+    for (int i = start; i < end; ) {
+      int b = bytes[i] & 0xFF;
+      int length = b < 0x80 ? 1 : b >= 0xF8 ? 0 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 0;
+      if (length == 0 || i + length > end) {
+        return;
+      }
+      int codePoint = length == 1 ? b : b & (0xFF >> (length + 1));
+      for (int j = 1; j < length; j++) {
+        if ((bytes[i + j] & 0xC0) != 0x80) {
+          return;
+        }
+        codePoint = (codePoint << 6) | (bytes[i + j] & 0x3F);
+      }
+      // Keeping the length of each code point lets them be written back over the word
+      codePoints[count++] = codePoint | (length << 24);
+      i += length;
+    }
+    for (int i = count - 2; i > 1; i--) {
+      int j = 1 + random.nextInt(i);
+      int codePoint = codePoints[i];
+      codePoints[i] = codePoints[j];
+      codePoints[j] = codePoint;
+    }
+    int position = start;
+    for (int i = 0; i < count; i++) {
+      int length = codePoints[i] >>> 24;
+      int codePoint = codePoints[i] & 0xFFFFFF;
+      if (length == 1) {
+        bytes[position] = (byte) codePoint;
+      } else {
+        bytes[position] = (byte) ((0xFF00 >> length) | (codePoint >> (6 * (length - 1))));
+        for (int j = 1; j < length; j++) {
+          bytes[position + j] = (byte) (0x80 | ((codePoint >> (6 * (length - 1 - j))) & 0x3F));
+        }
+      }
+      position += length;
+    }
+  }
+
+  /** Shuffles the middle code points of a word containing surrogates. */
+  private static void shuffleCodePoints(
+      char[] chars, int start, int end, int[] codePoints, ThreadLocalRandom random) {
+    int count = 0;
+    for (int i = start; i < end; ) {
+      int codePoint = Character.codePointAt(chars, i, end);
+      codePoints[count++] = codePoint;
+      i += Character.charCount(codePoint);
+    }
+    for (int i = count - 2; i > 1; i--) {
+      int j = 1 + random.nextInt(i);
+      int codePoint = codePoints[i];
+      codePoints[i] = codePoints[j];
+      codePoints[j] = codePoint;
+    }
+    // The code points keep their total length, they are written back over the word
+    int position = start;
+    for (int i = 0; i < count; i++) {
+      position += Character.toChars(codePoints[i], chars, position);
+    }
+  }
+}
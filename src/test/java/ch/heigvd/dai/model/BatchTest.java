@@ -0,0 +1,106 @@
+package ch.heigvd.dai.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BatchTest {
+  private User user;
+  private int logged;
+
+  @BeforeEach
+  void createUser() {
+    user = new User("alice");
+    user.addNote(new Note("first", ""));
+    user.addNote(new Note("second", ""));
+    user.setListener(
+        new NoteListener() {
+          @Override
+          public void batchStarted(User user) {
+            logged++;
+          }
+        });
+  }
+
+  @Test
+  void appliesTheOperationsInOrder() {
+    long version = user.getVersion();
+    long secondId = user.getNoteByTitle("second").getId();
+    Batch batch = new Batch();
+    batch.deleteNote(1, 0);
+    // The index of the note created after the deletion
+    batch.createNote("third");
+    batch.updateContent(2, 0, bytes("created"), User.ANY_VERSION);
+    batch.patchContent(0, secondId, User.END, 0, bytes("appended"), User.ANY_VERSION);
+    batch.renameNote(1, 0, "renamed", User.ANY_VERSION);
+
+    long[] results = user.apply(batch, Integer.MAX_VALUE);
+
+    assertArrayEquals(
+        new long[] {version + 1, version + 2, version + 3, version + 4, version + 5}, results);
+    assertEquals(version + 5, user.getVersion());
+    List<String> titles = user.getNotes().stream().map(Note::getTitle).toList();
+    assertEquals(List.of("renamed", "third"), titles);
+    assertEquals("appended", user.getNoteByTitle("renamed").getContent());
+    assertEquals("created", user.getNoteByTitle("third").getContent());
+    assertEquals(1, logged);
+  }
+
+  @Test
+  void appliesNothingIfAnOperationFails() {
+    long version = user.getVersion();
+    Note first = user.getNoteByTitle("first");
+    Batch batch = new Batch();
+    batch.createNote("third");
+    batch.updateContent(1, 0, bytes("lost"), User.ANY_VERSION);
+    batch.renameNote(2, 0, "first", User.ANY_VERSION);
+    batch.deleteNote("second");
+
+    long[] results = user.apply(batch, Integer.MAX_VALUE);
+
+    assertArrayEquals(
+        new long[] {User.ABORTED, User.ABORTED, User.TITLE_TAKEN, User.ABORTED}, results);
+    assertEquals(version, user.getVersion());
+    assertEquals(List.of(first, user.getNoteByTitle("second")), user.getNotes());
+    assertEquals("", first.getContent());
+    assertNull(user.getNoteByTitle("third"));
+    assertEquals(0, logged);
+  }
+
+  @Test
+  void checksTheVersionsAsLeftByThePreviousOperations() {
+    Note first = user.getNoteByTitle("first");
+    long expected = first.getVersion();
+    Batch batch = new Batch();
+    batch.renameNote(1, 0, "renamed", expected);
+    // The rename changed the version the update expects
+    batch.updateContent(1, 0, bytes("text"), expected);
+
+    long[] results = user.apply(batch, Integer.MAX_VALUE);
+
+    assertEquals(User.CONFLICT, results[1]);
+    assertEquals(User.ABORTED, results[0]);
+    assertEquals("first", first.getTitle());
+  }
+
+  @Test
+  void refusesTooLargePatchesAndMissingNotes() {
+    Batch large = new Batch();
+    large.patchContent(1, 0, User.END, 0, bytes("too long"), User.ANY_VERSION);
+    assertEquals(User.TOO_LARGE, user.apply(large, 4)[0]);
+
+    Batch missing = new Batch();
+    missing.deleteNote(1, 0);
+    missing.deleteNote(1, 0);
+    missing.deleteNote(1, 0);
+    assertEquals(User.DELETED, user.apply(missing, Integer.MAX_VALUE)[2]);
+    assertEquals(2, user.getNoteCount());
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
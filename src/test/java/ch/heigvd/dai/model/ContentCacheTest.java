@@ -0,0 +1,106 @@
+package ch.heigvd.dai.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ContentCacheTest {
+  private static final int BUDGET = 1000;
+  private static final int NOTES = 20;
+
+  @TempDir Path directory;
+
+  private ContentCache cache;
+  private User user;
+
+  @BeforeEach
+  void fillCache() throws IOException, InterruptedException {
+    cache = ContentCache.open(directory.resolve("contents.spill"), BUDGET);
+    Note.useCache(cache);
+    user = new User("alice");
+    for (int i = 0; i < NOTES; i++) {
+      user.addNote(new Note("note " + i, ""));
+      user.updateContent(user.getNote(i), content(i), User.ANY_VERSION);
+    }
+    awaitWithinBudget();
+  }
+
+  @AfterEach
+  void closeCache() throws IOException {
+    Note.useCache(null);
+    cache.close();
+  }
+
+  @Test
+  void readsTheSpilledContentsBack() {
+    assertTrue(cache.evictions() > 0);
+    assertTrue(cache.spilledBytes() > 0);
+
+    for (int i = 0; i < NOTES; i++) {
+      List<String> read = new ArrayList<>();
+      assertTrue(user.readContent(user.getNote(i), note -> read.add(note.getContent())));
+      assertEquals(content(i), read.get(0));
+    }
+    assertTrue(cache.misses() > 0);
+    assertEquals(NOTES, cache.hits() + cache.misses());
+  }
+
+  @Test
+  void capturesTheSpilledContentsWithoutReadingThemBack() throws IOException {
+    User.State state = user.capture();
+
+    for (int i = 0; i < NOTES; i++) {
+      assertEquals(content(i), state.notes().get(i).getContent());
+    }
+    assertEquals(0, cache.hits() + cache.misses());
+  }
+
+  @Test
+  void dropsTheCopyOfAChangedContent() throws InterruptedException {
+    Note first = user.getNote(0);
+    user.updateContent(first, "replaced", User.ANY_VERSION);
+    byte[] appended = " and appended".getBytes(StandardCharsets.UTF_8);
+    Note second = user.getNote(1);
+    user.patchContent(
+        second, User.END, 0, appended, appended.length, Integer.MAX_VALUE, User.ANY_VERSION);
+    awaitWithinBudget();
+
+    assertEquals("replaced", first.getContent());
+    assertEquals(content(1) + " and appended", second.getContent());
+  }
+
+  @Test
+  void forgetsTheDeletedNotes() throws IOException {
+    for (int i = 0; i < NOTES; i++) {
+      user.deleteNoteByTitle("note " + i);
+    }
+
+    assertEquals(0, cache.residentBytes());
+    assertEquals(0, cache.spilledBytes());
+    Path file = directory.resolve("contents.spill");
+    cache.close();
+    assertFalse(Files.exists(file));
+  }
+
+  /** Waits for the evictor to bring the contents in memory back within the budget. */
+  private void awaitWithinBudget() throws InterruptedException {
+    long deadline = System.nanoTime() + 5_000_000_000L;
+    while (cache.residentBytes() > BUDGET) {
+      assertTrue(System.nanoTime() < deadline, "contents still over budget");
+      Thread.sleep(1);
+    }
+  }
+
+  private static String content(int i) {
+    return ("content " + i + " ").repeat(20);
+  }
+}
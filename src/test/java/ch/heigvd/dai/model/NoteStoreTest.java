@@ -0,0 +1,84 @@
+package ch.heigvd.dai.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class NoteStoreTest {
+  @Test
+  void findsTheNotesByPositionAfterDeletions() {
+    NoteStore store = new NoteStore();
+    for (int i = 0; i < 5; i++) {
+      assertTrue(store.add(note(i)));
+    }
+    store.removeByTitle("note 1");
+    store.removeByTitle("note 3");
+
+    assertEquals(3, store.size());
+    assertEquals("note 0", store.get(0).getTitle());
+    assertEquals("note 2", store.get(1).getTitle());
+    assertEquals("note 4", store.get(2).getTitle());
+    assertNull(store.get(3));
+    assertNull(store.get(-1));
+    assertEquals(2, store.indexOf(store.getByTitle("note 4")));
+  }
+
+  @Test
+  void refusesATakenTitle() {
+    NoteStore store = new NoteStore();
+    store.add(note(0));
+    store.add(note(1));
+    Note duplicate = new Note(9, 0, "note 0", "");
+
+    assertFalse(store.add(duplicate));
+    assertEquals(-1, store.indexOf(duplicate));
+    assertFalse(store.rename(store.getByTitle("note 1"), "note 0"));
+    assertTrue(store.rename(store.getByTitle("note 1"), "renamed"));
+    assertNull(store.getByTitle("note 1"));
+    assertEquals(1, store.indexOf(store.getByTitle("renamed")));
+  }
+
+  @Test
+  void matchesAListUnderRandomOperations() {
+    NoteStore store = new NoteStore();
+    List<Note> expected = new ArrayList<>();
+    Random random = new Random(42);
+    long nextId = 0;
+    for (int step = 0; step < 20_000; step++) {
+      int operation = random.nextInt(10);
+      if (operation < 5 || expected.isEmpty()) {
+        Note note = note(nextId++);
+        assertTrue(store.add(note));
+        expected.add(note);
+      } else if (operation < 9) {
+        Note note = expected.remove(random.nextInt(expected.size()));
+        assertSame(note, store.removeByTitle(note.getTitle()));
+        assertEquals(-1, store.indexOf(note));
+      } else {
+        Note note = expected.get(random.nextInt(expected.size()));
+        assertTrue(store.rename(note, "renamed " + nextId++));
+      }
+
+      if (step % 97 == 0) {
+        assertEquals(expected, store.list());
+        int offset = random.nextInt(expected.size() + 2);
+        int end = Math.min(expected.size(), offset + 10);
+        assertEquals(expected.subList(Math.min(offset, end), end), store.list(offset, 10));
+      }
+      assertEquals(expected.size(), store.size());
+      if (!expected.isEmpty()) {
+        int index = random.nextInt(expected.size());
+        assertSame(expected.get(index), store.get(index));
+        assertEquals(index, store.indexOf(expected.get(index)));
+        assertSame(expected.get(index), store.getById(expected.get(index).getId()));
+      }
+    }
+  }
+
+  private static Note note(long id) {
+    return new Note(id, 0, "note " + id, "");
+  }
+}
@@ -0,0 +1,94 @@
+package ch.heigvd.dai.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class RopeTest {
+  @Test
+  void replacesARangeAcrossPieces() {
+    byte[] content = text(3 * Rope.LEAF_BYTES + 100, new Random(1));
+    Rope rope = new Rope(null, content, 0, content.length);
+    byte[] inserted = "inserted".getBytes(StandardCharsets.UTF_8);
+    int offset = Rope.LEAF_BYTES - 10;
+    rope.replace(offset, Rope.LEAF_BYTES, inserted, 0, inserted.length);
+
+    byte[] expected = replace(content, offset, Rope.LEAF_BYTES, inserted);
+    assertEquals(expected.length, rope.length());
+    assertEquals(new String(expected, StandardCharsets.UTF_8), rope.decode(0, rope.length()));
+  }
+
+  @Test
+  void matchesAnArrayUnderRandomEdits() {
+    checkRandomEdits(null);
+  }
+
+  @Test
+  void freesItsPiecesInTheArena() {
+    ContentArena arena = new ContentArena();
+    Rope rope = checkRandomEdits(arena);
+    rope.release();
+    assertEquals(0, arena.usedBytes());
+  }
+
+  @Test
+  void findsTheWordsAndTheCharacters() {
+    byte[] content = "un été chaud".getBytes(StandardCharsets.UTF_8);
+    Rope rope = new Rope(null, content, 0, content.length);
+
+    assertTrue(rope.isCharBoundary(3));
+    assertFalse(rope.isCharBoundary(4));
+    assertTrue(rope.isCharBoundary(rope.length()));
+    assertEquals(3, rope.wordStart(5));
+    assertEquals(8, rope.wordEnd(5));
+    assertEquals(0, rope.wordStart(0));
+    assertEquals(rope.length(), rope.wordEnd(10));
+  }
+
+  /** Applies random edits to a rope and to an array, comparing them after each one. */
+  private static Rope checkRandomEdits(ContentArena arena) {
+    Random random = new Random(42);
+    byte[] expected = text(2 * Rope.LEAF_BYTES, random);
+    Rope rope = new Rope(arena, expected, 0, expected.length);
+    for (int step = 0; step < 2_000; step++) {
+      int offset = random.nextInt(expected.length + 1);
+      int removed = random.nextInt(Math.min(expected.length - offset, 3 * Rope.LEAF_BYTES) + 1);
+      // Mostly small edits, sometimes larger than a piece
+      int length = random.nextInt(8) == 0 ? random.nextInt(2 * Rope.LEAF_BYTES) : 20;
+      byte[] bytes = text(length, random);
+      rope.replace(offset, removed, bytes, 0, bytes.length);
+      expected = replace(expected, offset, removed, bytes);
+
+      assertEquals(expected.length, rope.length());
+      int start = random.nextInt(expected.length + 1);
+      int end = start + random.nextInt(expected.length - start + 1);
+      byte[] range = new byte[end - start];
+      rope.copy(start, end, range, 0);
+      assertArrayEquals(Arrays.copyOfRange(expected, start, end), range);
+    }
+    byte[] all = new byte[rope.length()];
+    rope.copy(0, all.length, all, 0);
+    assertArrayEquals(expected, all);
+    return rope;
+  }
+
+  private static byte[] replace(byte[] content, int offset, int removed, byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(content, 0, offset);
+    out.write(bytes, 0, bytes.length);
+    out.write(content, offset + removed, content.length - offset - removed);
+    return out.toByteArray();
+  }
+
+  private static byte[] text(int length, Random random) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (random.nextInt(8) == 0 ? ' ' : 'a' + random.nextInt(26));
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,131 @@
+package ch.heigvd.dai.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.utils.Scrambler;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SearchIndexTest {
+  private User user;
+
+  @BeforeEach
+  void createNotes() {
+    user = new User("alice");
+    add("groceries", "buy apples and elephants");
+    add("zoo trip", "see the elephants and giraffes");
+    add("recipes", "apples pie with cinnamon");
+    add("apples", "nothing about fruits");
+  }
+
+  @Test
+  void findsTheScrambledWords() {
+    assertEquals(List.of("groceries", "zoo trip"), sorted(titles("elephants")));
+    assertEquals(List.of("zoo trip"), titles("GIRAFFES"));
+    // An anagram keeping the first letter has the same key
+    assertEquals(List.of("zoo trip"), titles("gfiraefs"));
+    assertEquals(List.of(), titles("lephants"));
+  }
+
+  @Test
+  void requiresAllTheTermsOfAGroup() {
+    assertEquals(List.of("groceries"), titles("apples elephants"));
+    assertEquals(List.of("groceries"), titles("apples AND elephants"));
+    assertEquals(List.of(), titles("cinnamon giraffes"));
+    assertEquals(List.of("recipes", "zoo trip"), sorted(titles("cinnamon OR giraffes")));
+    assertEquals(
+        List.of("recipes", "zoo trip"), sorted(titles("cinnamon pie OR giraffes missing OR see")));
+  }
+
+  @Test
+  void matchesThePrefixes() {
+    assertEquals(List.of("groceries", "zoo trip"), sorted(titles("eleph*")));
+    assertEquals(List.of("zoo trip"), titles("zo*"));
+    assertEquals(List.of("recipes"), titles("cin* pi*"));
+    // A term of a single letter and its prefix
+    assertEquals(List.of("recipes"), titles("p*"));
+  }
+
+  @Test
+  void ranksTheTitlesFirst() {
+    List<String> found = titles("apples");
+    assertEquals("apples", found.get(0));
+    assertEquals(List.of("apples", "groceries", "recipes"), sorted(found));
+
+    Note recipes = user.getNoteByTitle("recipes");
+    user.updateContent(recipes, scrambled("apples apples apples"), User.ANY_VERSION);
+    assertEquals(List.of("apples", "recipes", "groceries"), titles("apples"));
+    assertEquals(List.of("apples"), titles("apples", 1));
+  }
+
+  @Test
+  void followsTheRenamedNotes() {
+    Note zoo = user.getNoteByTitle("zoo trip");
+    user.renameNote(zoo, "safari", User.ANY_VERSION);
+
+    assertEquals(List.of(), titles("zoo"));
+    assertEquals(List.of("safari"), titles("safari"));
+    assertEquals(List.of("safari"), titles("giraffes"));
+  }
+
+  @Test
+  void followsTheContentsEditedInPlace() {
+    Note recipes = user.getNoteByTitle("recipes");
+    // Replaces "apples" by "pears", then appends a word
+    patch(recipes, 0, "apples".length(), "pears");
+    patch(recipes, User.END, 0, " and vanilla");
+
+    assertEquals(List.of("recipes"), titles("pears cinnamon vanilla"));
+    assertEquals(List.of(), titles("apples cinnamon"));
+    assertEquals(List.of("apples", "groceries"), sorted(titles("apples")));
+
+    // Joining two words removes their keys and adds the key of the whole
+    patch(recipes, "pears pie".length(), 1, "");
+    assertEquals(List.of(), titles("pie"));
+    assertEquals(List.of(), titles("with"));
+    assertEquals(List.of("recipes"), titles("piewith"));
+  }
+
+  @Test
+  void forgetsTheDeletedNotes() {
+    user.deleteNoteByTitle("zoo trip");
+    assertEquals(List.of("groceries"), titles("elephants"));
+    assertEquals(List.of(), titles("giraffes"));
+
+    // The new note takes the document number of the deleted one without its terms
+    add("garden", "tomatoes");
+    assertEquals(List.of(), titles("giraffes"));
+    assertEquals(List.of(), titles("zoo"));
+    assertEquals(List.of("garden"), titles("tomatoes"));
+  }
+
+  private void add(String title, String content) {
+    user.addNote(new Note(title, ""));
+    user.updateContent(user.getNoteByTitle(title), scrambled(content), User.ANY_VERSION);
+  }
+
+  private void patch(Note note, int offset, int removed, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    Scrambler.scrambleUtf8(bytes, 0, bytes.length);
+    user.patchContent(
+        note, offset, removed, bytes, bytes.length, Integer.MAX_VALUE, User.ANY_VERSION);
+  }
+
+  private List<String> titles(String query) {
+    return titles(query, 10);
+  }
+
+  private List<String> titles(String query, int limit) {
+    return user.search(query, limit).stream().map(User.Hit::title).toList();
+  }
+
+  private static List<String> sorted(List<String> titles) {
+    return titles.stream().sorted().toList();
+  }
+
+  private static String scrambled(String content) {
+    return Scrambler.scramble(content);
+  }
+}
@@ -0,0 +1,171 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.model.ContentArena;
+import ch.heigvd.dai.model.ContentCache;
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DownloadTest {
+  /** Spans several chunks, with characters of every UTF-8 length cut by their ends. */
+  private static final String CONTENT = "aé€😀 ".repeat(20_000);
+
+  @AfterEach
+  void keepStrings() {
+    Note.useArena(null);
+  }
+
+  @Test
+  void sendsAContentKeptAsAString() {
+    assertArrayEquals(bytes(CONTENT), download(note(CONTENT)));
+  }
+
+  @Test
+  void sendsAContentKeptInTheArena() {
+    Note.useArena(new ContentArena());
+    assertArrayEquals(bytes(CONTENT), download(note(CONTENT)));
+  }
+
+  @Test
+  void sendsAContentEditedInPlace() {
+    User user = new User("alice");
+    user.addNote(new Note("note", ""));
+    Note note = user.getNote(0);
+    user.updateContent(note, CONTENT, User.ANY_VERSION);
+    byte[] end = bytes("end");
+    user.patchContent(note, User.END, 0, end, end.length, Integer.MAX_VALUE, User.ANY_VERSION);
+
+    assertArrayEquals(bytes(CONTENT + "end"), download(user, note));
+  }
+
+  @Test
+  void resumesAContentReadBackAsAString(@TempDir Path directory)
+      throws IOException, InterruptedException {
+    try (ContentCache cache = ContentCache.open(directory.resolve("contents.spill"), 1)) {
+      Note.useCache(cache);
+      User user = new User("alice");
+      user.addNote(new Note("note", ""));
+      Note note = user.getNote(0);
+      user.updateContent(note, CONTENT, User.ANY_VERSION);
+      byte[] end = bytes("end");
+      user.patchContent(note, User.END, 0, end, end.length, Integer.MAX_VALUE, User.ANY_VERSION);
+
+      // The first chunk is read from the rope, the next ones from the string it is read back as
+      Download download = new Download(user, note);
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      ResponseSink out = new ResponseSink(Download.CHUNK_SIZE + 16);
+      boolean more = download.writeNextChunk(TextResponseEncoder.INSTANCE, out);
+      content.writeBytes(chunks(out));
+      long deadline = System.nanoTime() + 5_000_000_000L;
+      while (cache.residentBytes() > 0) {
+        assertTrue(System.nanoTime() < deadline, "content not spilled");
+        Thread.sleep(1);
+      }
+      while (more) {
+        out.reset();
+        more = download.writeNextChunk(TextResponseEncoder.INSTANCE, out);
+        content.writeBytes(chunks(out));
+      }
+      assertArrayEquals(bytes(CONTENT + "end"), content.toByteArray());
+    } finally {
+      Note.useCache(null);
+    }
+  }
+
+  @Test
+  void sendsAnEmptyContent() {
+    ResponseSink out = new ResponseSink(64);
+    User user = new User("alice");
+    user.addNote(new Note("note", ""));
+    Download download = new Download(user, user.getNote(0));
+    assertFalse(download.writeNextChunk(TextResponseEncoder.INSTANCE, out));
+    assertEquals("CHUNK 0\n", out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void stopsWhenTheNoteChanges() {
+    User user = new User("alice");
+    user.addNote(new Note("note", ""));
+    Note note = user.getNote(0);
+    user.updateContent(note, CONTENT, User.ANY_VERSION);
+    Download download = new Download(user, note);
+    ResponseSink out = new ResponseSink(Download.CHUNK_SIZE + 16);
+    assertTrue(download.writeNextChunk(TextResponseEncoder.INSTANCE, out));
+
+    user.updateContent(note, "other", User.ANY_VERSION);
+    out.reset();
+    assertFalse(download.writeNextChunk(TextResponseEncoder.INSTANCE, out));
+    assertEquals("ERROR -7\n", out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void stopsWhenTheNoteIsDeleted() {
+    User user = new User("alice");
+    user.addNote(new Note("note", ""));
+    Download download = new Download(user, user.getNote(0));
+    user.deleteNoteByTitle("note");
+
+    ResponseSink out = new ResponseSink(64);
+    assertFalse(download.writeNextChunk(TextResponseEncoder.INSTANCE, out));
+    assertEquals("ERROR -1\n", out.toString(StandardCharsets.UTF_8));
+  }
+
+  private static User note(String content) {
+    User user = new User("alice");
+    user.addNote(new Note("note", content));
+    return user;
+  }
+
+  private static byte[] download(User user) {
+    return download(user, user.getNote(0));
+  }
+
+  /** Runs a download and returns the bytes of the content it sent. */
+  private static byte[] download(User user, Note note) {
+    Download download = new Download(user, note);
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    ResponseSink out = new ResponseSink(Download.CHUNK_SIZE + 16);
+    boolean more = true;
+    int calls = 0;
+    while (more) {
+      out.reset();
+      more = download.writeNextChunk(TextResponseEncoder.INSTANCE, out);
+      content.writeBytes(chunks(out));
+      calls++;
+    }
+    assertTrue(calls > 2);
+    return content.toByteArray();
+  }
+
+  /** Checks the chunks written to a sink and returns their bytes. */
+  private static byte[] chunks(ResponseSink out) {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    byte[] sent = out.toByteArray();
+    int position = 0;
+    while (position < sent.length) {
+      int newline = position;
+      while (sent[newline] != '\n') {
+        newline++;
+      }
+      String header = new String(sent, position, newline - position, StandardCharsets.UTF_8);
+      assertTrue(header.startsWith("CHUNK "), header);
+      int size = Integer.parseInt(header.substring("CHUNK ".length()));
+      assertTrue(size <= Download.CHUNK_SIZE);
+      content.write(sent, newline + 1, size);
+      position = newline + 1 + size;
+    }
+    return content.toByteArray();
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,100 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.commands.Client;
+import ch.heigvd.dai.commands.Server.Error;
+import ch.heigvd.dai.utils.FrameParser;
+import ch.heigvd.dai.utils.Frames;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class LineReaderTest {
+  @Test
+  void readsTheFramesFollowingEachOther() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    // Larger than the initial buffer of the reader
+    String content = "x".repeat(20_000);
+    Frames.writeRequest(out, Client.Command.UPDATE_CONTENT, 1, 1, content, 3L);
+    Frames.writeRequest(out, Client.Command.DISCONNECT, 2);
+    LineReader reader = reader(bytes.toByteArray());
+    FrameParser parser = new FrameParser();
+
+    assertTrue(reader.readFrame(64 * 1024));
+    assertTrue(parser.parse(reader.buffer(), reader.lineStart(), reader.lineLength()));
+    assertEquals(Client.Command.UPDATE_CONTENT, parser.command());
+    assertEquals(content, parser.argument(1));
+    assertEquals(3, parser.longArgument(2, -1));
+
+    assertTrue(reader.readFrame(64 * 1024));
+    assertTrue(parser.parse(reader.buffer(), reader.lineStart(), reader.lineLength()));
+    assertEquals(Client.Command.DISCONNECT, parser.command());
+    assertEquals(2, parser.requestId());
+
+    assertFalse(reader.readFrame(64 * 1024));
+  }
+
+  @Test
+  void refusesAnOversizedFrame() throws IOException {
+    byte[] frame = frame(Client.Command.CREATE_NOTE, "x".repeat(100));
+    IOException error = assertThrows(IOException.class, () -> reader(frame).readFrame(100));
+    assertEquals("Frame too long", error.getMessage());
+
+    // A negative length is no frame either
+    byte[] negative = {(byte) 0x80, 0, 0, 0};
+    assertThrows(IOException.class, () -> reader(negative).readFrame(100));
+  }
+
+  @Test
+  void reportsATruncatedFrame() throws IOException {
+    byte[] frame = frame(Client.Command.CREATE_NOTE, "title");
+    for (int length : new int[] {2, 4, frame.length - 1}) {
+      byte[] truncated = Arrays.copyOf(frame, length);
+      assertThrows(EOFException.class, () -> reader(truncated).readFrame(100), "" + length);
+    }
+  }
+
+  @Test
+  void writesResponsesTheClientsRead() throws IOException {
+    FrameResponseEncoder encoder = new FrameResponseEncoder(null);
+    ResponseSink out = new ResponseSink(64);
+    encoder.begin(7);
+    encoder.updated(out, 12);
+    encoder.begin(8);
+    encoder.error(out, Error.VERSION_CONFLICT);
+    encoder.begin(9);
+    byte[] chunk = {1, 2, 3};
+    encoder.chunk(out, chunk, 0, chunk.length);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+
+    Frames.Response updated = Frames.readResponse(in);
+    assertEquals(Frames.OK, updated.status());
+    assertEquals(7, updated.requestId());
+    assertEquals(12, FrameParser.readInt(updated.fields().get(0), 4));
+    Frames.Response error = Frames.readResponse(in);
+    assertEquals(Frames.ERROR, error.status());
+    assertEquals(8, error.requestId());
+    assertEquals(Error.VERSION_CONFLICT.getCode(), FrameParser.readInt(error.fields().get(0), 0));
+    Frames.Response sent = Frames.readResponse(in);
+    assertEquals(Frames.CHUNK, sent.status());
+    assertArrayEquals(chunk, sent.fields().get(0));
+    assertEquals(0, in.available());
+  }
+
+  private static LineReader reader(byte[] bytes) {
+    return new LineReader(new ByteArrayInputStream(bytes), 1024);
+  }
+
+  private static byte[] frame(Client.Command command, Object... arguments) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Frames.writeRequest(new DataOutputStream(bytes), command, 1, arguments);
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,127 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.model.Note;
+import ch.heigvd.dai.model.User;
+import ch.heigvd.dai.model.UserRegistry;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WatchQueueTest {
+  private final ServerMetrics metrics = new ServerMetrics();
+  private int notified;
+  private WatchQueue queue;
+  private User user;
+
+  @BeforeEach
+  void watch() {
+    queue = new WatchQueue(metrics, () -> notified++);
+    user = new User("alice");
+    user.watch(queue);
+  }
+
+  @Test
+  void keepsTheLastChangeOfAContent() throws IOException {
+    user.addNote(new Note("note", ""));
+    Note note = user.getNote(0);
+    for (int i = 0; i < 3; i++) {
+      user.updateContent(note, "content " + i, User.ANY_VERSION);
+    }
+
+    List<WatchQueue.Event> events = queue.drain();
+
+    assertEquals(List.of(WatchQueue.Kind.CREATED, WatchQueue.Kind.CHANGED), kinds(events));
+    assertEquals(user.getVersion(), events.get(1).version());
+    assertEquals(2, counter("events.coalesced"));
+    assertEquals(1, notified);
+  }
+
+  @Test
+  void movesACoalescedRenameAfterTheOtherEvents() {
+    user.addNote(new Note("a", ""));
+    user.addNote(new Note("b", ""));
+    queue.drain();
+    Note a = user.getNoteByTitle("a");
+    user.renameNote(a, "first", User.ANY_VERSION);
+    user.updateContent(user.getNoteByTitle("b"), "text", User.ANY_VERSION);
+    user.renameNote(a, "second", User.ANY_VERSION);
+
+    List<WatchQueue.Event> events = queue.drain();
+
+    assertEquals(List.of(WatchQueue.Kind.CHANGED, WatchQueue.Kind.RENAMED), kinds(events));
+    assertEquals("second", events.get(1).title());
+    assertEquals(a.getId(), events.get(1).id());
+    assertTrue(events.get(0).version() < events.get(1).version());
+  }
+
+  @Test
+  void keepsTheEventsOfDifferentKinds() {
+    user.addNote(new Note("note", ""));
+    Note note = user.getNote(0);
+    user.updateContent(note, "text", User.ANY_VERSION);
+    user.renameNote(note, "renamed", User.ANY_VERSION);
+    user.updateContent(note, "other", User.ANY_VERSION);
+    user.deleteNoteByTitle("renamed");
+
+    assertEquals(
+        List.of(
+            WatchQueue.Kind.CREATED,
+            WatchQueue.Kind.CHANGED,
+            WatchQueue.Kind.RENAMED,
+            WatchQueue.Kind.CHANGED,
+            WatchQueue.Kind.DELETED),
+        kinds(queue.drain()));
+  }
+
+  @Test
+  void dropsTheEventsForASingleResyncOnceFull() throws IOException {
+    for (int i = 0; i < WatchQueue.CAPACITY; i++) {
+      user.addNote(new Note("note " + i, ""));
+    }
+    assertTrue(queue.await());
+    // The events past the capacity are dropped too, the resync telling the last version
+    for (int i = 0; i < 10; i++) {
+      user.addNote(new Note("extra " + i, ""));
+    }
+
+    List<WatchQueue.Event> events = queue.drain();
+
+    assertEquals(1, events.size());
+    assertEquals(WatchQueue.Kind.RESYNC, events.get(0).kind());
+    assertEquals(user.getVersion(), events.get(0).version());
+    assertEquals(WatchQueue.CAPACITY + 10, counter("events.dropped"));
+    assertEquals(1, notified);
+
+    // The queue starts again from the changes made after the drain
+    user.deleteNoteByTitle("note 0");
+    assertEquals(List.of(WatchQueue.Kind.DELETED), kinds(queue.drain()));
+    assertEquals(2, notified);
+    assertEquals(List.of(), queue.drain());
+  }
+
+  @Test
+  void stopsWaitingOnceClosed() {
+    queue.close();
+    assertFalse(queue.await());
+  }
+
+  private static List<WatchQueue.Kind> kinds(List<WatchQueue.Event> events) {
+    return events.stream().map(WatchQueue.Event::kind).toList();
+  }
+
+  /** Reads a counter of the metrics as written by {@code STATS}. */
+  private long counter(String name) throws IOException {
+    StringWriter stats = new StringWriter();
+    metrics.writeTo(stats, new UserRegistry());
+    for (String line : stats.toString().split("\n")) {
+      if (line.startsWith(name + " ")) {
+        return Long.parseLong(line.substring(name.length() + 1));
+      }
+    }
+    throw new AssertionError("No counter " + name);
+  }
+}
@@ -0,0 +1,132 @@
+package ch.heigvd.dai.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.model.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnapshotTest {
+  @TempDir Path directory;
+
+  @Test
+  void loadsWhatWasWritten() throws IOException {
+    UserRegistry users = new UserRegistry();
+    User alice = users.getOrCreate("alice");
+    alice.addNote(new Note("first", ""));
+    alice.addNote(new Note("second", ""));
+    alice.deleteNoteByTitle("first");
+    Note second = alice.getNoteByTitle("second");
+    alice.updateContent(second, "line 1\nligne 2 é", User.ANY_VERSION);
+    users.getOrCreate("bob");
+
+    assertEquals(1, Snapshot.write(directory, 7, users));
+    UserRegistry restored = new UserRegistry();
+    assertEquals(7, Snapshot.load(directory, restored));
+
+    User loaded = restored.get("alice");
+    Note note = loaded.getNoteByTitle("second");
+    assertEquals(1, loaded.getNoteCount());
+    assertEquals(second.getId(), note.getId());
+    assertEquals(second.getVersion(), note.getVersion());
+    assertEquals("line 1\nligne 2 é", note.getContent());
+    assertEquals(alice.getVersion(), loaded.getVersion());
+    assertEquals(0, restored.get("bob").getNoteCount());
+
+    // The identifiers of the deleted notes are not given again
+    loaded.addNote(new Note("third", ""));
+    assertTrue(loaded.getNoteByTitle("third").getId() > second.getId());
+  }
+
+  @Test
+  void loadsNothingWithoutSnapshot() throws IOException {
+    UserRegistry restored = new UserRegistry();
+    assertEquals(0, Snapshot.load(directory, restored));
+    assertEquals(0, restored.size());
+  }
+
+  @Test
+  void recoversFromTheSnapshotAndTheLaterSegments() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.Durability.ASYNC, 0)) {
+      log.replay(users, Snapshot.load(directory, users));
+      users.setListener(log);
+      User alice = users.getOrCreate("alice");
+      alice.addNote(new Note("todo", ""));
+      append(alice, "before");
+
+      // As the snapshot thread does, with a change made between the roll and the capture
+      long segment = log.roll();
+      append(alice, " during");
+      Snapshot.write(directory, segment, users);
+      log.deleteSegmentsBefore(segment);
+      append(alice, " after");
+      alice.addNote(new Note("new", ""));
+    }
+    assertEquals(List.of("snapshot-0000000000000001.snap"), files("snapshot-"));
+    assertEquals(List.of("wal-0000000000000001.log"), files("wal-"));
+
+    UserRegistry restored = new UserRegistry();
+    try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.Durability.ASYNC, 0)) {
+      log.replay(restored, Snapshot.load(directory, restored));
+    }
+    User alice = restored.get("alice");
+    assertEquals("before during after", alice.getNoteByTitle("todo").getContent());
+    assertEquals(2, alice.getNoteCount());
+    assertEquals(users.get("alice").getVersion(), alice.getVersion());
+  }
+
+  @Test
+  void replacesTheOlderSnapshots() throws IOException {
+    UserRegistry users = new UserRegistry();
+    users.getOrCreate("alice").addNote(new Note("old", ""));
+    Snapshot.write(directory, 1, users);
+    users.get("alice").addNote(new Note("new", ""));
+    Snapshot.write(directory, 2, users);
+
+    assertEquals(List.of("snapshot-0000000000000002.snap"), files("snapshot-"));
+    UserRegistry restored = new UserRegistry();
+    assertEquals(2, Snapshot.load(directory, restored));
+    assertEquals(2, restored.get("alice").getNoteCount());
+  }
+
+  @Test
+  void refusesACorruptedSnapshot() throws IOException {
+    UserRegistry users = new UserRegistry();
+    users.getOrCreate("alice").addNote(new Note("note", ""));
+    Snapshot.write(directory, 0, users);
+    Path file = directory.resolve("snapshot-0000000000000000.snap");
+    byte[] bytes = Files.readAllBytes(file);
+    bytes[bytes.length / 2] ^= 1;
+    Files.write(file, bytes);
+
+    assertThrows(IOException.class, () -> Snapshot.load(directory, new UserRegistry()));
+  }
+
+  private static void append(User user, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    user.patchContent(
+        user.getNoteByTitle("todo"),
+        User.END,
+        0,
+        bytes,
+        bytes.length,
+        Integer.MAX_VALUE,
+        User.ANY_VERSION);
+  }
+
+  private List<String> files(String prefix) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.startsWith(prefix))
+          .sorted()
+          .toList();
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package ch.heigvd.dai.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.model.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadLogTest {
+  @TempDir Path directory;
+
+  @Test
+  void replaysEveryKindOfChange() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = open(users)) {
+      User alice = users.getOrCreate("alice");
+      alice.addNote(new Note("groceries", ""));
+      alice.addNote(new Note("todo", ""));
+      alice.addNote(new Note("draft", ""));
+      Note todo = alice.getNoteByTitle("todo");
+      alice.updateContent(todo, "call bob", User.ANY_VERSION);
+      patch(alice, todo, User.END, 0, " twice");
+      patch(alice, todo, 0, 4, "phone");
+      alice.renameNote(alice.getNoteByTitle("groceries"), "shopping", User.ANY_VERSION);
+      alice.deleteNoteByTitle("draft");
+      User bob = users.getOrCreate("bob");
+      bob.addNote(new Note("é ü", ""));
+      bob.updateContent(bob.getNoteByTitle("é ü"), "ça marche", User.ANY_VERSION);
+      assertEquals(10, log.getAppendedRecords());
+    }
+
+    UserRegistry restored = new UserRegistry();
+    try (WriteAheadLog log = open(restored)) {
+      assertEquals(List.of("shopping", "todo"), titles(restored.get("alice").getNotes()));
+      assertEquals("phone bob twice", restored.get("alice").getNoteByTitle("todo").getContent());
+      assertEquals("ça marche", restored.get("bob").getNoteByTitle("é ü").getContent());
+      assertEquals(users.get("alice").getVersion(), restored.get("alice").getVersion());
+      assertEquals(0, log.getAppendedRecords());
+    }
+  }
+
+  @Test
+  void keepsTheIdentifiersOfTheNotes() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = open(users)) {
+      User alice = users.getOrCreate("alice");
+      alice.addNote(new Note("a", ""));
+      alice.addNote(new Note("b", ""));
+      alice.deleteNoteByTitle("a");
+      alice.addNote(new Note("c", ""));
+      assertEquals(4, log.getAppendedRecords());
+    }
+
+    UserRegistry restored = new UserRegistry();
+    try (WriteAheadLog log = open(restored)) {
+      User alice = users.get("alice");
+      User replayed = restored.get("alice");
+      assertEquals(alice.getNoteByTitle("b").getId(), replayed.getNoteByTitle("b").getId());
+      assertEquals(alice.getNoteByTitle("c").getId(), replayed.getNoteByTitle("c").getId());
+      assertEquals(0, log.getAppendedRecords());
+    }
+  }
+
+  @Test
+  void dropsATruncatedTail() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = open(users)) {
+      users.getOrCreate("alice").addNote(new Note("kept", ""));
+      assertEquals(1, log.getAppendedRecords());
+    }
+    Path segment = lastSegment();
+    long size = Files.size(segment);
+    // A record whose header announces more bytes than were written before the crash
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.allocate(12).putInt(100).putInt(0).putInt(42).flip());
+    }
+
+    UserRegistry restored = new UserRegistry();
+    try (WriteAheadLog log = open(restored)) {
+      assertEquals(List.of("kept"), titles(restored.get("alice").getNotes()));
+      assertEquals(0, log.getAppendedRecords());
+    }
+    assertEquals(size, Files.size(segment));
+  }
+
+  @Test
+  void dropsARecordNotMatchingItsChecksum() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = open(users)) {
+      users.getOrCreate("alice").addNote(new Note("kept", ""));
+      users.getOrCreate("alice").addNote(new Note("torn", ""));
+      assertEquals(2, log.getAppendedRecords());
+    }
+    Path segment = lastSegment();
+    byte[] bytes = Files.readAllBytes(segment);
+    // The last byte belongs to the identifier of the second note
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(segment, bytes);
+
+    UserRegistry restored = new UserRegistry();
+    try (WriteAheadLog log = open(restored)) {
+      assertEquals(List.of("kept"), titles(restored.get("alice").getNotes()));
+      // The log goes on after the dropped record
+      restored.get("alice").addNote(new Note("after", ""));
+      assertEquals(1, log.getAppendedRecords());
+    }
+    UserRegistry again = new UserRegistry();
+    try (WriteAheadLog log = open(again)) {
+      assertEquals(List.of("kept", "after"), titles(again.get("alice").getNotes()));
+      assertEquals(0, log.getAppendedRecords());
+    }
+  }
+
+  @Test
+  void skipsTheChangesAUserAlreadyContains() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = open(users)) {
+      User alice = users.getOrCreate("alice");
+      alice.addNote(new Note("todo", ""));
+      patch(alice, alice.getNoteByTitle("todo"), User.END, 0, "once");
+      assertEquals(2, log.getAppendedRecords());
+    }
+
+    // The registry already holds the changes, as after a snapshot taken while they were logged
+    UserRegistry restored = new UserRegistry();
+    restored.getOrCreate("alice").restore(users.get("alice").capture());
+    try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.Durability.ASYNC, 0)) {
+      log.replay(restored, 0);
+    }
+    assertEquals("once", restored.get("alice").getNoteByTitle("todo").getContent());
+    assertEquals(1, restored.get("alice").getNoteCount());
+  }
+
+  @Test
+  void replaysABatchAsAWhole() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = open(users)) {
+      User alice = users.getOrCreate("alice");
+      Batch batch = new Batch();
+      batch.createNote("a");
+      batch.createNote("b");
+      batch.updateContent(2, 0, "text".getBytes(StandardCharsets.UTF_8), User.ANY_VERSION);
+      assertTrue(alice.apply(batch, Integer.MAX_VALUE)[2] > 0);
+      // The batch is logged as a single record
+      assertEquals(1, log.getAppendedRecords());
+    }
+
+    UserRegistry restored = new UserRegistry();
+    try (WriteAheadLog log = open(restored)) {
+      assertEquals(List.of("a", "b"), titles(restored.get("alice").getNotes()));
+      assertEquals("text", restored.get("alice").getNoteByTitle("b").getContent());
+      assertEquals(0, log.getAppendedRecords());
+    }
+  }
+
+  @Test
+  void acknowledgesSyncChangesOnceForced() throws IOException {
+    UserRegistry users = new UserRegistry();
+    try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.Durability.SYNC, 0)) {
+      log.replay(users, 0);
+      users.setListener(log);
+      users.getOrCreate("alice").addNote(new Note("a", ""));
+      long target = log.durableTarget();
+      assertEquals(1, target);
+      log.awaitDurable();
+      assertTrue(log.isDurable(target));
+    }
+  }
+
+  private WriteAheadLog open(UserRegistry users) throws IOException {
+    WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.Durability.ASYNC, 0);
+    log.replay(users, 0);
+    users.setListener(log);
+    return log;
+  }
+
+  private static void patch(User user, Note note, int offset, int removed, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    user.patchContent(
+        note, offset, removed, bytes, bytes.length, Integer.MAX_VALUE, User.ANY_VERSION);
+  }
+
+  private static List<String> titles(List<Note> notes) {
+    return notes.stream().map(Note::getTitle).toList();
+  }
+
+  private Path lastSegment() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> file.getFileName().toString().startsWith("wal-"))
+          .max(Comparator.naturalOrder())
+          .orElseThrow();
+    }
+  }
+}
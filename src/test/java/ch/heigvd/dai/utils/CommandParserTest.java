@@ -0,0 +1,112 @@
+package ch.heigvd.dai.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.commands.Client;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class CommandParserTest {
+  @Test
+  void splitsLikeParseInput() {
+    String[] lines = {
+      "GET_NOTE 1",
+      "  UPDATE_CONTENT   2 \"hello world\"  7 ",
+      "UPDATE_TITLE 1 \"\"",
+      "UPDATE_TITLE 1 a\"b c\"d",
+      "UPDATE_CONTENT 1 \"unterminated quote",
+      "CREATE_NOTE \"é ü 😀\"\t",
+      "PATCH_CONTENT 1 0 3 \"a\"\"b\"",
+    };
+    CommandParser parser = new CommandParser();
+    for (String line : lines) {
+      assertTrue(parse(parser, line), line);
+      assertArrayEquals(MainUtils.parseInput(line.trim()), tokens(parser), line);
+    }
+  }
+
+  @Test
+  void matchesParseInputOnRandomLines() {
+    char[] alphabet = {'a', '1', ' ', ' ', '"', '\t', '\\', 'é', '€'};
+    CommandParser parser = new CommandParser();
+    Random random = new Random(42);
+    for (int i = 0; i < 10_000; i++) {
+      StringBuilder line = new StringBuilder("GET_NOTE ");
+      int length = random.nextInt(20);
+      for (int j = 0; j < length; j++) {
+        line.append(alphabet[random.nextInt(alphabet.length)]);
+      }
+      if (random.nextBoolean()) {
+        line.append("😀");
+      }
+      assertTrue(parse(parser, line.toString()));
+      assertEquals(Client.Command.GET_NOTE, parser.command());
+      assertArrayEquals(
+          MainUtils.parseInput(line.toString().trim()), tokens(parser), line.toString());
+    }
+  }
+
+  @Test
+  void ignoresBlankLines() {
+    CommandParser parser = new CommandParser();
+    assertFalse(parse(parser, ""));
+    assertFalse(parse(parser, " \t "));
+    // Only an empty quoted token, as parseInput finds no token either
+    assertFalse(parse(parser, "\"\""));
+    assertEquals(0, MainUtils.parseInput("\"\"").length);
+  }
+
+  @Test
+  void recognisesTheCommandsByTheirWholeName() {
+    CommandParser parser = new CommandParser();
+    assertTrue(parse(parser, "\"GET_NOTE\" 1"));
+    assertEquals(Client.Command.GET_NOTE, parser.command());
+    assertTrue(parse(parser, "GET_NOTES 1"));
+    assertEquals(Client.Command.GET_NOTES, parser.command());
+    assertTrue(parse(parser, "GET_NOT 1"));
+    assertNull(parser.command());
+    assertTrue(parse(parser, "get_note 1"));
+    assertNull(parser.command());
+  }
+
+  @Test
+  void parsesTheNumbersLikeTheJdk() {
+    String[] numbers = {"0", "42", "-7", "+7", "2147483647", "-2147483648", "2147483648", "1a"};
+    CommandParser parser = new CommandParser();
+    for (String number : numbers) {
+      parse(parser, "GET_NOTE " + number);
+      Integer expected;
+      try {
+        expected = Integer.parseInt(number);
+      } catch (NumberFormatException e) {
+        expected = -1;
+      }
+      assertEquals(expected, parser.intArgument(0, -1), number);
+    }
+
+    parse(parser, "CHANGES_SINCE 999999999999999999 1000000000000000000 -1 x");
+    assertEquals(999_999_999_999_999_999L, parser.longArgument(0, -1));
+    assertEquals(-1, parser.longArgument(1, -1));
+    assertEquals(-1, parser.longArgument(2, -1));
+    assertEquals(-1, parser.longArgument(3, -1));
+  }
+
+  private static boolean parse(CommandParser parser, String line) {
+    byte[] bytes = ("..." + line).getBytes(StandardCharsets.UTF_8);
+    return parser.parse(bytes, 3, bytes.length - 3);
+  }
+
+  /** The tokens of the last line parsed, the command first. */
+  private static String[] tokens(CommandParser parser) {
+    String[] tokens = new String[parser.argumentCount() + 1];
+    tokens[0] = parser.command() == null ? null : parser.command().name();
+    for (int i = 0; i < parser.argumentCount(); i++) {
+      tokens[i + 1] = parser.argument(i);
+      assertEquals(
+          tokens[i + 1],
+          new String(parser.buffer(), parser.argumentStart(i), parser.argumentLength(i)));
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,130 @@
+package ch.heigvd.dai.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.heigvd.dai.commands.Client;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class FrameParserTest {
+  @Test
+  void readsTheRequestsWrittenByTheClients() throws IOException {
+    byte[] raw = {0, (byte) 0xFF, 7};
+    byte[] frame =
+        request(Client.Command.PATCH_CONTENT, 42, 3, 1L << 40, "é 😀", raw, "", Integer.MIN_VALUE);
+    FrameParser parser = new FrameParser();
+
+    // The frame is parsed where it was received, after its length
+    byte[] received = new byte[frame.length + 2];
+    System.arraycopy(frame, 0, received, 2, frame.length);
+    assertTrue(parser.parse(received, 2 + 4, frame.length - 4));
+
+    assertEquals(Client.Command.PATCH_CONTENT, parser.command());
+    assertEquals(42, parser.requestId());
+    assertEquals(6, parser.argumentCount());
+    assertEquals(3, parser.intArgument(0, -1));
+    assertEquals(1L << 40, parser.longArgument(1, -1));
+    assertEquals("é 😀", parser.argument(2));
+    assertSame(received, parser.buffer());
+    int start = parser.argumentStart(3);
+    assertArrayEquals(
+        raw, Arrays.copyOfRange(parser.buffer(), start, start + parser.argumentLength(3)));
+    assertEquals("", parser.argument(4));
+    assertEquals(Integer.MIN_VALUE, parser.intArgument(5, 0));
+  }
+
+  @Test
+  void checksTheLengthOfTheNumbers() throws IOException {
+    FrameParser parser = parse(request(Client.Command.GET_NOTE, 1, 7L, 7, "7", -1L));
+    assertEquals(-1, parser.intArgument(0, -1));
+    assertEquals(7, parser.longArgument(0, -1));
+    assertEquals(-1, parser.longArgument(1, -1));
+    assertEquals(-1, parser.intArgument(2, -1));
+    // The versions and identifiers are never negative
+    assertEquals(-2, parser.longArgument(3, -2));
+  }
+
+  @Test
+  void growsWithTheNumberOfFields() throws IOException {
+    Object[] titles = new Object[100];
+    for (int i = 0; i < titles.length; i++) {
+      titles[i] = "title " + i;
+    }
+    FrameParser parser = parse(request(Client.Command.GET_NOTES, 5, titles));
+    assertEquals(titles.length, parser.argumentCount());
+    for (int i = 0; i < titles.length; i++) {
+      assertEquals(titles[i], parser.argument(i));
+    }
+
+    // The next frame replaces the fields of the previous one
+    byte[] frame = request(Client.Command.DISCONNECT, 6);
+    assertTrue(parser.parse(frame, 4, frame.length - 4));
+    assertEquals(Client.Command.DISCONNECT, parser.command());
+    assertEquals(0, parser.argumentCount());
+  }
+
+  @Test
+  void refusesAFrameTooShortForItsHeader() {
+    FrameParser parser = new FrameParser();
+    assertFalse(parser.parse(new byte[] {6, 0, 0, 0}, 0, 4));
+    assertNull(parser.command());
+    assertEquals(0, parser.argumentCount());
+  }
+
+  @Test
+  void hasNoCommandForTruncatedFields() throws IOException {
+    byte[] frame = request(Client.Command.CREATE_NOTE, 9, "title");
+    FrameParser parser = new FrameParser();
+    // Cut in the length of the field, then in its bytes
+    for (int cut : new int[] {2, 4 + 2}) {
+      assertTrue(parser.parse(frame, 4, frame.length - 4 - cut), "cut " + cut);
+      assertNull(parser.command(), "cut " + cut);
+      assertEquals(9, parser.requestId());
+    }
+  }
+
+  @Test
+  void hasNoCommandForAFieldLongerThanTheFrame() throws IOException {
+    byte[] frame = request(Client.Command.CREATE_NOTE, 9, "title");
+    FrameParser parser = new FrameParser();
+    int field = Frames.HEADER_BYTES;
+    for (int length : new int[] {Integer.MAX_VALUE, -1, "title".length() + 1}) {
+      ByteBuffer.wrap(frame).putInt(field, length);
+      assertTrue(parser.parse(frame, 4, frame.length - 4));
+      assertNull(parser.command(), "field of " + length + " bytes");
+    }
+  }
+
+  @Test
+  void mapsEveryOpcodeToItsCommand() {
+    assertNull(Frames.command(0));
+    assertNull(Frames.command(255));
+    for (Client.Command command : Client.Command.values()) {
+      int opcode = Frames.opcode(command);
+      if (opcode != 0) {
+        assertEquals(command, Frames.command(opcode));
+      }
+    }
+    assertEquals(Client.Command.CONNECT, Frames.command(1));
+    assertEquals(Client.Command.END, Frames.command(22));
+  }
+
+  private static byte[] request(Client.Command command, int requestId, Object... arguments)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Frames.writeRequest(new DataOutputStream(bytes), command, requestId, arguments);
+    byte[] frame = bytes.toByteArray();
+    assertEquals(frame.length - 4, ByteBuffer.wrap(frame).getInt());
+    return frame;
+  }
+
+  private static FrameParser parse(byte[] frame) {
+    FrameParser parser = new FrameParser();
+    assertTrue(parser.parse(frame, 4, frame.length - 4));
+    return parser;
+  }
+}
@@ -0,0 +1,112 @@
+package ch.heigvd.dai.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class ScramblerTest {
+  /** Words of every length, with letters of every UTF-8 length and emoji among them. */
+  private static final String TEXT =
+      "a be see word  scrambling élève déjà-vu €uros 😀smile😀 a😀b😀c😀d "
+          + "👍👍👍👍👍 abcdefghijklmnopqrstuvwxyz ";
+
+  @Test
+  void keepsTheEndsAndTheLettersOfEachWord() {
+    for (boolean parallel : new boolean[] {false, true}) {
+      String scrambled = Scrambler.scramble(TEXT, parallel);
+      assertScrambled(TEXT, scrambled);
+    }
+  }
+
+  @Test
+  void movesTheMiddleLetters() {
+    String word = "abcdefghijklmnopqrstuvwxyz";
+    assertNotEquals(word, Scrambler.scramble(word));
+    String emoji = "😀😁😂😃😄😅😆😇😈😉";
+    String scrambled = Scrambler.scramble(emoji);
+    assertNotEquals(emoji, scrambled);
+    assertScrambled(emoji, scrambled);
+  }
+
+  @Test
+  void keepsTheSurrogatePairsTogether() {
+    String scrambled = Scrambler.scramble("x😀😁😂😃😄y ".repeat(1000));
+    for (int i = 0; i < scrambled.length(); i++) {
+      char c = scrambled.charAt(i);
+      if (Character.isHighSurrogate(c)) {
+        assertTrue(Character.isLowSurrogate(scrambled.charAt(++i)), "split pair at " + i);
+      } else {
+        assertFalse(Character.isLowSurrogate(c), "lone low surrogate at " + i);
+      }
+    }
+  }
+
+  @Test
+  void scramblesUtf8LikeTheChars() {
+    byte[] text = TEXT.getBytes(StandardCharsets.UTF_8);
+    byte[] buffer = new byte[text.length + 4];
+    Arrays.fill(buffer, (byte) '#');
+    System.arraycopy(text, 0, buffer, 2, text.length);
+
+    Scrambler.scrambleUtf8(buffer, 2, text.length);
+
+    assertScrambled(TEXT, new String(buffer, 2, text.length, StandardCharsets.UTF_8));
+    // Nothing is written around the text
+    assertEquals("##", new String(buffer, 0, 2, StandardCharsets.US_ASCII));
+    assertEquals("##", new String(buffer, text.length + 2, 2, StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  void leavesTheMalformedUtf8WordsUnchanged() {
+    byte[] malformed = {'a', 'b', (byte) 0xC3, 'c', 'd', 'e', 'f'};
+    // A multi-byte letter makes the other word go through the code point path too
+    byte[] word = "décontenancée".getBytes(StandardCharsets.UTF_8);
+    byte[] text = new byte[malformed.length + 1 + word.length];
+    System.arraycopy(malformed, 0, text, 0, malformed.length);
+    text[malformed.length] = ' ';
+    System.arraycopy(word, 0, text, malformed.length + 1, word.length);
+
+    Scrambler.scrambleUtf8(text, 0, text.length);
+
+    assertArrayEquals(malformed, Arrays.copyOf(text, malformed.length));
+    String scrambled = new String(text, malformed.length + 1, word.length, StandardCharsets.UTF_8);
+    assertScrambled("décontenancée", scrambled);
+  }
+
+  @Test
+  void scramblesLongTextsInParallelChunks() {
+    // Long enough for the chunks of both paths, the words crossing the chunk boundaries
+    String text = TEXT.repeat(Scrambler.PARALLEL_THRESHOLD / TEXT.length() + 1);
+    assertScrambled(text, Scrambler.scramble(text));
+
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    Scrambler.scrambleUtf8(bytes, 0, bytes.length);
+    assertScrambled(text, new String(bytes, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Checks that each word kept its first and last code points and the others, and that the words
+   * of up to three code points are unchanged.
+   */
+  private static void assertScrambled(String original, String scrambled) {
+    String[] words = original.split(" ", -1);
+    String[] scrambledWords = scrambled.split(" ", -1);
+    assertEquals(words.length, scrambledWords.length);
+    for (int i = 0; i < words.length; i++) {
+      int[] expected = words[i].codePoints().toArray();
+      int[] actual = scrambledWords[i].codePoints().toArray();
+      assertEquals(expected.length, actual.length, words[i]);
+      if (expected.length <= 3) {
+        assertArrayEquals(expected, actual, words[i]);
+        continue;
+      }
+      assertEquals(expected[0], actual[0], words[i]);
+      assertEquals(expected[expected.length - 1], actual[actual.length - 1], words[i]);
+      Arrays.sort(expected);
+      Arrays.sort(actual);
+      assertArrayEquals(expected, actual, words[i]);
+    }
+  }
+}